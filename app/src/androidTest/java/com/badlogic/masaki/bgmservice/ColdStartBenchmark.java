@@ -0,0 +1,59 @@
+package com.badlogic.masaki.bgmservice;
+
+import android.content.Context;
+import android.content.Intent;
+import android.media.AudioManager;
+import android.os.IBinder;
+import android.test.ServiceTestCase;
+import android.util.Log;
+
+import com.badlogic.masaki.bgmservice.library.BgmFuture;
+import com.badlogic.masaki.bgmservice.library.BgmService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a cold start of BgmService on a device: from bindService until the first frame is audible,
+ * and how long the calling thread is blocked by binding and start()
+ */
+public class ColdStartBenchmark extends ServiceTestCase<BgmService> {
+    public static final String TAG = ColdStartBenchmark.class.getSimpleName();
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    public ColdStartBenchmark() {
+        super(BgmService.class);
+    }
+
+    public void testBindToFirstAudibleFrame() throws Exception {
+        final AudioManager audioManager = (AudioManager) getContext().getSystemService(Context.AUDIO_SERVICE);
+        assertFalse("other music is playing", audioManager.isMusicActive());
+
+        final long bindAt = System.nanoTime();
+        final IBinder binder = bindService(new Intent(getContext(), BgmService.class));
+        final long boundAt = System.nanoTime();
+        final BgmService service = ((BgmService.BgmBinder) binder).getService();
+
+        final long startAt = System.nanoTime();
+        final BgmFuture started = service.start("bgm1.mp3");
+        final long startReturnedAt = System.nanoTime();
+
+        assertTrue(started.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(started.isSuccess());
+        final long startedAt = System.nanoTime();
+
+        /*
+        the music stream becomes active once the mixer pulls the first frames
+         */
+        final long deadline = bindAt + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (!audioManager.isMusicActive()) {
+            assertTrue("music never became audible", System.nanoTime() - deadline < 0);
+            Thread.sleep(1);
+        }
+        final long audibleAt = System.nanoTime();
+
+        Log.i(TAG, String.format("bind %.2fms  start() %.3fms  to STARTED %.1fms  to audible %.1fms",
+                (boundAt - bindAt) / 1e6, (startReturnedAt - startAt) / 1e6,
+                (startedAt - bindAt) / 1e6, (audibleAt - bindAt) / 1e6));
+    }
+}
@@ -8,8 +8,10 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 
+import com.badlogic.masaki.bgmservice.library.ActivityLifecycleAdapter;
 import com.badlogic.masaki.bgmservice.library.BgmService;
 import com.badlogic.masaki.bgmservice.library.BgmSettings;
+import com.badlogic.masaki.bgmservice.library.ForegroundTracker;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -18,8 +20,7 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Music stops while application is in background, and resumes in foreground.
  * Created by shojimasaki on 2016/05/26.
  */
-public class SampleBgmApplication extends Application
-        implements Application.ActivityLifecycleCallbacks {
+public class SampleBgmApplication extends Application {
 
     public static final String TAG = SampleBgmApplication.class.getSimpleName();
 
@@ -41,14 +42,57 @@ public class SampleBgmApplication extends Application
     private AtomicInteger mActivityCount = new AtomicInteger();
 
     /**
-     * Count that is incremented when Activity pauses
+     * Flag indicates binding to BgmService is requested and not released yet
      */
-    private AtomicInteger mPausedActivityCount = new AtomicInteger();
+    private boolean mBindRequested = false;
 
     /**
-     * Count that is incremented when Activity resumes
+     * Pauses music when application goes to background, and resumes it in foreground.
+     * Switching activities or rotating the screen does neither.
      */
-    private AtomicInteger mResumedActivityCount = new AtomicInteger();
+    private final ForegroundTracker mForegroundTracker = new ForegroundTracker(
+            ForegroundTracker.DEFAULT_GRACE_MILLIS, new ForegroundTracker.Listener() {
+        @Override
+        public void onForeground() {
+            if (mService != null && mService.isPlayable()) {
+                mService.resume();
+            } else {
+                bindBgmService();
+            }
+        }
+
+        @Override
+        public void onBackground() {
+            if (mService != null) {
+                mService.pause();
+            }
+        }
+    });
+
+    /**
+     * Counts activities, and unbinds from BgmService once the last one is destroyed
+     */
+    private final ActivityLifecycleAdapter mActivityCounter = new ActivityLifecycleAdapter() {
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            mActivityCount.incrementAndGet();
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+            if (mActivityCount.decrementAndGet() > 0 ||
+                    activity.isChangingConfigurations()) {
+                return;
+            }
+
+            if (mBindRequested) {
+                unbindService(mConnection);
+                mBoundToService = false;
+                mBindRequested = false;
+                mService = null;
+            }
+        }
+    };
 
     /**
      * Connection class through which we can get IBinder
@@ -74,6 +118,7 @@ public class SampleBgmApplication extends Application
         public void onServiceDisconnected(ComponentName name) {
             unbindService(mConnection);
             mBoundToService = false;
+            mBindRequested = false;
             mService = null;
         }
     };
@@ -82,78 +127,21 @@ public class SampleBgmApplication extends Application
     public void onCreate() {
         super.onCreate();
 
-        if (!mBoundToService) {
-            bindService(new Intent(this, BgmService.class), mConnection, BIND_AUTO_CREATE);
-        }
+        bindBgmService();
 
         /*
         registers callbacks to listen for activity's lifecycle
          */
-        registerActivityLifecycleCallbacks(this);
-    }
-
-    @Override
-    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
-        mActivityCount.incrementAndGet();
+        registerActivityLifecycleCallbacks(mActivityCounter);
+        registerActivityLifecycleCallbacks(mForegroundTracker);
     }
 
-    @Override
-    public void onActivityStarted(Activity activity) {
-        if (!mBoundToService) {
-            bindService(new Intent(this, BgmService.class), mConnection, BIND_AUTO_CREATE);
-        }
-    }
-
-    @Override
-    public void onActivityResumed(Activity activity) {
-        if (mService != null && mService.isPlayable()) {
-            mService.resume();
-        } else {
-            bindService(new Intent(this, BgmService.class), mConnection, BIND_AUTO_CREATE);
-        }
-
-        mResumedActivityCount.incrementAndGet();
-    }
-
-    @Override
-    public void onActivityPaused(Activity activity) {
-        mPausedActivityCount.incrementAndGet();
-    }
-
-    @Override
-    public void onActivityStopped(Activity activity) {
-        if (mService == null) {
-            return;
-        }
-
-        if (activity.isChangingConfigurations()) {
-            return;
-        }
-
-        /*
-        pauses music
-         */
-        if (mPausedActivityCount.get() == mResumedActivityCount.get()) {
-            mService.pause();
-        }
-
-    }
-
-    @Override
-    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
-
-    }
-
-    @Override
-    public void onActivityDestroyed(Activity activity) {
-        if (mActivityCount.decrementAndGet() > 0 ||
-                activity.isChangingConfigurations()) {
-            return;
-        }
-
-        if (mBoundToService) {
-            unbindService(mConnection);
-            mBoundToService = false;
+    /**
+     * Binds to BgmService unless binding is already requested
+     */
+    private void bindBgmService() {
+        if (!mBindRequested) {
+            mBindRequested = bindService(new Intent(this, BgmService.class), mConnection, BIND_AUTO_CREATE);
         }
     }
 
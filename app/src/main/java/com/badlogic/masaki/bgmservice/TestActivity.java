@@ -38,6 +38,14 @@ public class TestActivity extends AppCompatActivity {
             }
         });
 
+        /*
+        prepares music in advance so that the button switches music without a gap
+         */
+        BgmService service = ((SampleBgmApplication) getApplication()).getBgmService();
+        if (service != null) {
+            service.preload(BGM_FILE_NAME);
+        }
+
         if (sCount++ < 5) {
             startActivity(new Intent(this, TestActivity.class));
             if (sCount % 2 == 0) {
@@ -0,0 +1,468 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.util.Collection;
+
+/**
+ * Named channel of BgmService that plays one music at a time, such as music, ambience or voice-over.
+ * Channels play independently of each other, with their own volume, crossfade and listeners,
+ * but share the scheduler's thread, so a channel costs no thread of its own.
+ */
+public final class BgmChannel implements Music {
+
+    /**
+     * What a channel needs from the service that owns it
+     */
+    interface Host {
+        /**
+         * @return new factory of players
+         */
+        PlayerEngine.Factory createEngineFactory();
+
+        /**
+         * @return scheduler that runs workers of every channel
+         */
+        BgmScheduler getScheduler();
+    }
+
+    /**
+     * Service that owns this channel
+     */
+    private final Host mHost;
+
+    /**
+     * Name of this channel
+     */
+    private final String mName;
+
+    /**
+     * Worker that plays music of this channel, or null until the first command
+     */
+    private volatile BgmWorker mWorker;
+
+    /**
+     * Dispatcher of playback events to listeners on the main thread, created on first use
+     */
+    private BgmEventDispatcher mEvents;
+
+    /**
+     * Whether this channel is destroyed
+     */
+    private boolean mDestroyed;
+
+    /**
+     * Journal to restore music from when the worker is created, or null. Guarded by this.
+     */
+    private PlaybackJournal mPendingJournal;
+
+    /**
+     * Constructor
+     * @param host service that owns this channel
+     * @param name name of this channel
+     */
+    BgmChannel(final Host host, final String name) {
+        this(host, name, null);
+    }
+
+    /**
+     * Constructor
+     * @param host service that owns this channel
+     * @param name name of this channel
+     * @param events dispatcher of playback events, or null to dispatch them on the main thread
+     */
+    BgmChannel(final Host host, final String name, final BgmEventDispatcher events) {
+        mHost = host;
+        mName = name;
+        mEvents = events;
+    }
+
+    /**
+     * @return name of this channel
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Starts music
+     * @param fileName music file's name
+     * @return handle completed when music actually started
+     */
+    @Override
+    public BgmFuture start(String fileName) {
+        BgmCommand command = BgmCommand.obtain(fileName, BgmCommand.Type.START);
+        return send(command);
+    }
+
+    /**
+     * Prepares music in background so that start() with it switches music at once
+     * @param fileName music file's name
+     */
+    public void preload(String fileName) {
+        BgmCommand command = BgmCommand.obtain(fileName, BgmCommand.Type.PRELOAD);
+        post(getWorker(), command);
+    }
+
+    /**
+     * Starts music without a handle, so that nothing is allocated
+     * @param fileName music file's name
+     */
+    public void startWithoutHandle(String fileName) {
+        post(getWorker(), BgmCommand.obtain(fileName, BgmCommand.Type.START));
+    }
+
+    /**
+     * Pauses music
+     * @return handle completed when music is paused
+     */
+    @Override
+    public BgmFuture pause() {
+        BgmCommand command = BgmCommand.obtain(BgmCommand.Type.PAUSE);
+        return send(command);
+    }
+
+    /**
+     * Pauses music without a handle, so that nothing is allocated
+     */
+    public void pauseWithoutHandle() {
+        post(getWorker(), BgmCommand.obtain(BgmCommand.Type.PAUSE));
+    }
+
+    /**
+     * Resumes music
+     * @return handle completed when music actually resumed
+     */
+    @Override
+    public BgmFuture resume() {
+        BgmCommand command = BgmCommand.obtain(BgmCommand.Type.RESUME);
+        return send(command);
+    }
+
+    /**
+     * Resumes music without a handle, so that nothing is allocated
+     */
+    public void resumeWithoutHandle() {
+        post(getWorker(), BgmCommand.obtain(BgmCommand.Type.RESUME));
+    }
+
+    /**
+     * Stops music
+     * @return handle completed when music is stopped
+     */
+    @Override
+    public BgmFuture stop() {
+        BgmCommand command = BgmCommand.obtain(BgmCommand.Type.STOP);
+        return send(command);
+    }
+
+    /**
+     * Stops music without a handle, so that nothing is allocated
+     */
+    public void stopWithoutHandle() {
+        post(getWorker(), BgmCommand.obtain(BgmCommand.Type.STOP));
+    }
+
+    /**
+     * Releases the player
+     * @return handle completed when the player is released
+     */
+    @Override
+    public BgmFuture release() {
+        BgmCommand command = BgmCommand.obtain(BgmCommand.Type.RELEASE);
+        return send(command);
+    }
+
+    /**
+     * Sets volume of music
+     * @param volume volume from 0 to 1
+     */
+    @Override
+    public void setVolume(float volume) {
+        BgmCommand command = BgmCommand.obtain(Math.max(0f, Math.min(1f, volume)), BgmCommand.Type.SET_VOLUME);
+        post(getWorker(), command);
+    }
+
+    /**
+     * Moves the volume of music to a value over time. setVolume() stops the fade.
+     * @param volume volume to fade to, from 0 to 1
+     * @param durationMillis time the fade takes
+     */
+    public void fadeVolume(float volume, long durationMillis) {
+        post(getWorker(), createFade(volume, durationMillis));
+    }
+
+    /**
+     * Starts music after a delay
+     * @param delayMillis delay from now
+     * @param fileName music file's name
+     * @return handle to cancel it
+     */
+    public BgmTimer startAfter(long delayMillis, String fileName) {
+        return getWorker().schedule(delayMillis, BgmCommand.obtain(fileName, BgmCommand.Type.START));
+    }
+
+    /**
+     * Pauses music after a delay
+     * @param delayMillis delay from now
+     * @return handle to cancel it
+     */
+    public BgmTimer pauseAfter(long delayMillis) {
+        return getWorker().schedule(delayMillis, BgmCommand.obtain(BgmCommand.Type.PAUSE));
+    }
+
+    /**
+     * Resumes music after a delay
+     * @param delayMillis delay from now
+     * @return handle to cancel it
+     */
+    public BgmTimer resumeAfter(long delayMillis) {
+        return getWorker().schedule(delayMillis, BgmCommand.obtain(BgmCommand.Type.RESUME));
+    }
+
+    /**
+     * Stops music after a delay
+     * @param delayMillis delay from now
+     * @return handle to cancel it
+     */
+    public BgmTimer stopAfter(long delayMillis) {
+        return getWorker().schedule(delayMillis, BgmCommand.obtain(BgmCommand.Type.STOP));
+    }
+
+    /**
+     * Fades the volume of music after a delay, e.g. to 30% over 500ms when a bar starts
+     * @param delayMillis delay from now
+     * @param volume volume to fade to, from 0 to 1
+     * @param durationMillis time the fade takes
+     * @return handle to cancel it
+     */
+    public BgmTimer fadeVolumeAfter(long delayMillis, float volume, long durationMillis) {
+        return getWorker().schedule(delayMillis, createFade(volume, durationMillis));
+    }
+
+    /**
+     * Moves the playback position of the current music.
+     * If music is stopped, it starts from the position when it is started again.
+     * @param positionMillis position in milliseconds
+     */
+    @Override
+    public void seekTo(int positionMillis) {
+        BgmCommand command = BgmCommand.obtain(Math.max(0, positionMillis), BgmCommand.Type.SEEK);
+        post(getWorker(), command);
+    }
+
+    /**
+     * Sets the region of a music that loops, so that its intro is played only once.
+     * Loops wrap at the exact sample when music is decoded, see BgmSettings.setPcmCacheBudgetBytes().
+     * @param fileName music file's name
+     * @param loopPoints loop points in samples, or null to loop the whole music
+     */
+    public void setLoopPoints(String fileName, LoopPoints loopPoints) {
+        BgmCommand command = BgmCommand.obtain(new BgmWorker.LoopSettings(fileName, loopPoints),
+                BgmCommand.Type.SET_LOOP_POINTS);
+        post(getWorker(), command);
+    }
+
+    /**
+     * Sets how start() switches music while music is playing
+     * @param durationMillis time music crossfades, or 0 to switch music at once
+     * @param curve curve of the crossfade
+     */
+    public void setCrossfade(long durationMillis, FadeCurve curve) {
+        BgmCommand command = BgmCommand.obtain(
+                new BgmWorker.CrossfadeSettings(Math.max(0, durationMillis), curve), BgmCommand.Type.SET_CROSSFADE);
+        post(getWorker(), command);
+    }
+
+    /**
+     * Checks if music is playing. Reads the state BgmWorker published, so it never blocks.
+     * @return true if music is playing
+     */
+    @Override
+    public boolean isPlaying() {
+        final BgmWorker worker = mWorker;
+        return worker != null && worker.isPlaying();
+    }
+
+    /**
+     * Checks if a player exists. Reads the state BgmWorker published, so it never blocks.
+     * @return true if a player exists
+     */
+    public boolean isPlayable() {
+        final BgmWorker worker = mWorker;
+        return worker != null && worker.isPlayable();
+    }
+
+    /**
+     * Gets the state BgmWorker published last: playback state, music file, position and volume.
+     * It is an immutable snapshot, so it can be read on any thread without blocking.
+     * @return state of this channel
+     */
+    public BgmState getState() {
+        final BgmWorker worker = mWorker;
+        return worker == null ? BgmState.INITIAL : worker.getBgmState();
+    }
+
+    /**
+     * Gets statistics of track switches
+     * @return statistics of track switches
+     */
+    public TrackSwitchStats getTrackSwitchStats() {
+        return getWorker().getTrackSwitchStats();
+    }
+
+    /**
+     * Gets metrics of the command pipeline of this channel. Call snapshot() on it to poll them.
+     * @return metrics of the command pipeline
+     */
+    public BgmMetrics getMetrics() {
+        return getWorker().getMetrics();
+    }
+
+    /**
+     * Registers a listener for playback events of this channel. It is called on the main thread,
+     * and events that happen in a burst are delivered together.
+     * @param listener listener
+     */
+    public void addListener(BgmListener listener) {
+        getEventDispatcher().addListener(listener);
+    }
+
+    /**
+     * Unregisters a listener
+     * @param listener listener
+     */
+    public void removeListener(BgmListener listener) {
+        getEventDispatcher().removeListener(listener);
+    }
+
+    /**
+     * Gets the dispatcher of playback events of this channel
+     * @return dispatcher of playback events
+     */
+    synchronized BgmEventDispatcher getEventDispatcher() {
+        if (mEvents == null) {
+            mEvents = BgmEventDispatcher.onMainThread();
+        }
+        return mEvents;
+    }
+
+    /**
+     * Gets the worker, creating it and starting it on the service's scheduler on first use.
+     * Creating it does no I/O: players are created and set up on the scheduler's thread.
+     * @return worker
+     */
+    private BgmWorker getWorker() {
+        BgmWorker worker = mWorker;
+        if (worker == null) {
+            synchronized (this) {
+                worker = mWorker;
+                if (worker == null) {
+                    worker = new BgmWorker(mHost.createEngineFactory(), getEventDispatcher());
+                    if (mDestroyed) {
+                        /*
+                        commands sent after the service is destroyed are rejected, failing their handles at once
+                         */
+                        worker.discard();
+                    } else {
+                        worker.start(mHost.getScheduler());
+                        if (mPendingJournal != null) {
+                            /*
+                            queued before the command that created the worker, so that it applies to the restored music
+                             */
+                            post(worker, BgmCommand.obtain(mPendingJournal, BgmCommand.Type.RESTORE));
+                        }
+                    }
+                    mPendingJournal = null;
+                    mWorker = worker;
+                }
+            }
+        }
+        return worker;
+    }
+
+    /**
+     * Sends a command with a handle completed when the command reaches its playback state.
+     * Callbacks of the handle are called on the main thread.
+     * @param command command
+     * @return handle, failed at once if the queue is full
+     */
+    private BgmFuture send(final BgmCommand command) {
+        final BgmFuture future = new BgmFuture(getEventDispatcher().getExecutor());
+        final BgmWorker worker = getWorker();
+        if (!worker.addCommand(command.setFuture(future))) {
+            future.complete(false, worker.getBgmState());
+            command.recycle();
+        }
+        return future;
+    }
+
+    /**
+     * Sends a command without a handle, recycling it if the queue is full
+     * @param worker worker
+     * @param command command
+     */
+    private static void post(final BgmWorker worker, final BgmCommand command) {
+        if (!worker.addCommand(command)) {
+            command.recycle();
+        }
+    }
+
+    private static BgmCommand createFade(final float volume, final long durationMillis) {
+        return BgmCommand.obtain(new BgmWorker.VolumeFade(Math.max(0f, Math.min(1f, volume)), Math.max(0, durationMillis)),
+                BgmCommand.Type.FADE_VOLUME);
+    }
+
+    /**
+     * Resumes music where a journal recorded it, prepared and paused, and records music to the journal from then on.
+     * Nothing is done until the first command creates the worker, which then reads the journal on the scheduler's thread
+     * before handling that command.
+     * @param journal journal
+     */
+    synchronized void restore(final PlaybackJournal journal) {
+        final BgmWorker worker = mWorker;
+        if (worker == null) {
+            mPendingJournal = journal;
+        } else {
+            post(worker, BgmCommand.obtain(journal, BgmCommand.Type.RESTORE));
+        }
+    }
+
+    /**
+     * Collects names of the music files this channel holds, including the standby and preloaded ones
+     * @param fileNames collects the names
+     */
+    void collectFileNames(final Collection<String> fileNames) {
+        final BgmWorker worker = mWorker;
+        if (worker != null) {
+            worker.collectFileNames(fileNames);
+        }
+    }
+
+    /**
+     * Releases the preloaded player, keeping the music playing. Does nothing if no command was sent yet.
+     * @param tier tier of the trim
+     * @param stats statistics released players and music prepared again are recorded to
+     */
+    void trimMemory(final MemoryTrimStats.Tier tier, final MemoryTrimStats stats) {
+        final BgmWorker worker = mWorker;
+        if (worker != null) {
+            post(worker, BgmCommand.obtain(new BgmWorker.MemoryTrim(tier, stats), BgmCommand.Type.TRIM_MEMORY));
+        }
+    }
+
+    /**
+     * Releases the player and destroys the worker, if it was created.
+     * Commands sent afterwards are rejected, and their handles fail at once.
+     */
+    synchronized void destroy() {
+        mDestroyed = true;
+        final BgmWorker worker = mWorker;
+        if (worker != null) {
+            worker.destroy();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": " + getState();
+    }
+}
@@ -4,21 +4,63 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 /**
- * Command that is handled by BgmWorker
+ * Command that is handled by BgmWorker.
+ * Commands are recycled by BgmWorker once handled, so obtain() reuses them instead of allocating.
  * Created by shojimasaki on 2016/05/29.
  */
 public class BgmCommand  {
 
+    /**
+     * Max number of recycled commands kept for reuse
+     */
+    static final int MAX_POOL_SIZE = 64;
+
+    /**
+     * Lock of the pool
+     */
+    private static final Object sPoolLock = new Object();
+
+    /**
+     * Head of the recycled commands, linked by mNextInPool
+     */
+    private static BgmCommand sPool;
+
+    /**
+     * Number of recycled commands
+     */
+    private static int sPoolSize;
+
     /**
      * Command type
      */
-    private final Type mType;
+    private Type mType;
 
     /**
      * Data used by BgmWorker when this command is executed
      */
     private Object mData;
 
+    /**
+     * Value of a command that carries a number, so that it needs no boxing: volume or position
+     */
+    private float mFloatValue;
+    private int mIntValue;
+
+    /**
+     * Next recycled command
+     */
+    private BgmCommand mNextInPool;
+
+    /**
+     * Time when this command was added to BgmWorker's queue
+     */
+    private long mEnqueuedAtNanos;
+
+    /**
+     * Handle completed when this command reaches its playback state, or null
+     */
+    private BgmFuture mFuture;
+
     /**
      * Enum representing command type
      */
@@ -29,6 +71,47 @@ public class BgmCommand  {
         RESUME,
         RELEASE,
         DESTROY,
+        SET_VOLUME,
+        PRELOAD,
+        SET_CROSSFADE,
+        SEEK,
+        SET_LOOP_POINTS,
+        /**
+         * Moves the volume to a value over time
+         */
+        FADE_VOLUME,
+        /**
+         * Handles the command of a BgmTimer when its delay elapsed
+         */
+        SCHEDULE,
+        /**
+         * Removes a cancelled BgmTimer
+         */
+        CANCEL_TIMER,
+        /**
+         * Restores music and its position from a PlaybackJournal, and records them to it from then on
+         */
+        RESTORE,
+        /**
+         * Releases players kept for later, as Android asked for memory
+         */
+        TRIM_MEMORY,
+        /**
+         * Sent by the player when it finished preparing
+         */
+        PREPARED,
+        /**
+         * Sent by the player when music reached its end
+         */
+        COMPLETED,
+        /**
+         * Sent by the player when music wrapped from its loop end to its loop start
+         */
+        LOOPED,
+        /**
+         * Sent by the player when an error occurred
+         */
+        ERROR,
     }
 
 
@@ -50,6 +133,101 @@ public class BgmCommand  {
         this(null, type);
     }
 
+    /**
+     * Constructor of a command that carries a volume
+     * @param value volume
+     * @param type
+     */
+    BgmCommand(final float value, @NonNull Type type) {
+        this(null, type);
+        mFloatValue = value;
+    }
+
+    /**
+     * Constructor of a command that carries a position
+     * @param value position in milliseconds
+     * @param type
+     */
+    BgmCommand(final int value, @NonNull Type type) {
+        this(null, type);
+        mIntValue = value;
+    }
+
+    /**
+     * Gets a recycled command, or creates one if none is recycled
+     * @param data data used by BgmWorker
+     * @param type command type
+     * @return command
+     */
+    static BgmCommand obtain(@Nullable Object data, @NonNull Type type) {
+        BgmCommand command = null;
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                command = sPool;
+                sPool = command.mNextInPool;
+                command.mNextInPool = null;
+                sPoolSize--;
+            }
+        }
+        if (command == null) {
+            return new BgmCommand(data, type);
+        }
+        command.mType = type;
+        command.mData = data;
+        return command;
+    }
+
+    /**
+     * Gets a recycled command without data
+     * @param type command type
+     * @return command
+     */
+    static BgmCommand obtain(@NonNull Type type) {
+        return obtain(null, type);
+    }
+
+    /**
+     * Gets a recycled command that carries a volume
+     * @param value volume
+     * @param type command type
+     * @return command
+     */
+    static BgmCommand obtain(final float value, @NonNull Type type) {
+        final BgmCommand command = obtain(null, type);
+        command.mFloatValue = value;
+        return command;
+    }
+
+    /**
+     * Gets a recycled command that carries a position
+     * @param value position in milliseconds
+     * @param type command type
+     * @return command
+     */
+    static BgmCommand obtain(final int value, @NonNull Type type) {
+        final BgmCommand command = obtain(null, type);
+        command.mIntValue = value;
+        return command;
+    }
+
+    /**
+     * Clears this command and keeps it for obtain(). Called by BgmWorker once nothing refers to it.
+     */
+    void recycle() {
+        mData = null;
+        mFloatValue = 0f;
+        mIntValue = 0;
+        mEnqueuedAtNanos = 0;
+        mFuture = null;
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNextInPool = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
     /**
      *
      * @return mData
@@ -59,11 +237,49 @@ public class BgmCommand  {
     }
 
     /**
-     * Sets data used by BgmWorker
-     * @param data
+     * @return volume this command carries
      */
-    void setData(final Object data) {
-        mData = data;
+    float getFloatValue() {
+        return mFloatValue;
+    }
+
+    /**
+     * @return position this command carries
+     */
+    int getIntValue() {
+        return mIntValue;
+    }
+
+    /**
+     * @return time when this command was added to BgmWorker's queue
+     */
+    long getEnqueuedAtNanos() {
+        return mEnqueuedAtNanos;
+    }
+
+    /**
+     * Sets time when this command was added to BgmWorker's queue
+     * @param nanos time from System.nanoTime()
+     */
+    void setEnqueuedAtNanos(final long nanos) {
+        mEnqueuedAtNanos = nanos;
+    }
+
+    /**
+     * @return handle completed when this command reaches its playback state, or null
+     */
+    BgmFuture getFuture() {
+        return mFuture;
+    }
+
+    /**
+     * Sets a handle completed when this command reaches its playback state
+     * @param future handle
+     * @return this command
+     */
+    BgmCommand setFuture(final BgmFuture future) {
+        mFuture = future;
+        return this;
     }
 
     /**
@@ -0,0 +1,283 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers playback events to BgmListeners in batches.
+ * Events are queued without locks, and a burst of them costs one task on the executor,
+ * where they are coalesced into the net change before listeners are called.
+ */
+final class BgmEventDispatcher {
+
+    /**
+     * Registered listeners
+     */
+    private final CopyOnWriteArrayList<BgmListener> mListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Events waiting to be delivered
+     */
+    private final ConcurrentLinkedQueue<Event> mEvents = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether a flush is posted to the executor and has not started yet
+     */
+    private final AtomicBoolean mFlushPosted = new AtomicBoolean();
+
+    /**
+     * Executor listeners are called on
+     */
+    private final Executor mExecutor;
+
+    /**
+     * Errors of the batch being delivered. Only the executor touches it.
+     */
+    private final List<Event> mErrors = new ArrayList<>();
+
+    /**
+     * Task that delivers the queued events
+     */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructor
+     * @param executor executor listeners are called on
+     */
+    BgmEventDispatcher(final Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @return executor listeners are called on
+     */
+    Executor getExecutor() {
+        return mExecutor;
+    }
+
+    /**
+     * Creates a dispatcher that calls listeners on the main thread
+     * @return dispatcher
+     */
+    static BgmEventDispatcher onMainThread() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new BgmEventDispatcher(new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                handler.post(runnable);
+            }
+        });
+    }
+
+    /**
+     * Registers a listener
+     * @param listener listener
+     */
+    void addListener(final BgmListener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregisters a listener
+     * @param listener listener
+     */
+    void removeListener(final BgmListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Checks if any listener is registered, so that callers can skip creating events nobody receives
+     * @return true if a listener is registered
+     */
+    boolean hasListeners() {
+        return !mListeners.isEmpty();
+    }
+
+    /**
+     * Queues a change of the playback state
+     * @param previous playback state before the change
+     * @param state state after the change
+     */
+    void stateChanged(final BgmWorker.PlaybackState previous, final BgmState state) {
+        if (!hasListeners()) {
+            return;
+        }
+        post(new Event(Event.STATE_CHANGED, previous, state, null, null, 0, 0));
+    }
+
+    /**
+     * Queues a change of the current music
+     * @param previousFileName previous music file's name, or null
+     * @param fileName current music file's name
+     */
+    void trackChanged(final String previousFileName, final String fileName) {
+        if (!hasListeners()) {
+            return;
+        }
+        post(new Event(Event.TRACK_CHANGED, null, null, previousFileName, fileName, 0, 0));
+    }
+
+    /**
+     * Queues a wrap of a loop
+     * @param fileName music file's name
+     */
+    void loopWrapped(final String fileName) {
+        if (!hasListeners()) {
+            return;
+        }
+        post(new Event(Event.LOOP_WRAPPED, null, null, null, fileName, 1, 0));
+    }
+
+    /**
+     * Queues an error
+     * @param fileName music file's name the player had, or null
+     * @param what type of the error
+     * @param extra code specific to the error
+     */
+    void error(final String fileName, final int what, final int extra) {
+        if (!hasListeners()) {
+            return;
+        }
+        post(new Event(Event.ERROR, null, null, null, fileName, what, extra));
+    }
+
+    /**
+     * Queues an event, and posts a flush unless one is already posted.
+     * Callers check hasListeners() first, so that no event is created while nobody listens.
+     */
+    private void post(final Event event) {
+        mEvents.offer(event);
+        if (mFlushPosted.compareAndSet(false, true)) {
+            mExecutor.execute(mFlush);
+        }
+    }
+
+    /**
+     * Coalesces the queued events and calls listeners with them.
+     * Events queued meanwhile post another flush.
+     */
+    private void flush() {
+        mFlushPosted.set(false);
+
+        BgmWorker.PlaybackState previousState = null;
+        BgmState state = null;
+        String previousFileName = null;
+        String fileName = null;
+        boolean trackChanged = false;
+        String loopFileName = null;
+        int loopCount = 0;
+        mErrors.clear();
+
+        Event event;
+        while ((event = mEvents.poll()) != null) {
+            switch (event.mType) {
+                case Event.STATE_CHANGED:
+                    if (state == null) {
+                        previousState = event.mPreviousState;
+                    }
+                    state = event.mState;
+                    break;
+
+                case Event.TRACK_CHANGED:
+                    if (!trackChanged) {
+                        previousFileName = event.mPreviousFileName;
+                        trackChanged = true;
+                    }
+                    fileName = event.mFileName;
+                    break;
+
+                case Event.LOOP_WRAPPED:
+                    if (loopCount > 0 && !equals(loopFileName, event.mFileName)) {
+                        deliverLoop(loopFileName, loopCount);
+                        loopCount = 0;
+                    }
+                    loopFileName = event.mFileName;
+                    loopCount += event.mWhat;
+                    break;
+
+                case Event.ERROR:
+                    mErrors.add(event);
+                    break;
+            }
+        }
+
+        if (trackChanged && !equals(previousFileName, fileName)) {
+            for (BgmListener listener : mListeners) {
+                listener.onTrackChanged(previousFileName, fileName);
+            }
+        }
+        if (state != null && previousState != state.getPlaybackState()) {
+            for (BgmListener listener : mListeners) {
+                listener.onStateChanged(previousState, state);
+            }
+        }
+        if (loopCount > 0) {
+            deliverLoop(loopFileName, loopCount);
+        }
+        for (int i = 0; i < mErrors.size(); i++) {
+            final Event error = mErrors.get(i);
+            for (BgmListener listener : mListeners) {
+                listener.onError(error.mFileName, error.mWhat, error.mExtra);
+            }
+        }
+        mErrors.clear();
+    }
+
+    /**
+     * Calls listeners with wraps of a loop
+     */
+    private void deliverLoop(final String fileName, final int count) {
+        for (BgmListener listener : mListeners) {
+            listener.onLoopWrapped(fileName, count);
+        }
+    }
+
+    private static boolean equals(final String a, final String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Event waiting to be delivered
+     */
+    private static final class Event {
+        static final int STATE_CHANGED = 0;
+        static final int TRACK_CHANGED = 1;
+        static final int LOOP_WRAPPED = 2;
+        static final int ERROR = 3;
+
+        final int mType;
+        final BgmWorker.PlaybackState mPreviousState;
+        final BgmState mState;
+        final String mPreviousFileName;
+        final String mFileName;
+
+        /**
+         * Type of an error, or number of wraps of a loop
+         */
+        final int mWhat;
+        final int mExtra;
+
+        Event(final int type, final BgmWorker.PlaybackState previousState, final BgmState state,
+              final String previousFileName, final String fileName, final int what, final int extra) {
+            mType = type;
+            mPreviousState = previousState;
+            mState = state;
+            mPreviousFileName = previousFileName;
+            mFileName = fileName;
+            mWhat = what;
+            mExtra = extra;
+        }
+    }
+}
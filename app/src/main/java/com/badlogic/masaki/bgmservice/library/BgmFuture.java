@@ -0,0 +1,158 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of a command sent to BgmWorker, completed when the playback state the command asked for is reached.
+ * It fails if a later command superseded it, for example a pause() before start() began playing,
+ * or if the player kept reporting errors or the worker was destroyed.
+ */
+public final class BgmFuture {
+
+    /**
+     * Callback called when a command completes
+     */
+    public interface Callback {
+        /**
+         * @param future completed handle; see isSuccess() and getState()
+         */
+        void onComplete(BgmFuture future);
+    }
+
+    /**
+     * Executor callbacks are called on
+     */
+    private final Executor mExecutor;
+
+    /**
+     * Whether the command completed
+     */
+    private boolean mDone;
+
+    /**
+     * Whether the command reached its playback state
+     */
+    private boolean mSuccess;
+
+    /**
+     * State when the command completed
+     */
+    private BgmState mState;
+
+    /**
+     * Callbacks waiting for completion, or null if none is added
+     */
+    private List<Callback> mCallbacks;
+
+    /**
+     * Constructor
+     * @param executor executor callbacks are called on
+     */
+    BgmFuture(final Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * @return true if the command completed, successfully or not
+     */
+    public synchronized boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * @return true if the command reached its playback state
+     */
+    public synchronized boolean isSuccess() {
+        return mSuccess;
+    }
+
+    /**
+     * @return state when the command completed, or null if it has not completed
+     */
+    public synchronized BgmState getState() {
+        return mState;
+    }
+
+    /**
+     * Waits until the command completes
+     * @param timeout max time to wait
+     * @param unit unit of timeout
+     * @return true if the command completed, false if the timeout elapsed
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public synchronized boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!mDone) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a callback called once the command completes, at once if it already has
+     * @param callback callback
+     */
+    public void addCallback(final Callback callback) {
+        synchronized (this) {
+            if (!mDone) {
+                if (mCallbacks == null) {
+                    mCallbacks = new ArrayList<>(1);
+                }
+                mCallbacks.add(callback);
+                return;
+            }
+        }
+        dispatch(callback);
+    }
+
+    /**
+     * Completes the command. Does nothing if it already completed.
+     * @param success true if the command reached its playback state
+     * @param state state when the command completed
+     */
+    void complete(final boolean success, final BgmState state) {
+        final List<Callback> callbacks;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mSuccess = success;
+            mState = state;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+            notifyAll();
+        }
+        if (callbacks != null) {
+            for (Callback callback : callbacks) {
+                dispatch(callback);
+            }
+        }
+    }
+
+    /**
+     * Calls a callback on the executor
+     */
+    private void dispatch(final Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onComplete(BgmFuture.this);
+            }
+        });
+    }
+
+    @Override
+    public String toString() {
+        synchronized (this) {
+            return mDone ? (mSuccess ? "succeeded: " : "failed: ") + mState : "pending";
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.badlogic.masaki.bgmservice.library;
+
+/**
+ * Listener for playback events of BgmService, called on the main thread.
+ * Events that happen in a burst are delivered together: a listener sees the net change of the burst.
+ */
+public interface BgmListener {
+
+    /**
+     * Called when the playback state changed, for example when music actually started after start()
+     * @param previous playback state before the change
+     * @param state state after the change
+     */
+    void onStateChanged(BgmWorker.PlaybackState previous, BgmState state);
+
+    /**
+     * Called when the current music changed
+     * @param previousFileName previous music file's name, or null
+     * @param fileName current music file's name
+     */
+    void onTrackChanged(String previousFileName, String fileName);
+
+    /**
+     * Called when music wrapped from its loop end to its loop start.
+     * Reported only when music is decoded, see BgmSettings.setPcmCacheBudgetBytes().
+     * @param fileName music file's name
+     * @param count number of wraps since the last call
+     */
+    void onLoopWrapped(String fileName, int count);
+
+    /**
+     * Called when a player reported an error
+     * @param fileName music file's name the player had, or null
+     * @param what type of the error
+     * @param extra code specific to the error
+     */
+    void onError(String fileName, int what, int extra);
+
+    /**
+     * Listener that does nothing, to override only the events needed
+     */
+    class Adapter implements BgmListener {
+        @Override
+        public void onStateChanged(BgmWorker.PlaybackState previous, BgmState state) {}
+
+        @Override
+        public void onTrackChanged(String previousFileName, String fileName) {}
+
+        @Override
+        public void onLoopWrapped(String fileName, int count) {}
+
+        @Override
+        public void onError(String fileName, int what, int extra) {}
+    }
+}
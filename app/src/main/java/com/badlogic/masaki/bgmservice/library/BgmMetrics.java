@@ -0,0 +1,295 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of BgmWorker's command pipeline: how long commands wait in the queue,
+ * how long music takes to prepare per file, how deep the queue gets, and how many errors players report,
+ * and of streamed music: how full its read-ahead is and how long it stalls.
+ * Memory is fixed: prepare durations are kept for up to MAX_ASSETS files, and later files only count in the total.
+ * Recording is lock-free, and snapshot() can be polled from any thread.
+ */
+public final class BgmMetrics {
+
+    /**
+     * Max number of files whose prepare durations are kept separately
+     */
+    static final int MAX_ASSETS = 16;
+
+    /**
+     * Time from when a command is added until BgmWorker applies it
+     */
+    private final LatencyHistogram mCommandLatency = new LatencyHistogram();
+
+    /**
+     * Time music takes to prepare, of every file
+     */
+    private final LatencyHistogram mPrepareDuration = new LatencyHistogram();
+
+    /**
+     * Time music takes to prepare, by file name
+     */
+    private final ConcurrentHashMap<String, LatencyHistogram> mPrepareDurationByAsset = new ConcurrentHashMap<>();
+
+    /**
+     * Max number of commands found waiting in the queue
+     */
+    private final AtomicInteger mQueueDepthHighWater = new AtomicInteger();
+
+    /**
+     * Number of commands rejected since the queue was full
+     */
+    private final AtomicLong mRejectedCommandCount = new AtomicLong();
+
+    /**
+     * Number of errors reported by players
+     */
+    private final AtomicLong mErrorCount = new AtomicLong();
+
+    /**
+     * What and extra of the last error, packed into one long
+     */
+    private final AtomicLong mLastError = new AtomicLong();
+
+    /**
+     * Number of times music was prepared again after an error
+     */
+    private final AtomicLong mRecoveryCount = new AtomicLong();
+
+    /**
+     * Bytes buffered ahead of streamed music in percent, or -1 if no music is streamed
+     */
+    private final AtomicInteger mBufferFillPercent = new AtomicInteger(-1);
+
+    /**
+     * Time streamed music waited for bytes the read-ahead had not fetched yet
+     */
+    private final LatencyHistogram mUnderrunStall = new LatencyHistogram();
+
+    BgmMetrics() {}
+
+    /**
+     * Records how long a command waited in the queue
+     * @param nanos time from when the command was added until it was applied
+     */
+    void recordCommandLatency(final long nanos) {
+        mCommandLatency.record(nanos);
+    }
+
+    /**
+     * Records how long music took to prepare
+     * @param fileName music file's name
+     * @param nanos time from prepareAsync() until the player was prepared
+     */
+    void recordPrepareDuration(final String fileName, final long nanos) {
+        mPrepareDuration.record(nanos);
+
+        LatencyHistogram histogram = mPrepareDurationByAsset.get(fileName);
+        if (histogram == null && mPrepareDurationByAsset.size() < MAX_ASSETS) {
+            /*
+            a race may add a few more than MAX_ASSETS files, which keeps memory bounded all the same
+             */
+            final LatencyHistogram created = new LatencyHistogram();
+            histogram = mPrepareDurationByAsset.putIfAbsent(fileName, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        if (histogram != null) {
+            histogram.record(nanos);
+        }
+    }
+
+    /**
+     * Records the number of commands waiting in the queue
+     * @param depth number of commands
+     */
+    void recordQueueDepth(final int depth) {
+        int max;
+        while (depth > (max = mQueueDepthHighWater.get()) && !mQueueDepthHighWater.compareAndSet(max, depth)) {
+            /* retries until this depth or a larger one is stored */
+        }
+    }
+
+    /**
+     * Counts a command rejected since the queue was full
+     */
+    void recordRejectedCommand() {
+        mRejectedCommandCount.incrementAndGet();
+    }
+
+    /**
+     * Counts an error reported by a player
+     * @param what type of the error
+     * @param extra code specific to the error
+     */
+    void recordError(final int what, final int extra) {
+        mLastError.set(((long) what << 32) | (extra & 0xFFFFFFFFL));
+        mErrorCount.incrementAndGet();
+    }
+
+    /**
+     * Counts music prepared again after an error
+     */
+    void recordRecovery() {
+        mRecoveryCount.incrementAndGet();
+    }
+
+    /**
+     * Records how full the read-ahead of streamed music is
+     * @param percent bytes buffered ahead in percent of the read-ahead limit
+     */
+    void recordBufferFill(final int percent) {
+        mBufferFillPercent.set(percent);
+    }
+
+    /**
+     * Records an underrun of streamed music
+     * @param stallNanos time music waited for bytes
+     */
+    void recordUnderrun(final long stallNanos) {
+        mUnderrunStall.record(stallNanos);
+    }
+
+    /**
+     * Copies every metric
+     * @return snapshot of the metrics
+     */
+    public Snapshot snapshot() {
+        final Map<String, LatencyHistogram.Snapshot> byAsset = new HashMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : mPrepareDurationByAsset.entrySet()) {
+            byAsset.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        final long lastError = mLastError.get();
+        return new Snapshot(mCommandLatency.snapshot(), mPrepareDuration.snapshot(),
+                Collections.unmodifiableMap(byAsset), mQueueDepthHighWater.get(),
+                mRejectedCommandCount.get(), mErrorCount.get(), (int) (lastError >> 32), (int) lastError,
+                mRecoveryCount.get(), mBufferFillPercent.get(), mUnderrunStall.snapshot());
+    }
+
+    /**
+     * Immutable copy of the metrics
+     */
+    public static final class Snapshot {
+        private final LatencyHistogram.Snapshot mCommandLatency;
+        private final LatencyHistogram.Snapshot mPrepareDuration;
+        private final Map<String, LatencyHistogram.Snapshot> mPrepareDurationByAsset;
+        private final int mQueueDepthHighWater;
+        private final long mRejectedCommandCount;
+        private final long mErrorCount;
+        private final int mLastErrorWhat;
+        private final int mLastErrorExtra;
+        private final long mRecoveryCount;
+        private final int mBufferFillPercent;
+        private final LatencyHistogram.Snapshot mUnderrunStall;
+
+        Snapshot(final LatencyHistogram.Snapshot commandLatency, final LatencyHistogram.Snapshot prepareDuration,
+                 final Map<String, LatencyHistogram.Snapshot> prepareDurationByAsset,
+                 final int queueDepthHighWater, final long rejectedCommandCount,
+                 final long errorCount, final int lastErrorWhat, final int lastErrorExtra,
+                 final long recoveryCount, final int bufferFillPercent, final LatencyHistogram.Snapshot underrunStall) {
+            mCommandLatency = commandLatency;
+            mPrepareDuration = prepareDuration;
+            mPrepareDurationByAsset = prepareDurationByAsset;
+            mQueueDepthHighWater = queueDepthHighWater;
+            mRejectedCommandCount = rejectedCommandCount;
+            mErrorCount = errorCount;
+            mLastErrorWhat = lastErrorWhat;
+            mLastErrorExtra = lastErrorExtra;
+            mRecoveryCount = recoveryCount;
+            mBufferFillPercent = bufferFillPercent;
+            mUnderrunStall = underrunStall;
+        }
+
+        /**
+         * @return time from when a command is added until BgmWorker applies it
+         */
+        public LatencyHistogram.Snapshot getCommandLatency() {
+            return mCommandLatency;
+        }
+
+        /**
+         * @return time music takes to prepare, of every file
+         */
+        public LatencyHistogram.Snapshot getPrepareDuration() {
+            return mPrepareDuration;
+        }
+
+        /**
+         * @param fileName music file's name
+         * @return time the music takes to prepare, or null if it is not kept
+         */
+        public LatencyHistogram.Snapshot getPrepareDuration(final String fileName) {
+            return mPrepareDurationByAsset.get(fileName);
+        }
+
+        /**
+         * @return time music takes to prepare by file name, for up to MAX_ASSETS files
+         */
+        public Map<String, LatencyHistogram.Snapshot> getPrepareDurationByAsset() {
+            return mPrepareDurationByAsset;
+        }
+
+        /**
+         * @return max number of commands found waiting in the queue
+         */
+        public int getQueueDepthHighWater() {
+            return mQueueDepthHighWater;
+        }
+
+        /**
+         * @return number of commands rejected since the queue was full
+         */
+        public long getRejectedCommandCount() {
+            return mRejectedCommandCount;
+        }
+
+        /**
+         * @return number of errors reported by players
+         */
+        public long getErrorCount() {
+            return mErrorCount;
+        }
+
+        /**
+         * @return type of the last error, or 0 if none is reported
+         */
+        public int getLastErrorWhat() {
+            return mLastErrorWhat;
+        }
+
+        /**
+         * @return code of the last error, or 0 if none is reported
+         */
+        public int getLastErrorExtra() {
+            return mLastErrorExtra;
+        }
+
+        /**
+         * @return number of times music was prepared again after an error
+         */
+        public long getRecoveryCount() {
+            return mRecoveryCount;
+        }
+
+        /**
+         * @return bytes buffered ahead of streamed music in percent of the read-ahead limit,
+         * or -1 if no music is streamed
+         */
+        public int getBufferFillPercent() {
+            return mBufferFillPercent;
+        }
+
+        /**
+         * @return time streamed music waited for bytes the read-ahead had not fetched yet, one count per underrun
+         */
+        public LatencyHistogram.Snapshot getUnderrunStall() {
+            return mUnderrunStall;
+        }
+    }
+}
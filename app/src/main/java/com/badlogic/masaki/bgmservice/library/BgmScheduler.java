@@ -0,0 +1,225 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event loop that runs many BgmWorkers on one thread.
+ * A worker is queued when a command arrives for it and runs when its next volume update is due,
+ * so a channel costs no thread of its own, and an idle channel costs no wake-up.
+ */
+final class BgmScheduler {
+
+    /**
+     * Max number of workers a scheduler runs
+     */
+    static final int MAX_WORKERS = 64;
+
+    /**
+     * Time returned by BgmWorker.getWakeUpAtNanos() when the worker waits only for commands
+     */
+    static final long NO_WAKE_UP = Long.MAX_VALUE;
+
+    /**
+     * Name of the thread
+     */
+    private final String mName;
+
+    /**
+     * Workers that have commands to handle. A worker is in it at most once, so it never fills up.
+     */
+    private final MpscRingQueue<BgmWorker> mReadyQueue = new MpscRingQueue<>(MAX_WORKERS);
+
+    /**
+     * Workers waiting for a volume update. Only the loop thread touches it.
+     */
+    private final List<BgmWorker> mTimedWorkers = new ArrayList<>();
+
+    /**
+     * Number of workers attached and not destroyed yet
+     */
+    private final AtomicInteger mWorkerCount = new AtomicInteger();
+
+    /**
+     * Whether the loop finishes once every worker is destroyed
+     */
+    private volatile boolean mShutdown;
+
+    /**
+     * Thread that runs the loop, or null until a worker is attached
+     */
+    private Thread mThread;
+
+    /**
+     * Constructor. The thread starts when the first worker is attached.
+     * @param name name of the thread
+     */
+    BgmScheduler(final String name) {
+        mName = name;
+    }
+
+    /**
+     * Runs a worker on this scheduler. Called by BgmWorker.start().
+     * @param worker worker
+     * @throws IllegalStateException if the scheduler is shut down or runs MAX_WORKERS workers
+     */
+    void attach(final BgmWorker worker) {
+        synchronized (this) {
+            if (mShutdown) {
+                throw new IllegalStateException("scheduler is shut down");
+            }
+            if (mWorkerCount.get() >= MAX_WORKERS) {
+                throw new IllegalStateException("too many workers");
+            }
+            mWorkerCount.incrementAndGet();
+            if (mThread == null) {
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loop();
+                    }
+                }, mName);
+                mThread.start();
+            }
+        }
+        /*
+        handles commands added before the worker started
+         */
+        wake(worker);
+    }
+
+    /**
+     * Queues a worker to handle its commands, unless it is already queued. Can be called from any thread.
+     * @param worker worker
+     */
+    void wake(final BgmWorker worker) {
+        if (worker.mScheduled.compareAndSet(false, true)) {
+            mReadyQueue.offer(worker);
+        }
+    }
+
+    /**
+     * Finishes the loop once every worker attached is destroyed. No worker can be attached afterwards.
+     */
+    void shutdown() {
+        final Thread thread;
+        synchronized (this) {
+            mShutdown = true;
+            thread = mThread;
+        }
+        if (thread != null && mWorkerCount.get() == 0) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Waits until the loop finishes
+     * @param timeoutMillis max time to wait
+     * @return true if the loop finished or never started
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    boolean awaitTermination(final long timeoutMillis) throws InterruptedException {
+        final Thread thread;
+        synchronized (this) {
+            thread = mThread;
+        }
+        if (thread == null) {
+            return true;
+        }
+        thread.join(timeoutMillis);
+        return !thread.isAlive();
+    }
+
+    /**
+     * Main loop
+     */
+    private void loop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        while (!mShutdown || mWorkerCount.get() > 0) {
+            /*
+            waits until a command arrives, or until the earliest volume update is due
+             */
+            BgmWorker worker;
+            try {
+                final long wakeUpAtNanos = nextWakeUpNanos();
+                if (wakeUpAtNanos == NO_WAKE_UP) {
+                    worker = mReadyQueue.take();
+                } else {
+                    worker = mReadyQueue.poll(wakeUpAtNanos - System.nanoTime());
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            while (worker != null) {
+                /*
+                cleared first, so that a command added while the worker runs queues it again
+                 */
+                worker.mScheduled.set(false);
+                run(worker);
+                worker = mReadyQueue.poll();
+            }
+            runDueWorkers();
+        }
+    }
+
+    /**
+     * Runs a worker, and keeps track of when it has to run next
+     */
+    private void run(final BgmWorker worker) {
+        if (worker.isDestroyed()) {
+            /*
+            queued again by a command added while it was being destroyed
+             */
+            worker.mScheduled.set(true);
+            return;
+        }
+        if (!worker.process()) {
+            /*
+            stays marked as queued, so that commands added after it was destroyed never queue it again
+             */
+            worker.mScheduled.set(true);
+            mTimedWorkers.remove(worker);
+            mWorkerCount.decrementAndGet();
+            return;
+        }
+        if (worker.getWakeUpAtNanos() != NO_WAKE_UP && !mTimedWorkers.contains(worker)) {
+            mTimedWorkers.add(worker);
+        }
+    }
+
+    /**
+     * Runs workers whose volume update is due, and forgets ones that no longer wait for one
+     */
+    private void runDueWorkers() {
+        final long now = System.nanoTime();
+        for (int i = mTimedWorkers.size() - 1; i >= 0 && i < mTimedWorkers.size(); i--) {
+            final BgmWorker worker = mTimedWorkers.get(i);
+            final long wakeUpAtNanos = worker.getWakeUpAtNanos();
+            if (wakeUpAtNanos == NO_WAKE_UP) {
+                mTimedWorkers.remove(i);
+            } else if (wakeUpAtNanos - now <= 0) {
+                run(worker);
+            }
+        }
+    }
+
+    /**
+     * Finds the earliest time a worker waits for
+     * @return time from System.nanoTime(), or NO_WAKE_UP if no worker waits
+     */
+    private long nextWakeUpNanos() {
+        long earliest = NO_WAKE_UP;
+        for (int i = 0; i < mTimedWorkers.size(); i++) {
+            final long wakeUpAtNanos = mTimedWorkers.get(i).getWakeUpAtNanos();
+            if (wakeUpAtNanos != NO_WAKE_UP && (earliest == NO_WAKE_UP || wakeUpAtNanos - earliest < 0)) {
+                earliest = wakeUpAtNanos;
+            }
+        }
+        return earliest;
+    }
+}
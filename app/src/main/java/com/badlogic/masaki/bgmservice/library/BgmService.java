@@ -1,37 +1,117 @@
 package com.badlogic.masaki.bgmservice.library;
 
 import android.app.Service;
+import android.content.ComponentCallbacks2;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Build;
 import android.os.IBinder;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * Class that plays bgm in background
  * Created by shojimasaki on 2016/05/21.
  */
-public class BgmService extends Service implements Music {
+public class BgmService extends Service implements Music, SoundEffects {
     public static final String TAG = BgmService.class.getSimpleName();
 
+    /**
+     * Number of sound effects that can play at once
+     */
+    private static final int SFX_VOICE_COUNT = 8;
+
+    /**
+     * File the default channel records its music and position to
+     */
+    private static final String JOURNAL_FILE_NAME = "bgm_journal";
+
     /**
      * Binder through which clients and BgmService communicate with each other
      */
     private final IBinder mBinder = new BgmBinder();
 
     /**
-     * Worker that runs in background to play music
+     * Name of the channel Music methods of this service play on
+     */
+    public static final String DEFAULT_CHANNEL = "bgm";
+
+    /**
+     * Scheduler that runs workers of every channel on one thread
+     */
+    private final BgmScheduler mScheduler = new BgmScheduler(BgmScheduler.class.getSimpleName());
+
+    /**
+     * Gives channels their players and the scheduler
+     */
+    private final BgmChannel.Host mChannelHost = new BgmChannel.Host() {
+        @Override
+        public PlayerEngine.Factory createEngineFactory() {
+            return BgmService.this.createEngineFactory();
+        }
+
+        @Override
+        public BgmScheduler getScheduler() {
+            return mScheduler;
+        }
+    };
+
+    /**
+     * Channel Music methods of this service play on
+     */
+    private final BgmChannel mDefaultChannel = new BgmChannel(mChannelHost, DEFAULT_CHANNEL);
+
+    /**
+     * Channels other than the default one by name
+     */
+    private final Map<String, BgmChannel> mChannels = new HashMap<>();
+
+    /**
+     * Whether this service is destroyed. Guarded by mChannels.
+     */
+    private boolean mDestroyed;
+
+    /**
+     * Cache of decoded music, or null if music is played by MediaPlayer or the cache is not used yet. Guarded by this.
      */
-    private BgmWorker mWorker;
+    private PcmCache mPcmCache;
+
+    /**
+     * Player of stems, or null if not used yet. Guarded by this.
+     */
+    private StemPlayer mStemPlayer;
+
+    /**
+     * Player of sound effects, or null if not used yet. Created and released holding the lock of this service.
+     */
+    private volatile SfxPlayer mSfxPlayer;
+
+    /**
+     * Statistics of memory released when Android asked for it
+     */
+    private final MemoryTrimStats mTrimStats = new MemoryTrimStats();
 
     @Override
     public void onCreate() {
         super.onCreate();
         /*
-        initializes mWorker
+        the default channel prepares the music it played when the process died once its first command arrives.
+        The journal is located and read on the scheduler's thread, so nothing is done here.
          */
-        mWorker = new BgmWorker(this);
-        mWorker.start();
+        mDefaultChannel.restore(new PlaybackJournal(new PlaybackJournal.Location() {
+            @Override
+            public File getFile() {
+                return new File(getFilesDir(), JOURNAL_FILE_NAME);
+            }
+        }));
     }
 
     @Nullable
@@ -56,80 +136,485 @@ public class BgmService extends Service implements Music {
     public void onDestroy() {
         super.onDestroy();
         /*
-        release mWorker when destroyed
+        release every channel when destroyed, and let the scheduler finish once they are
+         */
+        mDefaultChannel.destroy();
+        synchronized (mChannels) {
+            mDestroyed = true;
+            for (BgmChannel channel : mChannels.values()) {
+                channel.destroy();
+            }
+        }
+        mScheduler.shutdown();
+        synchronized (this) {
+            if (mStemPlayer != null) {
+                mStemPlayer.release();
+                mStemPlayer = null;
+            }
+            if (mSfxPlayer != null) {
+                mSfxPlayer.release();
+                mSfxPlayer = null;
+            }
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        final MemoryTrimStats.Tier tier = tierOf(level);
+        if (tier != null) {
+            trimMemory(tier);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        trimMemory(MemoryTrimStats.Tier.CRITICAL);
+    }
+
+    /**
+     * Maps a level of onTrimMemory() to how much is released. Levels while the app is visible
+     * release no more than MODERATE, so that sound effects the game plays stay loaded.
+     * @param level level of onTrimMemory()
+     * @return tier, or null to release nothing
+     */
+    static MemoryTrimStats.Tier tierOf(final int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return MemoryTrimStats.Tier.CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return MemoryTrimStats.Tier.MODERATE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return MemoryTrimStats.Tier.LIGHT;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return MemoryTrimStats.Tier.MODERATE;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return MemoryTrimStats.Tier.LIGHT;
+        }
+        return null;
+    }
+
+    /**
+     * Releases what can be acquired again later, keeping the music every channel plays.
+     * Players are released on the scheduler's thread, and the rest on the calling thread.
+     * @param tier how much to release
+     */
+    void trimMemory(final MemoryTrimStats.Tier tier) {
+        Log.d(TAG, "trimming memory: " + tier);
+        mTrimStats.recordTrim(tier);
+
+        /*
+        collects every file still held before the channels release their standby players,
+        since evicting a buffer a player still holds frees nothing
          */
-        mWorker.addCommand(new BgmCommand(BgmCommand.Type.RELEASE));
-        mWorker.addCommand(new BgmCommand(BgmCommand.Type.DESTROY));
+        final Set<String> held = new HashSet<>();
+        mDefaultChannel.collectFileNames(held);
+        synchronized (mChannels) {
+            for (BgmChannel channel : mChannels.values()) {
+                channel.collectFileNames(held);
+            }
+        }
+        final PcmCache cache;
+        synchronized (this) {
+            cache = mPcmCache;
+            if (mStemPlayer != null) {
+                mStemPlayer.collectFileNames(held);
+            }
+        }
+
+        mDefaultChannel.trimMemory(tier, mTrimStats);
+        synchronized (mChannels) {
+            for (BgmChannel channel : mChannels.values()) {
+                channel.trimMemory(tier, mTrimStats);
+            }
+        }
+        if (cache != null) {
+            final List<String> evicted = new ArrayList<>();
+            final long maxBytes = tier == MemoryTrimStats.Tier.LIGHT ? cache.getBudgetBytes() / 2 : 0;
+            mTrimStats.recordFreed(tier, cache.trimToSize(maxBytes, held, evicted), evicted);
+        }
+
+        final SfxPlayer sfxPlayer = mSfxPlayer;
+        if (tier == MemoryTrimStats.Tier.CRITICAL && sfxPlayer != null) {
+            sfxPlayer.trimEffects(tier, mTrimStats);
+        }
     }
 
     /**
-     * Starts music
+     * Gets statistics of memory released when Android asked for it, per tier, and of what re-acquiring it cost
+     * @return statistics of memory trims
+     */
+    public MemoryTrimStats getMemoryTrimStats() {
+        return mTrimStats;
+    }
+
+    /**
+     * Gets a channel that plays music independently of the others, such as ambience or voice-over.
+     * Every channel runs on the same thread, so adding channels adds no threads.
+     * @param name name of the channel; DEFAULT_CHANNEL is the one Music methods of this service play on
+     * @return channel, created on first use. Once this service is destroyed, channels reject every command.
+     */
+    public BgmChannel getChannel(String name) {
+        if (DEFAULT_CHANNEL.equals(name)) {
+            return mDefaultChannel;
+        }
+        synchronized (mChannels) {
+            BgmChannel channel = mChannels.get(name);
+            if (channel == null) {
+                channel = new BgmChannel(mChannelHost, name);
+                if (mDestroyed) {
+                    /*
+                    the scheduler is shut down, so the channel must never start a worker on it
+                     */
+                    channel.destroy();
+                }
+                mChannels.put(name, channel);
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Starts music on the default channel
      * @param fileName music file's name
+     * @return handle completed when music actually started
      */
     @Override
-    public void start(String fileName) {
-        if (mWorker == null) {
-            mWorker = new BgmWorker(this, fileName);
-            mWorker.start();
-        }
+    public BgmFuture start(String fileName) {
+        return mDefaultChannel.start(fileName);
+    }
+
+    /**
+     * Prepares music in background so that start() with it switches music at once
+     * @param fileName music file's name
+     */
+    public void preload(String fileName) {
+        mDefaultChannel.preload(fileName);
+    }
+
+    /**
+     * Starts music on the default channel without a handle, so that nothing is allocated
+     * @param fileName music file's name
+     */
+    public void startWithoutHandle(String fileName) {
+        mDefaultChannel.startWithoutHandle(fileName);
+    }
+
+    /**
+     * Pauses music on the default channel
+     * @return handle completed when music is paused
+     */
+    @Override
+    public BgmFuture pause() {
+        return mDefaultChannel.pause();
+    }
 
-        BgmCommand command = new BgmCommand(fileName, BgmCommand.Type.START);
-        mWorker.addCommand(command);
+    /**
+     * Pauses music on the default channel without a handle, so that nothing is allocated
+     */
+    public void pauseWithoutHandle() {
+        mDefaultChannel.pauseWithoutHandle();
     }
 
     /**
-     * Pauses music
+     * Resumes music on the default channel
+     * @return handle completed when music actually resumed
      */
     @Override
-    public void pause() {
-        BgmCommand command = new BgmCommand(BgmCommand.Type.PAUSE);
-        mWorker.addCommand(command);
+    public BgmFuture resume() {
+        return mDefaultChannel.resume();
+    }
+
+    /**
+     * Resumes music on the default channel without a handle, so that nothing is allocated
+     */
+    public void resumeWithoutHandle() {
+        mDefaultChannel.resumeWithoutHandle();
+    }
+
+    /**
+     * Stops music on the default channel
+     * @return handle completed when music is stopped
+     */
+    @Override
+    public BgmFuture stop() {
+        return mDefaultChannel.stop();
+    }
+
+    /**
+     * Stops music on the default channel without a handle, so that nothing is allocated
+     */
+    public void stopWithoutHandle() {
+        mDefaultChannel.stopWithoutHandle();
     }
 
     /**
-     * Resumes music
+     * Releases the player of the default channel
+     * @return handle completed when the player is released
      */
     @Override
-    public void resume() {
-        BgmCommand command = new BgmCommand(BgmCommand.Type.RESUME);
-        mWorker.addCommand(command);
+    public BgmFuture release() {
+        return mDefaultChannel.release();
     }
 
+    /**
+     * Sets volume of music on the default channel
+     * @param volume volume from 0 to 1
+     */
     @Override
-    public void stop() {
-        BgmCommand command = new BgmCommand(BgmCommand.Type.STOP);
-        mWorker.addCommand(command);
+    public void setVolume(float volume) {
+        mDefaultChannel.setVolume(volume);
+    }
+
+    /**
+     * Moves the volume of music on the default channel to a value over time. setVolume() stops the fade.
+     * @param volume volume to fade to, from 0 to 1
+     * @param durationMillis time the fade takes
+     */
+    public void fadeVolume(float volume, long durationMillis) {
+        mDefaultChannel.fadeVolume(volume, durationMillis);
+    }
+
+    /**
+     * Starts music on the default channel after a delay
+     * @param delayMillis delay from now
+     * @param fileName music file's name
+     * @return handle to cancel it
+     */
+    public BgmTimer startAfter(long delayMillis, String fileName) {
+        return mDefaultChannel.startAfter(delayMillis, fileName);
+    }
+
+    /**
+     * Pauses music on the default channel after a delay
+     * @param delayMillis delay from now
+     * @return handle to cancel it
+     */
+    public BgmTimer pauseAfter(long delayMillis) {
+        return mDefaultChannel.pauseAfter(delayMillis);
+    }
+
+    /**
+     * Resumes music on the default channel after a delay
+     * @param delayMillis delay from now
+     * @return handle to cancel it
+     */
+    public BgmTimer resumeAfter(long delayMillis) {
+        return mDefaultChannel.resumeAfter(delayMillis);
+    }
+
+    /**
+     * Stops music on the default channel after a delay
+     * @param delayMillis delay from now
+     * @return handle to cancel it
+     */
+    public BgmTimer stopAfter(long delayMillis) {
+        return mDefaultChannel.stopAfter(delayMillis);
     }
 
     /**
-     * Releases worker
+     * Fades the volume of music on the default channel after a delay
+     * @param delayMillis delay from now
+     * @param volume volume to fade to, from 0 to 1
+     * @param durationMillis time the fade takes
+     * @return handle to cancel it
+     */
+    public BgmTimer fadeVolumeAfter(long delayMillis, float volume, long durationMillis) {
+        return mDefaultChannel.fadeVolumeAfter(delayMillis, volume, durationMillis);
+    }
+
+    /**
+     * Moves the playback position of the current music.
+     * If music is stopped, it starts from the position when it is started again.
+     * @param positionMillis position in milliseconds
      */
     @Override
-    public void release() {
-        BgmCommand command = new BgmCommand(BgmCommand.Type.RELEASE);
-        mWorker.addCommand(command);
+    public void seekTo(int positionMillis) {
+        mDefaultChannel.seekTo(positionMillis);
+    }
+
+    /**
+     * Sets the region of a music that loops, so that its intro is played only once.
+     * Loops wrap at the exact sample when music is decoded, see BgmSettings.setPcmCacheBudgetBytes().
+     * @param fileName music file's name
+     * @param loopPoints loop points in samples, or null to loop the whole music
+     */
+    public void setLoopPoints(String fileName, LoopPoints loopPoints) {
+        mDefaultChannel.setLoopPoints(fileName, loopPoints);
+    }
+
+    /**
+     * Sets how start() switches music while music is playing
+     * @param durationMillis time music crossfades, or 0 to switch music at once
+     * @param curve curve of the crossfade
+     */
+    public void setCrossfade(long durationMillis, FadeCurve curve) {
+        mDefaultChannel.setCrossfade(durationMillis, curve);
     }
 
     /**
-     * Checks if BgmWorker is playing
-     * @return true if BgmWorker is playing
+     * Checks if the default channel is playing. Reads the state BgmWorker published, so it never blocks.
+     * @return true if music is playing
      */
     @Override
     public boolean isPlaying() {
-        try {
-            return mWorker != null && mWorker.isPlaying();
-        } catch (IllegalStateException e) {
-            e.printStackTrace();
-            return false;
-        }
+        return mDefaultChannel.isPlaying();
     }
 
     /**
-     * Checks if BgmWorker is playable
-     * @return true if BgmWorker is playable
+     * Checks if the default channel is playable. Reads the state BgmWorker published, so it never blocks.
+     * @return true if a player exists
      */
     public boolean isPlayable() {
-        return mWorker.isPlayable();
+        return mDefaultChannel.isPlayable();
+    }
+
+    /**
+     * Gets the state of the default channel: playback state, music file, position and volume.
+     * It is an immutable snapshot, so it can be read on any thread without blocking.
+     * @return state of the default channel
+     */
+    public BgmState getState() {
+        return mDefaultChannel.getState();
+    }
+
+    /**
+     * Gets statistics of track switches of the default channel
+     * @return statistics of track switches
+     */
+    public TrackSwitchStats getTrackSwitchStats() {
+        return mDefaultChannel.getTrackSwitchStats();
+    }
+
+    /**
+     * Registers a listener for playback events of the default channel. It is called on the main thread,
+     * and events that happen in a burst are delivered together.
+     * @param listener listener
+     */
+    public void addListener(BgmListener listener) {
+        mDefaultChannel.addListener(listener);
+    }
+
+    /**
+     * Unregisters a listener
+     * @param listener listener
+     */
+    public void removeListener(BgmListener listener) {
+        mDefaultChannel.removeListener(listener);
+    }
+
+    /**
+     * Gets metrics of the command pipeline of the default channel: command latency, prepare duration per music,
+     * queue depth and error counts. Call snapshot() on it to poll them.
+     * @return metrics of the command pipeline
+     */
+    public BgmMetrics getMetrics() {
+        return mDefaultChannel.getMetrics();
+    }
+
+    /**
+     * Gets the cache of decoded music, to read its hit, miss and eviction counts
+     * @return cache of decoded music, or null if music is played by MediaPlayer
+     */
+    public synchronized PcmCache getPcmCache() {
+        return getOrCreatePcmCache();
+    }
+
+    /**
+     * Gets the player that loops stems of a music in sync, with a gain per layer.
+     * Stems share the cache of decoded music if BgmSettings has a PCM cache budget.
+     * @return player of stems, or null before Android 4.1, which cannot decode music
+     */
+    public synchronized StemPlayer getStemPlayer() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return null;
+        }
+        if (mStemPlayer == null) {
+            mStemPlayer = new StemPlayer(new MediaCodecPcmDecoder(getAssets()), getOrCreatePcmCache());
+        }
+        return mStemPlayer;
+    }
+
+    /**
+     * Loads a sound effect in background. Does nothing before Android 4.1, which cannot decode it.
+     * @param fileName effect file's name
+     */
+    @Override
+    public void loadEffect(final String fileName) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            Log.d(TAG, "sound effects need Android 4.1");
+            return;
+        }
+        getOrCreateSfxPlayer().loadEffect(fileName);
+    }
+
+    /**
+     * Gets the player of sound effects, creating it on first use. Created under the lock,
+     * so that callers racing to load effects never start a second render thread.
+     * @return player of sound effects
+     */
+    private synchronized SfxPlayer getOrCreateSfxPlayer() {
+        if (mSfxPlayer == null) {
+            mSfxPlayer = new SfxPlayer(new MediaCodecPcmDecoder(getAssets()), SFX_VOICE_COUNT);
+        }
+        return mSfxPlayer;
+    }
+
+    /**
+     * Plays a loaded sound effect over music. Can be called from any thread without blocking.
+     * @param fileName effect file's name
+     * @param volume volume from 0 to 1
+     * @param priority priority; if every voice is busy, the effect steals a voice with a lower or equal priority
+     * @return true if the effect is queued, false if it is not loaded yet
+     */
+    @Override
+    public boolean playEffect(final String fileName, final float volume, final int priority) {
+        final SfxPlayer player = mSfxPlayer;
+        return player != null && player.playEffect(fileName, volume, priority);
+    }
+
+    @Override
+    public void stopEffects() {
+        final SfxPlayer player = mSfxPlayer;
+        if (player != null) {
+            player.stopEffects();
+        }
+    }
+
+    @Override
+    public void unloadEffect(final String fileName) {
+        final SfxPlayer player = mSfxPlayer;
+        if (player != null) {
+            player.unloadEffect(fileName);
+        }
+    }
+
+    /**
+     * Creates the factory of players.
+     * Music is decoded once and cached if BgmSettings has a PCM cache budget, otherwise played by MediaPlayer.
+     * @return factory of players
+     */
+    synchronized PlayerEngine.Factory createEngineFactory() {
+        final PcmCache cache = getOrCreatePcmCache();
+        if (cache != null) {
+            return new PcmCacheEngine.Factory(new MediaCodecPcmDecoder(getAssets()), cache);
+        }
+        return new MediaPlayerEngine.Factory(getAssets());
+    }
+
+    /**
+     * Gets the cache of decoded music, creating it on first use if BgmSettings has a PCM cache budget.
+     * Must be called holding the lock of this service.
+     * @return cache of decoded music, or null if music is played by MediaPlayer
+     */
+    private PcmCache getOrCreatePcmCache() {
+        if (mPcmCache == null) {
+            final long budgetBytes = BgmSettings.getPcmCacheBudgetBytes();
+            if (budgetBytes > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                mPcmCache = new PcmCache(budgetBytes);
+            }
+        }
+        return mPcmCache;
     }
 
     /**
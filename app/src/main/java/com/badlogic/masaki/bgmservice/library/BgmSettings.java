@@ -11,6 +11,16 @@ public final class BgmSettings {
      */
     private static String sFileName;
 
+    /**
+     * max bytes of decoded music kept in memory, or 0 to play music by MediaPlayer
+     */
+    private static long sPcmCacheBudgetBytes;
+
+    /**
+     * bytes of streamed music buffered ahead, or 0 to use the default
+     */
+    private static int sStreamBufferBytes;
+
     private BgmSettings() {}
 
     /**
@@ -28,4 +38,40 @@ public final class BgmSettings {
     public static final String getFileName() {
         return sFileName;
     }
+
+    /**
+     * Sets max bytes of decoded music kept in memory.
+     * Music is decoded once and cached if positive, otherwise played by MediaPlayer.
+     * Must be set before BgmService is created.
+     * @param budgetBytes max bytes of decoded music
+     */
+    public static final void setPcmCacheBudgetBytes(long budgetBytes) {
+        sPcmCacheBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Getter
+     * @return max bytes of decoded music kept in memory
+     */
+    public static final long getPcmCacheBudgetBytes() {
+        return sPcmCacheBudgetBytes;
+    }
+
+    /**
+     * Sets bytes of streamed music read ahead and kept in memory,
+     * for music files given as absolute paths, file URIs or HTTP URLs.
+     * Must be set before BgmService is created.
+     * @param bufferBytes bytes buffered per stream, or 0 to use the default
+     */
+    public static final void setStreamBufferBytes(int bufferBytes) {
+        sStreamBufferBytes = bufferBytes;
+    }
+
+    /**
+     * Getter
+     * @return bytes buffered per stream, or 0 to use the default
+     */
+    public static final int getStreamBufferBytes() {
+        return sStreamBufferBytes;
+    }
 }
@@ -0,0 +1,120 @@
+package com.badlogic.masaki.bgmservice.library;
+
+/**
+ * Immutable snapshot of BgmWorker's state, published on its scheduler's thread whenever the state changes.
+ * Reading it never touches the player, so it is safe on any thread.
+ */
+public final class BgmState {
+
+    /**
+     * State before any music is played
+     */
+    static final BgmState INITIAL = new BgmState(BgmWorker.PlaybackState.IDLED, null, 0, 1.0f, false, 0);
+
+    /**
+     * Playback state of the current player
+     */
+    private final BgmWorker.PlaybackState mPlaybackState;
+
+    /**
+     * Current music file's name, or null
+     */
+    private final String mFileName;
+
+    /**
+     * Playback position in milliseconds when this state was published
+     */
+    private final int mPositionMillis;
+
+    /**
+     * Volume callers set, from 0 to 1
+     */
+    private final float mVolume;
+
+    /**
+     * Whether a player exists
+     */
+    private final boolean mPlayable;
+
+    /**
+     * Time when this state was published
+     */
+    private final long mPublishedAtNanos;
+
+    BgmState(final BgmWorker.PlaybackState playbackState, final String fileName, final int positionMillis,
+             final float volume, final boolean playable, final long publishedAtNanos) {
+        mPlaybackState = playbackState;
+        mFileName = fileName;
+        mPositionMillis = positionMillis;
+        mVolume = volume;
+        mPlayable = playable;
+        mPublishedAtNanos = publishedAtNanos;
+    }
+
+    /**
+     * Checks if this state has the same values as others, except the time it was published
+     * @return true if the values are the same
+     */
+    boolean matches(final BgmWorker.PlaybackState playbackState, final String fileName, final int positionMillis,
+                    final float volume, final boolean playable) {
+        return mPlaybackState == playbackState &&
+                (mFileName == null ? fileName == null : mFileName.equals(fileName)) &&
+                mPositionMillis == positionMillis && mVolume == volume && mPlayable == playable;
+    }
+
+    /**
+     * @return playback state of the current player
+     */
+    public BgmWorker.PlaybackState getPlaybackState() {
+        return mPlaybackState;
+    }
+
+    /**
+     * @return current music file's name, or null if no music is set
+     */
+    public String getFileName() {
+        return mFileName;
+    }
+
+    /**
+     * Gets the playback position when this state was published.
+     * It is refreshed whenever BgmWorker handles commands, not continuously while music plays.
+     * @return position in milliseconds
+     */
+    public int getPositionMillis() {
+        return mPositionMillis;
+    }
+
+    /**
+     * @return volume callers set, from 0 to 1
+     */
+    public float getVolume() {
+        return mVolume;
+    }
+
+    /**
+     * @return time from System.nanoTime() when this state was published
+     */
+    public long getPublishedAtNanos() {
+        return mPublishedAtNanos;
+    }
+
+    /**
+     * @return true if music is playing
+     */
+    public boolean isPlaying() {
+        return mPlaybackState == BgmWorker.PlaybackState.STARTED;
+    }
+
+    /**
+     * @return true if a player exists
+     */
+    public boolean isPlayable() {
+        return mPlayable;
+    }
+
+    @Override
+    public String toString() {
+        return mPlaybackState + " " + mFileName + " at " + mPositionMillis + "ms, volume " + mVolume;
+    }
+}
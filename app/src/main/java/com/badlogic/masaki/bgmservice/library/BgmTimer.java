@@ -0,0 +1,123 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handle of a command scheduled on a BgmChannel, such as a pause in 2 seconds.
+ * Scheduled commands wait in a timer wheel on the scheduler's thread,
+ * so scheduling and cancelling cost the same however many are pending.
+ */
+public final class BgmTimer {
+    private static final int PENDING = 0;
+    private static final int FIRED = 1;
+    private static final int CANCELLED = 2;
+
+    /**
+     * Worker the command is scheduled on
+     */
+    private final BgmWorker mWorker;
+
+    /**
+     * Command handled when the timer fires
+     */
+    private final BgmCommand mCommand;
+
+    /**
+     * Time from when the timer is scheduled until it fires
+     */
+    private final long mDelayNanos;
+
+    /**
+     * PENDING, FIRED or CANCELLED
+     */
+    private final AtomicInteger mStatus = new AtomicInteger(PENDING);
+
+    /*
+    links of TimerWheel. Only the scheduler's thread touches them.
+     */
+    long mDeadlineNanos;
+    long mTick;
+    long mSequence;
+    int mSlot = -1;
+    BgmTimer mPrevious;
+    BgmTimer mNext;
+
+    /**
+     * Constructor
+     * @param worker worker the command is scheduled on
+     * @param command command handled when the timer fires
+     * @param delayNanos time from when the timer is scheduled until it fires
+     */
+    BgmTimer(final BgmWorker worker, final BgmCommand command, final long delayNanos) {
+        mWorker = worker;
+        mCommand = command;
+        mDelayNanos = delayNanos;
+    }
+
+    /**
+     * Cancels the command unless it already fired. Can be called from any thread.
+     * @return true if cancelled, false if it already fired or was cancelled
+     */
+    public boolean cancel() {
+        if (!mStatus.compareAndSet(PENDING, CANCELLED)) {
+            return false;
+        }
+        /*
+        removes it from the wheel at once, rather than when its deadline passes
+         */
+        final BgmCommand command = BgmCommand.obtain(this, BgmCommand.Type.CANCEL_TIMER);
+        if (!mWorker.addCommand(command)) {
+            command.recycle();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the command was handled
+     */
+    public boolean isFired() {
+        return mStatus.get() == FIRED;
+    }
+
+    /**
+     * @return true if the command was cancelled, or could not be scheduled since the worker's queue was full
+     */
+    public boolean isCancelled() {
+        return mStatus.get() == CANCELLED;
+    }
+
+    /**
+     * Marks the timer fired unless it is cancelled
+     * @return true if the command should be handled
+     */
+    boolean fire() {
+        return mStatus.compareAndSet(PENDING, FIRED);
+    }
+
+    /**
+     * Marks the timer cancelled without telling the worker, since it never got the timer
+     */
+    void reject() {
+        mStatus.compareAndSet(PENDING, CANCELLED);
+    }
+
+    /**
+     * @return command handled when the timer fires
+     */
+    BgmCommand getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * @return time from when the timer is scheduled until it fires
+     */
+    long getDelayNanos() {
+        return mDelayNanos;
+    }
+
+    @Override
+    public String toString() {
+        final int status = mStatus.get();
+        return mCommand.getType() + (status == FIRED ? " fired" : status == CANCELLED ? " cancelled" : " pending");
+    }
+}
@@ -1,27 +1,31 @@
 package com.badlogic.masaki.bgmservice.library;
 
-import android.content.res.AssetFileDescriptor;
-import android.media.MediaPlayer;
-import android.os.Process;
-import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.IOException;
-import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Worker class that plays music
+ * Worker class that plays music of one channel.
+ * It has no thread of its own: BgmScheduler runs it when commands arrive, on a thread shared by every channel.
  * Created by shojimasaki on 2016/05/28.
  */
-public class BgmWorker extends Thread {
+public class BgmWorker {
 
     /**
      * States that represents MediaPlayer's playback-state
      */
-    enum PlaybackState {
+    public enum PlaybackState {
         IDLED,
         INITIALIZED,
         PREPARING,
@@ -37,218 +41,1341 @@ public class BgmWorker extends Thread {
     public static final String TAG = BgmWorker.class.getSimpleName();
 
     /**
-     * Service this worker is associated with
+     * Max number of commands waiting to be handled
      */
-    private BgmService mService;
+    static final int COMMAND_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Interval of volume updates during a crossfade
+     */
+    static final long FADE_STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * Number of slots of the timer wheel, and time each slot spans.
+     * Timers within a revolution of about 5 seconds share a slot only if their deadlines are 10ms apart or less.
+     */
+    static final int TIMER_WHEEL_SLOTS = 512;
+    static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /**
+     * Interval the position of music playing is recorded to the journal
+     */
+    static final long CHECKPOINT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * What and extra of the error reported when a player cannot open music,
+     * as MediaPlayer.MEDIA_ERROR_UNKNOWN and MediaPlayer.MEDIA_ERROR_IO
+     */
+    static final int ERROR_UNKNOWN = 1;
+    static final int ERROR_IO = -1004;
+
+    /**
+     * Delay before music is prepared again after the player reported an error. Doubles on each error in a row.
+     */
+    static final long RECOVERY_BASE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    static final long RECOVERY_MAX_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    /**
+     * Number of errors in a row after which music is not prepared again until it is started
+     */
+    static final int MAX_RECOVERY_ATTEMPTS = 5;
+
+    /**
+     * Time without errors after which the next error is not counted as one in a row
+     */
+    static final long RECOVERY_RESET_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Factory that creates the player
+     */
+    private final PlayerEngine.Factory mEngineFactory;
 
     /**
      * Player to play music
      */
-    private MediaPlayer mMediaPlayer;
+    private PlayerEngine mPlayer;
 
     /**
      * Listener that listens for player's playback events
      */
-    private PlaybackListener mListener;
+    private final PlaybackListener mListener = new PlaybackListener();
+
+    /**
+     * Player that prepares the next music in background
+     */
+    private PlayerEngine mStandbyPlayer;
+
+    /**
+     * Music file's name the standby player has.
+     * Volatile, like the other music file names, since collectFileNames() reads them on other threads.
+     */
+    private volatile String mStandbyFileName;
+
+    /**
+     * Playback state of the standby player
+     */
+    private PlaybackState mStandbyPlaybackState = PlaybackState.IDLED;
+
+    /**
+     * Music file's name callers want the standby player to prepare
+     */
+    private volatile String mPreloadFileName;
+
+    /**
+     * Player whose music fades out during a crossfade
+     */
+    private PlayerEngine mFadingPlayer;
+
+    /**
+     * Music file's name the fading player has
+     */
+    private volatile String mFadingFileName;
+
+    /**
+     * Playback state of the fading player
+     */
+    private PlaybackState mFadingPlaybackState = PlaybackState.IDLED;
+
+    /**
+     * Volume set to the fading player
+     */
+    private float mFadingAppliedVolume = Float.NaN;
+
+    /**
+     * Gain of the current player
+     */
+    private final VolumeRamp mFadeInRamp = new VolumeRamp(1f);
+
+    /**
+     * Gain of the fading player
+     */
+    private final VolumeRamp mFadeOutRamp = new VolumeRamp(0f);
+
+    /**
+     * Volume callers fade to with FADE_VOLUME
+     */
+    private final VolumeRamp mVolumeRamp = new VolumeRamp(1f);
+
+    /**
+     * Whether the crossfade starts when the current player starts
+     */
+    private boolean mFadePending;
+
+    /**
+     * Time of the next volume update during a crossfade
+     */
+    private long mNextFadeStepNanos;
+
+    /**
+     * Time a crossfade takes, or 0 if music is switched without a crossfade
+     */
+    private long mCrossfadeNanos;
+
+    /**
+     * Curve of crossfades
+     */
+    private FadeCurve mFadeCurve = FadeCurve.EQUAL_POWER;
+
+    /**
+     * Loop points by music file's name
+     */
+    private final Map<String, LoopPoints> mLoopPoints = new HashMap<>();
+
+    /**
+     * Time when a switch to another music was requested, or 0 if no switch is in progress
+     */
+    private long mSwitchRequestedAtNanos;
+
+    /**
+     * Whether the switch in progress uses music prepared by preload
+     */
+    private boolean mSwitchPreloaded;
+
+    /**
+     * Statistics of track switches
+     */
+    private final TrackSwitchStats mTrackSwitchStats = new TrackSwitchStats();
+
+    /**
+     * Metrics of the command pipeline
+     */
+    private final BgmMetrics mMetrics = new BgmMetrics();
+
+    /**
+     * Time when the current player and the standby one started preparing
+     */
+    private long mPrepareStartedAtNanos;
+    private long mStandbyPrepareStartedAtNanos;
 
     /**
      * Current music file's name
      */
-    private String mCurrentFileName;
+    private volatile String mCurrentFileName;
 
     /**
      * Current playback state
      */
-    private volatile PlaybackState mCurrentPlaybackState = PlaybackState.IDLED;
+    private PlaybackState mCurrentPlaybackState = PlaybackState.IDLED;
+
+    /**
+     * State published for other threads
+     */
+    private final AtomicReference<BgmState> mState = new AtomicReference<>(BgmState.INITIAL);
+
+    /**
+     * Dispatcher of events to listeners
+     */
+    private final BgmEventDispatcher mEvents;
+
+    /**
+     * Last music file's name reported to listeners, or null
+     */
+    private String mReportedFileName;
+
+    /**
+     * Commands whose handles wait for their playback state
+     */
+    private final List<BgmCommand> mPendingCommands = new ArrayList<>();
+
+    /**
+     * Music file's name callers want to play
+     */
+    private String mDesiredFileName;
+
+    /**
+     * Playback state callers want: STARTED, PAUSED or STOPPED
+     */
+    private PlaybackState mDesiredPlaybackState = PlaybackState.STARTED;
+
+    /**
+     * Position callers want to seek the desired music to in milliseconds, or -1
+     */
+    private int mDesiredPositionMillis = -1;
+
+    /**
+     * Volume callers want, from 0 to 1
+     */
+    private float mDesiredVolume = 1.0f;
+
+    /**
+     * Volume set to the player, or NaN if not set yet
+     */
+    private float mAppliedVolume = Float.NaN;
+
+    /**
+     * Commands scheduled to be handled later
+     */
+    private final TimerWheel mTimers = new TimerWheel(TIMER_WHEEL_SLOTS, TIMER_TICK_NANOS, System.nanoTime());
+
+    /**
+     * Timers whose deadline passed, reused on every run
+     */
+    private final List<BgmTimer> mExpiredTimers = new ArrayList<>();
+
+    /**
+     * Time this worker has to run next even if no command arrives
+     */
+    private long mWakeUpAtNanos = BgmScheduler.NO_WAKE_UP;
+
+    /**
+     * Journal the current music and its position are recorded to, or null
+     */
+    private PlaybackJournal mJournal;
+
+    /**
+     * State recorded to the journal last
+     */
+    private BgmState mJournaledState;
+
+    /**
+     * Time the position of music playing is recorded next, or BgmScheduler.NO_WAKE_UP
+     */
+    private long mNextCheckpointNanos = BgmScheduler.NO_WAKE_UP;
+
+    /**
+     * Time the current music is prepared again after an error, or BgmScheduler.NO_WAKE_UP
+     */
+    private long mRecoverAtNanos = BgmScheduler.NO_WAKE_UP;
+
+    /**
+     * Number of errors in a row of the current player
+     */
+    private int mRecoveryAttempts;
+
+    /**
+     * Time the current player reported its last error
+     */
+    private long mLastErrorAtNanos;
+
+    /**
+     * Whether the current music had too many errors in a row and waits to be started again
+     */
+    private boolean mRecoveryGaveUp;
+
+    /**
+     * Statistics of memory trims, or null until memory is trimmed
+     */
+    private MemoryTrimStats mTrimStats;
 
     /**
      * Queue that stores commands
      */
-    private final Queue<BgmCommand> mCommandQueue = new LinkedBlockingQueue<>();
+    private final MpscRingQueue<BgmCommand> mCommandQueue = new MpscRingQueue<>(COMMAND_QUEUE_CAPACITY);
 
     /**
-     * Monitor lock for commands
+     * Queue of events players report. Unbounded, so that callers filling the command queue never drop
+     * a PREPARED or an ERROR, which the worker would wait for forever. Players report few events.
      */
-    private final ReentrantLock mCommandLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<BgmCommand> mEventQueue = new ConcurrentLinkedQueue<>();
 
     /**
-     * Condition of mCommandLock
+     * Flag whether this worker is destroyed. Only the scheduler's thread touches it.
      */
-    private final Condition mCommandCondition = mCommandLock.newCondition();
+    private boolean mQuit = false;
 
     /**
-     * Flag whether this class exits or not
+     * Whether destroy() was called. A flag rather than a command, so that a full queue cannot lose it.
      */
-    private volatile boolean mQuit = false;
+    private volatile boolean mDestroyRequested;
 
     /**
-     * Constructor
-     * @param service
+     * Scheduler that runs this worker, or null until it starts
+     */
+    private volatile BgmScheduler mScheduler;
+
+    /**
+     * Whether this worker is queued on its scheduler. Only BgmScheduler touches it.
+     */
+    final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    /**
+     * Counted down when this worker is destroyed
+     */
+    private final CountDownLatch mDestroyed = new CountDownLatch(1);
+
+    /**
+     * Constructor. Listeners are called on the scheduler's thread.
+     * @param engineFactory factory that creates the player
      */
-    public BgmWorker (final BgmService service) {
-        mService = service;
+    public BgmWorker (final PlayerEngine.Factory engineFactory) {
+        this(engineFactory, new BgmEventDispatcher(new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                runnable.run();
+            }
+        }));
     }
 
     /**
      * Constructor
-     * @param service
-     * @param fileName
+     * @param engineFactory factory that creates the player
+     * @param events dispatcher of events to listeners
+     */
+    BgmWorker (final PlayerEngine.Factory engineFactory, final BgmEventDispatcher events) {
+        mEngineFactory = engineFactory;
+        mEvents = events;
+    }
+
+    /**
+     * Starts handling commands on a scheduler of its own, which finishes when this worker is destroyed
+     */
+    public void start() {
+        final BgmScheduler scheduler = new BgmScheduler(TAG);
+        start(scheduler);
+        scheduler.shutdown();
+    }
+
+    /**
+     * Starts handling commands on a scheduler shared with other workers.
+     * Commands added before it starts are handled at once.
+     * @param scheduler scheduler
+     */
+    void start(final BgmScheduler scheduler) {
+        mScheduler = scheduler;
+        scheduler.attach(this);
+    }
+
+    /**
+     * Destroys this worker without starting it, so that it rejects every command.
+     * Used when a worker is needed after the service that would run it is destroyed.
+     */
+    void discard() {
+        mDestroyed.countDown();
+    }
+
+    /**
+     * Releases the player and destroys this worker once the commands already queued are handled.
+     * Unlike RELEASE and DESTROY commands, it cannot be lost when the queue is full. Can be called from any thread.
+     */
+    void destroy() {
+        mDestroyRequested = true;
+        final BgmScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.wake(this);
+        }
+    }
+
+    /**
+     * Collects names of the music files this worker holds: the current, fading, standby and preloaded ones.
+     * Can be called from any thread, so music switched meanwhile may be missed.
+     * @param fileNames collects the names
+     */
+    void collectFileNames(final Collection<String> fileNames) {
+        for (String fileName : new String[] {mCurrentFileName, mFadingFileName, mStandbyFileName, mPreloadFileName}) {
+            if (fileName != null) {
+                fileNames.add(fileName);
+            }
+        }
+    }
+
+    /**
+     * Waits until this worker handles DESTROY
+     * @param timeoutMillis max time to wait
+     * @return true if this worker is destroyed
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public boolean awaitDestroyed(final long timeoutMillis) throws InterruptedException {
+        return mDestroyed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if this worker handled DESTROY
      */
-    public BgmWorker (final BgmService service, final String fileName) {
-        mService = service;
-        mCurrentFileName = fileName;
-        initPlayer(mCurrentFileName);
+    boolean isDestroyed() {
+        return mDestroyed.getCount() == 0;
     }
 
     /**
-     * Main run loop
+     * Handles the commands that arrived and updates volumes of a crossfade in progress.
+     * Called only on the scheduler's thread.
+     * @return false if this worker is destroyed
      */
-    @Override
-    public void run() {
-        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    boolean process() {
+        boolean changed = false;
+        BgmCommand command;
+        while ((command = mEventQueue.poll()) != null) {
+            mMetrics.recordCommandLatency(System.nanoTime() - command.getEnqueuedAtNanos());
+            handleCommand(command);
+            command.recycle();
+            changed = true;
+        }
+
+        command = mCommandQueue.poll();
+        if (command != null) {
+            mMetrics.recordQueueDepth(mCommandQueue.size() + 1);
 
-        while (true) {
             /*
-            wait if there is no commands
+            applies every command that has arrived to the desired state,
+            so that commands superseded by later ones never reach the player
              */
-            mCommandLock.lock();
-            try {
-                while (mCommandQueue.peek() == null) {
-                    try {
-                        mCommandCondition.await();
-                    } catch (InterruptedException e) {
-                        if (mQuit) {
-                            return;
-                        }
-                        continue;
+            do {
+                mMetrics.recordCommandLatency(System.nanoTime() - command.getEnqueuedAtNanos());
+                handleCommand(command);
+                if (command.getFuture() != null) {
+                    mPendingCommands.add(command);
+                } else {
+                    command.recycle();
+                }
+            } while ((command = mCommandQueue.poll()) != null);
+            changed = true;
+        }
+        if (mDestroyRequested && !mQuit) {
+            handleCommandAndRecycle(BgmCommand.obtain(BgmCommand.Type.RELEASE));
+            handleCommandAndRecycle(BgmCommand.obtain(BgmCommand.Type.DESTROY));
+            changed = true;
+        }
+        if (fireTimers()) {
+            changed = true;
+        }
+        if (mRecoverAtNanos != BgmScheduler.NO_WAKE_UP && System.nanoTime() - mRecoverAtNanos >= 0) {
+            mRecoverAtNanos = BgmScheduler.NO_WAKE_UP;
+            mMetrics.recordRecovery();
+            changed = true;
+        }
+        if (changed) {
+            reconcile();
+        }
+
+        stepFade();
+        publishState();
+        checkpoint();
+        completePendingCommands();
+
+        if (mQuit) {
+            failPendingCommands();
+            if (mJournal != null) {
+                mJournal.close();
+            }
+            mWakeUpAtNanos = BgmScheduler.NO_WAKE_UP;
+            mDestroyed.countDown();
+            failQueuedCommands();
+            return false;
+        }
+        mWakeUpAtNanos = nextWakeUpNanos();
+        return true;
+    }
+
+    /**
+     * Gets the time this worker has to run next even if no command arrives. Called only on the scheduler's thread.
+     * @return time of the next volume update or timer, or BgmScheduler.NO_WAKE_UP
+     */
+    long getWakeUpAtNanos() {
+        return mWakeUpAtNanos;
+    }
+
+    /**
+     * Finds the earliest of the next volume update, the next timer, the next checkpoint and the next recovery
+     */
+    private long nextWakeUpNanos() {
+        final long deadline = mTimers.nextDeadlineNanos();
+        long wakeUp = deadline == TimerWheel.NO_DEADLINE ? BgmScheduler.NO_WAKE_UP : deadline;
+        if (isFading()) {
+            wakeUp = earlier(wakeUp, mNextFadeStepNanos);
+        }
+        return earlier(earlier(wakeUp, mNextCheckpointNanos), mRecoverAtNanos);
+    }
+
+    /**
+     * @return earlier of two times, either of which may be BgmScheduler.NO_WAKE_UP
+     */
+    private static long earlier(final long a, final long b) {
+        if (a == BgmScheduler.NO_WAKE_UP) {
+            return b;
+        }
+        return b != BgmScheduler.NO_WAKE_UP && b - a < 0 ? b : a;
+    }
+
+    /**
+     * Handles commands of timers whose deadline passed, in the order of their deadlines
+     * @return true if a command was handled
+     */
+    private boolean fireTimers() {
+        mTimers.expire(System.nanoTime(), mExpiredTimers);
+        if (mExpiredTimers.isEmpty()) {
+            return false;
+        }
+        boolean fired = false;
+        for (int i = 0; i < mExpiredTimers.size(); i++) {
+            final BgmTimer timer = mExpiredTimers.get(i);
+            if (timer.fire()) {
+                handleCommand(timer.getCommand());
+                fired = true;
+            }
+        }
+        mExpiredTimers.clear();
+        return fired;
+    }
+
+    /**
+     * Schedules a command to be handled after a delay. Can be called from any thread.
+     * @param delayMillis delay from now
+     * @param command command to handle
+     * @return handle to cancel the command, already cancelled if the queue is full
+     */
+    BgmTimer schedule(final long delayMillis, final BgmCommand command) {
+        final BgmTimer timer = new BgmTimer(this, command, TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+        final BgmCommand schedule = BgmCommand.obtain(timer, BgmCommand.Type.SCHEDULE);
+        if (!addCommand(schedule)) {
+            timer.reject();
+            schedule.recycle();
+            command.recycle();
+        }
+        return timer;
+    }
+
+    /**
+     * Handles a command that has no handle, and recycles it
+     * @param command command
+     */
+    private void handleCommandAndRecycle(final BgmCommand command) {
+        handleCommand(command);
+        command.recycle();
+    }
+
+    /**
+     * Handles a command
+     * @param command
+     */
+    private void handleCommand(final BgmCommand command) {
+        switch (command.getType()) {
+            case START:
+                final String fileName = (String) command.getData();
+                if (!isEmpty(fileName)) {
+                    if (mDesiredFileName == null) {
+                        mSwitchRequestedAtNanos = 0;
+                    } else if (!fileName.equals(mDesiredFileName)) {
+                        mSwitchRequestedAtNanos = System.nanoTime();
+                        mSwitchPreloaded = false;
                     }
+                    if (!fileName.equals(mDesiredFileName)) {
+                        mDesiredPositionMillis = -1;
+                    }
+                    mDesiredFileName = fileName;
+                    mDesiredPlaybackState = PlaybackState.STARTED;
+                    mRecoveryGaveUp = false;
                 }
-            } finally {
-                mCommandLock.unlock();
+                break;
+
+            case PRELOAD:
+                mPreloadFileName = (String) command.getData();
+                break;
+
+            case PAUSE:
+                mDesiredPlaybackState = PlaybackState.PAUSED;
+                mSwitchRequestedAtNanos = 0;
+                break;
+
+            case RESUME:
+                mDesiredPlaybackState = PlaybackState.STARTED;
+                mRecoveryGaveUp = false;
+                break;
+
+            case STOP:
+                mDesiredPlaybackState = PlaybackState.STOPPED;
+                mSwitchRequestedAtNanos = 0;
+                break;
+
+            case SEEK:
+                mDesiredPositionMillis = command.getIntValue();
+                break;
+
+            case SET_VOLUME:
+                mDesiredVolume = command.getFloatValue();
+                mVolumeRamp.hold(mDesiredVolume);
+                break;
+
+            case FADE_VOLUME:
+                fadeVolume((VolumeFade) command.getData());
+                break;
+
+            case SCHEDULE:
+                final BgmTimer timer = (BgmTimer) command.getData();
+                if (!timer.isCancelled()) {
+                    /*
+                    the delay counts from when the caller scheduled it, not from when it is handled
+                     */
+                    mTimers.add(timer, command.getEnqueuedAtNanos() + timer.getDelayNanos());
+                }
+                break;
+
+            case CANCEL_TIMER:
+                mTimers.remove((BgmTimer) command.getData());
+                break;
+
+            case SET_CROSSFADE:
+                final CrossfadeSettings settings = (CrossfadeSettings) command.getData();
+                mCrossfadeNanos = TimeUnit.MILLISECONDS.toNanos(settings.mDurationMillis);
+                mFadeCurve = settings.mCurve;
+                break;
+
+            case SET_LOOP_POINTS:
+                setLoopPoints((LoopSettings) command.getData());
+                break;
+
+            case PREPARED:
+                onPrepared((PlayerEngine) command.getData());
+                break;
+
+            case COMPLETED:
+                onCompletion((PlayerEngine) command.getData());
+                break;
+
+            case LOOPED:
+                if (command.getData() == mPlayer) {
+                    mEvents.loopWrapped(mCurrentFileName);
+                }
+                break;
+
+            case ERROR:
+                onError((PlayerError) command.getData());
+                break;
+
+            case RESTORE:
+                restore((PlaybackJournal) command.getData());
+                break;
+
+            case TRIM_MEMORY:
+                trimMemory((MemoryTrim) command.getData());
+                break;
+
+            case RELEASE:
+                release();
+                mDesiredFileName = null;
+                mDesiredPositionMillis = -1;
+                mPreloadFileName = null;
+                mSwitchRequestedAtNanos = 0;
+                break;
+
+            case DESTROY:
+                onDestroy();
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Adds a command this class would handle
+     * @param command
+     * @return true if the command is successfully added, false if the queue is full or this worker is destroyed
+     */
+    boolean addCommand(final BgmCommand command) {
+        if (isDestroyed()) {
+            return false;
+        }
+        command.setEnqueuedAtNanos(System.nanoTime());
+        if (!mCommandQueue.offer(command)) {
+            mMetrics.recordRejectedCommand();
+            return false;
+        }
+        if (isDestroyed()) {
+            /*
+            destroyed after the check above, so nothing handles the queue any more
+             */
+            failQueuedCommands();
+            return true;
+        }
+        final BgmScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.wake(this);
+        }
+        return true;
+    }
+
+    /**
+     * Fails the commands left in the queue once this worker is destroyed.
+     * The queue has a single consumer, so whichever thread drains it does so holding the queue's lock.
+     */
+    private void failQueuedCommands() {
+        synchronized (mCommandQueue) {
+            BgmCommand command;
+            while ((command = mCommandQueue.poll()) != null) {
+                if (command.getFuture() != null) {
+                    command.getFuture().complete(false, mState.get());
+                } else if (command.getType() == BgmCommand.Type.SCHEDULE) {
+                    final BgmTimer timer = (BgmTimer) command.getData();
+                    timer.reject();
+                    timer.getCommand().recycle();
+                }
+                command.recycle();
             }
+        }
+    }
 
-            BgmCommand command = mCommandQueue.poll();
-            handleCommand(command);
+    /**
+     * Adds an event a player reported. Can be called from any thread, and never fails unless this worker is destroyed.
+     * @param event event
+     */
+    private void addEvent(final BgmCommand event) {
+        if (isDestroyed()) {
+            event.recycle();
+            return;
+        }
+        event.setEnqueuedAtNanos(System.nanoTime());
+        mEventQueue.offer(event);
+        final BgmScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            scheduler.wake(this);
+        }
+    }
+
+    /**
+     * Brings the player to the desired state with as few calls as possible
+     */
+    private void reconcile() {
+        /*
+        preloads first, so that a START arriving together with its PRELOAD uses the standby player
+         */
+        try {
+            preloadStandby();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+            mStandbyFileName = null;
+            mStandbyPlaybackState = PlaybackState.ERROR;
+        }
+
+        try {
+            if (isEmpty(mDesiredFileName)) {
+                /*
+                nothing to play
+                 */
+            } else if (mDesiredPlaybackState == PlaybackState.STOPPED) {
+                cancelFade();
+                stopMusic();
+            } else {
+                if (!mDesiredFileName.equals(mCurrentFileName) && mDesiredFileName.equals(mFadingFileName)) {
+                    swapWithFadingPlayer();
+                } else if (isRecovering()) {
+                    /*
+                    the music is prepared again once the backoff ends, or once it is started again
+                     */
+                } else if (needsPrepare()) {
+                    if (!mDesiredFileName.equals(mCurrentFileName) && canCrossfade()) {
+                        fadeOutCurrentPlayer();
+                    }
+                    if (!swapToStandby(mDesiredFileName)) {
+                        prepareMusic(mDesiredFileName);
+                    }
+                }
+
+                applySeek();
+                if (mDesiredPlaybackState == PlaybackState.STARTED) {
+                    resumeMusic();
+                } else {
+                    cancelFade();
+                    pauseMusic();
+                }
+            }
+
+            applyVolume();
+            applyFadingVolume();
+
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Checks if the desired music has to be prepared before it is played
+     * @return true if the desired music has to be prepared
+     */
+    private boolean needsPrepare() {
+        if (mPlayer == null || !mDesiredFileName.equals(mCurrentFileName)) {
+            return true;
+        }
+
+        switch (mCurrentPlaybackState) {
+            case IDLED:
+            case INITIALIZED:
+            case STOPPED:
+            case ENDED:
+            case ERROR:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Initializes
+     * @param fileName music file that the player would play
+     */
+    private void initPlayer(final String fileName) {
+        mRecoverAtNanos = BgmScheduler.NO_WAKE_UP;
+        mRecoveryGaveUp = false;
+        if (!fileName.equals(mCurrentFileName)) {
+            mRecoveryAttempts = 0;
+        }
+        try {
+            if (mPlayer == null) {
+                mPlayer = takeSpareEngine();
+            } else {
+                mPlayer.reset();
+            }
+
+            mPlayer.setCallback(mListener);
+
+            mCurrentFileName = fileName;
+            mCurrentPlaybackState = PlaybackState.IDLED;
+            mAppliedVolume = Float.NaN;
+            mPlayer.setDataSource(mCurrentFileName);
+            mPlayer.setLooping(true);
+            mPlayer.setLoopPoints(mLoopPoints.get(mCurrentFileName));
+
+            mCurrentPlaybackState = PlaybackState.INITIALIZED;
+
+        } catch (IOException e) {
+            /*
+            music that cannot be opened is not retried until it is started again
+             */
+            Log.d(TAG, "failed to open " + fileName + ": " + e.getMessage());
+            mCurrentPlaybackState = PlaybackState.ERROR;
+            mRecoveryGaveUp = true;
+            mMetrics.recordError(ERROR_UNKNOWN, ERROR_IO);
+            mEvents.error(fileName, ERROR_UNKNOWN, ERROR_IO);
+        }
+    }
+
+    /**
+     * Prepares music. The player is reused if it already has the music.
+     * @param fileName music file's name
+     */
+    private void prepareMusic(final String fileName) {
+        final boolean reusable = mPlayer != null && fileName.equals(mCurrentFileName) &&
+                (mCurrentPlaybackState == PlaybackState.INITIALIZED ||
+                 mCurrentPlaybackState == PlaybackState.STOPPED);
+
+        if (!reusable) {
+            if (mCurrentPlaybackState != PlaybackState.ERROR && isPlayerPlaying()) {
+                mPlayer.stop();
+                mCurrentPlaybackState = PlaybackState.STOPPED;
+            }
+
+            initPlayer(fileName);
+            if (mCurrentPlaybackState != PlaybackState.INITIALIZED) {
+                return;
+            }
+        }
+
+        /*
+        a pending seek sets where music starts, so that preparing needs no seek afterwards
+         */
+        applySeek();
+
+        /*
+        the state is set before prepareAsync() since the player may call back at once
+         */
+        mCurrentPlaybackState = PlaybackState.PREPARING;
+        mPrepareStartedAtNanos = System.nanoTime();
+        mPlayer.prepareAsync();
+    }
+
+    /**
+     * Takes the standby player if it is idle, or creates a new one
+     * @return engine in the idle state
+     */
+    private PlayerEngine takeSpareEngine() {
+        if (mStandbyPlayer != null && mStandbyFileName == null) {
+            final PlayerEngine engine = mStandbyPlayer;
+            mStandbyPlayer = null;
+            mStandbyPlaybackState = PlaybackState.IDLED;
+            return engine;
+        }
+        return mEngineFactory.create();
+    }
+
+    /**
+     * Checks if the current music can crossfade into the desired one
+     * @return true if it can crossfade
+     */
+    private boolean canCrossfade() {
+        return mCrossfadeNanos > 0 && mPlayer != null &&
+                mCurrentPlaybackState == PlaybackState.STARTED &&
+                mDesiredPlaybackState == PlaybackState.STARTED;
+    }
+
+    /**
+     * Makes the current player the fading one.
+     * It keeps playing until the next player starts, then both fade.
+     */
+    private void fadeOutCurrentPlayer() {
+        retireFadingPlayer();
+
+        mFadingPlayer = mPlayer;
+        mFadingFileName = mCurrentFileName;
+        mFadingPlaybackState = mCurrentPlaybackState;
+        mFadingAppliedVolume = mAppliedVolume;
+        mFadeOutRamp.hold(mFadeInRamp.getGain());
+        mFadeInRamp.hold(0f);
+        mFadePending = true;
+
+        mPlayer = null;
+        mCurrentFileName = null;
+        mCurrentPlaybackState = PlaybackState.IDLED;
+        mAppliedVolume = Float.NaN;
+    }
+
+    /**
+     * Swaps the current player and the fading one, so that a crossfade back to
+     * the previous music continues from the current gains
+     */
+    private void swapWithFadingPlayer() {
+        final PlayerEngine player = mPlayer;
+        final String fileName = mCurrentFileName;
+        final PlaybackState state = mCurrentPlaybackState;
+        final float appliedVolume = mAppliedVolume;
+        final float gain = mFadeInRamp.getGain();
+
+        mPlayer = mFadingPlayer;
+        mCurrentFileName = mFadingFileName;
+        mCurrentPlaybackState = mFadingPlaybackState;
+        mAppliedVolume = mFadingAppliedVolume;
+        mFadeInRamp.hold(mFadeOutRamp.getGain());
+
+        mFadingPlayer = player;
+        mFadingFileName = fileName;
+        mFadingPlaybackState = state;
+        mFadingAppliedVolume = appliedVolume;
+        mFadeOutRamp.hold(gain);
+        mFadePending = false;
+
+        if (mFadingPlaybackState != PlaybackState.STARTED) {
+            /*
+            the music that was fading in is not audible yet
+             */
+            retireFadingPlayer();
+        }
+        startFade();
+        recordSwitch();
+    }
+
+    /**
+     * Starts ramping the current player up and the fading one down
+     */
+    private void startFade() {
+        final long now = System.nanoTime();
+        mFadeInRamp.start(1f, now, mCrossfadeNanos, mFadeCurve);
+        if (mFadingPlayer != null) {
+            mFadeOutRamp.start(0f, now, mCrossfadeNanos, mFadeCurve);
+        }
+        mNextFadeStepNanos = now + FADE_STEP_NANOS;
+
+        if (!mFadeOutRamp.isRunning()) {
+            retireFadingPlayer();
+        }
+    }
+
+    /**
+     * Starts moving the desired volume to the one of a fade
+     * @param fade volume and time the fade takes
+     */
+    private void fadeVolume(final VolumeFade fade) {
+        final long now = System.nanoTime();
+        if (!isFading()) {
+            mNextFadeStepNanos = now + FADE_STEP_NANOS;
+        }
+        /*
+        the ramp takes its duration for a full swing, so it is stretched to the distance to go
+         */
+        final float distance = Math.abs(fade.mVolume - mDesiredVolume);
+        mVolumeRamp.hold(mDesiredVolume);
+        mVolumeRamp.start(fade.mVolume, now, distance > 0 ? (long) (fade.mDurationNanos / distance) : 0,
+                FadeCurve.LINEAR);
+        mDesiredVolume = mVolumeRamp.getGain();
+    }
+
+    /**
+     * Checks if a crossfade or a fade of the volume is in progress
+     * @return true if volumes are ramping
+     */
+    private boolean isFading() {
+        return mFadeInRamp.isRunning() || mFadeOutRamp.isRunning() || mVolumeRamp.isRunning();
+    }
+
+    /**
+     * Updates volumes of a crossfade in progress, and retires the fading player when it is silent
+     */
+    private void stepFade() {
+        if (!isFading()) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        if (now - mNextFadeStepNanos < 0) {
+            return;
+        }
+        mNextFadeStepNanos = now + FADE_STEP_NANOS;
+        mFadeInRamp.update(now);
+        mFadeOutRamp.update(now);
+        mDesiredVolume = mVolumeRamp.update(now);
+
+        try {
+            applyVolume();
+            applyFadingVolume();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+
+        if (!mFadeOutRamp.isRunning() && !mFadePending) {
+            retireFadingPlayer();
+        }
+    }
+
+    /**
+     * Ends a crossfade at once: the fading player is retired and the current one gets full gain
+     */
+    private void cancelFade() {
+        mFadePending = false;
+        mFadeInRamp.hold(1f);
+        retireFadingPlayer();
+    }
+
+    /**
+     * Resets the fading player and keeps it as the standby player, or releases it if there is one
+     */
+    private void retireFadingPlayer() {
+        final PlayerEngine engine = mFadingPlayer;
+        mFadingPlayer = null;
+        mFadingFileName = null;
+        mFadingPlaybackState = PlaybackState.IDLED;
+        mFadingAppliedVolume = Float.NaN;
+        mFadeOutRamp.hold(0f);
+        if (engine == null) {
+            return;
+        }
+
+        try {
+            engine.reset();
+            if (mStandbyPlayer == null) {
+                mStandbyPlayer = engine;
+                mStandbyFileName = null;
+                mStandbyPlaybackState = PlaybackState.IDLED;
+                return;
+            }
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+        engine.release();
+    }
+
+    /**
+     * Makes the standby player the current one if it has the music.
+     * The previous player is reset and kept as the standby player for the next preload.
+     * @param fileName music file's name
+     * @return true if swapped
+     */
+    private boolean swapToStandby(final String fileName) {
+        if (mStandbyPlayer == null || !fileName.equals(mStandbyFileName) ||
+                (mStandbyPlaybackState != PlaybackState.PREPARING &&
+                 mStandbyPlaybackState != PlaybackState.PREPARED)) {
+            return false;
+        }
+
+        final PlayerEngine previous = mPlayer;
+        if (previous != null) {
+            if (isPlayerPlaying()) {
+                previous.stop();
+            }
+            previous.reset();
+        }
+
+        mPlayer = mStandbyPlayer;
+        mCurrentFileName = mStandbyFileName;
+        mCurrentPlaybackState = mStandbyPlaybackState;
+        mPrepareStartedAtNanos = mStandbyPrepareStartedAtNanos;
+        mAppliedVolume = Float.NaN;
+
+        mStandbyPlayer = previous;
+        mStandbyFileName = null;
+        mStandbyPlaybackState = PlaybackState.IDLED;
+        if (fileName.equals(mPreloadFileName)) {
+            mPreloadFileName = null;
+        }
+
+        mSwitchPreloaded = true;
+        return true;
+    }
+
+    /**
+     * Prepares the music to preload on the standby player
+     */
+    private void preloadStandby() {
+        final String fileName = mPreloadFileName;
+        if (isEmpty(fileName) || fileName.equals(mStandbyFileName)) {
+            return;
+        }
+        if (fileName.equals(mCurrentFileName) && mPlayer != null) {
+            /*
+            the current player already has it
+             */
+            mPreloadFileName = null;
+            return;
+        }
+
+        if (mStandbyPlayer == null) {
+            mStandbyPlayer = mEngineFactory.create();
+        } else {
+            mStandbyPlayer.reset();
+        }
+        mStandbyPlayer.setCallback(mListener);
+        mStandbyFileName = null;
+        mStandbyPlaybackState = PlaybackState.IDLED;
+
+        try {
+            mStandbyPlayer.setDataSource(fileName);
+        } catch (IOException e) {
+            Log.d(TAG, "failed to open " + fileName + ": " + e.getMessage());
+            mPreloadFileName = null;
+            return;
+        }
+        mStandbyPlayer.setLooping(true);
+        mStandbyPlayer.setLoopPoints(mLoopPoints.get(fileName));
+        mStandbyFileName = fileName;
+        mStandbyPlaybackState = PlaybackState.PREPARING;
+        mStandbyPrepareStartedAtNanos = System.nanoTime();
+        mStandbyPlayer.prepareAsync();
+    }
+
+    /**
+     * Called on the scheduler's thread when a player finished preparing
+     * @param engine engine that prepared music
+     */
+    private void onPrepared(final PlayerEngine engine) {
+        if (engine == mPlayer && mCurrentPlaybackState == PlaybackState.PREPARING) {
+            mCurrentPlaybackState = PlaybackState.PREPARED;
+            recordPrepared(mCurrentFileName, System.nanoTime() - mPrepareStartedAtNanos);
+        } else if (engine == mStandbyPlayer && mStandbyPlaybackState == PlaybackState.PREPARING) {
+            mStandbyPlaybackState = PlaybackState.PREPARED;
+            recordPrepared(mStandbyFileName, System.nanoTime() - mStandbyPrepareStartedAtNanos);
         }
     }
 
     /**
-     * Handles a command
-     * @param command
+     * Called on the scheduler's thread when a player reported an error.
+     * The current player is reset and prepares its music again where it was last published,
+     * after a backoff that doubles on each error in a row. A standby or fading player with an error is dropped.
+     * @param error error the player reported
      */
-    private void handleCommand(final BgmCommand command) {
-        switch (command.getType()) {
-            case START:
-                startMusic((String) command.getData());
-                break;
-
-            case PAUSE:
-                pauseMusic();
-                break;
+    private void onError(final PlayerError error) {
+        final PlayerEngine engine = error.mEngine;
+        mEvents.error(fileNameOf(engine), error.mWhat, error.mExtra);
+        if (engine == mStandbyPlayer) {
+            if (mStandbyFileName != null && mStandbyFileName.equals(mPreloadFileName)) {
+                mPreloadFileName = null;
+            }
+            mStandbyFileName = null;
+            mStandbyPlaybackState = PlaybackState.ERROR;
+            return;
+        } else if (engine == mFadingPlayer) {
+            retireFadingPlayer();
+            return;
+        } else if (engine != mPlayer) {
+            return;
+        }
 
-            case RESUME:
-                resumeMusic();
-                break;
+        mCurrentPlaybackState = PlaybackState.ERROR;
+        mAppliedVolume = Float.NaN;
+        mRecoverAtNanos = BgmScheduler.NO_WAKE_UP;
+        if (isEmpty(mDesiredFileName) || !mDesiredFileName.equals(mCurrentFileName) ||
+                mDesiredPlaybackState == PlaybackState.STOPPED) {
+            failPendingStarts();
+            return;
+        }
 
-            case RELEASE:
-                release();
-                break;
+        final long now = System.nanoTime();
+        if (mRecoveryAttempts > 0 && now - mLastErrorAtNanos >= RECOVERY_RESET_NANOS) {
+            mRecoveryAttempts = 0;
+        }
+        mLastErrorAtNanos = now;
+        if (mRecoveryAttempts >= MAX_RECOVERY_ATTEMPTS) {
+            /*
+            gives up until the music is started again
+             */
+            Log.d(TAG, "gave up recovering " + mCurrentFileName);
+            mRecoveryGaveUp = true;
+            failPendingStarts();
+            return;
+        }
 
-            case DESTROY:
-                onDestroy();
+        /*
+        the player's position cannot be read in the error state, so the published one is used.
+        Positions of a player that was preparing are not known, and a seek that is still pending wins.
+         */
+        final BgmState state = mState.get();
+        if (mDesiredPositionMillis < 0 && mCurrentFileName.equals(state.getFileName())) {
+            switch (state.getPlaybackState()) {
+                case PREPARED:
+                case STARTED:
+                case PAUSED:
+                case PLAYBACK_COMPLETED:
+                    mDesiredPositionMillis = state.getPositionMillis();
+                    break;
 
-            default:
-                break;
+                default:
+                    break;
+            }
         }
+        mRecoverAtNanos = now + Math.min(RECOVERY_BASE_NANOS << mRecoveryAttempts, RECOVERY_MAX_NANOS);
+        mRecoveryAttempts++;
     }
 
     /**
-     * Adds a command this class would handle
-     * @param command
-     * @return true if the command is successfully added
+     * @return true if the current music had an error and waits for its backoff or to be started again
      */
-    boolean addCommand(final BgmCommand command) {
-        mCommandLock.lock();
-        try {
-            final boolean result = mCommandQueue.offer(command);
-            mCommandCondition.signal();
-
-            return result;
+    private boolean isRecovering() {
+        return mCurrentPlaybackState == PlaybackState.ERROR && mDesiredFileName.equals(mCurrentFileName) &&
+                (mRecoverAtNanos != BgmScheduler.NO_WAKE_UP || mRecoveryGaveUp);
+    }
 
-        } finally {
-            mCommandLock.unlock();
+    private void recordPrepared(final String fileName, final long durationNanos) {
+        mMetrics.recordPrepareDuration(fileName, durationNanos);
+        if (mTrimStats != null) {
+            mTrimStats.recordAcquired(fileName, durationNanos);
         }
     }
 
     /**
-     * Initializes
-     * @param fileName music file that MediaPlayer would play
+     * Releases the standby player and forgets the music to preload, keeping the current and fading players.
+     * Music released here is prepared again only when it is started.
+     * @param trim tier and statistics of the trim
      */
-    private void initPlayer(final String fileName) {
-        try {
-            if (mMediaPlayer == null) {
-                mMediaPlayer = new MediaPlayer();
-            } else {
-                mMediaPlayer.reset();
-            }
-
-            if (mListener == null) {
-                mListener = new PlaybackListener();
-                setPlaybackListener(mListener);
-            }
-
-            mCurrentFileName = fileName;
-            AssetFileDescriptor afd = mService.getAssets().openFd(mCurrentFileName);
-            mMediaPlayer.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
-            mMediaPlayer.setLooping(true);
-
-            mCurrentPlaybackState = PlaybackState.IDLED;
-
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void trimMemory(final MemoryTrim trim) {
+        mTrimStats = trim.mStats;
+        mPreloadFileName = null;
+        if (mStandbyFileName != null) {
+            trim.mStats.recordReleasedPlayer(trim.mTier, mStandbyFileName);
         }
+        releaseStandbyPlayer();
     }
 
     /**
-     * Sets listeners for playback events
-     * @param listener
+     * Releases the standby player, if any
      */
-    private void setPlaybackListener(PlaybackListener listener) {
-        mMediaPlayer.setOnBufferingUpdateListener(listener);
-        mMediaPlayer.setOnCompletionListener(listener);
-        mMediaPlayer.setOnErrorListener(listener);
-        mMediaPlayer.setOnInfoListener(listener);
-        mMediaPlayer.setOnPreparedListener(listener);
-        mMediaPlayer.setOnSeekCompleteListener(listener);
-
+    private void releaseStandbyPlayer() {
+        if (mStandbyPlayer != null) {
+            mStandbyPlayer.release();
+            mStandbyPlayer = null;
+            mStandbyFileName = null;
+            mStandbyPlaybackState = PlaybackState.IDLED;
+        }
     }
 
     /**
-     * Starts music
-     * @param fileName music file's name
+     * Stores loop points of a music, and sets them to players that have the music
+     * @param settings music file's name and its loop points
      */
-    private void startMusic(final String fileName) {
+    private void setLoopPoints(final LoopSettings settings) {
+        if (settings.mLoopPoints == null) {
+            mLoopPoints.remove(settings.mFileName);
+        } else {
+            mLoopPoints.put(settings.mFileName, settings.mLoopPoints);
+        }
+
         try {
-            if (TextUtils.isEmpty(fileName) || fileName.equals(mCurrentFileName)) {
-                return;
+            if (mPlayer != null && settings.mFileName.equals(mCurrentFileName)) {
+                mPlayer.setLoopPoints(settings.mLoopPoints);
             }
-
-            if (isPlaying()) {
-                mMediaPlayer.stop();
-                mCurrentPlaybackState = PlaybackState.STOPPED;
+            if (mStandbyPlayer != null && settings.mFileName.equals(mStandbyFileName)) {
+                mStandbyPlayer.setLoopPoints(settings.mLoopPoints);
             }
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
 
-            if (mMediaPlayer != null) {
-                mMediaPlayer.reset();
-            }
+    /**
+     * Called on the scheduler's thread when a player's music reached its end
+     * @param engine engine that completed music
+     */
+    private void onCompletion(final PlayerEngine engine) {
+        if (engine == mPlayer && mCurrentPlaybackState == PlaybackState.STARTED) {
+            mCurrentPlaybackState = PlaybackState.PLAYBACK_COMPLETED;
+        }
+    }
 
-            initPlayer(fileName);
+    /**
+     * Seeks the current player to the desired position once it has the desired music.
+     * While the player is preparing, the seek waits until it is prepared.
+     */
+    private void applySeek() {
+        if (mDesiredPositionMillis < 0 || mPlayer == null || !mDesiredFileName.equals(mCurrentFileName)) {
+            return;
+        }
 
-            mMediaPlayer.prepareAsync();
-            mCurrentPlaybackState = PlaybackState.PREPARING;
+        switch (mCurrentPlaybackState) {
+            case INITIALIZED:
+            case STOPPED:
+            case PREPARED:
+            case STARTED:
+            case PAUSED:
+            case PLAYBACK_COMPLETED:
+                mPlayer.seekTo(mDesiredPositionMillis);
+                mDesiredPositionMillis = -1;
+                break;
 
-        } catch (IllegalStateException e) {
-            e.printStackTrace();
+            default:
+                break;
         }
     }
 
@@ -256,22 +1383,18 @@ public class BgmWorker extends Thread {
      * Pauses music
      */
     private void pauseMusic() {
-        try {
-            if (isPausable()) {
-                mMediaPlayer.pause();
-                mCurrentPlaybackState = PlaybackState.PAUSED;
-            }
-        } catch (IllegalStateException e) {
-            e.printStackTrace();
+        if (isPausable() && mCurrentPlaybackState != PlaybackState.PAUSED) {
+            mPlayer.pause();
+            mCurrentPlaybackState = PlaybackState.PAUSED;
         }
     }
 
     /**
-     * Checks if MediaPlayer is able to pause
+     * Checks if the player is able to pause
      * @return true if palyer is able to pause
      */
     private boolean isPausable() {
-        if (mMediaPlayer == null) {
+        if (mPlayer == null) {
             return false;
         }
 
@@ -288,15 +1411,31 @@ public class BgmWorker extends Thread {
      * Resumes music
      */
     private void resumeMusic() {
-        try {
-            if (TextUtils.isEmpty(mCurrentFileName) || !isStartable()) {
-                return;
-            }
+        if (isEmpty(mCurrentFileName) || !isStartable() || mCurrentPlaybackState == PlaybackState.STARTED) {
+            return;
+        }
 
-            mMediaPlayer.start();
-            mCurrentPlaybackState = PlaybackState.STARTED;
-        } catch (IllegalStateException e) {
-            e.printStackTrace();
+        /*
+        the gain of a pending crossfade is applied before music becomes audible
+         */
+        applyVolume();
+        mPlayer.start();
+        mCurrentPlaybackState = PlaybackState.STARTED;
+
+        if (mFadePending) {
+            mFadePending = false;
+            startFade();
+        }
+        recordSwitch();
+    }
+
+    /**
+     * Records the latency of the switch in progress if the desired music has started
+     */
+    private void recordSwitch() {
+        if (mSwitchRequestedAtNanos != 0 && mDesiredFileName.equals(mCurrentFileName)) {
+            mTrackSwitchStats.record(System.nanoTime() - mSwitchRequestedAtNanos, mSwitchPreloaded);
+            mSwitchRequestedAtNanos = 0;
         }
     }
 
@@ -315,43 +1454,93 @@ public class BgmWorker extends Thread {
     }
 
     /**
-     * Releases MediaPlayer
+     * Stops music.
+     * If the player is preparing, it is stopped after it is prepared.
+     */
+    private void stopMusic() {
+        if (mPlayer != null && isStartable()) {
+            mPlayer.stop();
+            mCurrentPlaybackState = PlaybackState.STOPPED;
+        }
+    }
+
+    /**
+     * Sets the desired volume to the player if it differs from the applied one
+     */
+    private void applyVolume() {
+        final float volume = mDesiredVolume * mFadeInRamp.getGain();
+        if (mPlayer == null || mAppliedVolume == volume) {
+            return;
+        }
+
+        switch (mCurrentPlaybackState) {
+            case INITIALIZED:
+            case PREPARED:
+            case STARTED:
+            case PAUSED:
+            case STOPPED:
+            case PLAYBACK_COMPLETED:
+                mPlayer.setVolume(volume);
+                mAppliedVolume = volume;
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Sets the volume of the fading player if it differs from the applied one
+     */
+    private void applyFadingVolume() {
+        final float volume = mDesiredVolume * mFadeOutRamp.getGain();
+        if (mFadingPlayer != null && mFadingAppliedVolume != volume) {
+            mFadingPlayer.setVolume(volume);
+            mFadingAppliedVolume = volume;
+        }
+    }
+
+    /**
+     * Releases the player
      */
     private void release() {
         try {
-            if (mMediaPlayer != null) {
-                if (mMediaPlayer.isPlaying()) {
-                    mMediaPlayer.stop();
+            if (mPlayer != null) {
+                if (mPlayer.isPlaying()) {
+                    mPlayer.stop();
                     mCurrentPlaybackState = PlaybackState.STOPPED;
                 }
-                mMediaPlayer.reset();
-                mMediaPlayer.release();
-                mMediaPlayer = null;
+                mPlayer.reset();
+                mPlayer.release();
+                mPlayer = null;
 
                 mCurrentPlaybackState = PlaybackState.IDLED;
             }
         } catch (IllegalStateException e){
             e.printStackTrace();
         }
+
+        mRecoverAtNanos = BgmScheduler.NO_WAKE_UP;
+        cancelFade();
+        releaseStandbyPlayer();
     }
 
 
     /**
-     * Finishes the run loop
+     * Finishes handling commands once the ones that arrived together are handled
      */
     private void onDestroy() {
         mQuit = true;
-        interrupt();
     }
 
 
     /**
-     * Checks if the player is playing
+     * Asks the player if it is playing. Must be called only from the scheduler's thread.
      * @return true if the player is playing
      */
-    boolean isPlaying() {
+    private boolean isPlayerPlaying() {
         try {
-            return mMediaPlayer != null && mMediaPlayer.isPlaying();
+            return mPlayer != null && mPlayer.isPlaying();
         } catch (IllegalStateException e) {
             e.printStackTrace();
             return false;
@@ -359,54 +1548,439 @@ public class BgmWorker extends Thread {
     }
 
     /**
-     * Checks if player is not null
-     * @return
+     * Reads music and its position from a journal, and prepares it paused there if no music is set yet,
+     * so that START with it or RESUME plays at once from where it was. Records to the journal from then on.
+     * @param journal journal
+     */
+    private void restore(final PlaybackJournal journal) {
+        mJournal = journal;
+        final PlaybackJournal.Entry entry = journal.read();
+        if (entry == null || !isEmpty(mDesiredFileName)) {
+            return;
+        }
+        final String fileName = entry.getFileName();
+        if (entry.getLoopPoints() != null && !mLoopPoints.containsKey(fileName)) {
+            mLoopPoints.put(fileName, entry.getLoopPoints());
+        }
+        mDesiredFileName = fileName;
+        mDesiredPositionMillis = entry.getPositionMillis();
+        mDesiredPlaybackState = PlaybackState.PAUSED;
+        mSwitchRequestedAtNanos = 0;
+    }
+
+    /**
+     * Records the published state to the journal if it changed, and while music plays,
+     * wakes this worker up every CHECKPOINT_NANOS so that the position is published and recorded again.
+     * States in the middle of preparing are not recorded, since their position is not known.
+     */
+    private void checkpoint() {
+        if (mJournal == null) {
+            return;
+        }
+        final BgmState state = mState.get();
+        if (state != mJournaledState) {
+            switch (state.getPlaybackState()) {
+                case PREPARED:
+                case STARTED:
+                case PAUSED:
+                case STOPPED:
+                case PLAYBACK_COMPLETED:
+                    mJournal.record(state.getFileName(), state.getPositionMillis(),
+                            mLoopPoints.get(state.getFileName()));
+                    mJournaledState = state;
+                    break;
+
+                case IDLED:
+                    if (isEmpty(mDesiredFileName)) {
+                        /*
+                        released: nothing to resume
+                         */
+                        mJournal.record(null, 0, null);
+                        mJournaledState = state;
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        final long now = System.nanoTime();
+        if (!state.isPlaying()) {
+            mNextCheckpointNanos = BgmScheduler.NO_WAKE_UP;
+        } else if (mNextCheckpointNanos == BgmScheduler.NO_WAKE_UP || now - mNextCheckpointNanos >= 0) {
+            mNextCheckpointNanos = now + CHECKPOINT_NANOS;
+        }
+    }
+
+    /**
+     * Publishes the current state if it changed, so that other threads read it without touching the player
+     */
+    private void publishState() {
+        int positionMillis = 0;
+        if (mPlayer != null) {
+            switch (mCurrentPlaybackState) {
+                case PREPARED:
+                case STARTED:
+                case PAUSED:
+                case PLAYBACK_COMPLETED:
+                    try {
+                        positionMillis = mPlayer.getCurrentPosition();
+                    } catch (IllegalStateException e) {
+                        e.printStackTrace();
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+        }
+
+        final BgmState previous = mState.get();
+        if (previous.matches(mCurrentPlaybackState, mCurrentFileName, positionMillis, mDesiredVolume,
+                mPlayer != null)) {
+            return;
+        }
+        final BgmState state = new BgmState(mCurrentPlaybackState, mCurrentFileName, positionMillis,
+                mDesiredVolume, mPlayer != null, System.nanoTime());
+        mState.set(state);
+
+        if (!isEmpty(mCurrentFileName) && !mCurrentFileName.equals(mReportedFileName)) {
+            mEvents.trackChanged(mReportedFileName, mCurrentFileName);
+            mReportedFileName = mCurrentFileName;
+        }
+        if (previous.getPlaybackState() != state.getPlaybackState()) {
+            mEvents.stateChanged(previous.getPlaybackState(), state);
+        }
+    }
+
+    /**
+     * Completes handles of commands whose playback state is reached, and fails ones superseded by later commands
+     * or waiting for music that failed and is not retried
+     */
+    private void completePendingCommands() {
+        if (mPendingCommands.isEmpty()) {
+            return;
+        }
+        final BgmState state = mState.get();
+        for (int i = mPendingCommands.size() - 1; i >= 0; i--) {
+            final BgmCommand command = mPendingCommands.get(i);
+            final PlaybackState desired;
+            final boolean reached;
+            boolean failed = false;
+            switch (command.getType()) {
+                case START:
+                    desired = command.getData() != null && command.getData().equals(mDesiredFileName) ?
+                            PlaybackState.STARTED : null;
+                    reached = desired != null && state.isPlaying() && command.getData().equals(state.getFileName());
+                    failed = mRecoveryGaveUp && mCurrentPlaybackState == PlaybackState.ERROR;
+                    break;
+
+                case RESUME:
+                    desired = isEmpty(mDesiredFileName) ? null : PlaybackState.STARTED;
+                    reached = state.isPlaying();
+                    failed = mRecoveryGaveUp && mCurrentPlaybackState == PlaybackState.ERROR;
+                    break;
+
+                case PAUSE:
+                    desired = PlaybackState.PAUSED;
+                    reached = !state.isPlaying() && state.getPlaybackState() != PlaybackState.PREPARING;
+                    break;
+
+                case STOP:
+                    desired = PlaybackState.STOPPED;
+                    reached = isEmpty(mDesiredFileName) || !isStartable() &&
+                            mCurrentPlaybackState != PlaybackState.PREPARING;
+                    break;
+
+                default:
+                    /*
+                    other commands take effect as soon as they are handled
+                     */
+                    desired = mDesiredPlaybackState;
+                    reached = true;
+                    break;
+            }
+
+            if (desired != mDesiredPlaybackState || failed) {
+                command.getFuture().complete(false, state);
+            } else if (reached) {
+                command.getFuture().complete(true, state);
+            } else {
+                continue;
+            }
+            mPendingCommands.remove(i).recycle();
+        }
+    }
+
+    /**
+     * Fails handles of commands waiting for music to start, since the player kept reporting errors
+     */
+    private void failPendingStarts() {
+        for (int i = mPendingCommands.size() - 1; i >= 0; i--) {
+            final BgmCommand command = mPendingCommands.get(i);
+            if (command.getType() == BgmCommand.Type.START || command.getType() == BgmCommand.Type.RESUME) {
+                command.getFuture().complete(false, mState.get());
+                mPendingCommands.remove(i).recycle();
+            }
+        }
+    }
+
+    /**
+     * Fails every handle waiting, since this worker finishes
+     */
+    private void failPendingCommands() {
+        for (int i = 0; i < mPendingCommands.size(); i++) {
+            final BgmCommand command = mPendingCommands.get(i);
+            command.getFuture().complete(false, mState.get());
+            command.recycle();
+        }
+        mPendingCommands.clear();
+    }
+
+    /**
+     * Finds the music file's name a player has
+     * @param engine player
+     * @return music file's name, or null if the player is not used any more
+     */
+    private String fileNameOf(final PlayerEngine engine) {
+        if (engine == mPlayer) {
+            return mCurrentFileName;
+        } else if (engine == mStandbyPlayer) {
+            return mStandbyFileName;
+        } else if (engine == mFadingPlayer) {
+            return mFadingFileName;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the state last published by this worker. Wait-free, and can be called from any thread.
+     * @return state of this worker
+     */
+    BgmState getBgmState() {
+        return mState.get();
+    }
+
+    /**
+     * Checks if music is playing. Wait-free, and can be called from any thread.
+     * @return true if music is playing
+     */
+    boolean isPlaying() {
+        return mState.get().isPlaying();
+    }
+
+    /**
+     * Checks if a player exists. Wait-free, and can be called from any thread.
+     * @return true if a player exists
      */
     boolean isPlayable() {
-        return mMediaPlayer != null;
+        return mState.get().isPlayable();
+    }
+
+    /**
+     * @return statistics of track switches
+     */
+    TrackSwitchStats getTrackSwitchStats() {
+        return mTrackSwitchStats;
+    }
+
+    /**
+     * @return dispatcher of events to listeners
+     */
+    BgmEventDispatcher getEventDispatcher() {
+        return mEvents;
+    }
+
+    /**
+     * @return metrics of the command pipeline
+     */
+    BgmMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return playback state last published by this worker
+     */
+    PlaybackState getPlaybackState() {
+        return mState.get().getPlaybackState();
+    }
+
+    /**
+     * Settings of crossfades
+     */
+    static final class CrossfadeSettings {
+
+        /**
+         * Time a crossfade takes, or 0 to switch music without a crossfade
+         */
+        final long mDurationMillis;
+
+        /**
+         * Curve of crossfades
+         */
+        final FadeCurve mCurve;
+
+        /**
+         * Constructor
+         * @param durationMillis time a crossfade takes, or 0 to switch music without a crossfade
+         * @param curve curve of crossfades
+         */
+        CrossfadeSettings(final long durationMillis, final FadeCurve curve) {
+            mDurationMillis = durationMillis;
+            mCurve = curve;
+        }
+    }
+
+    /**
+     * Fade of the volume
+     */
+    static final class VolumeFade {
+
+        /**
+         * Volume to fade to, from 0 to 1
+         */
+        final float mVolume;
+
+        /**
+         * Time the fade takes
+         */
+        final long mDurationNanos;
+
+        /**
+         * Constructor
+         * @param volume volume to fade to, from 0 to 1
+         * @param durationMillis time the fade takes
+         */
+        VolumeFade(final float volume, final long durationMillis) {
+            mVolume = volume;
+            mDurationNanos = TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        }
+    }
+
+    /**
+     * Loop points of a music
+     */
+    static final class LoopSettings {
+
+        /**
+         * Music file's name
+         */
+        final String mFileName;
+
+        /**
+         * Loop points, or null to loop the whole music
+         */
+        final LoopPoints mLoopPoints;
+
+        /**
+         * Constructor
+         * @param fileName music file's name
+         * @param loopPoints loop points, or null to loop the whole music
+         */
+        LoopSettings(final String fileName, final LoopPoints loopPoints) {
+            mFileName = fileName;
+            mLoopPoints = loopPoints;
+        }
+    }
+
+    /**
+     * Request to release memory, and statistics of what was released
+     */
+    static final class MemoryTrim {
+
+        /**
+         * How much to release
+         */
+        final MemoryTrimStats.Tier mTier;
+
+        /**
+         * Statistics released players and music prepared again are recorded to
+         */
+        final MemoryTrimStats mStats;
+
+        /**
+         * Constructor
+         * @param tier how much to release
+         * @param stats statistics released players and music prepared again are recorded to
+         */
+        MemoryTrim(final MemoryTrimStats.Tier tier, final MemoryTrimStats stats) {
+            mTier = tier;
+            mStats = stats;
+        }
+    }
+
+    /**
+     * Error a player reported
+     */
+    static final class PlayerError {
+        final PlayerEngine mEngine;
+        final int mWhat;
+        final int mExtra;
+
+        PlayerError(final PlayerEngine engine, final int what, final int extra) {
+            mEngine = engine;
+            mWhat = what;
+            mExtra = extra;
+        }
+    }
+
+    /**
+     * Checks if a file name is null or empty
+     * @param fileName file name
+     * @return true if the file name is null or empty
+     */
+    private static boolean isEmpty(final String fileName) {
+        return fileName == null || fileName.length() == 0;
     }
 
     /**
      * Listener class that listens for playback events
      */
-    private class PlaybackListener implements MediaPlayer.OnPreparedListener, MediaPlayer.OnCompletionListener,
-            MediaPlayer.OnErrorListener, MediaPlayer.OnBufferingUpdateListener, MediaPlayer.OnSeekCompleteListener,
-            MediaPlayer.OnInfoListener {
+    private class PlaybackListener implements PlayerEngine.Callback {
         @Override
-        public void onBufferingUpdate(MediaPlayer mp, int percent) {
-            Log.d(TAG, "onBufferingUpdate called");
+        public void onPrepared(PlayerEngine engine) {
+            /*
+            hands the event to the scheduler's thread, which starts music if it is still desired
+             */
+            addEvent(BgmCommand.obtain(engine, BgmCommand.Type.PREPARED));
         }
 
         @Override
-        public void onCompletion(MediaPlayer mp) {
-            Log.d(TAG, "onCompletion called");
+        public void onCompletion(PlayerEngine engine) {
+            /*
+            music that does not loop by itself is restarted by the scheduler's thread
+             */
+            addEvent(BgmCommand.obtain(engine, BgmCommand.Type.COMPLETED));
         }
 
         @Override
-        public boolean onError(MediaPlayer mp, int what, int extra) {
-            Log.d(TAG, "onError called");
-            return false;
+        public void onLoop(PlayerEngine engine) {
+            if (mEvents.hasListeners()) {
+                addEvent(BgmCommand.obtain(engine, BgmCommand.Type.LOOPED));
+            }
         }
 
         @Override
-        public boolean onInfo(MediaPlayer mp, int what, int extra) {
-            Log.d(TAG, "onInfo called");
-            return false;
+        public void onBufferingUpdate(PlayerEngine engine, int percent) {
+            mMetrics.recordBufferFill(percent);
         }
 
         @Override
-        public void onPrepared(MediaPlayer mp) {
-            /*
-            if prepared, starts music
-             */
-            mCurrentPlaybackState = PlaybackState.PREPARED;
-            mMediaPlayer.start();
-            mCurrentPlaybackState = PlaybackState.STARTED;
+        public void onUnderrun(PlayerEngine engine, long stallNanos) {
+            mMetrics.recordUnderrun(stallNanos);
         }
 
         @Override
-        public void onSeekComplete(MediaPlayer mp) {
-            Log.d(TAG, "onSeekComplete called");
+        public boolean onError(PlayerEngine engine, int what, int extra) {
+            mMetrics.recordError(what, extra);
+            Log.d(TAG, "error what=" + what + " extra=" + extra);
+
+            /*
+            the scheduler's thread recovers, so the player must not report completion as well
+             */
+            addEvent(BgmCommand.obtain(new PlayerError(engine, what, extra), BgmCommand.Type.ERROR));
+            return true;
         }
     }
 }
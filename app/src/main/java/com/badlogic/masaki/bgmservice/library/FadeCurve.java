@@ -0,0 +1,43 @@
+package com.badlogic.masaki.bgmservice.library;
+
+/**
+ * Curves of volume fades
+ */
+public enum FadeCurve {
+    /**
+     * Volume changes at a constant rate
+     */
+    LINEAR {
+        @Override
+        float apply(float t) {
+            return t;
+        }
+    },
+
+    /**
+     * Fade-in and fade-out keep the sum of their power constant, so crossfades have no dip in loudness
+     */
+    EQUAL_POWER {
+        @Override
+        float apply(float t) {
+            return (float) Math.sin(t * Math.PI / 2);
+        }
+    },
+
+    /**
+     * Volume changes slowly at both ends and fast in the middle
+     */
+    S_CURVE {
+        @Override
+        float apply(float t) {
+            return t * t * (3 - 2 * t);
+        }
+    };
+
+    /**
+     * Maps progress of a fade-in to its gain
+     * @param t progress from 0 to 1
+     * @return gain from 0 to 1
+     */
+    abstract float apply(float t);
+}
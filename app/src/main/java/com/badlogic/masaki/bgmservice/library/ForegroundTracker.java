@@ -0,0 +1,173 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Detects when an application goes to background and comes back, from its activities' lifecycle.
+ * Going to background is reported only after no activity has been started for a grace window,
+ * so switching activities or rotating the screen reports nothing, and each real transition is reported once.
+ * Register it with Application.registerActivityLifecycleCallbacks(). Must be used on the main thread.
+ */
+public class ForegroundTracker extends ActivityLifecycleAdapter {
+
+    /**
+     * Grace window used by default, long enough for an activity to start the next one
+     */
+    public static final long DEFAULT_GRACE_MILLIS = 700;
+
+    /**
+     * Listener for foreground and background transitions
+     */
+    public interface Listener {
+        /**
+         * Called when the first activity started, or one started again after the application went to background
+         */
+        void onForeground();
+
+        /**
+         * Called when no activity has been started for the grace window
+         */
+        void onBackground();
+    }
+
+    /**
+     * Executor of delayed tasks on the main thread
+     */
+    interface DelayedExecutor {
+        void postDelayed(Runnable task, long delayMillis);
+
+        void removeCallbacks(Runnable task);
+    }
+
+    /**
+     * Time the application has to stay without a started activity before going to background
+     */
+    private final long mGraceMillis;
+
+    /**
+     * Listener
+     */
+    private final Listener mListener;
+
+    /**
+     * Executor of the background transition
+     */
+    private final DelayedExecutor mExecutor;
+
+    /**
+     * Number of started activities
+     */
+    private int mStartedCount;
+
+    /**
+     * Whether the application is in foreground
+     */
+    private boolean mForeground;
+
+    /**
+     * Whether the background transition is posted
+     */
+    private boolean mBackgroundPosted;
+
+    /**
+     * Task that moves the application to background if no activity started meanwhile
+     */
+    private final Runnable mGoBackground = new Runnable() {
+        @Override
+        public void run() {
+            mBackgroundPosted = false;
+            if (mStartedCount == 0 && mForeground) {
+                mForeground = false;
+                mListener.onBackground();
+            }
+        }
+    };
+
+    /**
+     * Constructor
+     * @param graceMillis time the application has to stay without a started activity before going to background
+     * @param listener listener called on the main thread
+     */
+    public ForegroundTracker(final long graceMillis, final Listener listener) {
+        this(graceMillis, listener, onMainThread());
+    }
+
+    /**
+     * Constructor
+     * @param graceMillis time the application has to stay without a started activity before going to background
+     * @param listener listener
+     * @param executor executor of delayed tasks
+     */
+    ForegroundTracker(final long graceMillis, final Listener listener, final DelayedExecutor executor) {
+        mGraceMillis = Math.max(0, graceMillis);
+        mListener = listener;
+        mExecutor = executor;
+    }
+
+    /**
+     * @return true if the application is in foreground
+     */
+    public boolean isForeground() {
+        return mForeground;
+    }
+
+    /**
+     * Called when an activity started
+     */
+    void onStarted() {
+        mStartedCount++;
+        if (mBackgroundPosted) {
+            mExecutor.removeCallbacks(mGoBackground);
+            mBackgroundPosted = false;
+        }
+        if (!mForeground) {
+            mForeground = true;
+            mListener.onForeground();
+        }
+    }
+
+    /**
+     * Called when an activity stopped
+     * @param changingConfigurations true if the activity is recreated at once for a configuration change
+     */
+    void onStopped(final boolean changingConfigurations) {
+        if (mStartedCount > 0) {
+            mStartedCount--;
+        }
+        if (mStartedCount > 0 || changingConfigurations || mBackgroundPosted) {
+            return;
+        }
+        mBackgroundPosted = true;
+        mExecutor.postDelayed(mGoBackground, mGraceMillis);
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        onStarted();
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        onStopped(activity.isChangingConfigurations());
+    }
+
+    /**
+     * Creates an executor that runs delayed tasks on the main thread
+     */
+    private static DelayedExecutor onMainThread() {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        return new DelayedExecutor() {
+            @Override
+            public void postDelayed(final Runnable task, final long delayMillis) {
+                handler.postDelayed(task, delayMillis);
+            }
+
+            @Override
+            public void removeCallbacks(final Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        };
+    }
+}
@@ -0,0 +1,189 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with a fixed number of buckets.
+ * Each power of two is split into 4 buckets, so a percentile is within 25% of the real value.
+ * Recording is lock-free and allocates nothing, and can be called from any thread.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Bits of the sub-bucket within a power of two
+     */
+    private static final int SUB_BITS = 2;
+
+    /**
+     * Number of sub-buckets per power of two
+     */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * Number of buckets, enough for any positive long
+     */
+    static final int BUCKET_COUNT = bucketOf(Long.MAX_VALUE) + 1;
+
+    /**
+     * Counts of each bucket
+     */
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Number of recorded durations
+     */
+    private final AtomicLong mCount = new AtomicLong();
+
+    /**
+     * Sum of recorded durations
+     */
+    private final AtomicLong mTotalNanos = new AtomicLong();
+
+    /**
+     * Max recorded duration
+     */
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * Records a duration
+     * @param nanos duration in nanoseconds; negative ones are recorded as 0
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(nanos, 0);
+        mBuckets.incrementAndGet(bucketOf(value));
+        mTotalNanos.addAndGet(value);
+        long max;
+        while (value > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, value)) {
+            /* retries until this value or a larger one is stored */
+        }
+        /*
+        the count is incremented last, so that a snapshot never has more durations counted than bucketed
+         */
+        mCount.incrementAndGet();
+    }
+
+    /**
+     * Copies the recorded durations. Durations recorded meanwhile may be partially included.
+     * @return snapshot of this histogram
+     */
+    public Snapshot snapshot() {
+        final long count = mCount.get();
+        final long[] buckets = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+        }
+        return new Snapshot(buckets, count, mTotalNanos.get(), mMaxNanos.get());
+    }
+
+    /**
+     * Finds the bucket of a duration
+     * @param value duration, 0 or more
+     * @return index of the bucket
+     */
+    static int bucketOf(final long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = exponent - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * Finds the largest duration of a bucket
+     * @param bucket index of the bucket
+     * @return largest duration the bucket holds
+     */
+    static long upperBoundOf(final int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        final int shift = (bucket >> SUB_BITS) - 1;
+        final long lower = (long) (SUB_COUNT + (bucket & (SUB_COUNT - 1))) << shift;
+        return lower + ((1L << shift) - 1);
+    }
+
+    /**
+     * Immutable copy of a histogram
+     */
+    public static final class Snapshot {
+
+        /**
+         * Counts of each bucket
+         */
+        private final long[] mBuckets;
+
+        /**
+         * Number of durations
+         */
+        private final long mCount;
+
+        /**
+         * Sum of durations
+         */
+        private final long mTotalNanos;
+
+        /**
+         * Max duration
+         */
+        private final long mMaxNanos;
+
+        Snapshot(final long[] buckets, final long count, final long totalNanos, final long maxNanos) {
+            mBuckets = buckets;
+            mCount = count;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+        }
+
+        /**
+         * @return number of durations
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return max duration in nanoseconds, or 0 if none is recorded
+         */
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        /**
+         * @return average duration in nanoseconds, or 0 if none is recorded
+         */
+        public long getAverageNanos() {
+            return mCount == 0 ? 0 : mTotalNanos / mCount;
+        }
+
+        /**
+         * Gets a percentile, as the largest duration of the bucket it falls in
+         * @param percentile percentile from 0 to 100
+         * @return duration in nanoseconds, or 0 if none is recorded
+         */
+        public long getPercentileNanos(final double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(mCount * Math.min(percentile, 100.0) / 100.0));
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), mMaxNanos);
+                }
+            }
+            return mMaxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount +
+                    " avg=" + getAverageNanos() / 1000 + "us" +
+                    " p50=" + getPercentileNanos(50) / 1000 + "us" +
+                    " p99=" + getPercentileNanos(99) / 1000 + "us" +
+                    " max=" + mMaxNanos / 1000 + "us";
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.badlogic.masaki.bgmservice.library;
+
+/**
+ * Region of a music that loops, in samples per channel.
+ * Music plays from its start to the loop end, then repeats from the loop start,
+ * so that an intro is played only once.
+ */
+public final class LoopPoints {
+
+    /**
+     * Sample the loop starts at
+     */
+    private final int mStartSample;
+
+    /**
+     * Sample the loop ends before
+     */
+    private final int mEndSample;
+
+    /**
+     * Constructor
+     * @param startSample sample the loop starts at
+     * @param endSample sample the loop ends before, which is exclusive
+     */
+    public LoopPoints(final int startSample, final int endSample) {
+        if (startSample < 0 || endSample <= startSample) {
+            throw new IllegalArgumentException("invalid loop: " + startSample + " to " + endSample);
+        }
+        mStartSample = startSample;
+        mEndSample = endSample;
+    }
+
+    /**
+     * @return sample the loop starts at
+     */
+    public int getStartSample() {
+        return mStartSample;
+    }
+
+    /**
+     * @return sample the loop ends before
+     */
+    public int getEndSample() {
+        return mEndSample;
+    }
+
+    @Override
+    public String toString() {
+        return "LoopPoints[" + mStartSample + ", " + mEndSample + ")";
+    }
+}
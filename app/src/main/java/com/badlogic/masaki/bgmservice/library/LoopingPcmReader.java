@@ -0,0 +1,180 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Reads frames of decoded music, wrapping from the loop end to the loop start
+ * at the exact frame, so that looping neither drops nor repeats a sample.
+ * Not thread-safe.
+ */
+final class LoopingPcmReader {
+
+    /**
+     * Samples of music
+     */
+    private final ShortBuffer mSamples;
+
+    /**
+     * Number of channels
+     */
+    private final int mChannelCount;
+
+    /**
+     * Number of frames
+     */
+    private final int mFrameCount;
+
+    /**
+     * Frame the loop starts at
+     */
+    private int mLoopStart;
+
+    /**
+     * Frame the loop ends before
+     */
+    private int mLoopEnd;
+
+    /**
+     * Whether music loops
+     */
+    private boolean mLooping;
+
+    /**
+     * Frame the next read starts at
+     */
+    private int mPosition;
+
+    /**
+     * Number of times reading wrapped from the loop end to the loop start
+     */
+    private int mLoopCount;
+
+    /**
+     * Constructor. Music loops as a whole until loop points are set.
+     * @param buffer decoded music
+     */
+    LoopingPcmReader(final PcmBuffer buffer) {
+        mSamples = buffer.samples();
+        mChannelCount = buffer.getChannelCount();
+        mFrameCount = buffer.getFrameCount();
+        mLoopEnd = mFrameCount;
+    }
+
+    /**
+     * Sets the region that loops
+     * @param points loop points, or null to loop the whole music.
+     *               They are clamped to the frames of music.
+     */
+    void setLoopPoints(final LoopPoints points) {
+        int start = 0;
+        int end = mFrameCount;
+        if (points != null) {
+            end = Math.min(points.getEndSample(), mFrameCount);
+            start = Math.min(points.getStartSample(), end);
+        }
+        if (start == end) {
+            /*
+            a loop beyond music's end loops the whole music
+             */
+            start = 0;
+            end = mFrameCount;
+        }
+        mLoopStart = start;
+        mLoopEnd = end;
+    }
+
+    /**
+     * Sets whether music loops
+     * @param looping true if music loops
+     */
+    void setLooping(final boolean looping) {
+        mLooping = looping;
+    }
+
+    /**
+     * Copies the next frames into an array
+     * @param dst array interleaved samples are copied into
+     * @param offsetFrames frame in dst to copy to
+     * @param frames number of frames to copy
+     * @return number of frames copied, less than requested only if music reached its end
+     */
+    int read(final short[] dst, final int offsetFrames, final int frames) {
+        return advance(dst, offsetFrames, frames);
+    }
+
+    /**
+     * Skips the next frames as if they were read, so that a silent layer stays in step with others
+     * @param frames number of frames to skip
+     * @return number of frames skipped, less than requested only if music reached its end
+     */
+    int skip(final int frames) {
+        return advance(null, 0, frames);
+    }
+
+    /**
+     * Moves the position forward, wrapping at the loop points
+     * @param dst array the frames are copied into, or null to copy nothing
+     * @param offsetFrames frame in dst to copy to
+     * @param frames number of frames to move
+     * @return number of frames moved
+     */
+    private int advance(final short[] dst, final int offsetFrames, final int frames) {
+        int filled = 0;
+        while (filled < frames) {
+            /*
+            frames after the loop end are played only if music does not loop, or was sought past it
+             */
+            final int end = mLooping && mPosition < mLoopEnd ? mLoopEnd : mFrameCount;
+            if (mPosition >= end) {
+                if (!mLooping || mLoopEnd == 0) {
+                    break;
+                }
+                mPosition = mLoopStart;
+                mLoopCount++;
+                continue;
+            }
+
+            final int count = Math.min(frames - filled, end - mPosition);
+            if (dst != null) {
+                mSamples.position(mPosition * mChannelCount);
+                mSamples.get(dst, (offsetFrames + filled) * mChannelCount, count * mChannelCount);
+            }
+            mPosition += count;
+            filled += count;
+            if (mLooping && mPosition == mLoopEnd) {
+                mPosition = mLoopStart;
+                mLoopCount++;
+            }
+        }
+        return filled;
+    }
+
+    /**
+     * @return number of times reading wrapped from the loop end to the loop start
+     */
+    int getLoopCount() {
+        return mLoopCount;
+    }
+
+    /**
+     * @return frame the next read starts at
+     */
+    int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Sets the frame the next read starts at
+     * @param frame frame, clamped to the frames of music
+     */
+    void setPosition(final int frame) {
+        mPosition = Math.max(0, Math.min(mFrameCount, frame));
+    }
+
+    /**
+     * @return number of frames
+     */
+    int getFrameCount() {
+        return mFrameCount;
+    }
+}
@@ -0,0 +1,195 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.annotation.TargetApi;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * PcmDecoder that decodes music files in assets with MediaCodec
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class MediaCodecPcmDecoder implements PcmDecoder {
+
+    /**
+     * Time to wait for codec buffers
+     */
+    private static final long TIMEOUT_US = 10000;
+
+    /**
+     * Assets music files are read from
+     */
+    private final AssetManager mAssets;
+
+    /**
+     * Constructor
+     * @param assets assets music files are read from
+     */
+    public MediaCodecPcmDecoder(final AssetManager assets) {
+        mAssets = assets;
+    }
+
+    @Override
+    public PcmBuffer decode(String fileName) throws IOException {
+        /*
+        streamed music is decoded as a whole as well, read by MediaExtractor itself
+         */
+        final AssetFileDescriptor afd = StreamSource.isStream(fileName) ? null : mAssets.openFd(fileName);
+        final MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            if (afd == null) {
+                extractor.setDataSource(StreamSource.toPath(fileName));
+            } else {
+                extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(), afd.getLength());
+            }
+            final MediaFormat format = selectAudioTrack(extractor);
+            if (format == null) {
+                throw new IOException("no audio track in " + fileName);
+            }
+
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+            return drain(extractor, codec, format);
+
+        } catch (IllegalStateException e) {
+            throw new IOException("failed to decode " + fileName, e);
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+            if (afd != null) {
+                afd.close();
+            }
+        }
+    }
+
+    /**
+     * Selects the first audio track
+     * @param extractor extractor of the file
+     * @return format of the track, or null if there is no audio track
+     */
+    private static MediaFormat selectAudioTrack(final MediaExtractor extractor) {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            final MediaFormat format = extractor.getTrackFormat(i);
+            final String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("audio/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Feeds the codec and collects its output into a direct buffer
+     * @param extractor extractor of the file
+     * @param codec started codec
+     * @param format format of the track
+     * @return decoded music
+     */
+    @SuppressWarnings("deprecation")
+    private static PcmBuffer drain(final MediaExtractor extractor, final MediaCodec codec,
+                                   final MediaFormat format) {
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+        /*
+        sizes the output from the duration, and grows it if the estimate is short
+         */
+        long estimate = 1 << 20;
+        if (format.containsKey(MediaFormat.KEY_DURATION)) {
+            estimate = format.getLong(MediaFormat.KEY_DURATION) * sampleRate / 1000000L
+                    * channelCount * PcmBuffer.BYTES_PER_SAMPLE + (1 << 16);
+        }
+        ByteBuffer output = allocate((int) Math.min(Integer.MAX_VALUE, estimate));
+
+        ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+        final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+
+        while (true) {
+            if (!inputDone) {
+                final int inputIndex = codec.dequeueInputBuffer(TIMEOUT_US);
+                if (inputIndex >= 0) {
+                    final int size = extractor.readSampleData(inputBuffers[inputIndex], 0);
+                    if (size < 0) {
+                        codec.queueInputBuffer(inputIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    } else {
+                        codec.queueInputBuffer(inputIndex, 0, size, extractor.getSampleTime(), 0);
+                        extractor.advance();
+                    }
+                }
+            }
+
+            final int outputIndex = codec.dequeueOutputBuffer(info, TIMEOUT_US);
+            if (outputIndex >= 0) {
+                if (info.size > 0) {
+                    final ByteBuffer chunk = outputBuffers[outputIndex];
+                    chunk.position(info.offset);
+                    chunk.limit(info.offset + info.size);
+                    if (output.remaining() < info.size) {
+                        output = grow(output, info.size);
+                    }
+                    output.put(chunk);
+                }
+                codec.releaseOutputBuffer(outputIndex, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            } else if (outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputBuffers = codec.getOutputBuffers();
+            } else if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                final MediaFormat outputFormat = codec.getOutputFormat();
+                sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                channelCount = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            }
+        }
+
+        output.flip();
+        if (output.capacity() - output.limit() > output.capacity() / 8) {
+            /*
+            gives back native memory the estimate over-allocated
+             */
+            final ByteBuffer exact = allocate(output.limit());
+            exact.put(output);
+            exact.flip();
+            output = exact;
+        }
+        return new PcmBuffer(output, sampleRate, channelCount);
+    }
+
+    /**
+     * Allocates a direct buffer in native byte order
+     * @param capacity capacity in bytes
+     * @return buffer
+     */
+    private static ByteBuffer allocate(final int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Copies a buffer into a larger one
+     * @param buffer buffer being written
+     * @param needed bytes that have to fit
+     * @return larger buffer positioned after the copied bytes
+     */
+    private static ByteBuffer grow(final ByteBuffer buffer, final int needed) {
+        final int capacity = Math.max(buffer.capacity() + needed, buffer.capacity() + buffer.capacity() / 2);
+        final ByteBuffer grown = allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
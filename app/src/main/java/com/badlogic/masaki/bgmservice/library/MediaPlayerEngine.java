@@ -0,0 +1,538 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * PlayerEngine that plays music files in assets with MediaPlayer.
+ * Seeking in MP3 files opens the file's region from the indexed frame,
+ * instead of letting MediaPlayer search for the position.
+ * Music given as an absolute path, a file URI or an HTTP URL is streamed through a StreamBuffer on API 23 and later,
+ * and by MediaPlayer itself before.
+ * MP3 files are indexed in background once set as data source, and seek as MediaPlayer does until indexed.
+ * Seeking a prepared MP3 file and restarting it after it completed from a seek prepare the region asynchronously,
+ * playing on once prepared, so that the scheduler's thread shared by every channel never waits for it.
+ */
+public class MediaPlayerEngine implements PlayerEngine {
+    public static final String TAG = MediaPlayerEngine.class.getSimpleName();
+
+    /**
+     * Assets music files are read from
+     */
+    private final AssetManager mAssets;
+
+    /**
+     * Indexer of MP3 frames
+     */
+    private final Mp3FrameIndexer mIndexer;
+
+    /**
+     * Bytes buffered per stream
+     */
+    private final int mStreamBufferBytes;
+
+    /**
+     * Buffer of the music being streamed, or null
+     */
+    private volatile StreamBuffer mStream;
+
+    /**
+     * Player to play music
+     */
+    private final MediaPlayer mMediaPlayer = new MediaPlayer();
+
+    /**
+     * Music file set as data source
+     */
+    private String mFileName;
+
+    /**
+     * Whether music loops
+     */
+    private boolean mLooping;
+
+    /**
+     * Volume from 0 to 1
+     */
+    private float mVolume = 1.0f;
+
+    /**
+     * Byte offset in the file where the data source starts, or 0 if it is the whole file
+     */
+    private long mBaseOffset;
+
+    /**
+     * Position where the data source starts in milliseconds
+     */
+    private int mBaseMillis;
+
+    /**
+     * Whether the player is prepared
+     */
+    private volatile boolean mPrepared;
+
+    /**
+     * Whether prepareAsync() was called and onPrepared has not arrived yet
+     */
+    private volatile boolean mAwaitingPrepared;
+
+    /**
+     * Whether music reached its end
+     */
+    private volatile boolean mCompleted;
+
+    /**
+     * Whether the player prepares a region again after a seek, which is not reported to the callback.
+     * Guarded by this, like mSeekPlaying, since onPrepared arrives on another thread than the other calls.
+     */
+    private boolean mSeekPreparing;
+
+    /**
+     * Whether music plays once the region the seek opened is prepared
+     */
+    private boolean mSeekPlaying;
+
+    /**
+     * Position to seek to once prepared, or -1
+     */
+    private volatile int mPendingSeekMillis = -1;
+
+    /**
+     * Callback that listens for playback events
+     */
+    private volatile Callback mCallback;
+
+    /**
+     * Constructor
+     * @param assets assets music files are read from
+     */
+    public MediaPlayerEngine(final AssetManager assets) {
+        this(assets, new Mp3FrameIndexer(assets), StreamBuffer.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     * @param assets assets music files are read from
+     * @param indexer indexer of MP3 frames, shared by engines
+     * @param streamBufferBytes bytes buffered per stream
+     */
+    MediaPlayerEngine(final AssetManager assets, final Mp3FrameIndexer indexer, final int streamBufferBytes) {
+        mAssets = assets;
+        mIndexer = indexer;
+        mStreamBufferBytes = streamBufferBytes;
+        setPlaybackListener(new PlaybackListener());
+    }
+
+    /**
+     * Sets listeners for playback events
+     * @param listener
+     */
+    private void setPlaybackListener(PlaybackListener listener) {
+        mMediaPlayer.setOnBufferingUpdateListener(listener);
+        mMediaPlayer.setOnCompletionListener(listener);
+        mMediaPlayer.setOnErrorListener(listener);
+        mMediaPlayer.setOnInfoListener(listener);
+        mMediaPlayer.setOnPreparedListener(listener);
+        mMediaPlayer.setOnSeekCompleteListener(listener);
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void setDataSource(String fileName) throws IOException {
+        if (StreamSource.isStream(fileName)) {
+            openStream(fileName);
+        } else {
+            setRegion(fileName, 0);
+            if (Mp3FrameIndexer.isIndexable(fileName)) {
+                mIndexer.prefetch(fileName);
+            }
+        }
+        mFileName = fileName;
+        mBaseMillis = 0;
+    }
+
+    /**
+     * Sets streamed music as data source
+     * @param fileName absolute path, file URI or HTTP URL
+     * @throws IOException if the stream cannot be opened
+     */
+    private void openStream(final String fileName) throws IOException {
+        closeStream();
+        mBaseOffset = 0;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            mMediaPlayer.setDataSource(StreamSource.toPath(fileName));
+            return;
+        }
+        final StreamBuffer stream = new StreamBuffer(StreamSource.forName(fileName), mStreamBufferBytes,
+                new StreamListener());
+        stream.start();
+        mStream = stream;
+        mMediaPlayer.setDataSource(new StreamingDataSource(stream));
+    }
+
+    /**
+     * Stops fetching the music being streamed, if any
+     */
+    private void closeStream() {
+        if (mStream != null) {
+            mStream.close();
+            mStream = null;
+        }
+    }
+
+    /**
+     * Sets the region of a music file from an offset to its end as data source
+     * @param fileName music file's name
+     * @param offset byte offset in the file
+     * @throws IOException if the file cannot be opened
+     */
+    private void setRegion(final String fileName, final long offset) throws IOException {
+        AssetFileDescriptor afd = mAssets.openFd(fileName);
+        try {
+            mMediaPlayer.setDataSource(afd.getFileDescriptor(), afd.getStartOffset() + offset,
+                    afd.getLength() - offset);
+            mBaseOffset = offset;
+        } finally {
+            afd.close();
+        }
+    }
+
+    /**
+     * Resets the player and sets the region from a frame as data source, keeping looping and volume
+     * @param index index of the file, or null to set the whole file
+     * @param frame frame the region starts at
+     */
+    private void reopen(final Mp3FrameIndex index, final int frame) {
+        mMediaPlayer.reset();
+        mPrepared = false;
+        mCompleted = false;
+        mAwaitingPrepared = false;
+        try {
+            if (index == null || frame == 0) {
+                setRegion(mFileName, 0);
+                mBaseMillis = 0;
+            } else {
+                setRegion(mFileName, index.getFrameOffset(frame));
+                mBaseMillis = (int) index.getFrameTimeMillis(frame);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to reopen " + mFileName, e);
+        }
+        setLooping(mLooping);
+        mMediaPlayer.setVolume(mVolume, mVolume);
+    }
+
+    /**
+     * Prepares the region a seek opened without telling the callback, and plays it once prepared if it should
+     * @param playing whether music plays once prepared
+     */
+    private void prepareAfterSeek(final boolean playing) {
+        mSeekPreparing = true;
+        mSeekPlaying = playing;
+        mMediaPlayer.prepareAsync();
+    }
+
+    /**
+     * Gets the index of the current file, unless it is still being built
+     * @return index, or null if the file is not indexed yet or cannot be indexed
+     */
+    private Mp3FrameIndex getIndex() {
+        if (!Mp3FrameIndexer.isIndexable(mFileName)) {
+            return null;
+        }
+        return mIndexer.peek(mFileName);
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        mLooping = looping;
+        /*
+        a region loops from its own start, so it loops by restarting from the whole file on completion
+         */
+        mMediaPlayer.setLooping(looping && mBaseOffset == 0);
+    }
+
+    @Override
+    public void setLoopPoints(LoopPoints points) {
+        /*
+        MediaPlayer cannot wrap at an exact sample, so music loops as a whole
+         */
+        if (points != null) {
+            Log.d(TAG, "loop points need decoded music, see BgmSettings.setPcmCacheBudgetBytes()");
+        }
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        mVolume = volume;
+        mMediaPlayer.setVolume(volume, volume);
+    }
+
+    @Override
+    public void prepareAsync() {
+        mPrepared = false;
+        mCompleted = false;
+        mAwaitingPrepared = true;
+        mMediaPlayer.prepareAsync();
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mSeekPreparing) {
+            mSeekPlaying = true;
+            return;
+        }
+        if (mCompleted && mBaseOffset != 0) {
+            /*
+            restarts from the start of the file, not of the region
+             */
+            reopen(null, 0);
+            prepareAfterSeek(true);
+            return;
+        }
+        mCompleted = false;
+        mMediaPlayer.start();
+    }
+
+    @Override
+    public synchronized void pause() {
+        if (mSeekPreparing) {
+            mSeekPlaying = false;
+            return;
+        }
+        mMediaPlayer.pause();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mSeekPreparing) {
+            /*
+            stop() is illegal while preparing, and resetting drops the preparation as well
+             */
+            mSeekPreparing = false;
+            reopen(null, 0);
+            return;
+        }
+        mMediaPlayer.stop();
+        mPrepared = false;
+        if (mBaseOffset != 0) {
+            /*
+            music prepared after stop() starts from the start of the file
+             */
+            reopen(null, 0);
+        }
+    }
+
+    @Override
+    public synchronized void seekTo(int positionMillis) {
+        final Mp3FrameIndex index = getIndex();
+        if (mSeekPreparing) {
+            /*
+            the previous seek is still preparing, and only index != null starts one
+             */
+            reopen(index, index.frameAt(positionMillis));
+            prepareAfterSeek(mSeekPlaying);
+            return;
+        }
+        if (!mPrepared) {
+            /*
+            opens the region from the frame, so that preparing needs no seek at all
+             */
+            if (index != null) {
+                reopen(index, index.frameAt(positionMillis));
+            } else {
+                mPendingSeekMillis = positionMillis;
+            }
+            return;
+        }
+
+        if (index == null) {
+            mMediaPlayer.seekTo(positionMillis);
+            return;
+        }
+
+        final boolean playing = mMediaPlayer.isPlaying();
+        reopen(index, index.frameAt(positionMillis));
+        prepareAfterSeek(playing);
+    }
+
+    @Override
+    public synchronized int getCurrentPosition() {
+        if (mSeekPreparing) {
+            return mBaseMillis;
+        }
+        return mBaseMillis + mMediaPlayer.getCurrentPosition();
+    }
+
+    @Override
+    public synchronized void reset() {
+        mMediaPlayer.reset();
+        mSeekPreparing = false;
+        closeStream();
+        mFileName = null;
+        mLooping = false;
+        mBaseOffset = 0;
+        mBaseMillis = 0;
+        mPrepared = false;
+        mCompleted = false;
+        mAwaitingPrepared = false;
+        mPendingSeekMillis = -1;
+    }
+
+    @Override
+    public synchronized void release() {
+        mSeekPreparing = false;
+        mMediaPlayer.release();
+        closeStream();
+    }
+
+    @Override
+    public synchronized boolean isPlaying() {
+        if (mSeekPreparing) {
+            return mSeekPlaying;
+        }
+        return mMediaPlayer.isPlaying();
+    }
+
+    /**
+     * Factory that creates MediaPlayerEngine
+     */
+    public static class Factory implements PlayerEngine.Factory {
+
+        /**
+         * Assets music files are read from
+         */
+        private final AssetManager mAssets;
+
+        /**
+         * Indexer of MP3 frames shared by engines
+         */
+        private final Mp3FrameIndexer mIndexer;
+
+        /**
+         * Bytes buffered per stream
+         */
+        private final int mStreamBufferBytes;
+
+        /**
+         * Constructor
+         * @param assets assets music files are read from
+         */
+        public Factory(final AssetManager assets) {
+            mAssets = assets;
+            mIndexer = new Mp3FrameIndexer(assets);
+            final int bufferBytes = BgmSettings.getStreamBufferBytes();
+            mStreamBufferBytes = bufferBytes > 0 ?
+                    Math.max(bufferBytes, StreamBuffer.CHUNK_BYTES * 2) : StreamBuffer.DEFAULT_CAPACITY;
+        }
+
+        @Override
+        public PlayerEngine create() {
+            return new MediaPlayerEngine(mAssets, mIndexer, mStreamBufferBytes);
+        }
+    }
+
+    /**
+     * Listener class that listens for playback events
+     */
+    private class PlaybackListener implements MediaPlayer.OnPreparedListener, MediaPlayer.OnCompletionListener,
+            MediaPlayer.OnErrorListener, MediaPlayer.OnBufferingUpdateListener, MediaPlayer.OnSeekCompleteListener,
+            MediaPlayer.OnInfoListener {
+        @Override
+        public void onBufferingUpdate(MediaPlayer mp, int percent) {
+            /*
+            MediaPlayer streams by itself before API 23, and tells how much of the stream it buffered
+             */
+            final Callback callback = mCallback;
+            if (callback != null && mStream == null) {
+                callback.onBufferingUpdate(MediaPlayerEngine.this, percent);
+            }
+        }
+
+        @Override
+        public void onCompletion(MediaPlayer mp) {
+            Log.d(TAG, "onCompletion called");
+            mCompleted = true;
+            final Callback callback = mCallback;
+            if (callback != null) {
+                callback.onCompletion(MediaPlayerEngine.this);
+            }
+        }
+
+        @Override
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.d(TAG, "onError called");
+            final Callback callback = mCallback;
+            return callback != null && callback.onError(MediaPlayerEngine.this, what, extra);
+        }
+
+        @Override
+        public boolean onInfo(MediaPlayer mp, int what, int extra) {
+            Log.d(TAG, "onInfo called");
+            return false;
+        }
+
+        @Override
+        public void onPrepared(MediaPlayer mp) {
+            synchronized (MediaPlayerEngine.this) {
+                if (mSeekPreparing) {
+                    mSeekPreparing = false;
+                    mPrepared = true;
+                    if (mSeekPlaying) {
+                        mp.start();
+                    }
+                    return;
+                }
+            }
+            if (!mAwaitingPrepared) {
+                return;
+            }
+            mAwaitingPrepared = false;
+            mPrepared = true;
+            final int pendingSeekMillis = mPendingSeekMillis;
+            if (pendingSeekMillis >= 0) {
+                mPendingSeekMillis = -1;
+                mp.seekTo(pendingSeekMillis);
+            }
+            final Callback callback = mCallback;
+            if (callback != null) {
+                callback.onPrepared(MediaPlayerEngine.this);
+            }
+        }
+
+        @Override
+        public void onSeekComplete(MediaPlayer mp) {
+            Log.d(TAG, "onSeekComplete called");
+        }
+    }
+
+    /**
+     * Listener that reports the StreamBuffer of this engine to the callback
+     */
+    private class StreamListener implements StreamBuffer.Listener {
+        @Override
+        public void onFill(int percent) {
+            final Callback callback = mCallback;
+            if (callback != null) {
+                callback.onBufferingUpdate(MediaPlayerEngine.this, percent);
+            }
+        }
+
+        @Override
+        public void onUnderrun(long stallNanos) {
+            final Callback callback = mCallback;
+            if (callback != null) {
+                callback.onUnderrun(MediaPlayerEngine.this, stallNanos);
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Statistics of memory BgmService gave back when Android asked it to trim, per tier,
+ * and of what it cost to get it back: a dropped music prepared again, or a dropped effect decoded again.
+ * Readable from any thread.
+ */
+public final class MemoryTrimStats {
+
+    /**
+     * How much is released. Each tier releases what the ones below it do.
+     */
+    public enum Tier {
+        /**
+         * Preloaded players are released, and the cache of decoded music is trimmed to half its budget
+         */
+        LIGHT,
+        /**
+         * Decoded music is evicted except music channels play
+         */
+        MODERATE,
+        /**
+         * Sound effects are unloaded too, and loaded again when they are played
+         */
+        CRITICAL,
+    }
+
+    private final long[] mTrimCount = new long[Tier.values().length];
+    private final long[] mFreedBytes = new long[Tier.values().length];
+    private final long[] mReleasedPlayerCount = new long[Tier.values().length];
+    private final long[] mRewarmCount = new long[Tier.values().length];
+    private final long[] mRewarmNanos = new long[Tier.values().length];
+
+    /**
+     * Tier that dropped each music or effect not acquired again yet, by file name
+     */
+    private final Map<String, Tier> mDropped = new HashMap<>();
+
+    MemoryTrimStats() {}
+
+    /**
+     * Records a request to trim
+     * @param tier tier of the request
+     */
+    synchronized void recordTrim(final Tier tier) {
+        mTrimCount[tier.ordinal()]++;
+    }
+
+    /**
+     * Records decoded buffers released
+     * @param tier tier that released them
+     * @param bytes bytes released
+     * @param fileNames file names of the buffers
+     */
+    synchronized void recordFreed(final Tier tier, final long bytes, final Collection<String> fileNames) {
+        mFreedBytes[tier.ordinal()] += bytes;
+        for (String fileName : fileNames) {
+            mDropped.put(fileName, tier);
+        }
+    }
+
+    /**
+     * Records a prepared player released
+     * @param tier tier that released it
+     * @param fileName music the player had
+     */
+    synchronized void recordReleasedPlayer(final Tier tier, final String fileName) {
+        mReleasedPlayerCount[tier.ordinal()]++;
+        mDropped.put(fileName, tier);
+    }
+
+    /**
+     * Records music prepared or an effect decoded. It counts as re-warming if a trim dropped it.
+     * @param fileName file name
+     * @param nanos time it took
+     */
+    synchronized void recordAcquired(final String fileName, final long nanos) {
+        final Tier tier = mDropped.remove(fileName);
+        if (tier != null) {
+            mRewarmCount[tier.ordinal()]++;
+            mRewarmNanos[tier.ordinal()] += nanos;
+        }
+    }
+
+    /**
+     * @return number of requests to trim at a tier
+     */
+    public synchronized long getTrimCount(final Tier tier) {
+        return mTrimCount[tier.ordinal()];
+    }
+
+    /**
+     * @return bytes of decoded music and effects released at a tier
+     */
+    public synchronized long getFreedBytes(final Tier tier) {
+        return mFreedBytes[tier.ordinal()];
+    }
+
+    /**
+     * @return number of preloaded players released at a tier
+     */
+    public synchronized long getReleasedPlayerCount(final Tier tier) {
+        return mReleasedPlayerCount[tier.ordinal()];
+    }
+
+    /**
+     * @return number of music and effects dropped at a tier and acquired again
+     */
+    public synchronized long getRewarmCount(final Tier tier) {
+        return mRewarmCount[tier.ordinal()];
+    }
+
+    /**
+     * @return total time preparing or decoding again took for what was dropped at a tier, in nanoseconds
+     */
+    public synchronized long getRewarmNanos(final Tier tier) {
+        return mRewarmNanos[tier.ordinal()];
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (Tier tier : Tier.values()) {
+            final int i = tier.ordinal();
+            builder.append(tier).append(": trims=").append(mTrimCount[i])
+                    .append(" freed=").append(mFreedBytes[i] / 1024).append("KB")
+                    .append(" players=").append(mReleasedPlayerCount[i])
+                    .append(" rewarms=").append(mRewarmCount[i])
+                    .append(" rewarm=").append(mRewarmNanos[i] / 1000000).append("ms");
+            if (i < Tier.values().length - 1) {
+                builder.append(", ");
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,330 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Index of the frames of an MP3 file, built by scanning frame headers once.
+ * Every frame of a file has the same number of samples, so the frame at a position
+ * is found by arithmetic, and its byte offset by one array lookup.
+ */
+final class Mp3FrameIndex {
+
+    /**
+     * Bitrates in kbps by [MPEG-1 ? 0 : 1][layer - 1][index]
+     */
+    private static final int[][][] BITRATES = {
+            {
+                    {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+                    {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            },
+            {
+                    {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+                    {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+            },
+    };
+
+    /**
+     * Sample rates of MPEG-1. MPEG-2 halves them, and MPEG-2.5 quarters them.
+     */
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000};
+
+    /**
+     * Byte offset of each frame from the start of the scanned data
+     */
+    private final int[] mOffsets;
+
+    /**
+     * Number of frames
+     */
+    private final int mFrameCount;
+
+    /**
+     * Byte offset where the last frame ends
+     */
+    private final int mEndOffset;
+
+    /**
+     * Sample rate in Hz
+     */
+    private final int mSampleRate;
+
+    /**
+     * Samples per channel in each frame
+     */
+    private final int mSamplesPerFrame;
+
+    /**
+     * Constructor
+     */
+    private Mp3FrameIndex(final int[] offsets, final int frameCount, final int endOffset,
+                          final int sampleRate, final int samplesPerFrame) {
+        mOffsets = offsets;
+        mFrameCount = frameCount;
+        mEndOffset = endOffset;
+        mSampleRate = sampleRate;
+        mSamplesPerFrame = samplesPerFrame;
+    }
+
+    /**
+     * Scans frame headers from the position to the limit of data.
+     * A leading ID3v2 tag and a Xing, Info or VBRI header frame are skipped, since they hold no audio.
+     * @param source MP3 file's bytes
+     * @return index of the frames
+     * @throws IOException if data contains no MP3 frame
+     */
+    static Mp3FrameIndex scan(final ByteBuffer source) throws IOException {
+        /*
+        duplicate() gives a big-endian view, as headers are stored
+         */
+        final ByteBuffer data = source.duplicate();
+        final int base = data.position();
+        final int limit = data.limit();
+
+        int offset = base + id3v2Size(data, base);
+        int first = -1;
+        while (offset + 4 <= limit) {
+            final int length = frameLength(data.getInt(offset));
+            /*
+            a sync word can appear in other data, so the next header has to follow
+             */
+            if (length > 0 && (offset + length + 4 > limit ||
+                    sameStream(data.getInt(offset), data.getInt(offset + length)))) {
+                first = offset;
+                break;
+            }
+            offset++;
+        }
+        if (first < 0) {
+            throw new IOException("no mp3 frame");
+        }
+
+        final int firstHeader = data.getInt(first);
+        if (isInfoFrame(data, first, firstHeader)) {
+            first += frameLength(firstHeader);
+        }
+
+        int[] offsets = new int[Math.max(16, (limit - first) / 417 + 1)];
+        int count = 0;
+        offset = first;
+        while (offset + 4 <= limit) {
+            final int header = data.getInt(offset);
+            final int length = sameStream(firstHeader, header) ? frameLength(header) : 0;
+            if (length <= 0) {
+                /*
+                resynchronizes after junk between frames
+                 */
+                offset++;
+                continue;
+            }
+            if (offset + length > limit) {
+                break;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset - base;
+            offset += length;
+        }
+
+        if (count == 0) {
+            throw new IOException("no mp3 frame");
+        }
+        final int lastOffset = offsets[count - 1] + base;
+        return new Mp3FrameIndex(Arrays.copyOf(offsets, count), count,
+                lastOffset + frameLength(data.getInt(lastOffset)) - base,
+                sampleRate(firstHeader), samplesPerFrame(firstHeader));
+    }
+
+    /**
+     * Gets the size of an ID3v2 tag
+     * @param data MP3 file's bytes
+     * @param offset offset of the tag
+     * @return size of the tag, or 0 if there is none
+     */
+    private static int id3v2Size(final ByteBuffer data, final int offset) {
+        if (offset + 10 > data.limit() || data.get(offset) != 'I' || data.get(offset + 1) != 'D' ||
+                data.get(offset + 2) != '3') {
+            return 0;
+        }
+        /*
+        the size is stored as four 7-bit bytes, and excludes the header and the footer
+         */
+        final int size = (data.get(offset + 6) & 0x7f) << 21 | (data.get(offset + 7) & 0x7f) << 14 |
+                (data.get(offset + 8) & 0x7f) << 7 | (data.get(offset + 9) & 0x7f);
+        final boolean footer = (data.get(offset + 5) & 0x10) != 0;
+        return 10 + size + (footer ? 10 : 0);
+    }
+
+    /**
+     * Checks if a frame is a Xing, Info or VBRI header, which encoders put before the audio
+     * @param data MP3 file's bytes
+     * @param offset offset of the frame
+     * @param header header of the frame
+     * @return true if the frame is a header frame
+     */
+    private static boolean isInfoFrame(final ByteBuffer data, final int offset, final int header) {
+        final boolean mpeg1 = version(header) == 3;
+        final boolean mono = (header >>> 6 & 0x3) == 3;
+        final int sideInfoSize = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+        return hasTag(data, offset + 4 + sideInfoSize, "Xing") ||
+                hasTag(data, offset + 4 + sideInfoSize, "Info") ||
+                hasTag(data, offset + 4 + 32, "VBRI");
+    }
+
+    /**
+     * Checks if data has a tag at an offset
+     */
+    private static boolean hasTag(final ByteBuffer data, final int offset, final String tag) {
+        if (offset + tag.length() > data.limit()) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (data.get(offset + i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if two headers belong to the same stream: same version, layer and sample rate
+     */
+    private static boolean sameStream(final int a, final int b) {
+        return (a & 0xfffe0c00) == (b & 0xfffe0c00);
+    }
+
+    /**
+     * @return version bits: 0 for MPEG-2.5, 2 for MPEG-2, 3 for MPEG-1
+     */
+    private static int version(final int header) {
+        return header >>> 19 & 0x3;
+    }
+
+    /**
+     * @return layer from 1 to 3, or 0 if reserved
+     */
+    private static int layer(final int header) {
+        final int bits = header >>> 17 & 0x3;
+        return bits == 0 ? 0 : 4 - bits;
+    }
+
+    /**
+     * @return sample rate in Hz
+     */
+    private static int sampleRate(final int header) {
+        final int rate = SAMPLE_RATES[header >>> 10 & 0x3];
+        switch (version(header)) {
+            case 3:
+                return rate;
+            case 2:
+                return rate / 2;
+            default:
+                return rate / 4;
+        }
+    }
+
+    /**
+     * @return samples per channel in a frame
+     */
+    private static int samplesPerFrame(final int header) {
+        switch (layer(header)) {
+            case 1:
+                return 384;
+            case 2:
+                return 1152;
+            default:
+                return version(header) == 3 ? 1152 : 576;
+        }
+    }
+
+    /**
+     * Parses a frame header
+     * @param header four bytes at a frame's start
+     * @return length of the frame in bytes, or 0 if the bytes are not a valid header
+     */
+    private static int frameLength(final int header) {
+        if ((header & 0xffe00000) != 0xffe00000) {
+            return 0;
+        }
+        final int version = version(header);
+        final int layer = layer(header);
+        final int bitrateIndex = header >>> 12 & 0xf;
+        final int sampleRateIndex = header >>> 10 & 0x3;
+        if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) {
+            return 0;
+        }
+
+        final int bitrate = BITRATES[version == 3 ? 0 : 1][layer - 1][bitrateIndex] * 1000;
+        final int sampleRate = sampleRate(header);
+        final int padding = header >>> 9 & 0x1;
+        if (layer == 1) {
+            return (12 * bitrate / sampleRate + padding) * 4;
+        }
+        return samplesPerFrame(header) / 8 * bitrate / sampleRate + padding;
+    }
+
+    /**
+     * @return number of frames
+     */
+    int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return sample rate in Hz
+     */
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return samples per channel in each frame
+     */
+    int getSamplesPerFrame() {
+        return mSamplesPerFrame;
+    }
+
+    /**
+     * @return duration in milliseconds
+     */
+    long getDurationMillis() {
+        return (long) mFrameCount * mSamplesPerFrame * 1000 / mSampleRate;
+    }
+
+    /**
+     * Finds the frame that contains a position
+     * @param positionMillis position in milliseconds
+     * @return index of the frame, clamped to the frames of the file
+     */
+    int frameAt(final long positionMillis) {
+        final long frame = positionMillis * mSampleRate / (1000L * mSamplesPerFrame);
+        return (int) Math.max(0, Math.min(mFrameCount - 1, frame));
+    }
+
+    /**
+     * @param frame index of a frame
+     * @return byte offset of the frame from the start of the scanned data
+     */
+    int getFrameOffset(final int frame) {
+        return mOffsets[frame];
+    }
+
+    /**
+     * @param frame index of a frame
+     * @return position where the frame starts in milliseconds
+     */
+    long getFrameTimeMillis(final int frame) {
+        return (long) frame * mSamplesPerFrame * 1000 / mSampleRate;
+    }
+
+    /**
+     * @return byte offset where the last frame ends
+     */
+    int getEndOffset() {
+        return mEndOffset;
+    }
+}
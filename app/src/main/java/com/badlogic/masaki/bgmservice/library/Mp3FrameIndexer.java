@@ -0,0 +1,127 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Builds Mp3FrameIndex of music files in assets and keeps them,
+ * so that each file is scanned only once.
+ * Files are scanned on a thread of their own, so that the scheduler's thread never maps or scans a file.
+ */
+final class Mp3FrameIndexer {
+    private static final String TAG = Mp3FrameIndexer.class.getSimpleName();
+
+    /**
+     * Thread that scans music files for every indexer
+     */
+    private static final ExecutorService sScanExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Mp3FrameIndexer-scanner");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Assets music files are read from
+     */
+    private final AssetManager mAssets;
+
+    /**
+     * Indexes by music file's name
+     */
+    private final Map<String, Mp3FrameIndex> mIndexes = new HashMap<>();
+
+    /**
+     * Files scanned or being scanned, including the ones that failed, so that none is scanned twice
+     */
+    private final Set<String> mRequested = new HashSet<>();
+
+    /**
+     * Constructor
+     * @param assets assets music files are read from
+     */
+    Mp3FrameIndexer(final AssetManager assets) {
+        mAssets = assets;
+    }
+
+    /**
+     * Checks if a music file can be indexed
+     * @param fileName music file's name
+     * @return true if the file is MP3 in assets
+     */
+    static boolean isIndexable(final String fileName) {
+        return fileName != null && fileName.toLowerCase(Locale.US).endsWith(".mp3") &&
+                !StreamSource.isStream(fileName);
+    }
+
+    /**
+     * Starts scanning a music file in background unless it is indexed or being indexed already
+     * @param fileName music file's name, which has to be indexable
+     */
+    synchronized void prefetch(final String fileName) {
+        if (!mRequested.add(fileName)) {
+            return;
+        }
+        sScanExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Mp3FrameIndex index = scan(fileName);
+                    synchronized (Mp3FrameIndexer.this) {
+                        mIndexes.put(fileName, index);
+                    }
+                } catch (IOException e) {
+                    Log.d(TAG, "failed to index " + fileName + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets the index of a music file without waiting for it
+     * @param fileName music file's name
+     * @return index of the file, or null if it is not scanned yet or cannot be indexed
+     */
+    synchronized Mp3FrameIndex peek(final String fileName) {
+        return mIndexes.get(fileName);
+    }
+
+    /**
+     * Maps the region of a music file in the APK and scans it
+     * @param fileName music file's name
+     * @return index of the file
+     * @throws IOException if the file cannot be read or has no MP3 frame
+     */
+    private Mp3FrameIndex scan(final String fileName) throws IOException {
+        final AssetFileDescriptor afd = mAssets.openFd(fileName);
+        /*
+        the stream owns the descriptor, and closes it with itself
+         */
+        final FileInputStream input = afd.createInputStream();
+        try {
+            final FileChannel channel = input.getChannel();
+            final MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getLength());
+            return Mp3FrameIndex.scan(data);
+        } finally {
+            input.close();
+        }
+    }
+}
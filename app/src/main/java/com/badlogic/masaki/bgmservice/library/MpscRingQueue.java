@@ -0,0 +1,228 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded queue that many threads offer elements to and one thread takes them from.
+ * Slots are allocated up front, so offering and taking allocate nothing.
+ * The consumer polls a few times before it parks, and a parked consumer is woken up by a single unpark per wait,
+ * however many elements are offered meanwhile.
+ * @param <E> type of elements
+ */
+final class MpscRingQueue<E> {
+
+    /**
+     * Number of times the consumer yields and polls again before it parks.
+     * Elements arrive in bursts, and waking a parked thread takes far longer than a few yields,
+     * but on a single CPU yielding only delays the producer.
+     */
+    static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 64 : 0;
+
+    /**
+     * Mask to turn a sequence into a slot index
+     */
+    private final int mMask;
+
+    /**
+     * Slots that hold elements
+     */
+    private final Object[] mElements;
+
+    /**
+     * Sequence of each slot.
+     * A slot is writable for sequence s when it holds s, and readable when it holds s + 1.
+     */
+    private final AtomicLongArray mSequences;
+
+    /**
+     * Next sequence producers write to
+     */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /**
+     * Next sequence the consumer reads from. Only the consumer touches it.
+     */
+    private long mHead;
+
+    /**
+     * Consumer thread parked or about to park, or null if it is not waiting or a producer already woke it up
+     */
+    private final AtomicReference<Thread> mWaiter = new AtomicReference<>();
+
+    /**
+     * Constructor
+     * @param capacity max number of elements, rounded up to a power of two
+     */
+    MpscRingQueue(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        mMask = Math.max(size, 1) - 1;
+        mElements = new Object[mMask + 1];
+        mSequences = new AtomicLongArray(mMask + 1);
+        for (int i = 0; i <= mMask; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds an element. Can be called from any thread.
+     * @param element element to add
+     * @return true if added, false if the queue is full
+     */
+    boolean offer(final E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+
+        long tail;
+        int index;
+        while (true) {
+            tail = mTail.get();
+            index = (int) tail & mMask;
+            final long diff = mSequences.get(index) - tail;
+            if (diff == 0) {
+                if (mTail.compareAndSet(tail, tail + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return false;
+            }
+        }
+
+        mElements[index] = element;
+        /*
+        volatile write publishes the element, and orders it before reading mWaiter
+         */
+        mSequences.set(index, tail + 1);
+
+        if (mWaiter.get() != null) {
+            /*
+            only the producer that takes the waiter unparks it
+             */
+            final Thread waiter = mWaiter.getAndSet(null);
+            if (waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the head element. Must be called only from the consumer thread.
+     * @return head element, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        final long head = mHead;
+        final int index = (int) head & mMask;
+        if (mSequences.get(index) != head + 1) {
+            return null;
+        }
+
+        final E element = (E) mElements[index];
+        mElements[index] = null;
+        mSequences.set(index, head + mMask + 1);
+        mHead = head + 1;
+        return element;
+    }
+
+    /**
+     * Removes the head element, waiting until one is offered.
+     * Must be called only from the consumer thread.
+     * @return head element
+     * @throws InterruptedException if the consumer thread is interrupted while waiting
+     */
+    E take() throws InterruptedException {
+        final E element = poll();
+        return element != null ? element : await(false, 0);
+    }
+
+    /**
+     * Removes the head element, waiting until one is offered or the timeout elapses.
+     * Must be called only from the consumer thread.
+     * @param timeoutNanos max time to wait
+     * @return head element, or null if the timeout elapsed
+     * @throws InterruptedException if the consumer thread is interrupted while waiting
+     */
+    E poll(final long timeoutNanos) throws InterruptedException {
+        final E element = poll();
+        if (element != null || timeoutNanos <= 0) {
+            return element;
+        }
+        return await(true, System.nanoTime() + timeoutNanos);
+    }
+
+    /**
+     * Polls SPINS times, yielding in between, and then parks until an element is offered
+     * @param timed true if the wait ends at the deadline
+     * @param deadline time the wait ends, if timed
+     * @return head element, or null if the deadline passed
+     */
+    private E await(final boolean timed, final long deadline) throws InterruptedException {
+        E element;
+        for (int i = 0; i < SPINS; i++) {
+            Thread.yield();
+            if ((element = poll()) != null) {
+                return element;
+            }
+            if (timed && deadline - System.nanoTime() <= 0) {
+                return null;
+            }
+        }
+
+        final Thread current = Thread.currentThread();
+        try {
+            while (true) {
+                /*
+                published before polling again, so that an element offered in between either is polled or unparks
+                 */
+                mWaiter.set(current);
+                if ((element = poll()) != null) {
+                    return element;
+                }
+                if (timed) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            mWaiter.set(null);
+        }
+    }
+
+    /**
+     * Checks if the queue is empty. The result is only a hint on threads other than the consumer.
+     * @return true if the queue is empty
+     */
+    boolean isEmpty() {
+        return mSequences.get((int) mHead & mMask) != mHead + 1;
+    }
+
+    /**
+     * Counts elements waiting, including ones being offered. Must be called only from the consumer thread.
+     * @return number of elements
+     */
+    int size() {
+        return (int) Math.min(mTail.get() - mHead, mMask + 1);
+    }
+
+    /**
+     * @return max number of elements
+     */
+    int capacity() {
+        return mMask + 1;
+    }
+}
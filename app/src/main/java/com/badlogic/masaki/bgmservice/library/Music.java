@@ -4,11 +4,13 @@ package com.badlogic.masaki.bgmservice.library;
  * Created by shojimasaki on 2016/05/21.
  */
 public interface Music {
-    void start(String fileName);
-    void pause();
-    void resume();
-    void stop();
-    void release();
+    BgmFuture start(String fileName);
+    BgmFuture pause();
+    BgmFuture resume();
+    BgmFuture stop();
+    BgmFuture release();
+    void setVolume(float volume);
+    void seekTo(int positionMillis);
     boolean isPlaying();
 }
 
@@ -0,0 +1,105 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Decoded music: interleaved 16-bit PCM held in a direct ByteBuffer,
+ * so that it lives outside the Java heap
+ */
+public final class PcmBuffer {
+
+    /**
+     * Bytes of a sample
+     */
+    static final int BYTES_PER_SAMPLE = 2;
+
+    /**
+     * Decoded samples in native byte order
+     */
+    private final ByteBuffer mData;
+
+    /**
+     * Sample rate in Hz
+     */
+    private final int mSampleRate;
+
+    /**
+     * Number of channels
+     */
+    private final int mChannelCount;
+
+    /**
+     * Constructor
+     * @param data decoded samples from position 0 to the limit, in native byte order
+     * @param sampleRate sample rate in Hz
+     * @param channelCount number of channels
+     */
+    PcmBuffer(final ByteBuffer data, final int sampleRate, final int channelCount) {
+        if (sampleRate <= 0 || channelCount <= 0) {
+            throw new IllegalArgumentException("invalid format: " + sampleRate + "Hz, " + channelCount + "ch");
+        }
+        mData = data;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+    }
+
+    /**
+     * Allocates a buffer of silent frames
+     * @param frameCount number of frames
+     * @param sampleRate sample rate in Hz
+     * @param channelCount number of channels
+     * @return buffer
+     */
+    static PcmBuffer allocate(final int frameCount, final int sampleRate, final int channelCount) {
+        ByteBuffer data = ByteBuffer.allocateDirect(frameCount * channelCount * BYTES_PER_SAMPLE)
+                .order(ByteOrder.nativeOrder());
+        return new PcmBuffer(data, sampleRate, channelCount);
+    }
+
+    /**
+     * Creates a view of the samples. Each caller gets its own position and limit.
+     * @return samples from the first frame to the last one
+     */
+    ShortBuffer samples() {
+        ByteBuffer duplicate = mData.duplicate().order(ByteOrder.nativeOrder());
+        duplicate.position(0);
+        return duplicate.asShortBuffer();
+    }
+
+    /**
+     * @return sample rate in Hz
+     */
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return number of channels
+     */
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * @return number of frames
+     */
+    public int getFrameCount() {
+        return mData.limit() / (mChannelCount * BYTES_PER_SAMPLE);
+    }
+
+    /**
+     * @return size of the samples in bytes
+     */
+    public int getSizeBytes() {
+        return mData.limit();
+    }
+
+    /**
+     * @return duration in milliseconds
+     */
+    public long getDurationMillis() {
+        return getFrameCount() * 1000L / mSampleRate;
+    }
+}
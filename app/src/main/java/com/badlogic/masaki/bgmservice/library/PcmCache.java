@@ -0,0 +1,173 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded music that evicts the least recently used entries
+ * when the total size exceeds its budget.
+ * Buffers are direct, so the budget bounds native memory rather than the Java heap.
+ */
+public final class PcmCache {
+
+    /**
+     * Max total size of cached buffers in bytes
+     */
+    private final long mBudgetBytes;
+
+    /**
+     * Cached buffers in access order, least recently used first
+     */
+    private final LinkedHashMap<String, PcmBuffer> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Total size of cached buffers in bytes
+     */
+    private long mSizeBytes;
+
+    /**
+     * Counters
+     */
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private long mEvictedBytes;
+
+    /**
+     * Constructor
+     * @param budgetBytes max total size of cached buffers in bytes
+     */
+    public PcmCache(final long budgetBytes) {
+        if (budgetBytes <= 0) {
+            throw new IllegalArgumentException("budget must be positive");
+        }
+        mBudgetBytes = budgetBytes;
+    }
+
+    /**
+     * Gets a cached buffer and marks it as the most recently used
+     * @param key music file's name
+     * @return buffer, or null if not cached
+     */
+    public synchronized PcmBuffer get(final String key) {
+        final PcmBuffer buffer = mEntries.get(key);
+        if (buffer != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return buffer;
+    }
+
+    /**
+     * Caches a buffer, evicting least recently used ones to stay within the budget.
+     * A buffer larger than the whole budget is not cached.
+     * @param key music file's name
+     * @param buffer decoded music
+     * @return true if cached
+     */
+    public synchronized boolean put(final String key, final PcmBuffer buffer) {
+        if (buffer.getSizeBytes() > mBudgetBytes) {
+            return false;
+        }
+
+        final PcmBuffer previous = mEntries.put(key, buffer);
+        if (previous != null) {
+            mSizeBytes -= previous.getSizeBytes();
+        }
+        mSizeBytes += buffer.getSizeBytes();
+        trimToSize(mBudgetBytes);
+        return true;
+    }
+
+    /**
+     * Evicts least recently used buffers until the total size is at most the given size
+     * @param maxBytes size to trim to
+     * @return bytes evicted
+     */
+    public synchronized long trimToSize(final long maxBytes) {
+        return trimToSize(maxBytes, Collections.<String>emptySet(), null);
+    }
+
+    /**
+     * Evicts least recently used buffers, except kept ones, until the total size is at most the given size
+     * or only kept ones are left
+     * @param maxBytes size to trim to
+     * @param keep keys of buffers not to evict
+     * @param evictedKeys collects keys of evicted buffers, or null
+     * @return bytes evicted
+     */
+    synchronized long trimToSize(final long maxBytes, final Collection<String> keep,
+                                 final Collection<String> evictedKeys) {
+        long evicted = 0;
+        final Iterator<Map.Entry<String, PcmBuffer>> iterator = mEntries.entrySet().iterator();
+        while (mSizeBytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, PcmBuffer> entry = iterator.next();
+            if (keep.contains(entry.getKey())) {
+                continue;
+            }
+            final int size = entry.getValue().getSizeBytes();
+            iterator.remove();
+            mSizeBytes -= size;
+            evicted += size;
+            mEvictionCount++;
+            if (evictedKeys != null) {
+                evictedKeys.add(entry.getKey());
+            }
+        }
+        mEvictedBytes += evicted;
+        return evicted;
+    }
+
+    /**
+     * @return max total size of cached buffers in bytes
+     */
+    public long getBudgetBytes() {
+        return mBudgetBytes;
+    }
+
+    /**
+     * @return total size of cached buffers in bytes
+     */
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    /**
+     * @return number of cached buffers
+     */
+    public synchronized int getEntryCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return number of lookups that found a buffer
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return number of lookups that found no buffer
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return number of evicted buffers
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return total bytes of evicted buffers
+     */
+    public synchronized long getEvictedBytes() {
+        return mEvictedBytes;
+    }
+}
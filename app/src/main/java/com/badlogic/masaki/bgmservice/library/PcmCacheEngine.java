@@ -0,0 +1,506 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.media.AudioTrack;
+import android.os.Process;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * PlayerEngine that decodes a music file once, keeps the PCM in a PcmCache,
+ * and streams it to an AudioTrack.
+ * Starting music that is already cached costs no decoding.
+ */
+public class PcmCacheEngine implements PlayerEngine {
+
+    /**
+     * Frames written to AudioTrack at once
+     */
+    private static final int CHUNK_FRAMES = 1024;
+
+    /**
+     * Error code passed to onError when decoding fails
+     */
+    static final int ERROR_DECODE = 1;
+
+    /**
+     * Thread that decodes music files for every engine
+     */
+    private static final ExecutorService sDecodeExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PcmCacheEngine-decoder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Decoder for cache misses
+     */
+    private final PcmDecoder mDecoder;
+
+    /**
+     * Cache of decoded music shared by engines
+     */
+    private final PcmCache mCache;
+
+    /**
+     * Lock for the fields below, which the render thread also reads
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * Current state
+     */
+    private BgmWorker.PlaybackState mState = BgmWorker.PlaybackState.IDLED;
+
+    /**
+     * Generation incremented whenever a pending prepare is started or cancelled
+     */
+    private int mGeneration;
+
+    /**
+     * Music file set as data source
+     */
+    private String mFileName;
+
+    /**
+     * Decoded music
+     */
+    private PcmBuffer mBuffer;
+
+    /**
+     * Reader of mBuffer, which wraps at the loop points
+     */
+    private LoopingPcmReader mReader;
+
+    /**
+     * Region that loops, or null to loop the whole music
+     */
+    private LoopPoints mLoopPoints;
+
+    /**
+     * Position to start from once prepared in milliseconds, or -1
+     */
+    private int mPendingSeekMillis = -1;
+
+    /**
+     * Whether music loops
+     */
+    private boolean mLooping;
+
+    /**
+     * Track music is written to
+     */
+    private final PcmTrack mTrack = new PcmTrack(CHUNK_FRAMES);
+
+    /**
+     * Chunk the render thread fills
+     */
+    private short[] mChunk;
+
+    /**
+     * Thread that writes music to mTrack, or null if not started yet
+     */
+    private Thread mRenderThread;
+
+    /**
+     * Callback that listens for playback events
+     */
+    private volatile Callback mCallback;
+
+    /**
+     * Constructor
+     * @param decoder decoder for cache misses
+     * @param cache cache of decoded music
+     */
+    public PcmCacheEngine(final PcmDecoder decoder, final PcmCache cache) {
+        mDecoder = decoder;
+        mCache = cache;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void setDataSource(String fileName) throws IOException {
+        synchronized (mLock) {
+            checkState("setDataSource", mState == BgmWorker.PlaybackState.IDLED);
+            if (fileName == null) {
+                throw new IOException("no such file");
+            }
+            mFileName = fileName;
+            mState = BgmWorker.PlaybackState.INITIALIZED;
+        }
+    }
+
+    @Override
+    public void setLooping(boolean looping) {
+        synchronized (mLock) {
+            mLooping = looping;
+            if (mReader != null) {
+                mReader.setLooping(looping);
+            }
+        }
+    }
+
+    @Override
+    public void setLoopPoints(LoopPoints points) {
+        synchronized (mLock) {
+            mLoopPoints = points;
+            if (mReader != null) {
+                mReader.setLoopPoints(points);
+            }
+        }
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        synchronized (mLock) {
+            mTrack.setVolume(volume);
+        }
+    }
+
+    @Override
+    public void prepareAsync() {
+        final String fileName;
+        final int generation;
+        synchronized (mLock) {
+            checkState("prepareAsync", mState == BgmWorker.PlaybackState.INITIALIZED ||
+                    mState == BgmWorker.PlaybackState.STOPPED);
+            mState = BgmWorker.PlaybackState.PREPARING;
+            fileName = mFileName;
+            generation = ++mGeneration;
+        }
+
+        sDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prepare(fileName, generation);
+            }
+        });
+    }
+
+    /**
+     * Gets decoded music from the cache, or decodes it. Called on the decoder thread.
+     * @param fileName music file's name
+     * @param generation generation of the prepare call
+     */
+    private void prepare(final String fileName, final int generation) {
+        PcmBuffer buffer = mCache.get(fileName);
+        IOException error = null;
+        if (buffer == null) {
+            try {
+                buffer = mDecoder.decode(fileName);
+                mCache.put(fileName, buffer);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        synchronized (mLock) {
+            /*
+            ignores results of prepare calls cancelled by reset() or release()
+             */
+            if (generation != mGeneration || mState != BgmWorker.PlaybackState.PREPARING) {
+                return;
+            }
+            if (error != null) {
+                mState = BgmWorker.PlaybackState.ERROR;
+            } else {
+                setBuffer(buffer);
+                mState = BgmWorker.PlaybackState.PREPARED;
+            }
+        }
+
+        final Callback callback = mCallback;
+        if (callback == null) {
+            return;
+        }
+        if (error != null) {
+            error.printStackTrace();
+            callback.onError(this, ERROR_DECODE, 0);
+        } else {
+            callback.onPrepared(this);
+        }
+    }
+
+    /**
+     * Sets decoded music and recreates the track if its format changed
+     * @param buffer decoded music
+     */
+    private void setBuffer(final PcmBuffer buffer) {
+        final boolean formatChanged = mBuffer == null ||
+                mBuffer.getSampleRate() != buffer.getSampleRate() ||
+                mBuffer.getChannelCount() != buffer.getChannelCount();
+        mBuffer = buffer;
+        mReader = new LoopingPcmReader(buffer);
+        mReader.setLooping(mLooping);
+        mReader.setLoopPoints(mLoopPoints);
+        if (mPendingSeekMillis >= 0) {
+            mReader.setPosition(toFrames(mPendingSeekMillis));
+            mPendingSeekMillis = -1;
+        }
+
+        if (formatChanged) {
+            mTrack.release();
+            mChunk = new short[CHUNK_FRAMES * buffer.getChannelCount()];
+        }
+    }
+
+    @Override
+    public void start() {
+        synchronized (mLock) {
+            checkState("start", mState == BgmWorker.PlaybackState.PREPARED ||
+                    mState == BgmWorker.PlaybackState.STARTED ||
+                    mState == BgmWorker.PlaybackState.PAUSED ||
+                    mState == BgmWorker.PlaybackState.PLAYBACK_COMPLETED);
+            if (mState == BgmWorker.PlaybackState.PLAYBACK_COMPLETED) {
+                mReader.setPosition(0);
+            }
+            mTrack.open(mBuffer.getSampleRate(), mBuffer.getChannelCount());
+            mTrack.play();
+            mState = BgmWorker.PlaybackState.STARTED;
+
+            if (mRenderThread == null) {
+                mRenderThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        render();
+                    }
+                }, "PcmCacheEngine-render");
+                mRenderThread.start();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void pause() {
+        synchronized (mLock) {
+            checkState("pause", mState == BgmWorker.PlaybackState.STARTED ||
+                    mState == BgmWorker.PlaybackState.PAUSED ||
+                    mState == BgmWorker.PlaybackState.PLAYBACK_COMPLETED);
+            mTrack.pause();
+            mState = BgmWorker.PlaybackState.PAUSED;
+        }
+    }
+
+    @Override
+    public void stop() {
+        synchronized (mLock) {
+            checkState("stop", mState == BgmWorker.PlaybackState.PREPARED ||
+                    mState == BgmWorker.PlaybackState.STARTED ||
+                    mState == BgmWorker.PlaybackState.PAUSED ||
+                    mState == BgmWorker.PlaybackState.STOPPED ||
+                    mState == BgmWorker.PlaybackState.PLAYBACK_COMPLETED);
+            mTrack.flush();
+            if (mReader != null) {
+                mReader.setPosition(0);
+            }
+            mState = BgmWorker.PlaybackState.STOPPED;
+        }
+    }
+
+    @Override
+    public void seekTo(int positionMillis) {
+        synchronized (mLock) {
+            switch (mState) {
+                case INITIALIZED:
+                case STOPPED:
+                    mPendingSeekMillis = positionMillis;
+                    return;
+
+                case PREPARED:
+                case STARTED:
+                case PAUSED:
+                case PLAYBACK_COMPLETED:
+                    break;
+
+                default:
+                    throw new IllegalStateException("seekTo called in state " + mState);
+            }
+
+            mReader.setPosition(toFrames(positionMillis));
+            if (mState == BgmWorker.PlaybackState.PLAYBACK_COMPLETED) {
+                mState = BgmWorker.PlaybackState.PAUSED;
+            }
+            /*
+            drops music already written at the old position
+             */
+            mTrack.flush();
+            if (mState == BgmWorker.PlaybackState.STARTED) {
+                mTrack.play();
+            }
+        }
+    }
+
+    /**
+     * Converts a position into a frame of decoded music. Must be called holding mLock.
+     * @param positionMillis position in milliseconds
+     * @return frame, clamped to the frames of music
+     */
+    private int toFrames(final int positionMillis) {
+        final long frame = (long) positionMillis * mBuffer.getSampleRate() / 1000;
+        return (int) Math.max(0, Math.min(mBuffer.getFrameCount(), frame));
+    }
+
+    @Override
+    public int getCurrentPosition() {
+        synchronized (mLock) {
+            if (mReader == null) {
+                return 0;
+            }
+            return (int) ((long) mReader.getPosition() * 1000 / mBuffer.getSampleRate());
+        }
+    }
+
+    @Override
+    public void reset() {
+        synchronized (mLock) {
+            checkState("reset", mState != BgmWorker.PlaybackState.ENDED);
+            mTrack.flush();
+            mGeneration++;
+            mFileName = null;
+            mBuffer = null;
+            mReader = null;
+            mLoopPoints = null;
+            mPendingSeekMillis = -1;
+            mLooping = false;
+            mState = BgmWorker.PlaybackState.IDLED;
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (mLock) {
+            mGeneration++;
+            mBuffer = null;
+            mReader = null;
+            mState = BgmWorker.PlaybackState.ENDED;
+            mTrack.release();
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public boolean isPlaying() {
+        synchronized (mLock) {
+            checkState("isPlaying", mState != BgmWorker.PlaybackState.ENDED);
+            return mState == BgmWorker.PlaybackState.STARTED;
+        }
+    }
+
+    /**
+     * Throws IllegalStateException if a method is called in an illegal state
+     * @param method name of the called method
+     * @param legal true if the current state is legal
+     */
+    private void checkState(final String method, final boolean legal) {
+        if (!legal) {
+            throw new IllegalStateException(method + " called in state " + mState);
+        }
+    }
+
+    /**
+     * Main loop of the render thread: fills a chunk under mLock and writes it outside of it,
+     * since AudioTrack.write() blocks until the track has room
+     */
+    private void render() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        while (true) {
+            final AudioTrack track;
+            final short[] chunk;
+            final int samples;
+            boolean completed = false;
+            boolean looped;
+
+            synchronized (mLock) {
+                while (mState != BgmWorker.PlaybackState.STARTED && mState != BgmWorker.PlaybackState.ENDED) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mState == BgmWorker.PlaybackState.ENDED) {
+                    mRenderThread = null;
+                    return;
+                }
+
+                track = mTrack.get();
+                chunk = mChunk;
+                final int loopCount = mReader.getLoopCount();
+                samples = fillChunk();
+                looped = mReader.getLoopCount() != loopCount;
+                if (samples == 0) {
+                    mState = BgmWorker.PlaybackState.PLAYBACK_COMPLETED;
+                    completed = true;
+                }
+            }
+
+            if (completed) {
+                final Callback callback = mCallback;
+                if (callback != null) {
+                    callback.onCompletion(this);
+                }
+                continue;
+            }
+            if (looped) {
+                final Callback callback = mCallback;
+                if (callback != null) {
+                    callback.onLoop(this);
+                }
+            }
+
+            mTrack.write(track, chunk, samples);
+        }
+    }
+
+    /**
+     * Copies the next frames into mChunk, wrapping at the loop points if music loops.
+     * Must be called holding mLock.
+     * @return number of samples copied, or 0 if music reached its end
+     */
+    private int fillChunk() {
+        return mReader.read(mChunk, 0, CHUNK_FRAMES) * mBuffer.getChannelCount();
+    }
+
+    /**
+     * Factory that creates PcmCacheEngine sharing one cache
+     */
+    public static class Factory implements PlayerEngine.Factory {
+
+        /**
+         * Decoder for cache misses
+         */
+        private final PcmDecoder mDecoder;
+
+        /**
+         * Cache of decoded music shared by engines
+         */
+        private final PcmCache mCache;
+
+        /**
+         * Constructor
+         * @param decoder decoder for cache misses
+         * @param cache cache of decoded music shared by engines
+         */
+        public Factory(final PcmDecoder decoder, final PcmCache cache) {
+            mDecoder = decoder;
+            mCache = cache;
+        }
+
+        @Override
+        public PlayerEngine create() {
+            return new PcmCacheEngine(mDecoder, mCache);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.io.IOException;
+
+/**
+ * Decoder that turns a music file into PCM
+ */
+public interface PcmDecoder {
+
+    /**
+     * Decodes a whole music file. Called on a background thread.
+     * @param fileName music file's name
+     * @return decoded music
+     * @throws IOException if the file cannot be read or decoded
+     */
+    PcmBuffer decode(String fileName) throws IOException;
+}
@@ -0,0 +1,160 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+/**
+ * AudioTrack that a render thread writes 16-bit PCM to in chunks, while the thread owning it controls and releases it.
+ * Every method but write() must be called holding the owner's lock. write() is called without it,
+ * since AudioTrack.write() blocks until the track has room, and never writes to a track released meanwhile.
+ */
+final class PcmTrack {
+
+    /**
+     * Frames written at once
+     */
+    private final int mChunkFrames;
+
+    /**
+     * Lock held while the render thread writes to mAudioTrack, so that it is not released meanwhile
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * Whether release() is waiting for the render thread, so that write() does not start another write meanwhile
+     */
+    private volatile boolean mReleasing;
+
+    /**
+     * Track, or null if not created yet
+     */
+    private AudioTrack mAudioTrack;
+
+    /**
+     * Volume from 0 to 1
+     */
+    private float mVolume = 1.0f;
+
+    /**
+     * Constructor
+     * @param chunkFrames frames written at once
+     */
+    PcmTrack(final int chunkFrames) {
+        mChunkFrames = chunkFrames;
+    }
+
+    /**
+     * Creates the track for a format unless it is already created for it, releasing a track of another format
+     * @param sampleRate sample rate of music
+     * @param channelCount number of channels of music
+     */
+    void open(final int sampleRate, final int channelCount) {
+        if (mAudioTrack != null &&
+                (mAudioTrack.getSampleRate() != sampleRate || mAudioTrack.getChannelCount() != channelCount)) {
+            release();
+        }
+        if (mAudioTrack == null) {
+            mAudioTrack = createTrack(sampleRate, channelCount);
+            mAudioTrack.setStereoVolume(mVolume, mVolume);
+        }
+    }
+
+    /**
+     * @return track to pass to write(), or null if not created yet
+     */
+    AudioTrack get() {
+        return mAudioTrack;
+    }
+
+    /**
+     * Sets volume, kept for tracks created later
+     * @param volume volume from 0 to 1
+     */
+    void setVolume(final float volume) {
+        mVolume = volume;
+        if (mAudioTrack != null) {
+            mAudioTrack.setStereoVolume(volume, volume);
+        }
+    }
+
+    /**
+     * Plays the track, if created
+     */
+    void play() {
+        if (mAudioTrack != null) {
+            mAudioTrack.play();
+        }
+    }
+
+    /**
+     * Pauses the track, if created
+     */
+    void pause() {
+        if (mAudioTrack != null) {
+            mAudioTrack.pause();
+        }
+    }
+
+    /**
+     * Pauses the track and drops music written to it but not played yet
+     */
+    void flush() {
+        if (mAudioTrack != null) {
+            mAudioTrack.pause();
+            mAudioTrack.flush();
+        }
+    }
+
+    /**
+     * Releases the track once the render thread is not writing to it.
+     * Stopping and flushing the track first makes room in it, so that a write() blocked on it returns
+     * on every API level, rather than waiting forever on a paused track as on older ones.
+     */
+    void release() {
+        if (mAudioTrack == null) {
+            return;
+        }
+        mReleasing = true;
+        mAudioTrack.stop();
+        mAudioTrack.flush();
+        synchronized (mWriteLock) {
+            mAudioTrack.release();
+            mAudioTrack = null;
+        }
+        mReleasing = false;
+    }
+
+    /**
+     * Writes samples to a track got by get(), unless it was released since. Called on the render thread.
+     * @param track track got by get() holding the owner's lock
+     * @param chunk samples
+     * @param samples number of samples to write
+     */
+    void write(final AudioTrack track, final short[] chunk, final int samples) {
+        if (mReleasing) {
+            return;
+        }
+        synchronized (mWriteLock) {
+            if (track != null && track == mAudioTrack && !mReleasing) {
+                track.write(chunk, 0, samples);
+            }
+        }
+    }
+
+    /**
+     * Creates a streaming track with room for two chunks at least
+     * @param sampleRate sample rate of music
+     * @param channelCount number of channels of music
+     * @return track
+     */
+    private AudioTrack createTrack(final int sampleRate, final int channelCount) {
+        final int channelConfig = channelCount == 1 ?
+                AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        final int minBufferSize = AudioTrack.getMinBufferSize(
+                sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        final int chunkBytes = mChunkFrames * channelCount * PcmBuffer.BYTES_PER_SAMPLE;
+        return new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig,
+                AudioFormat.ENCODING_PCM_16BIT, Math.max(minBufferSize, chunkBytes * 2), AudioTrack.MODE_STREAM);
+    }
+}
@@ -0,0 +1,413 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Small binary file with the music a channel plays, its position and its loop points,
+ * so that music resumes where it was after Android killed the process.
+ * Records are kept in memory and written on a thread of its own, at most once per batch delay,
+ * so recording costs the scheduler's thread no I/O.
+ * The file is located when it is first read or written, so creating a journal does no I/O either.
+ */
+final class PlaybackJournal {
+
+    /**
+     * Time records are gathered before they are written
+     */
+    static final long DEFAULT_BATCH_MILLIS = 1000;
+
+    /**
+     * "BGMJ"
+     */
+    private static final int MAGIC = 0x42474d4a;
+
+    private static final int VERSION = 1;
+
+    private static final int FLAG_LOOP_POINTS = 1;
+
+    /**
+     * Max size of the file. A larger file is not a journal, and is not read.
+     */
+    static final int MAX_FILE_BYTES = 4096;
+
+    /**
+     * Record of no music, which deletes the file
+     */
+    private static final Entry NONE = new Entry(null, 0, null);
+
+    /**
+     * Where the file of a journal is, which may take I/O to find out
+     */
+    interface Location {
+        /**
+         * Called once, on the thread that first reads or writes the journal
+         * @return file of the journal
+         */
+        File getFile();
+    }
+
+    /**
+     * Entry of the journal
+     */
+    static final class Entry {
+        private final String mFileName;
+        private final int mPositionMillis;
+        private final LoopPoints mLoopPoints;
+
+        Entry(final String fileName, final int positionMillis, final LoopPoints loopPoints) {
+            mFileName = fileName;
+            mPositionMillis = positionMillis;
+            mLoopPoints = loopPoints;
+        }
+
+        /**
+         * @return music file's name
+         */
+        String getFileName() {
+            return mFileName;
+        }
+
+        /**
+         * @return playback position in milliseconds
+         */
+        int getPositionMillis() {
+            return mPositionMillis;
+        }
+
+        /**
+         * @return loop points of the music, or null if the whole music loops
+         */
+        LoopPoints getLoopPoints() {
+            return mLoopPoints;
+        }
+
+        @Override
+        public String toString() {
+            return mFileName + " at " + mPositionMillis + "ms" + (mLoopPoints == null ? "" : ", loop " + mLoopPoints);
+        }
+    }
+
+    /**
+     * Location of the file
+     */
+    private final Location mLocation;
+
+    /**
+     * File of the journal, or null until it is located. Guarded by this.
+     */
+    private File mFile;
+
+    /**
+     * Time records are gathered before they are written
+     */
+    private final long mBatchMillis;
+
+    /**
+     * Thread that writes the file
+     */
+    private final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "PlaybackJournal-writer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Writes the entry recorded last
+     */
+    private final Runnable mWrite = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    /**
+     * Entry recorded last and not written yet, or null. Guarded by this.
+     */
+    private Entry mPending;
+
+    /**
+     * Whether a write is scheduled. Guarded by this.
+     */
+    private boolean mScheduled;
+
+    /**
+     * Number of times the file was written or deleted. Only the writer thread changes it.
+     */
+    private volatile int mWriteCount;
+
+    /**
+     * Constructor
+     * @param file file of the journal
+     */
+    PlaybackJournal(final File file) {
+        this(file, DEFAULT_BATCH_MILLIS);
+    }
+
+    /**
+     * Constructor
+     * @param location location of the file of the journal
+     */
+    PlaybackJournal(final Location location) {
+        this(location, DEFAULT_BATCH_MILLIS);
+    }
+
+    /**
+     * Constructor
+     * @param file file of the journal
+     * @param batchMillis time records are gathered before they are written
+     */
+    PlaybackJournal(final File file, final long batchMillis) {
+        this(new Location() {
+            @Override
+            public File getFile() {
+                return file;
+            }
+        }, batchMillis);
+    }
+
+    /**
+     * Constructor
+     * @param location location of the file of the journal
+     * @param batchMillis time records are gathered before they are written
+     */
+    PlaybackJournal(final Location location, final long batchMillis) {
+        mLocation = location;
+        mBatchMillis = batchMillis;
+    }
+
+    /**
+     * Gets the file of the journal, locating it on first use
+     * @return file of the journal
+     */
+    private synchronized File getFile() {
+        if (mFile == null) {
+            mFile = mLocation.getFile();
+        }
+        return mFile;
+    }
+
+    /**
+     * Records music and its position. Only the last record of a batch is written.
+     * @param fileName music file's name, or null if no music is set, which clears the journal
+     * @param positionMillis playback position in milliseconds
+     * @param loopPoints loop points of the music, or null
+     */
+    void record(final String fileName, final int positionMillis, final LoopPoints loopPoints) {
+        final Entry entry = fileName == null ? NONE : new Entry(fileName, positionMillis, loopPoints);
+        synchronized (this) {
+            mPending = entry;
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        try {
+            mWriter.schedule(mWrite, mBatchMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            /*
+            closed: the record is dropped
+             */
+        }
+    }
+
+    /**
+     * Reads the journal. Called on a background thread, since it reads the file.
+     * @return entry written last, or null if there is none or the file is broken or larger than MAX_FILE_BYTES
+     */
+    Entry read() {
+        final File file = getFile();
+        if (!file.isFile()) {
+            return null;
+        }
+        final long length = file.length();
+        if (length > MAX_FILE_BYTES) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            final byte[] bytes = new byte[(int) length];
+            in = new DataInputStream(new FileInputStream(file));
+            in.readFully(bytes);
+            return decode(bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the entry recorded last at once and waits until it is written
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    void flush() throws InterruptedException {
+        try {
+            mWriter.submit(mWrite).get();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the entry recorded last without waiting, and stops the writer thread once it is written.
+     * Closing it again does nothing.
+     */
+    void close() {
+        try {
+            mWriter.execute(mWrite);
+        } catch (RejectedExecutionException e) {
+            /*
+            already closed
+             */
+        }
+        mWriter.shutdown();
+    }
+
+    /**
+     * @return number of times the file was written or deleted
+     */
+    int getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Writes the entry recorded last, if any. Called on the writer thread.
+     */
+    private void writePending() {
+        final Entry entry;
+        synchronized (this) {
+            entry = mPending;
+            mPending = null;
+            mScheduled = false;
+        }
+        if (entry == null) {
+            return;
+        }
+        mWriteCount++;
+
+        final File file = getFile();
+        if (entry == NONE) {
+            if (file.exists() && !file.delete()) {
+                new IOException("could not delete " + file).printStackTrace();
+            }
+            return;
+        }
+
+        /*
+        writes a temporary file and renames it, so that the process dying in the middle leaves the last entry.
+        The file is not synced: it only has to survive the process, not the device.
+         */
+        final File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(encode(entry));
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("could not rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Encodes an entry: magic, version, flags, position, loop points if any, file name and CRC32 of the rest
+     */
+    static byte[] encode(final Entry entry) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(entry.mLoopPoints == null ? 0 : FLAG_LOOP_POINTS);
+        out.writeInt(entry.mPositionMillis);
+        if (entry.mLoopPoints != null) {
+            out.writeInt(entry.mLoopPoints.getStartSample());
+            out.writeInt(entry.mLoopPoints.getEndSample());
+        }
+        out.writeUTF(entry.mFileName);
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes an entry written by encode()
+     * @return entry, or null if the bytes are not an entry of this version or are corrupted
+     */
+    static Entry decode(final byte[] bytes) throws IOException {
+        if (bytes.length < 4) {
+            return null;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                return null;
+            }
+            final int flags = in.readUnsignedByte();
+            final int positionMillis = in.readInt();
+            LoopPoints loopPoints = null;
+            if ((flags & FLAG_LOOP_POINTS) != 0) {
+                loopPoints = new LoopPoints(in.readInt(), in.readInt());
+            }
+            final String fileName = in.readUTF();
+            if (in.readInt() != (int) crc.getValue() || in.available() != 0) {
+                return null;
+            }
+            return new Entry(fileName, Math.max(0, positionMillis), loopPoints);
+        } catch (IOException e) {
+            /*
+            truncated
+             */
+            return null;
+        } catch (IllegalArgumentException e) {
+            /*
+            loop points that LoopPoints refuses
+             */
+            return null;
+        }
+    }
+
+    private static void closeQuietly(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mFile == null ? "not located yet" : mFile.getPath();
+    }
+}
@@ -0,0 +1,153 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.io.IOException;
+
+/**
+ * Player that BgmWorker drives to play music.
+ * Methods follow the state machine of android.media.MediaPlayer,
+ * and are called from BgmWorker's thread.
+ */
+public interface PlayerEngine {
+
+    /**
+     * Sets callback that listens for playback events
+     * @param callback callback, or null to remove it
+     */
+    void setCallback(Callback callback);
+
+    /**
+     * Sets music file to play
+     * @param fileName music file's name
+     * @throws IOException if the file cannot be opened
+     */
+    void setDataSource(String fileName) throws IOException;
+
+    /**
+     * Sets whether music loops
+     * @param looping true if music loops
+     */
+    void setLooping(boolean looping);
+
+    /**
+     * Sets the region that loops while looping.
+     * Engines that cannot wrap at an exact sample loop the whole music.
+     * @param points loop points, or null to loop the whole music
+     */
+    void setLoopPoints(LoopPoints points);
+
+    /**
+     * Sets volume
+     * @param volume volume from 0 to 1
+     */
+    void setVolume(float volume);
+
+    /**
+     * Prepares music asynchronously.
+     * Callback.onPrepared() is called when it is prepared.
+     */
+    void prepareAsync();
+
+    /**
+     * Starts or resumes music
+     */
+    void start();
+
+    /**
+     * Pauses music
+     */
+    void pause();
+
+    /**
+     * Stops music
+     */
+    void stop();
+
+    /**
+     * Moves the playback position.
+     * Called while prepared, started, paused or completed, or while initialized or stopped
+     * to set the position music starts from once it is prepared.
+     * @param positionMillis position in milliseconds
+     */
+    void seekTo(int positionMillis);
+
+    /**
+     * Gets the playback position
+     * @return position in milliseconds
+     */
+    int getCurrentPosition();
+
+    /**
+     * Resets this engine to the idle state
+     */
+    void reset();
+
+    /**
+     * Releases resources this engine holds
+     */
+    void release();
+
+    /**
+     * Checks if this engine is playing
+     * @return true if this engine is playing
+     */
+    boolean isPlaying();
+
+    /**
+     * Callback that listens for playback events
+     */
+    interface Callback {
+        /**
+         * Called when music is prepared
+         * @param engine engine that prepared music
+         */
+        void onPrepared(PlayerEngine engine);
+
+        /**
+         * Called when music reached its end
+         * @param engine engine that completed music
+         */
+        void onCompletion(PlayerEngine engine);
+
+        /**
+         * Called when music wrapped from its loop end to its loop start.
+         * Engines that cannot detect wraps never call it.
+         * @param engine engine that looped music
+         */
+        void onLoop(PlayerEngine engine);
+
+        /**
+         * Called when the read-ahead of streamed music filled or drained.
+         * Engines that play no stream never call it.
+         * @param engine engine that streams music
+         * @param percent bytes buffered ahead in percent of the read-ahead limit
+         */
+        void onBufferingUpdate(PlayerEngine engine, int percent);
+
+        /**
+         * Called when streamed music had to wait for bytes the read-ahead had not fetched yet
+         * @param engine engine that streams music
+         * @param stallNanos time it waited
+         */
+        void onUnderrun(PlayerEngine engine, long stallNanos);
+
+        /**
+         * Called when an error occurred
+         * @param engine engine the error occurred in
+         * @param what type of the error
+         * @param extra extra code specific to the error
+         * @return true if the error is handled
+         */
+        boolean onError(PlayerEngine engine, int what, int extra);
+    }
+
+    /**
+     * Factory that creates engines used by BgmWorker
+     */
+    interface Factory {
+        /**
+         * Creates a new engine in the idle state
+         * @return engine
+         */
+        PlayerEngine create();
+    }
+}
@@ -0,0 +1,326 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Mixes short sound effects into stereo frames with a fixed pool of voices.
+ * When every voice is busy, a new effect steals the voice with the lowest priority,
+ * the oldest one among equals, or is dropped if every voice has a higher priority.
+ * Voices and buffers are allocated once. Not thread-safe: it is driven by one render thread.
+ */
+final class SfxMixer {
+
+    /**
+     * Bits of the fraction of fixed-point positions
+     */
+    private static final int FRACTION_BITS = 16;
+
+    /**
+     * Fixed-point one
+     */
+    private static final long ONE = 1L << FRACTION_BITS;
+
+    /**
+     * Channels of mixed frames
+     */
+    static final int CHANNEL_COUNT = 2;
+
+    /**
+     * Pool of voices
+     */
+    private final Voice[] mVoices;
+
+    /**
+     * Sample rate of mixed frames in Hz
+     */
+    private final int mSampleRate;
+
+    /**
+     * Sum of voices
+     */
+    private final float[] mMix;
+
+    /**
+     * Max frames of a mix
+     */
+    private final int mMaxFrames;
+
+    /**
+     * Sequence given to started voices, to find the oldest one
+     */
+    private long mSequence;
+
+    /**
+     * Counters
+     */
+    private long mStolenCount;
+    private long mDroppedCount;
+
+    /**
+     * Constructor
+     * @param voiceCount number of effects that can play at once
+     * @param sampleRate sample rate of mixed frames in Hz
+     * @param maxFrames max frames of a mix
+     */
+    SfxMixer(final int voiceCount, final int sampleRate, final int maxFrames) {
+        if (voiceCount <= 0 || sampleRate <= 0 || maxFrames <= 0) {
+            throw new IllegalArgumentException("invalid mixer: " + voiceCount + " voices, " +
+                    sampleRate + "Hz, " + maxFrames + " frames");
+        }
+        mVoices = new Voice[voiceCount];
+        for (int i = 0; i < voiceCount; i++) {
+            mVoices[i] = new Voice();
+        }
+        mSampleRate = sampleRate;
+        mMaxFrames = maxFrames;
+        mMix = new float[maxFrames * CHANNEL_COUNT];
+    }
+
+    /**
+     * Starts an effect on a free voice, or on a stolen one
+     * @param clip decoded effect
+     * @param volume volume from 0 to 1
+     * @param priority priority; higher ones steal voices from lower ones
+     * @return true if started, false if dropped
+     */
+    boolean play(final PcmBuffer clip, final float volume, final int priority) {
+        Voice target = null;
+        for (Voice voice : mVoices) {
+            if (voice.mClip == null) {
+                target = voice;
+                break;
+            }
+            if (target == null || voice.mPriority < target.mPriority ||
+                    voice.mPriority == target.mPriority && voice.mSequence < target.mSequence) {
+                target = voice;
+            }
+        }
+
+        if (target.mClip != null) {
+            if (target.mPriority > priority) {
+                mDroppedCount++;
+                return false;
+            }
+            mStolenCount++;
+        }
+        target.start(clip, volume, priority, mSequence++, mSampleRate);
+        return true;
+    }
+
+    /**
+     * Stops every effect
+     */
+    void stopAll() {
+        for (Voice voice : mVoices) {
+            voice.stop();
+        }
+    }
+
+    /**
+     * Stops the voices playing an effect and lets go of its samples, so that an unloaded effect can be freed
+     * @param clip decoded effect
+     */
+    void forget(final PcmBuffer clip) {
+        for (Voice voice : mVoices) {
+            if (voice.mSamplesClip == clip) {
+                voice.stop();
+                voice.mSamples = null;
+                voice.mSamplesClip = null;
+            }
+        }
+    }
+
+    /**
+     * Mixes the next frames of every playing effect
+     * @param out array interleaved stereo samples are written to
+     * @param frames number of frames, up to the max frames of a mix
+     * @return number of frames written
+     */
+    int mix(final short[] out, final int frames) {
+        if (frames > mMaxFrames) {
+            throw new IllegalArgumentException(frames + " frames exceed " + mMaxFrames);
+        }
+        final int samples = frames * CHANNEL_COUNT;
+        final float[] mix = mMix;
+        Arrays.fill(mix, 0, samples, 0f);
+
+        for (Voice voice : mVoices) {
+            if (voice.mClip != null) {
+                voice.mixInto(mix, frames);
+            }
+        }
+
+        for (int i = 0; i < samples; i++) {
+            final float sample = mix[i];
+            out[i] = sample >= Short.MAX_VALUE ? Short.MAX_VALUE
+                    : sample <= Short.MIN_VALUE ? Short.MIN_VALUE : (short) sample;
+        }
+        return frames;
+    }
+
+    /**
+     * @return number of effects playing
+     */
+    int getActiveVoiceCount() {
+        int count = 0;
+        for (Voice voice : mVoices) {
+            if (voice.mClip != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of effects that stole a voice
+     */
+    long getStolenCount() {
+        return mStolenCount;
+    }
+
+    /**
+     * @return number of effects dropped since every voice had a higher priority
+     */
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return number of voices
+     */
+    int getVoiceCount() {
+        return mVoices.length;
+    }
+
+    /**
+     * @return sample rate of mixed frames in Hz
+     */
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * Voice that plays one effect, converting its channels and sample rate to the mix
+     */
+    private static final class Voice {
+
+        /**
+         * Effect playing, or null if this voice is free
+         */
+        PcmBuffer mClip;
+
+        /**
+         * Samples of the effect, kept after the effect ends so that replaying it allocates no view
+         */
+        ShortBuffer mSamples;
+
+        /**
+         * Effect mSamples belongs to
+         */
+        PcmBuffer mSamplesClip;
+
+        /**
+         * Number of channels of the effect
+         */
+        int mChannelCount;
+
+        /**
+         * Number of frames of the effect
+         */
+        int mFrameCount;
+
+        /**
+         * Fixed-point frame of the effect the next mixed frame reads
+         */
+        long mPosition;
+
+        /**
+         * Fixed-point frames of the effect per mixed frame
+         */
+        long mStep;
+
+        /**
+         * Gain of the effect
+         */
+        float mGain;
+
+        /**
+         * Priority of the effect
+         */
+        int mPriority;
+
+        /**
+         * Sequence when the effect started
+         */
+        long mSequence;
+
+        /**
+         * Starts an effect
+         */
+        void start(final PcmBuffer clip, final float gain, final int priority, final long sequence,
+                   final int sampleRate) {
+            if (clip != mSamplesClip) {
+                mSamples = clip.samples();
+                mSamplesClip = clip;
+            }
+            mClip = clip;
+            mChannelCount = clip.getChannelCount();
+            mFrameCount = clip.getFrameCount();
+            mPosition = 0;
+            mStep = ((long) clip.getSampleRate() << FRACTION_BITS) / sampleRate;
+            mGain = gain;
+            mPriority = priority;
+            mSequence = sequence;
+        }
+
+        /**
+         * Frees this voice
+         */
+        void stop() {
+            mClip = null;
+        }
+
+        /**
+         * Adds the next frames of the effect to a mix, interpolating between frames of the effect.
+         * The voice is freed when the effect ends.
+         * @param mix interleaved stereo sum
+         * @param frames number of frames
+         */
+        void mixInto(final float[] mix, final int frames) {
+            final ShortBuffer samples = mSamples;
+            final int channels = mChannelCount;
+            final int last = mFrameCount - 1;
+            long position = mPosition;
+
+            int i = 0;
+            for (int frame = 0; frame < frames; frame++) {
+                final int index = (int) (position >> FRACTION_BITS);
+                if (index > last) {
+                    stop();
+                    return;
+                }
+                final float fraction = (position & (ONE - 1)) / (float) ONE;
+                final int next = index < last ? index + 1 : index;
+
+                final float left = lerp(samples.get(index * channels), samples.get(next * channels), fraction);
+                final float right = channels == 1 ? left : lerp(samples.get(index * channels + 1),
+                        samples.get(next * channels + 1), fraction);
+                mix[i++] += left * mGain;
+                mix[i++] += right * mGain;
+                position += mStep;
+            }
+            mPosition = position;
+            if ((position >> FRACTION_BITS) > last) {
+                stop();
+            }
+        }
+
+        /**
+         * Interpolates between two samples
+         */
+        private static float lerp(final short a, final short b, final float fraction) {
+            return a + (b - a) * fraction;
+        }
+    }
+}
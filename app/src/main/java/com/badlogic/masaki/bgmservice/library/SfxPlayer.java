@@ -0,0 +1,443 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Player of short sound effects, mixed by SfxMixer from a fixed pool of voices into one low-latency AudioTrack.
+ * Effects are decoded once in background and kept until unloaded.
+ * Playing an effect claims a preallocated trigger and offers it to a lock-free queue drained by the render thread,
+ * so it can be called from the UI thread without locking or allocating.
+ */
+public class SfxPlayer implements SoundEffects {
+    public static final String TAG = SfxPlayer.class.getSimpleName();
+
+    /**
+     * Sample rate of the track in Hz; effects with other rates are resampled
+     */
+    static final int SAMPLE_RATE = 44100;
+
+    /**
+     * Frames mixed at once. Small, so that a triggered effect is heard within a few milliseconds.
+     */
+    static final int CHUNK_FRAMES = 256;
+
+    /**
+     * Capacity of the queue of triggers, and number of preallocated triggers that play an effect
+     */
+    private static final int TRIGGER_CAPACITY = 256;
+
+    /**
+     * Trigger that stops every effect
+     */
+    private static final Trigger STOP_ALL = new Trigger(Trigger.STOP_ALL);
+
+    /**
+     * Trigger that wakes the render thread up to forget unloaded effects
+     */
+    private static final Trigger FORGET = new Trigger(Trigger.FORGET);
+
+    /**
+     * Decoder of effects
+     */
+    private final PcmDecoder mDecoder;
+
+    /**
+     * Number of effects that can play at once
+     */
+    private final int mVoiceCount;
+
+    /**
+     * Loaded effects by file name
+     */
+    private final ConcurrentHashMap<String, PcmBuffer> mClips = new ConcurrentHashMap<>();
+
+    /**
+     * Triggers offered by callers and drained by the render thread
+     */
+    private final MpscRingQueue<Trigger> mTriggers = new MpscRingQueue<>(TRIGGER_CAPACITY);
+
+    /**
+     * Effects unloaded and not forgotten by the mixer yet. Unbounded, so that an unload is never lost
+     * when triggers fill their queue.
+     */
+    private final ConcurrentLinkedQueue<PcmBuffer> mForgotten = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Preallocated triggers that play an effect, claimed in turn by callers and freed by the render thread
+     */
+    private final Trigger[] mTriggerRing = new Trigger[TRIGGER_CAPACITY];
+
+    /**
+     * Counter whose next value picks the trigger claimed next from mTriggerRing
+     */
+    private final AtomicInteger mNextTrigger = new AtomicInteger();
+
+    /**
+     * Thread that decodes effects
+     */
+    private final ExecutorService mLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "SfxPlayer-loader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Thread that mixes effects, or null if not started yet
+     */
+    private Thread mRenderThread;
+
+    /**
+     * Effects unloaded by trimEffects(), loaded again when they are played
+     */
+    private final Set<String> mTrimmed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Statistics of memory trims, or null until effects are trimmed
+     */
+    private volatile MemoryTrimStats mTrimStats;
+
+    /**
+     * Whether this player is released
+     */
+    private volatile boolean mReleased;
+
+    /**
+     * Volume from 0 to 1
+     */
+    private volatile float mVolume = 1.0f;
+
+    /**
+     * Counters published by the render thread
+     */
+    private volatile long mStolenCount;
+    private volatile long mDroppedCount;
+
+    /**
+     * Constructor
+     * @param decoder decoder of effects
+     * @param voiceCount number of effects that can play at once
+     */
+    public SfxPlayer(final PcmDecoder decoder, final int voiceCount) {
+        if (voiceCount <= 0) {
+            throw new IllegalArgumentException("no voices");
+        }
+        mDecoder = decoder;
+        mVoiceCount = voiceCount;
+        for (int i = 0; i < TRIGGER_CAPACITY; i++) {
+            mTriggerRing[i] = new Trigger(Trigger.PLAY);
+        }
+    }
+
+    @Override
+    public void loadEffect(final String fileName) {
+        synchronized (this) {
+            if (mReleased) {
+                throw new IllegalStateException("SfxPlayer is released");
+            }
+            if (mRenderThread == null) {
+                mRenderThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        render();
+                    }
+                }, "SfxPlayer-render");
+                mRenderThread.start();
+            }
+        }
+        if (mClips.containsKey(fileName)) {
+            return;
+        }
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mReleased || mClips.containsKey(fileName)) {
+                    return;
+                }
+                try {
+                    final long startedAt = System.nanoTime();
+                    final PcmBuffer clip = mDecoder.decode(fileName);
+                    synchronized (SfxPlayer.this) {
+                        /*
+                        release() may have cleared the effects while this one was decoded
+                         */
+                        if (mReleased) {
+                            return;
+                        }
+                        mClips.put(fileName, clip);
+                    }
+                    final MemoryTrimStats stats = mTrimStats;
+                    if (stats != null) {
+                        stats.recordAcquired(fileName, System.nanoTime() - startedAt);
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.d(TAG, "failed to load " + fileName + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks if an effect is loaded
+     * @param fileName effect file's name
+     * @return true if the effect can be played
+     */
+    public boolean isEffectLoaded(final String fileName) {
+        return mClips.containsKey(fileName);
+    }
+
+    @Override
+    public boolean playEffect(final String fileName, final float volume, final int priority) {
+        final PcmBuffer clip = mClips.get(fileName);
+        if (clip == null || mReleased) {
+            if (!mReleased && mTrimmed.remove(fileName)) {
+                loadEffect(fileName);
+            }
+            return false;
+        }
+        final Trigger trigger = claimTrigger(clip, volume, priority);
+        if (trigger == null) {
+            return false;
+        }
+        if (!mTriggers.offer(trigger)) {
+            free(trigger);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void stopEffects() {
+        mTriggers.offer(STOP_ALL);
+    }
+
+    @Override
+    public void unloadEffect(final String fileName) {
+        mTrimmed.remove(fileName);
+        final PcmBuffer clip = mClips.remove(fileName);
+        if (clip != null) {
+            forget(clip);
+        }
+    }
+
+    /**
+     * Makes the mixer stop voices playing an unloaded effect, so that it can be freed
+     * @param clip unloaded effect
+     */
+    private void forget(final PcmBuffer clip) {
+        mForgotten.offer(clip);
+        /*
+        a full queue already wakes the render thread up, which forgets the effect after the triggers
+         */
+        mTriggers.offer(FORGET);
+    }
+
+    /**
+     * Unloads every effect to give memory back. An effect is loaded again in background when it is played next,
+     * and that play is dropped.
+     * @param tier tier of the trim
+     * @param stats statistics released bytes and effects loaded again are recorded to
+     * @return bytes released
+     */
+    long trimEffects(final MemoryTrimStats.Tier tier, final MemoryTrimStats stats) {
+        mTrimStats = stats;
+        long freed = 0;
+        final List<String> fileNames = new ArrayList<>();
+        for (String fileName : mClips.keySet()) {
+            final PcmBuffer clip = mClips.remove(fileName);
+            if (clip != null) {
+                mTrimmed.add(fileName);
+                forget(clip);
+                freed += clip.getSizeBytes();
+                fileNames.add(fileName);
+            }
+        }
+        stats.recordFreed(tier, freed, fileNames);
+        return freed;
+    }
+
+    /**
+     * Sets volume of every effect
+     * @param volume volume from 0 to 1
+     */
+    public void setVolume(final float volume) {
+        mVolume = volume;
+    }
+
+    /**
+     * @return number of effects that stole a voice from an older or lower-priority one
+     */
+    public long getStolenCount() {
+        return mStolenCount;
+    }
+
+    /**
+     * @return number of effects dropped since every voice played one with a higher priority
+     */
+    public long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * Stops every effect, frees them, and finishes the threads
+     */
+    public void release() {
+        final Thread renderThread;
+        synchronized (this) {
+            mReleased = true;
+            renderThread = mRenderThread;
+            mRenderThread = null;
+            mClips.clear();
+        }
+        mLoader.shutdownNow();
+        mForgotten.clear();
+        if (renderThread != null) {
+            renderThread.interrupt();
+        }
+    }
+
+    /**
+     * Main loop of the render thread: applies triggers, and mixes chunks while any effect plays.
+     * The thread owns the track, and parks in the queue while no effect plays.
+     */
+    private void render() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        final SfxMixer mixer = new SfxMixer(mVoiceCount, SAMPLE_RATE, CHUNK_FRAMES);
+        final short[] chunk = new short[CHUNK_FRAMES * SfxMixer.CHANNEL_COUNT];
+        final AudioTrack track = createTrack();
+        float volume = -1f;
+        track.play();
+
+        try {
+            while (!mReleased) {
+                /*
+                the track simply underruns while idle, so that the tail of the last chunk is not cut
+                 */
+                Trigger trigger = mixer.getActiveVoiceCount() == 0 ? mTriggers.take() : mTriggers.poll();
+                for (; trigger != null; trigger = mTriggers.poll()) {
+                    apply(mixer, trigger);
+                    if (trigger.mKind == Trigger.PLAY) {
+                        free(trigger);
+                    }
+                }
+                PcmBuffer forgotten;
+                while ((forgotten = mForgotten.poll()) != null) {
+                    mixer.forget(forgotten);
+                }
+                mStolenCount = mixer.getStolenCount();
+                mDroppedCount = mixer.getDroppedCount();
+
+                if (volume != mVolume) {
+                    volume = mVolume;
+                    track.setStereoVolume(volume, volume);
+                }
+                if (mixer.getActiveVoiceCount() > 0) {
+                    mixer.mix(chunk, CHUNK_FRAMES);
+                    track.write(chunk, 0, chunk.length);
+                }
+            }
+        } catch (InterruptedException e) {
+            /* released */
+        } finally {
+            track.release();
+        }
+    }
+
+    /**
+     * Applies a trigger to the mixer. FORGET only wakes the render thread up.
+     */
+    private static void apply(final SfxMixer mixer, final Trigger trigger) {
+        switch (trigger.mKind) {
+            case Trigger.PLAY:
+                mixer.play(trigger.mClip, trigger.mVolume, trigger.mPriority);
+                break;
+            case Trigger.STOP_ALL:
+                mixer.stopAll();
+                break;
+        }
+    }
+
+    /**
+     * Claims the next preallocated trigger and sets it to play an effect. Lock-free.
+     * The trigger is still busy only if TRIGGER_CAPACITY plays were claimed since and the render thread is that far behind,
+     * which is as full as the queue gets, so the play is dropped.
+     * @param clip effect
+     * @param volume volume from 0 to 1
+     * @param priority priority
+     * @return trigger, or null if it is still busy
+     */
+    private Trigger claimTrigger(final PcmBuffer clip, final float volume, final int priority) {
+        final Trigger trigger = mTriggerRing[mNextTrigger.getAndIncrement() & (TRIGGER_CAPACITY - 1)];
+        if (!trigger.mFree.compareAndSet(true, false)) {
+            return null;
+        }
+        trigger.mClip = clip;
+        trigger.mVolume = volume;
+        trigger.mPriority = priority;
+        return trigger;
+    }
+
+    /**
+     * Clears a trigger that plays an effect so that it can be claimed again, once the render thread applied it
+     * @param trigger trigger
+     */
+    private static void free(final Trigger trigger) {
+        trigger.mClip = null;
+        trigger.mFree.set(true);
+    }
+
+    /**
+     * Creates a stereo track with the smallest buffer that holds a few chunks
+     * @return track
+     */
+    private static AudioTrack createTrack() {
+        final int minBufferSize = AudioTrack.getMinBufferSize(
+                SAMPLE_RATE, AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+        final int chunkBytes = CHUNK_FRAMES * SfxMixer.CHANNEL_COUNT * PcmBuffer.BYTES_PER_SAMPLE;
+        return new AudioTrack(AudioManager.STREAM_MUSIC, SAMPLE_RATE, AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT, Math.max(minBufferSize, chunkBytes * 2), AudioTrack.MODE_STREAM);
+    }
+
+    /**
+     * Request to play an effect, sent from callers to the render thread. Triggers that play an effect are preallocated
+     * and reused.
+     */
+    private static final class Trigger {
+        static final int PLAY = 0;
+        static final int FORGET = 1;
+        static final int STOP_ALL = 2;
+
+        final int mKind;
+        PcmBuffer mClip;
+        float mVolume;
+        int mPriority;
+
+        /**
+         * Whether the trigger can be claimed, false from when a caller claims it until the render thread applied it
+         */
+        final AtomicBoolean mFree = new AtomicBoolean(true);
+
+        Trigger(final int kind) {
+            mKind = kind;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.badlogic.masaki.bgmservice.library;
+
+/**
+ * Short sound effects played over music
+ */
+public interface SoundEffects {
+
+    /**
+     * Decodes an effect in background, so that it can be played without delay
+     * @param fileName effect file's name
+     */
+    void loadEffect(String fileName);
+
+    /**
+     * Plays a loaded effect. Can be called from any thread without blocking.
+     * @param fileName effect file's name
+     * @param volume volume from 0 to 1
+     * @param priority priority; if every voice is busy, the effect steals a voice with a lower or equal priority
+     * @return true if the effect is queued, false if it is not loaded yet
+     */
+    boolean playEffect(String fileName, float volume, int priority);
+
+    /**
+     * Stops every effect playing
+     */
+    void stopEffects();
+
+    /**
+     * Frees a loaded effect
+     * @param fileName effect file's name
+     */
+    void unloadEffect(String fileName);
+}
@@ -0,0 +1,198 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Mixes stems of a music into one buffer with a gain per layer.
+ * Layers advance by the same number of frames on every mix, so they stay sample-locked
+ * even while silent. Buffers are allocated once, so mixing allocates nothing.
+ * mix() must be called from one thread, and gains can be set from any thread.
+ */
+final class StemMixer {
+
+    /**
+     * Readers of the layers, which loop each stem
+     */
+    private final LoopingPcmReader[] mReaders;
+
+    /**
+     * Gains callers want, stored as float bits
+     */
+    private final AtomicIntegerArray mTargetGains;
+
+    /**
+     * Gains applied at the end of the last mix
+     */
+    private final float[] mAppliedGains;
+
+    /**
+     * Samples of a layer being mixed
+     */
+    private final short[] mScratch;
+
+    /**
+     * Sum of layers
+     */
+    private final float[] mMix;
+
+    /**
+     * Number of channels
+     */
+    private final int mChannelCount;
+
+    /**
+     * Sample rate in Hz
+     */
+    private final int mSampleRate;
+
+    /**
+     * Max frames of a mix
+     */
+    private final int mMaxFrames;
+
+    /**
+     * Constructor. Every layer starts with full gain.
+     * @param stems decoded stems, which have the same sample rate and channels
+     * @param maxFrames max frames of a mix
+     */
+    StemMixer(final List<PcmBuffer> stems, final int maxFrames) {
+        if (stems.isEmpty() || maxFrames <= 0) {
+            throw new IllegalArgumentException("no stems or frames to mix");
+        }
+        final PcmBuffer first = stems.get(0);
+        mChannelCount = first.getChannelCount();
+        mSampleRate = first.getSampleRate();
+        mMaxFrames = maxFrames;
+
+        mReaders = new LoopingPcmReader[stems.size()];
+        for (int i = 0; i < mReaders.length; i++) {
+            final PcmBuffer stem = stems.get(i);
+            if (stem.getChannelCount() != mChannelCount || stem.getSampleRate() != mSampleRate) {
+                throw new IllegalArgumentException("stem " + i + " has another format");
+            }
+            mReaders[i] = new LoopingPcmReader(stem);
+            mReaders[i].setLooping(true);
+        }
+
+        mTargetGains = new AtomicIntegerArray(mReaders.length);
+        mAppliedGains = new float[mReaders.length];
+        for (int i = 0; i < mReaders.length; i++) {
+            mTargetGains.set(i, Float.floatToIntBits(1f));
+            mAppliedGains[i] = 1f;
+        }
+        mScratch = new short[maxFrames * mChannelCount];
+        mMix = new float[maxFrames * mChannelCount];
+    }
+
+    /**
+     * Sets the gain of a layer. It ramps over the next mix, so that toggling a layer does not click.
+     * @param layer index of the layer
+     * @param gain gain from 0 to 1
+     */
+    void setGain(final int layer, final float gain) {
+        mTargetGains.set(layer, Float.floatToIntBits(Math.max(0f, Math.min(1f, gain))));
+    }
+
+    /**
+     * @param layer index of the layer
+     * @return gain callers want for the layer
+     */
+    float getGain(final int layer) {
+        return Float.intBitsToFloat(mTargetGains.get(layer));
+    }
+
+    /**
+     * Mixes the next frames of every layer
+     * @param out array interleaved samples are written to
+     * @param frames number of frames, up to the max frames of a mix
+     * @return number of frames written
+     */
+    int mix(final short[] out, final int frames) {
+        if (frames > mMaxFrames) {
+            throw new IllegalArgumentException(frames + " frames exceed " + mMaxFrames);
+        }
+        final int channels = mChannelCount;
+        final int samples = frames * channels;
+        final float[] mix = mMix;
+        final short[] scratch = mScratch;
+        Arrays.fill(mix, 0, samples, 0f);
+
+        for (int layer = 0; layer < mReaders.length; layer++) {
+            final float target = Float.intBitsToFloat(mTargetGains.get(layer));
+            final float applied = mAppliedGains[layer];
+            mAppliedGains[layer] = target;
+
+            if (target == 0f && applied == 0f) {
+                mReaders[layer].skip(frames);
+                continue;
+            }
+
+            final int read = mReaders[layer].read(scratch, 0, frames);
+            if (target == applied) {
+                for (int i = 0, n = read * channels; i < n; i++) {
+                    mix[i] += scratch[i] * target;
+                }
+            } else {
+                /*
+                ramps the gain frame by frame towards the target
+                 */
+                final float step = (target - applied) / frames;
+                float gain = applied;
+                int i = 0;
+                for (int frame = 0; frame < read; frame++) {
+                    gain += step;
+                    for (int c = 0; c < channels; c++, i++) {
+                        mix[i] += scratch[i] * gain;
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < samples; i++) {
+            final float sample = mix[i];
+            out[i] = sample >= Short.MAX_VALUE ? Short.MAX_VALUE
+                    : sample <= Short.MIN_VALUE ? Short.MIN_VALUE : (short) sample;
+        }
+        return frames;
+    }
+
+    /**
+     * Moves every layer to the same frame
+     * @param frame frame to move to
+     */
+    void setPosition(final int frame) {
+        for (LoopingPcmReader reader : mReaders) {
+            reader.setPosition(frame);
+        }
+    }
+
+    /**
+     * @return number of layers
+     */
+    int getLayerCount() {
+        return mReaders.length;
+    }
+
+    /**
+     * @return number of channels
+     */
+    int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * @return sample rate in Hz
+     */
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return max frames of a mix
+     */
+    int getMaxFrames() {
+        return mMaxFrames;
+    }
+}
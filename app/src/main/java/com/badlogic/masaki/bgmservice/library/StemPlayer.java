@@ -0,0 +1,336 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Player that loops stems of a music in sync, mixed by StemMixer into one AudioTrack.
+ * Layers can be turned up and down while playing, for example per scene of a game.
+ * Stems are decoded on the render thread, and kept in a PcmCache if one is given.
+ */
+public class StemPlayer {
+    public static final String TAG = StemPlayer.class.getSimpleName();
+
+    /**
+     * Frames mixed at once
+     */
+    private static final int CHUNK_FRAMES = 1024;
+
+    /**
+     * Decoder of stems
+     */
+    private final PcmDecoder mDecoder;
+
+    /**
+     * Cache of decoded stems, or null
+     */
+    private final PcmCache mCache;
+
+    /**
+     * Lock for the fields below
+     */
+    private final Object mLock = new Object();
+
+    /**
+     * Stems to play, or null if stopped
+     */
+    private String[] mFileNames;
+
+    /**
+     * Gains of the layers callers want
+     */
+    private float[] mGains;
+
+    /**
+     * Generation incremented whenever stems change
+     */
+    private int mGeneration;
+
+    /**
+     * Mixer of the current stems, or null until they are decoded
+     */
+    private StemMixer mMixer;
+
+    /**
+     * Whether music should be playing
+     */
+    private boolean mPlaying;
+
+    /**
+     * Whether this player is released
+     */
+    private boolean mReleased;
+
+    /**
+     * Track stems are written to
+     */
+    private final PcmTrack mTrack = new PcmTrack(CHUNK_FRAMES);
+
+    /**
+     * Thread that decodes and mixes stems, or null if not started yet
+     */
+    private Thread mRenderThread;
+
+    /**
+     * Constructor
+     * @param decoder decoder of stems
+     * @param cache cache of decoded stems, or null to decode them every time
+     */
+    public StemPlayer(final PcmDecoder decoder, final PcmCache cache) {
+        mDecoder = decoder;
+        mCache = cache;
+    }
+
+    /**
+     * Starts looping stems from their start. Every layer starts with full gain.
+     * @param fileNames music files of the stems, which have the same sample rate and channels
+     */
+    public void start(final String... fileNames) {
+        if (fileNames.length == 0) {
+            throw new IllegalArgumentException("no stems");
+        }
+        synchronized (mLock) {
+            checkNotReleased();
+            mFileNames = fileNames.clone();
+            mGains = new float[fileNames.length];
+            Arrays.fill(mGains, 1f);
+            mGeneration++;
+            mMixer = null;
+            mPlaying = true;
+            mTrack.flush();
+
+            if (mRenderThread == null) {
+                mRenderThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        render();
+                    }
+                }, "StemPlayer-render");
+                mRenderThread.start();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Sets the gain of a layer. It ramps over one chunk, so that toggling a layer does not click.
+     * @param layer index of the stem passed to start()
+     * @param gain gain from 0 to 1
+     */
+    public void setLayerGain(final int layer, final float gain) {
+        synchronized (mLock) {
+            if (mGains == null) {
+                return;
+            }
+            mGains[layer] = gain;
+            if (mMixer != null) {
+                mMixer.setGain(layer, gain);
+            }
+        }
+    }
+
+    /**
+     * Sets volume of the mix
+     * @param volume volume from 0 to 1
+     */
+    public void setVolume(final float volume) {
+        synchronized (mLock) {
+            mTrack.setVolume(volume);
+        }
+    }
+
+    /**
+     * Pauses stems
+     */
+    public void pause() {
+        synchronized (mLock) {
+            mPlaying = false;
+            mTrack.pause();
+        }
+    }
+
+    /**
+     * Resumes stems paused by pause()
+     */
+    public void resume() {
+        synchronized (mLock) {
+            checkNotReleased();
+            if (mFileNames == null) {
+                return;
+            }
+            mPlaying = true;
+            if (mMixer != null) {
+                mTrack.play();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops stems. start() plays them again from their start.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            mPlaying = false;
+            mFileNames = null;
+            mGains = null;
+            mMixer = null;
+            mGeneration++;
+            mTrack.flush();
+        }
+    }
+
+    /**
+     * Collects names of the music files of the stems, while they play or are paused
+     * @param fileNames collects the names
+     */
+    void collectFileNames(final Collection<String> fileNames) {
+        synchronized (mLock) {
+            if (mFileNames != null) {
+                fileNames.addAll(Arrays.asList(mFileNames));
+            }
+        }
+    }
+
+    /**
+     * Checks if stems are playing
+     * @return true if stems are playing
+     */
+    public boolean isPlaying() {
+        synchronized (mLock) {
+            return mPlaying && mMixer != null;
+        }
+    }
+
+    /**
+     * Releases the track and finishes the render thread
+     */
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mPlaying = false;
+            mFileNames = null;
+            mMixer = null;
+            mGeneration++;
+            mTrack.release();
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Throws IllegalStateException if this player is released. Must be called holding mLock.
+     */
+    private void checkNotReleased() {
+        if (mReleased) {
+            throw new IllegalStateException("StemPlayer is released");
+        }
+    }
+
+    /**
+     * Main loop of the render thread: decodes stems when they change, and mixes chunks while playing
+     */
+    private void render() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        short[] chunk = null;
+
+        while (true) {
+            final StemMixer mixer;
+            final AudioTrack track;
+            String[] fileNames = null;
+            int generation = 0;
+
+            synchronized (mLock) {
+                while (!mReleased && (!mPlaying || mFileNames == null)) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mReleased) {
+                    mRenderThread = null;
+                    return;
+                }
+                mixer = mMixer;
+                track = mTrack.get();
+                if (mixer == null) {
+                    fileNames = mFileNames;
+                    generation = mGeneration;
+                }
+            }
+
+            if (mixer == null) {
+                load(fileNames, generation);
+                continue;
+            }
+
+            if (chunk == null || chunk.length < CHUNK_FRAMES * mixer.getChannelCount()) {
+                chunk = new short[CHUNK_FRAMES * mixer.getChannelCount()];
+            }
+            final int frames = mixer.mix(chunk, CHUNK_FRAMES);
+            mTrack.write(track, chunk, frames * mixer.getChannelCount());
+        }
+    }
+
+    /**
+     * Decodes stems and makes a mixer of them, unless stems changed meanwhile
+     * @param fileNames music files of the stems
+     * @param generation generation of the stems
+     */
+    private void load(final String[] fileNames, final int generation) {
+        final List<PcmBuffer> stems = new ArrayList<>(fileNames.length);
+        StemMixer mixer = null;
+        try {
+            for (String fileName : fileNames) {
+                stems.add(decode(fileName));
+            }
+            mixer = new StemMixer(stems, CHUNK_FRAMES);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.d(TAG, "failed to load stems: " + e.getMessage());
+        }
+
+        synchronized (mLock) {
+            if (generation != mGeneration) {
+                return;
+            }
+            if (mixer == null) {
+                mPlaying = false;
+                mFileNames = null;
+                return;
+            }
+
+            for (int i = 0; i < mGains.length; i++) {
+                mixer.setGain(i, mGains[i]);
+            }
+            mTrack.open(mixer.getSampleRate(), mixer.getChannelCount());
+            mMixer = mixer;
+            if (mPlaying) {
+                mTrack.play();
+            }
+        }
+    }
+
+    /**
+     * Gets a decoded stem from the cache, or decodes it
+     * @param fileName music file's name
+     * @return decoded stem
+     * @throws IOException if the stem cannot be decoded
+     */
+    private PcmBuffer decode(final String fileName) throws IOException {
+        PcmBuffer buffer = mCache == null ? null : mCache.get(fileName);
+        if (buffer == null) {
+            buffer = mDecoder.decode(fileName);
+            if (mCache != null) {
+                mCache.put(fileName, buffer);
+            }
+        }
+        return buffer;
+    }
+}
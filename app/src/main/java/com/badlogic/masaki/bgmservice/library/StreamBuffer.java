@@ -0,0 +1,516 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Ring buffer that reads a stream ahead of the player on its own thread.
+ * Read-ahead is bounded: fetching waits while capacity minus a margin kept behind the reader is unread,
+ * so a large track never takes more memory than the capacity. Reads may be at any position:
+ * ones inside the buffer are served from it, and ones far from it restart the stream there.
+ * It counts underruns, waits of the reader for bytes the fetch has not reached, and reports how full it is.
+ */
+final class StreamBuffer {
+
+    /**
+     * Capacity used by default
+     */
+    static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    /**
+     * Max bytes fetched by one read of the stream
+     */
+    static final int CHUNK_BYTES = 8 * 1024;
+
+    /**
+     * Listener for how full the buffer is and for underruns. Called without holding the buffer.
+     */
+    interface Listener {
+        /**
+         * Called when the unread bytes in the buffer changed by a percent or more
+         * @param percent unread bytes in percent of the read-ahead limit
+         */
+        void onFill(int percent);
+
+        /**
+         * Called when the reader waited for bytes the fetch had not reached
+         * @param stallNanos time the reader waited
+         */
+        void onUnderrun(long stallNanos);
+    }
+
+    /**
+     * Source of the stream
+     */
+    private final StreamSource mSource;
+
+    /**
+     * Bytes of the stream. The byte at a position is stored at position % capacity.
+     */
+    private final byte[] mBuffer;
+
+    /**
+     * Bytes kept behind the reader, so that small reads backwards are served without a restart
+     */
+    private final int mKeepBehind;
+
+    /**
+     * Listener, or null
+     */
+    private final Listener mListener;
+
+    /**
+     * Thread that fetches the stream
+     */
+    private final Thread mFetcher;
+
+    /*
+    state below is guarded by this
+     */
+
+    /**
+     * Position the stream was opened from last
+     */
+    private long mOrigin;
+
+    /**
+     * Position of the next byte fetched
+     */
+    private long mEnd;
+
+    /**
+     * Furthest position the reader reached
+     */
+    private long mConsumed;
+
+    /**
+     * Length of the stream, or -1 until it is known
+     */
+    private long mLength = -1;
+
+    /**
+     * Whether the stream was opened once, so that its length is known if it ever is
+     */
+    private boolean mOpened;
+
+    /**
+     * Whether the fetch reached the end of the stream
+     */
+    private boolean mEndOfStream;
+
+    /**
+     * Error the fetch failed with, or null
+     */
+    private IOException mError;
+
+    /**
+     * Incremented when the stream restarts from another position
+     */
+    private int mGeneration;
+
+    /**
+     * Whether the reader got bytes since the stream was opened or restarted
+     */
+    private boolean mStarted;
+
+    /**
+     * Stream being read by the fetcher, or null
+     */
+    private InputStream mInput;
+
+    /**
+     * Whether this buffer is closed
+     */
+    private boolean mClosed;
+
+    /**
+     * Fill percent reported last
+     */
+    private int mReportedPercent = -1;
+
+    /**
+     * Bytes fetched from the source in total
+     */
+    private long mFetchedBytes;
+
+    /**
+     * Number of underruns
+     */
+    private long mUnderrunCount;
+
+    /**
+     * Number of restarts from another position
+     */
+    private long mSeekCount;
+
+    /**
+     * Constructor
+     * @param source source of the stream
+     * @param capacity bytes the buffer holds
+     * @param listener listener, or null
+     */
+    StreamBuffer(final StreamSource source, final int capacity, final Listener listener) {
+        if (capacity < CHUNK_BYTES * 2) {
+            throw new IllegalArgumentException("capacity must be at least " + CHUNK_BYTES * 2);
+        }
+        mSource = source;
+        mBuffer = new byte[capacity];
+        mKeepBehind = capacity / 4;
+        mListener = listener;
+        mFetcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                fetch();
+            }
+        }, "StreamBuffer");
+        mFetcher.setDaemon(true);
+    }
+
+    /**
+     * Starts fetching the stream from its start
+     */
+    void start() {
+        mFetcher.start();
+    }
+
+    /**
+     * Reads bytes at a position, waiting until they are fetched
+     * @param position position in the stream
+     * @param buffer buffer to read into
+     * @param offset offset in the buffer
+     * @param size max bytes to read
+     * @return bytes read, or -1 at the end of the stream
+     * @throws IOException if fetching failed, or the buffer is closed
+     */
+    int readAt(final long position, final byte[] buffer, final int offset, final int size) throws IOException {
+        if (size == 0) {
+            return 0;
+        }
+        long stallNanos = 0;
+        final int read;
+        synchronized (this) {
+            if (position < windowStart() || position > mEnd + readAheadLimit()) {
+                restart(position);
+            } else if (position > mConsumed) {
+                /*
+                the reader skipped ahead, so the bytes before it need not be kept
+                 */
+                mConsumed = position;
+                notifyAll();
+            }
+
+            if (position >= mEnd && !mEndOfStream && mError == null && !mClosed) {
+                /*
+                waiting before the first bytes arrive is starting up, not an underrun
+                 */
+                final boolean underrun = mStarted;
+                final long waitStart = System.nanoTime();
+                try {
+                    while (position >= mEnd && !mEndOfStream && mError == null && !mClosed) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while buffering");
+                }
+                if (underrun) {
+                    stallNanos = System.nanoTime() - waitStart;
+                    mUnderrunCount++;
+                }
+            }
+
+            if (mClosed) {
+                throw new IOException("stream buffer is closed");
+            }
+            if (position >= mEnd) {
+                if (mError != null) {
+                    throw new IOException("failed to fetch the stream", mError);
+                }
+                return -1;
+            }
+
+            read = (int) Math.min(size, mEnd - position);
+            copyOut(position, buffer, offset, read);
+            mStarted = true;
+            if (position + read > mConsumed) {
+                mConsumed = position + read;
+                notifyAll();
+            }
+        }
+        if (stallNanos > 0 && mListener != null) {
+            mListener.onUnderrun(stallNanos);
+        }
+        reportFill();
+        return read;
+    }
+
+    /**
+     * Gets the length of the stream, waiting until the stream is opened
+     * @return length in bytes, or -1 if the source does not tell it
+     * @throws IOException if opening failed, or the buffer is closed
+     */
+    synchronized long length() throws IOException {
+        try {
+            while (!mOpened && mError == null && !mClosed) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while opening");
+        }
+        if (mClosed) {
+            throw new IOException("stream buffer is closed");
+        }
+        if (!mOpened) {
+            throw new IOException("failed to open the stream", mError);
+        }
+        return mLength;
+    }
+
+    /**
+     * Stops fetching and releases the stream. Readers waiting for bytes fail.
+     */
+    void close() {
+        final InputStream input;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            input = mInput;
+            mInput = null;
+            notifyAll();
+        }
+        mFetcher.interrupt();
+        closeQuietly(input);
+    }
+
+    /**
+     * @return bytes the buffer holds
+     */
+    int getCapacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @return unread bytes in percent of the read-ahead limit
+     */
+    synchronized int getFillPercent() {
+        return fillPercent();
+    }
+
+    /**
+     * @return bytes fetched ahead of the reader
+     */
+    synchronized long getBufferedBytes() {
+        return Math.max(0, mEnd - mConsumed);
+    }
+
+    /**
+     * @return bytes fetched from the source in total
+     */
+    synchronized long getFetchedBytes() {
+        return mFetchedBytes;
+    }
+
+    /**
+     * @return number of times the reader waited for bytes the fetch had not reached
+     */
+    synchronized long getUnderrunCount() {
+        return mUnderrunCount;
+    }
+
+    /**
+     * @return number of times the stream restarted from another position
+     */
+    synchronized long getSeekCount() {
+        return mSeekCount;
+    }
+
+    /**
+     * Fetches the stream until the buffer is closed. Runs on the fetcher thread.
+     */
+    private void fetch() {
+        final byte[] chunk = new byte[CHUNK_BYTES];
+        InputStream input = null;
+        int generation = -1;
+        try {
+            while (true) {
+                final long position;
+                final int space;
+                synchronized (this) {
+                    while (!mClosed && generation == mGeneration && (mEndOfStream || mError != null || space() <= 0)) {
+                        wait();
+                    }
+                    if (mClosed) {
+                        return;
+                    }
+                    if (generation != mGeneration) {
+                        /*
+                        the reader moved, so the stream is opened again where it reads
+                         */
+                        closeQuietly(input);
+                        input = null;
+                        mInput = null;
+                        generation = mGeneration;
+                    }
+                    position = mEnd;
+                    space = space();
+                }
+
+                if (input == null) {
+                    try {
+                        input = mSource.open(position);
+                    } catch (IOException e) {
+                        fail(generation, e);
+                        continue;
+                    }
+                    synchronized (this) {
+                        if (mClosed || generation != mGeneration) {
+                            closeQuietly(input);
+                            input = null;
+                            continue;
+                        }
+                        mInput = input;
+                        mOpened = true;
+                        if (mLength < 0) {
+                            mLength = mSource.length();
+                        }
+                        notifyAll();
+                    }
+                }
+
+                int read;
+                try {
+                    read = input.read(chunk, 0, Math.min(chunk.length, space));
+                } catch (IOException e) {
+                    closeQuietly(input);
+                    input = null;
+                    fail(generation, e);
+                    continue;
+                }
+
+                synchronized (this) {
+                    if (mClosed || generation != mGeneration) {
+                        continue;
+                    }
+                    if (read < 0) {
+                        mEndOfStream = true;
+                        if (mLength < 0) {
+                            mLength = mEnd;
+                        }
+                    } else {
+                        copyIn(chunk, read);
+                        mFetchedBytes += read;
+                    }
+                    notifyAll();
+                }
+                reportFill();
+            }
+        } catch (InterruptedException e) {
+            /* closed */
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Restarts the stream from a position, dropping what is buffered
+     * @param position position to read from
+     */
+    private void restart(final long position) {
+        mGeneration++;
+        mOrigin = position;
+        mEnd = position;
+        mConsumed = position;
+        mEndOfStream = mLength >= 0 && position >= mLength;
+        mError = null;
+        mStarted = false;
+        mSeekCount++;
+        notifyAll();
+    }
+
+    /**
+     * Records an error of the fetch unless the stream restarted meanwhile
+     */
+    private synchronized void fail(final int generation, final IOException e) {
+        if (generation == mGeneration) {
+            mError = e;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reports how full the buffer is to the listener if it changed since the last report
+     */
+    private void reportFill() {
+        if (mListener == null) {
+            return;
+        }
+        final int percent;
+        synchronized (this) {
+            percent = fillPercent();
+            if (percent == mReportedPercent) {
+                return;
+            }
+            mReportedPercent = percent;
+        }
+        mListener.onFill(percent);
+    }
+
+    /**
+     * @return first position whose byte is still in the buffer
+     */
+    private long windowStart() {
+        return Math.max(mOrigin, mEnd - mBuffer.length);
+    }
+
+    /**
+     * @return max bytes fetched ahead of the reader
+     */
+    private int readAheadLimit() {
+        return mBuffer.length - mKeepBehind;
+    }
+
+    /**
+     * @return bytes that can be fetched without overwriting unread bytes or the margin behind the reader
+     */
+    private int space() {
+        return (int) Math.min(readAheadLimit(), readAheadLimit() - (mEnd - mConsumed));
+    }
+
+    private int fillPercent() {
+        return (int) (Math.max(0, Math.min(readAheadLimit(), mEnd - mConsumed)) * 100 / readAheadLimit());
+    }
+
+    private void copyIn(final byte[] chunk, final int count) {
+        final int capacity = mBuffer.length;
+        final int index = (int) (mEnd % capacity);
+        final int first = Math.min(count, capacity - index);
+        System.arraycopy(chunk, 0, mBuffer, index, first);
+        System.arraycopy(chunk, first, mBuffer, 0, count - first);
+        mEnd += count;
+    }
+
+    private void copyOut(final long position, final byte[] buffer, final int offset, final int count) {
+        final int capacity = mBuffer.length;
+        final int index = (int) (position % capacity);
+        final int first = Math.min(count, capacity - index);
+        System.arraycopy(mBuffer, index, buffer, offset, first);
+        System.arraycopy(mBuffer, 0, buffer, offset + first, count - first);
+    }
+
+    private static void closeQuietly(final InputStream input) {
+        if (input == null) {
+            return;
+        }
+        try {
+            input.close();
+        } catch (IOException e) {
+            /* nothing to do */
+        }
+    }
+}
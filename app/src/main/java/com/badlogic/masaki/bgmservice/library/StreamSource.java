@@ -0,0 +1,200 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+
+/**
+ * Music that is read as a stream from a file on disk or an HTTP server, instead of from assets.
+ * A stream can be opened from any position, so StreamBuffer can restart it where a player seeks to.
+ */
+abstract class StreamSource {
+
+    /**
+     * Time connecting to and reading from a server may take before it fails
+     */
+    static final int TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Opens the stream from a position
+     * @param position byte offset to read from
+     * @return stream of the bytes from the position
+     * @throws IOException if it cannot be opened
+     */
+    abstract InputStream open(long position) throws IOException;
+
+    /**
+     * Gets the length of the stream, known once it is opened
+     * @return length in bytes, or -1 if it is unknown
+     */
+    abstract long length();
+
+    /**
+     * Checks if a music file's name is a stream rather than a file in assets
+     * @param fileName music file's name
+     * @return true if it is an absolute path, a file URI or an HTTP URL
+     */
+    static boolean isStream(final String fileName) {
+        if (fileName == null) {
+            return false;
+        }
+        final String lower = fileName.toLowerCase(Locale.US);
+        return fileName.startsWith("/") || lower.startsWith("file://") ||
+                lower.startsWith("http://") || lower.startsWith("https://");
+    }
+
+    /**
+     * Converts a file URI to its path, so that players that take paths can open it
+     * @param fileName music file's name
+     * @return path, or the name as it is if it is not a file URI
+     */
+    static String toPath(final String fileName) {
+        return fileName.toLowerCase(Locale.US).startsWith("file://") ? fileName.substring("file://".length()) : fileName;
+    }
+
+    /**
+     * Creates the source of a stream
+     * @param fileName absolute path, file URI or HTTP URL
+     * @return source of the stream
+     * @throws IOException if the name is not a stream
+     */
+    static StreamSource forName(final String fileName) throws IOException {
+        if (!isStream(fileName)) {
+            throw new IOException("not a stream: " + fileName);
+        }
+        final String path = toPath(fileName);
+        if (path.startsWith("/")) {
+            return new FileSource(new File(path));
+        }
+        return new HttpSource(new URL(path));
+    }
+
+    /**
+     * Source of a file on disk
+     */
+    static final class FileSource extends StreamSource {
+        private final File mFile;
+
+        FileSource(final File file) {
+            mFile = file;
+        }
+
+        @Override
+        InputStream open(final long position) throws IOException {
+            final FileInputStream in = new FileInputStream(mFile);
+            try {
+                in.getChannel().position(position);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            return in;
+        }
+
+        @Override
+        long length() {
+            return mFile.length();
+        }
+    }
+
+    /**
+     * Source of a file on an HTTP server, opened from a position with a Range request
+     */
+    static final class HttpSource extends StreamSource {
+        private final URL mUrl;
+        private volatile long mLength = -1;
+
+        HttpSource(final URL url) {
+            mUrl = url;
+        }
+
+        @Override
+        InputStream open(final long position) throws IOException {
+            final HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            /*
+            compression would make positions meaningless
+             */
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            if (position > 0) {
+                connection.setRequestProperty("Range", "bytes=" + position + "-");
+            }
+
+            final int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                updateLength(connection.getHeaderField("Content-Range"));
+                return connection.getInputStream();
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                connection.disconnect();
+                throw new IOException("HTTP " + status + " from " + mUrl);
+            }
+            final long contentLength = parseLong(connection.getHeaderField("Content-Length"));
+            if (contentLength >= 0) {
+                mLength = contentLength;
+            }
+            final InputStream in = connection.getInputStream();
+            try {
+                /*
+                the server ignored the range, so skips to the position
+                 */
+                skipFully(in, position);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            return in;
+        }
+
+        @Override
+        long length() {
+            return mLength;
+        }
+
+        /**
+         * Reads the whole length from a Content-Range header such as "bytes 100-199/1000"
+         * @param contentRange value of the header, or null
+         */
+        private void updateLength(final String contentRange) {
+            if (contentRange == null) {
+                return;
+            }
+            final int slash = contentRange.lastIndexOf('/');
+            if (slash >= 0) {
+                final long length = parseLong(contentRange.substring(slash + 1));
+                if (length >= 0) {
+                    mLength = length;
+                }
+            }
+        }
+
+        private static long parseLong(final String value) {
+            if (value == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private static void skipFully(final InputStream in, long count) throws IOException {
+            while (count > 0) {
+                final long skipped = in.skip(count);
+                if (skipped > 0) {
+                    count -= skipped;
+                } else if (in.read() < 0) {
+                    throw new IOException("stream ended before the position");
+                } else {
+                    count--;
+                }
+            }
+        }
+    }
+}
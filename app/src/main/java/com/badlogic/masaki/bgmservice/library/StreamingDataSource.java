@@ -0,0 +1,42 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.annotation.TargetApi;
+import android.media.MediaDataSource;
+import android.os.Build;
+
+import java.io.IOException;
+
+/**
+ * MediaDataSource that feeds MediaPlayer from a StreamBuffer, so that reading ahead is bounded and measured
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class StreamingDataSource extends MediaDataSource {
+
+    /**
+     * Buffer the stream is read from
+     */
+    private final StreamBuffer mBuffer;
+
+    /**
+     * Constructor
+     * @param buffer buffer the stream is read from, started already
+     */
+    StreamingDataSource(final StreamBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    @Override
+    public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        return mBuffer.readAt(position, buffer, offset, size);
+    }
+
+    @Override
+    public long getSize() throws IOException {
+        return mBuffer.length();
+    }
+
+    @Override
+    public void close() {
+        mBuffer.close();
+    }
+}
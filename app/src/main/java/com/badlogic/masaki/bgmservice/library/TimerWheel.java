@@ -0,0 +1,242 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.util.List;
+
+/**
+ * Hashed timer wheel of BgmTimers. A timer is linked into the slot of its tick,
+ * so adding and removing one costs O(1), and expiring costs only the slots whose ticks passed.
+ * Timers fire at their exact deadline: ticks only pick slots. Must be used only from one thread.
+ */
+final class TimerWheel {
+
+    /**
+     * Time returned by nextDeadlineNanos() when no timer is pending
+     */
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /**
+     * Time tick 0 starts at
+     */
+    private final long mOriginNanos;
+
+    /**
+     * Time a tick spans
+     */
+    private final long mTickNanos;
+
+    /**
+     * Mask to turn a tick into a slot index
+     */
+    private final int mMask;
+
+    /**
+     * Heads of the lists of timers by slot
+     */
+    private final BgmTimer[] mSlots;
+
+    /**
+     * Tick whose slot is expired next. Timers of earlier ticks have all fired.
+     */
+    private long mCurrentTick;
+
+    /**
+     * Number of pending timers
+     */
+    private int mSize;
+
+    /**
+     * Order in which timers were added, to fire timers with the same deadline in that order
+     */
+    private long mSequence;
+
+    /**
+     * Earliest deadline, or NO_DEADLINE; valid only if mNextDeadlineKnown
+     */
+    private long mNextDeadlineNanos = NO_DEADLINE;
+    private boolean mNextDeadlineKnown = true;
+
+    /**
+     * Constructor
+     * @param slotCount number of slots, rounded up to a power of two
+     * @param tickNanos time a tick spans
+     * @param nowNanos current time
+     */
+    TimerWheel(final int slotCount, final long tickNanos, final long nowNanos) {
+        if (slotCount <= 0 || tickNanos <= 0) {
+            throw new IllegalArgumentException("slotCount and tickNanos must be positive");
+        }
+        final int size = Math.max(Integer.highestOneBit(slotCount - 1) << 1, 1);
+        mMask = size - 1;
+        mSlots = new BgmTimer[size];
+        mTickNanos = tickNanos;
+        mOriginNanos = nowNanos;
+    }
+
+    /**
+     * Adds a timer
+     * @param timer timer that is not in the wheel
+     * @param deadlineNanos time from System.nanoTime() when the timer fires
+     */
+    void add(final BgmTimer timer, final long deadlineNanos) {
+        final long tick = Math.max(tickOf(deadlineNanos), mCurrentTick);
+        final int slot = (int) tick & mMask;
+        timer.mDeadlineNanos = deadlineNanos;
+        timer.mTick = tick;
+        timer.mSequence = mSequence++;
+        timer.mSlot = slot;
+        timer.mPrevious = null;
+        timer.mNext = mSlots[slot];
+        if (timer.mNext != null) {
+            timer.mNext.mPrevious = timer;
+        }
+        mSlots[slot] = timer;
+        mSize++;
+
+        if (mNextDeadlineKnown && (mNextDeadlineNanos == NO_DEADLINE || deadlineNanos - mNextDeadlineNanos < 0)) {
+            mNextDeadlineNanos = deadlineNanos;
+        }
+    }
+
+    /**
+     * Removes a timer
+     * @param timer timer
+     * @return true if removed, false if it was not in the wheel
+     */
+    boolean remove(final BgmTimer timer) {
+        if (timer.mSlot < 0) {
+            return false;
+        }
+        unlink(timer);
+        if (timer.mDeadlineNanos == mNextDeadlineNanos) {
+            mNextDeadlineKnown = false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes timers whose deadline passed
+     * @param nowNanos current time
+     * @param expired list the timers are added to, ordered by deadline
+     */
+    void expire(final long nowNanos, final List<BgmTimer> expired) {
+        final long nowTick = tickOf(nowNanos);
+        if (mSize == 0) {
+            mCurrentTick = Math.max(mCurrentTick, nowTick);
+            return;
+        }
+
+        /*
+        if more than a revolution passed, visiting each slot once finds every timer
+         */
+        final int start = expired.size();
+        final long lastTick = Math.min(nowTick, mCurrentTick + mMask);
+        for (long tick = mCurrentTick; tick <= lastTick; tick++) {
+            BgmTimer timer = mSlots[(int) tick & mMask];
+            while (timer != null) {
+                final BgmTimer next = timer.mNext;
+                if (timer.mDeadlineNanos - nowNanos <= 0) {
+                    unlink(timer);
+                    insertOrdered(expired, start, timer);
+                }
+                timer = next;
+            }
+        }
+        /*
+        the current tick is kept, since its timers with later deadlines have to be visited again
+         */
+        mCurrentTick = Math.max(mCurrentTick, nowTick);
+        if (expired.size() > start) {
+            mNextDeadlineKnown = false;
+        }
+    }
+
+    /**
+     * Finds the earliest deadline
+     * @return time from System.nanoTime(), or NO_DEADLINE if no timer is pending
+     */
+    long nextDeadlineNanos() {
+        if (mNextDeadlineKnown) {
+            return mNextDeadlineNanos;
+        }
+
+        long earliest = NO_DEADLINE;
+        if (mSize > 0) {
+            /*
+            the first slot of this revolution that has a timer of its tick holds the earliest deadline;
+            otherwise every timer is more than a revolution away, and all of them are compared
+             */
+            for (long tick = mCurrentTick; tick <= mCurrentTick + mMask && earliest == NO_DEADLINE; tick++) {
+                earliest = earliestOf(mSlots[(int) tick & mMask], tick);
+            }
+            if (earliest == NO_DEADLINE) {
+                for (int slot = 0; slot <= mMask; slot++) {
+                    final long deadline = earliestOf(mSlots[slot], -1);
+                    if (deadline != NO_DEADLINE && (earliest == NO_DEADLINE || deadline - earliest < 0)) {
+                        earliest = deadline;
+                    }
+                }
+            }
+        }
+        mNextDeadlineNanos = earliest;
+        mNextDeadlineKnown = true;
+        return earliest;
+    }
+
+    /**
+     * @return number of pending timers
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Finds the earliest deadline in a slot
+     * @param head head of the slot's list
+     * @param tick tick the timers must have, or -1 to compare every timer
+     */
+    private static long earliestOf(BgmTimer head, final long tick) {
+        long earliest = NO_DEADLINE;
+        for (; head != null; head = head.mNext) {
+            if ((tick < 0 || head.mTick == tick) &&
+                    (earliest == NO_DEADLINE || head.mDeadlineNanos - earliest < 0)) {
+                earliest = head.mDeadlineNanos;
+            }
+        }
+        return earliest;
+    }
+
+    private long tickOf(final long nanos) {
+        return Math.max(0, (nanos - mOriginNanos) / mTickNanos);
+    }
+
+    private void unlink(final BgmTimer timer) {
+        if (timer.mPrevious == null) {
+            mSlots[timer.mSlot] = timer.mNext;
+        } else {
+            timer.mPrevious.mNext = timer.mNext;
+        }
+        if (timer.mNext != null) {
+            timer.mNext.mPrevious = timer.mPrevious;
+        }
+        timer.mPrevious = null;
+        timer.mNext = null;
+        timer.mSlot = -1;
+        mSize--;
+    }
+
+    /**
+     * Inserts a timer into the expired ones, by deadline and then by the order it was added
+     */
+    private static void insertOrdered(final List<BgmTimer> expired, final int start, final BgmTimer timer) {
+        int i = expired.size();
+        while (i > start) {
+            final BgmTimer previous = expired.get(i - 1);
+            final long diff = previous.mDeadlineNanos - timer.mDeadlineNanos;
+            if (diff < 0 || (diff == 0 && previous.mSequence < timer.mSequence)) {
+                break;
+            }
+            i--;
+        }
+        expired.add(i, timer);
+    }
+}
@@ -0,0 +1,89 @@
+package com.badlogic.masaki.bgmservice.library;
+
+/**
+ * Statistics of track switches, measured from when BgmWorker handles a START
+ * with another file until the new music starts.
+ * Written only by BgmWorker's thread, and readable from any thread.
+ */
+public final class TrackSwitchStats {
+
+    /**
+     * Number of switches
+     */
+    private volatile long mSwitchCount;
+
+    /**
+     * Number of switches to music prepared by preload
+     */
+    private volatile long mPreloadedSwitchCount;
+
+    /**
+     * Sum of latencies in nanoseconds
+     */
+    private volatile long mTotalLatencyNanos;
+
+    /**
+     * Latency of the last switch in nanoseconds
+     */
+    private volatile long mLastLatencyNanos;
+
+    /**
+     * Max latency in nanoseconds
+     */
+    private volatile long mMaxLatencyNanos;
+
+    TrackSwitchStats() {}
+
+    /**
+     * Records a switch. Must be called only from BgmWorker's thread.
+     * @param latencyNanos latency of the switch
+     * @param preloaded true if the music was prepared by preload
+     */
+    void record(final long latencyNanos, final boolean preloaded) {
+        mSwitchCount++;
+        if (preloaded) {
+            mPreloadedSwitchCount++;
+        }
+        mTotalLatencyNanos += latencyNanos;
+        mLastLatencyNanos = latencyNanos;
+        if (latencyNanos > mMaxLatencyNanos) {
+            mMaxLatencyNanos = latencyNanos;
+        }
+    }
+
+    /**
+     * @return number of switches
+     */
+    public long getSwitchCount() {
+        return mSwitchCount;
+    }
+
+    /**
+     * @return number of switches to music prepared by preload
+     */
+    public long getPreloadedSwitchCount() {
+        return mPreloadedSwitchCount;
+    }
+
+    /**
+     * @return latency of the last switch in nanoseconds
+     */
+    public long getLastLatencyNanos() {
+        return mLastLatencyNanos;
+    }
+
+    /**
+     * @return max latency in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+
+    /**
+     * @return average latency in nanoseconds, or 0 if no switch happened
+     */
+    public long getAverageLatencyNanos() {
+        final long count = mSwitchCount;
+        return count == 0 ? 0 : mTotalLatencyNanos / count;
+    }
+}
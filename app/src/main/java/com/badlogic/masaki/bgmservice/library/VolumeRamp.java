@@ -0,0 +1,121 @@
+package com.badlogic.masaki.bgmservice.library;
+
+/**
+ * Gain that moves from one value to another over time.
+ * Instances are reused by BgmWorker, so ramping allocates nothing.
+ */
+final class VolumeRamp {
+
+    /**
+     * Gain when the ramp started
+     */
+    private float mFrom;
+
+    /**
+     * Gain the ramp ends at
+     */
+    private float mTo;
+
+    /**
+     * Current gain
+     */
+    private float mGain;
+
+    /**
+     * Time the ramp started
+     */
+    private long mStartNanos;
+
+    /**
+     * Time the ramp takes
+     */
+    private long mDurationNanos;
+
+    /**
+     * Curve of the ramp
+     */
+    private FadeCurve mCurve = FadeCurve.LINEAR;
+
+    /**
+     * Whether the ramp is moving
+     */
+    private boolean mRunning;
+
+    /**
+     * Constructor
+     * @param gain initial gain
+     */
+    VolumeRamp(final float gain) {
+        mGain = gain;
+    }
+
+    /**
+     * Stops the ramp and holds the given gain
+     * @param gain gain to hold
+     */
+    void hold(final float gain) {
+        mGain = gain;
+        mRunning = false;
+    }
+
+    /**
+     * Starts moving from the current gain to the given one
+     * @param to gain to end at
+     * @param nowNanos current time
+     * @param durationNanos time the ramp takes for a full swing from 0 to 1
+     * @param curve curve of the ramp
+     */
+    void start(final float to, final long nowNanos, final long durationNanos, final FadeCurve curve) {
+        mFrom = mGain;
+        mTo = to;
+        mStartNanos = nowNanos;
+        /*
+        a partial swing, e.g. when a fade is retargeted, takes proportionally less time
+         */
+        mDurationNanos = (long) (durationNanos * Math.abs(to - mGain));
+        mCurve = curve;
+        mRunning = mDurationNanos > 0;
+        if (!mRunning) {
+            mGain = to;
+        }
+    }
+
+    /**
+     * Updates the current gain
+     * @param nowNanos current time
+     * @return current gain
+     */
+    float update(final long nowNanos) {
+        if (!mRunning) {
+            return mGain;
+        }
+
+        final float t = Math.min(1f, Math.max(0f, (nowNanos - mStartNanos) / (float) mDurationNanos));
+        if (t >= 1f) {
+            mGain = mTo;
+            mRunning = false;
+        } else if (mTo >= mFrom) {
+            mGain = mFrom + (mTo - mFrom) * mCurve.apply(t);
+        } else {
+            /*
+            a fade-out mirrors the fade-in curve in time
+             */
+            mGain = mTo + (mFrom - mTo) * mCurve.apply(1f - t);
+        }
+        return mGain;
+    }
+
+    /**
+     * @return current gain
+     */
+    float getGain() {
+        return mGain;
+    }
+
+    /**
+     * @return true if the ramp is moving
+     */
+    boolean isRunning() {
+        return mRunning;
+    }
+}
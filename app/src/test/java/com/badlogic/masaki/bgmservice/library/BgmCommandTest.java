@@ -0,0 +1,181 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests recycling of BgmCommand, and that sending commands through a channel allocates nothing in steady state.
+ * Only the methods without a handle are measured, since the others allocate the BgmFuture they return.
+ */
+public class BgmCommandTest {
+    private static final long TIMEOUT_MILLIS = 2000;
+    private static final int BURST = 16;
+    private static final int WARMUP_BURSTS = 5000;
+    private static final int MEASURED_BURSTS = 100;
+
+    @Test
+    public void obtain_reusesRecycledCommandCleared() throws Exception {
+        BgmCommand command = BgmCommand.obtain(0.5f, BgmCommand.Type.SET_VOLUME);
+        command.setEnqueuedAtNanos(123);
+        command.recycle();
+
+        BgmCommand reused = BgmCommand.obtain("bgm1.mp3", BgmCommand.Type.START);
+        assertSame(command, reused);
+        assertEquals(BgmCommand.Type.START, reused.getType());
+        assertEquals("bgm1.mp3", reused.getData());
+        assertEquals(0f, reused.getFloatValue(), 0f);
+        assertEquals(0, reused.getEnqueuedAtNanos());
+        assertNull(reused.getFuture());
+    }
+
+    @Test
+    public void obtain_carriesNumbersWithoutBoxing() throws Exception {
+        assertEquals(0.25f, BgmCommand.obtain(0.25f, BgmCommand.Type.SET_VOLUME).getFloatValue(), 0f);
+        assertEquals(1500, BgmCommand.obtain(1500, BgmCommand.Type.SEEK).getIntValue());
+        assertNull(BgmCommand.obtain(1500, BgmCommand.Type.SEEK).getData());
+    }
+
+    @Test
+    public void channelCommands_allocateNothingInSteadyState() throws Exception {
+        Assume.assumeTrue(isClassPresent("com.sun.management.ThreadMXBean"));
+        final AllocationCounter counter = AllocationCounter.create();
+        Assume.assumeNotNull(counter);
+
+        final BgmScheduler scheduler = new BgmScheduler("allocation-test");
+        final BgmChannel channel = new BgmChannel(new BgmChannel.Host() {
+            @Override
+            public PlayerEngine.Factory createEngineFactory() {
+                return new FakePlayerEngine.Factory(0, 0);
+            }
+
+            @Override
+            public BgmScheduler getScheduler() {
+                return scheduler;
+            }
+        }, "allocation-test", new BgmEventDispatcher(new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                runnable.run();
+            }
+        }));
+        channel.startWithoutHandle("bgm1.mp3");
+        channel.setVolume(0.5f);
+        awaitState(channel, BgmWorker.PlaybackState.STARTED);
+        channel.pauseWithoutHandle();
+        awaitState(channel, BgmWorker.PlaybackState.PAUSED);
+        scheduler.shutdown();
+        Thread schedulerThread = null;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("allocation-test")) {
+                schedulerThread = thread;
+            }
+        }
+        assertNotNull(schedulerThread);
+
+        /*
+        commands that leave the state as it is, so that no new state snapshot is published.
+        warms up until the JIT settles, since class loading and deoptimizing allocate a little once.
+        bursts stay well below BgmCommand.MAX_POOL_SIZE, so that every command comes from the pool
+         */
+        final long caller = Thread.currentThread().getId();
+        long sent = channel.getMetrics().snapshot().getCommandLatency().getCount();
+        for (int i = 0; i < WARMUP_BURSTS; i++) {
+            sendBurst(channel);
+            sent += BURST * 2;
+            awaitHandled(channel, sent);
+        }
+
+        final long schedulerBefore = counter.get(schedulerThread.getId());
+        long callerBytes = 0;
+        for (int i = 0; i < MEASURED_BURSTS; i++) {
+            final long before = counter.get(caller);
+            sendBurst(channel);
+            final long after = counter.get(caller);
+
+            /*
+            reading the counter may allocate a little itself
+             */
+            final long emptyAfter = counter.get(caller);
+            callerBytes += (after - before) - (emptyAfter - after);
+
+            sent += BURST * 2;
+            awaitHandled(channel, sent);
+        }
+        final long schedulerBytes = counter.get(schedulerThread.getId()) - schedulerBefore;
+
+        assertEquals("bytes the caller allocates", 0, callerBytes);
+        assertEquals("bytes the scheduler allocates", 0, schedulerBytes);
+
+        channel.destroy();
+        assertTrue(scheduler.awaitTermination(TIMEOUT_MILLIS));
+    }
+
+    private static boolean isClassPresent(final String className) {
+        try {
+            Class.forName(className);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static void sendBurst(final BgmChannel channel) {
+        for (int i = 0; i < BURST; i++) {
+            channel.pauseWithoutHandle();
+            channel.setVolume(0.5f);
+        }
+    }
+
+    private static void awaitState(final BgmChannel channel, final BgmWorker.PlaybackState state)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (channel.getState().getPlaybackState() != state) {
+            assertTrue("expected " + state, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitHandled(final BgmChannel channel, final long count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (channel.getMetrics().snapshot().getCommandLatency().getCount() < count) {
+            assertTrue("commands not handled", System.currentTimeMillis() < deadline);
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Reads bytes a thread allocated. Only loaded once HotSpot's ThreadMXBean is known to exist.
+     */
+    private static final class AllocationCounter {
+        private final com.sun.management.ThreadMXBean mThreads;
+
+        private AllocationCounter(final com.sun.management.ThreadMXBean threads) {
+            mThreads = threads;
+        }
+
+        /**
+         * @return counter, or null if the VM cannot count allocated bytes
+         */
+        static AllocationCounter create() {
+            final Object threads = ManagementFactory.getThreadMXBean();
+            if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+                return null;
+            }
+            final com.sun.management.ThreadMXBean hotSpotThreads = (com.sun.management.ThreadMXBean) threads;
+            if (!hotSpotThreads.isThreadAllocatedMemorySupported()) {
+                return null;
+            }
+            hotSpotThreads.setThreadAllocatedMemoryEnabled(true);
+            return new AllocationCounter(hotSpotThreads);
+        }
+
+        long get(final long threadId) {
+            return mThreads.getThreadAllocatedBytes(threadId);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests BgmEventDispatcher's batching and coalescing
+ */
+public class BgmEventDispatcherTest {
+
+    /**
+     * Tasks posted to the executor, run by the test
+     */
+    private final List<Runnable> mPosted = new ArrayList<>();
+
+    /**
+     * Events received by the listener
+     */
+    private final List<String> mReceived = new ArrayList<>();
+
+    private BgmEventDispatcher mDispatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        mDispatcher = new BgmEventDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                mPosted.add(runnable);
+            }
+        });
+        mDispatcher.addListener(new BgmListener() {
+            @Override
+            public void onStateChanged(BgmWorker.PlaybackState previous, BgmState state) {
+                mReceived.add(previous + "->" + state.getPlaybackState());
+            }
+
+            @Override
+            public void onTrackChanged(String previousFileName, String fileName) {
+                mReceived.add(previousFileName + "=>" + fileName);
+            }
+
+            @Override
+            public void onLoopWrapped(String fileName, int count) {
+                mReceived.add("loop " + fileName + " x" + count);
+            }
+
+            @Override
+            public void onError(String fileName, int what, int extra) {
+                mReceived.add("error " + fileName + " " + what + "/" + extra);
+            }
+        });
+    }
+
+    private static BgmState state(final BgmWorker.PlaybackState playbackState) {
+        return new BgmState(playbackState, "bgm1.mp3", 0, 1f, true, 0);
+    }
+
+    private void runPosted() {
+        final List<Runnable> posted = new ArrayList<>(mPosted);
+        mPosted.clear();
+        for (Runnable runnable : posted) {
+            runnable.run();
+        }
+    }
+
+    @Test
+    public void burst_isDeliveredInOneDispatchAsNetChange() throws Exception {
+        mDispatcher.trackChanged(null, "bgm1.mp3");
+        mDispatcher.stateChanged(BgmWorker.PlaybackState.IDLED, state(BgmWorker.PlaybackState.INITIALIZED));
+        mDispatcher.stateChanged(BgmWorker.PlaybackState.INITIALIZED, state(BgmWorker.PlaybackState.PREPARING));
+        mDispatcher.stateChanged(BgmWorker.PlaybackState.PREPARING, state(BgmWorker.PlaybackState.PREPARED));
+        mDispatcher.stateChanged(BgmWorker.PlaybackState.PREPARED, state(BgmWorker.PlaybackState.STARTED));
+        assertEquals(1, mPosted.size());
+
+        runPosted();
+        assertEquals(2, mReceived.size());
+        assertEquals("null=>bgm1.mp3", mReceived.get(0));
+        assertEquals("IDLED->STARTED", mReceived.get(1));
+    }
+
+    @Test
+    public void changesThatCancelOut_deliverNothing() throws Exception {
+        mDispatcher.stateChanged(BgmWorker.PlaybackState.STARTED, state(BgmWorker.PlaybackState.PAUSED));
+        mDispatcher.stateChanged(BgmWorker.PlaybackState.PAUSED, state(BgmWorker.PlaybackState.STARTED));
+        mDispatcher.trackChanged("bgm1.mp3", "bgm2.mp3");
+        mDispatcher.trackChanged("bgm2.mp3", "bgm1.mp3");
+        runPosted();
+        assertTrue(mReceived.isEmpty());
+    }
+
+    @Test
+    public void loopsAreCountedAndErrorsKept() throws Exception {
+        mDispatcher.loopWrapped("bgm1.mp3");
+        mDispatcher.loopWrapped("bgm1.mp3");
+        mDispatcher.loopWrapped("bgm1.mp3");
+        mDispatcher.error("bgm1.mp3", 1, -1004);
+        mDispatcher.error(null, 100, 0);
+        runPosted();
+
+        assertEquals(3, mReceived.size());
+        assertEquals("loop bgm1.mp3 x3", mReceived.get(0));
+        assertEquals("error bgm1.mp3 1/-1004", mReceived.get(1));
+        assertEquals("error null 100/0", mReceived.get(2));
+    }
+
+    @Test
+    public void eventsAfterDispatchPostAnotherOne() throws Exception {
+        mDispatcher.stateChanged(BgmWorker.PlaybackState.PREPARED, state(BgmWorker.PlaybackState.STARTED));
+        runPosted();
+        mDispatcher.stateChanged(BgmWorker.PlaybackState.STARTED, state(BgmWorker.PlaybackState.PAUSED));
+        assertEquals(1, mPosted.size());
+        runPosted();
+        assertEquals(2, mReceived.size());
+        assertEquals("STARTED->PAUSED", mReceived.get(1));
+    }
+
+    @Test
+    public void withoutListeners_nothingIsPosted() throws Exception {
+        BgmEventDispatcher dispatcher = new BgmEventDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                fail("posted without listeners");
+            }
+        });
+        dispatcher.stateChanged(BgmWorker.PlaybackState.PREPARED, state(BgmWorker.PlaybackState.STARTED));
+        dispatcher.loopWrapped("bgm1.mp3");
+    }
+}
@@ -0,0 +1,165 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests BgmScheduler running several BgmWorkers as channels over FakePlayerEngine
+ */
+public class BgmSchedulerTest {
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    private BgmScheduler mScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        mScheduler = new BgmScheduler("test");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mScheduler.shutdown();
+    }
+
+    @Test
+    public void channels_playIndependentlyOnOneThread() throws Exception {
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final BgmListener listener = new BgmListener.Adapter() {
+            @Override
+            public void onStateChanged(BgmWorker.PlaybackState previous, BgmState state) {
+                threads.add(Thread.currentThread());
+            }
+        };
+
+        final BgmWorker[] workers = new BgmWorker[3];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new BgmWorker(new FakePlayerEngine.Factory(20, 0));
+            workers[i].getEventDispatcher().addListener(listener);
+            workers[i].start(mScheduler);
+            workers[i].addCommand(new BgmCommand("bgm" + i + ".mp3", BgmCommand.Type.START));
+        }
+        for (BgmWorker worker : workers) {
+            awaitState(worker, BgmWorker.PlaybackState.STARTED);
+        }
+
+        workers[1].addCommand(new BgmCommand(BgmCommand.Type.PAUSE));
+        awaitState(workers[1], BgmWorker.PlaybackState.PAUSED);
+        assertEquals(BgmWorker.PlaybackState.STARTED, workers[0].getPlaybackState());
+        assertEquals(BgmWorker.PlaybackState.STARTED, workers[2].getPlaybackState());
+        assertEquals("bgm2.mp3", workers[2].getBgmState().getFileName());
+
+        assertEquals(1, threads.size());
+        for (BgmWorker worker : workers) {
+            destroy(worker);
+        }
+    }
+
+    @Test
+    public void crossfade_stepsWithoutCommands() throws Exception {
+        final FakePlayerEngine.Factory factory = new FakePlayerEngine.Factory(20, 0);
+        final BgmWorker fading = new BgmWorker(factory);
+        final BgmWorker idle = new BgmWorker(new FakePlayerEngine.Factory(20, 0));
+        fading.start(mScheduler);
+        idle.start(mScheduler);
+
+        fading.addCommand(new BgmCommand(
+                new BgmWorker.CrossfadeSettings(200, FadeCurve.LINEAR), BgmCommand.Type.SET_CROSSFADE));
+        fading.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(fading, BgmWorker.PlaybackState.STARTED);
+        fading.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+
+        /*
+        no command arrives during the crossfade, so only its wake-ups step the volumes
+         */
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (factory.getEngines().size() < 2 || factory.getEngines().get(1).getVolume() != 1f ||
+                factory.getEngines().get(0).getState() != BgmWorker.PlaybackState.IDLED) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("crossfade did not finish");
+            }
+            Thread.sleep(1);
+        }
+        assertTrue(factory.getEngines().get(1).getVolumeHistory().size() > 2);
+
+        destroy(fading);
+        destroy(idle);
+    }
+
+    @Test
+    public void shutdown_finishesOnceEveryWorkerIsDestroyed() throws Exception {
+        final BgmWorker first = new BgmWorker(new FakePlayerEngine.Factory(20, 0));
+        final BgmWorker second = new BgmWorker(new FakePlayerEngine.Factory(20, 0));
+        first.start(mScheduler);
+        second.start(mScheduler);
+        mScheduler.shutdown();
+
+        destroy(first);
+        assertFalse(first.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START)));
+        assertFalse(mScheduler.awaitTermination(50));
+
+        second.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitState(second, BgmWorker.PlaybackState.STARTED);
+        destroy(second);
+        assertTrue(mScheduler.awaitTermination(TIMEOUT_MILLIS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void attach_failsOnceShutDown() throws Exception {
+        mScheduler.shutdown();
+        new BgmWorker(new FakePlayerEngine.Factory()).start(mScheduler);
+    }
+
+    @Test
+    public void channel_destroyedBeforeFirstCommand_failsCommandsAtOnce() throws Exception {
+        final BgmChannel channel = new BgmChannel(new BgmChannel.Host() {
+            @Override
+            public PlayerEngine.Factory createEngineFactory() {
+                return new FakePlayerEngine.Factory();
+            }
+
+            @Override
+            public BgmScheduler getScheduler() {
+                return mScheduler;
+            }
+        }, "test", new BgmEventDispatcher(new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                runnable.run();
+            }
+        }));
+        channel.destroy();
+        mScheduler.shutdown();
+
+        final BgmFuture future = channel.start("bgm1.mp3");
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccess());
+        assertTrue(channel.stopAfter(10).isCancelled());
+        channel.pauseWithoutHandle();
+        assertTrue(mScheduler.awaitTermination(TIMEOUT_MILLIS));
+    }
+
+    private static void destroy(final BgmWorker worker) throws InterruptedException {
+        worker.addCommand(new BgmCommand(BgmCommand.Type.RELEASE));
+        worker.addCommand(new BgmCommand(BgmCommand.Type.DESTROY));
+        assertTrue(worker.awaitDestroyed(TIMEOUT_MILLIS));
+    }
+
+    private static void awaitState(final BgmWorker worker, final BgmWorker.PlaybackState state)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (worker.getPlaybackState() != state) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected " + state + " but was " + worker.getPlaybackState());
+            }
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fires randomized commands from many threads at BgmWorker over FakePlayerEngine,
+ * checking every transition of every player against MediaPlayer's state diagram.
+ * Run it longer with -PsoakCommands=10000000, or -Dbgm.soak.commands outside Gradle.
+ */
+public class BgmWorkerSoakTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int PRODUCERS = 8;
+    private static final int DEFAULT_COMMANDS = 200000;
+    private static final String[] FILE_NAMES = {"bgm1.mp3", "bgm2.mp3", "bgm3.mp3"};
+
+    /**
+     * States each state may move to, besides staying where it is. Any state may be reset or released.
+     */
+    private static final Map<BgmWorker.PlaybackState, EnumSet<BgmWorker.PlaybackState>> sTransitions =
+            new EnumMap<>(BgmWorker.PlaybackState.class);
+
+    static {
+        for (BgmWorker.PlaybackState state : BgmWorker.PlaybackState.values()) {
+            sTransitions.put(state, EnumSet.of(BgmWorker.PlaybackState.IDLED, BgmWorker.PlaybackState.ENDED));
+        }
+        sTransitions.put(BgmWorker.PlaybackState.ENDED, EnumSet.noneOf(BgmWorker.PlaybackState.class));
+        allow(BgmWorker.PlaybackState.IDLED, BgmWorker.PlaybackState.INITIALIZED);
+        allow(BgmWorker.PlaybackState.INITIALIZED, BgmWorker.PlaybackState.PREPARING);
+        allow(BgmWorker.PlaybackState.STOPPED, BgmWorker.PlaybackState.PREPARING);
+        allow(BgmWorker.PlaybackState.PREPARING, BgmWorker.PlaybackState.PREPARED);
+        allow(BgmWorker.PlaybackState.PREPARED, BgmWorker.PlaybackState.STARTED, BgmWorker.PlaybackState.STOPPED);
+        allow(BgmWorker.PlaybackState.STARTED, BgmWorker.PlaybackState.PAUSED, BgmWorker.PlaybackState.STOPPED,
+                BgmWorker.PlaybackState.PLAYBACK_COMPLETED);
+        allow(BgmWorker.PlaybackState.PAUSED, BgmWorker.PlaybackState.STARTED, BgmWorker.PlaybackState.STOPPED);
+        allow(BgmWorker.PlaybackState.PLAYBACK_COMPLETED, BgmWorker.PlaybackState.STARTED,
+                BgmWorker.PlaybackState.PAUSED, BgmWorker.PlaybackState.STOPPED);
+    }
+
+    private static void allow(final BgmWorker.PlaybackState from, final BgmWorker.PlaybackState... to) {
+        for (BgmWorker.PlaybackState state : to) {
+            sTransitions.get(from).add(state);
+        }
+    }
+
+    private final ConcurrentLinkedQueue<String> mViolations = new ConcurrentLinkedQueue<>();
+    private final List<CheckingEngine> mEngines = new ArrayList<>();
+
+    @Test
+    public void commandStorm_keepsEveryPlayerInALegalState() throws Exception {
+        final int commands = Integer.getInteger("bgm.soak.commands", DEFAULT_COMMANDS);
+        final BgmWorker worker = new BgmWorker(new PlayerEngine.Factory() {
+            @Override
+            public PlayerEngine create() {
+                final CheckingEngine engine = new CheckingEngine(new FakePlayerEngine(0, 0));
+                synchronized (mEngines) {
+                    mEngines.add(engine);
+                }
+                return engine;
+            }
+        });
+        worker.start();
+
+        final CountDownLatch ready = new CountDownLatch(PRODUCERS);
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicInteger retries = new AtomicInteger();
+        final Thread[] producers = new Thread[PRODUCERS];
+        for (int i = 0; i < PRODUCERS; i++) {
+            final Random random = new Random(22 + i);
+            final int count = commands / PRODUCERS;
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < count; j++) {
+                        final BgmCommand command = randomCommand(random);
+                        /*
+                        keeps the command when the queue is full, as callers of BgmService would retry
+                         */
+                        while (!worker.addCommand(command)) {
+                            retries.incrementAndGet();
+                            Thread.yield();
+                        }
+                    }
+                }
+            }, "producer-" + i);
+            producers[i].start();
+        }
+
+        ready.await();
+        final long startedAt = System.nanoTime();
+        go.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        /*
+        commands are handled in order, so music that responds has handled the storm
+         */
+        await(worker, BgmCommand.obtain("bgm1.mp3", BgmCommand.Type.START), BgmWorker.PlaybackState.STARTED);
+        final long elapsedNanos = System.nanoTime() - startedAt;
+
+        final BgmMetrics.Snapshot snapshot = worker.getMetrics().snapshot();
+        final LatencyHistogram.Snapshot latency = snapshot.getCommandLatency();
+        System.out.println("soak: " + commands / PRODUCERS * PRODUCERS + " commands from " + PRODUCERS + " threads in "
+                + elapsedNanos / 1000000 + "ms, " + (long) (latency.getCount() * 1e9 / elapsedNanos) + " commands/s"
+                + ", p99=" + latency.getPercentileNanos(99) / 1000 + "us"
+                + " p99.9=" + latency.getPercentileNanos(99.9) / 1000 + "us"
+                + " max=" + latency.getMaxNanos() / 1000 + "us"
+                + ", " + retries.get() + " retried on a full queue, " + mEngines.size() + " players");
+
+        await(worker, BgmCommand.obtain(BgmCommand.Type.PAUSE), BgmWorker.PlaybackState.PAUSED);
+        await(worker, BgmCommand.obtain(BgmCommand.Type.RESUME), BgmWorker.PlaybackState.STARTED);
+        await(worker, BgmCommand.obtain(BgmCommand.Type.STOP), BgmWorker.PlaybackState.STOPPED);
+        await(worker, BgmCommand.obtain(BgmCommand.Type.RELEASE), BgmWorker.PlaybackState.IDLED);
+        worker.addCommand(BgmCommand.obtain(BgmCommand.Type.DESTROY));
+        assertTrue(worker.awaitDestroyed(TIMEOUT_MILLIS));
+
+        assertTrue(mViolations.size() + " illegal calls or transitions, first: " + mViolations.peek(),
+                mViolations.isEmpty());
+        synchronized (mEngines) {
+            for (CheckingEngine engine : mEngines) {
+                assertEquals("leaked player", BgmWorker.PlaybackState.ENDED, engine.mEngine.getState());
+            }
+        }
+    }
+
+    /**
+     * Picks a command as a game would send them, mostly playback controls and now and then a new music
+     */
+    private static BgmCommand randomCommand(final Random random) {
+        final int roll = random.nextInt(100);
+        if (roll < 15) {
+            return BgmCommand.obtain(FILE_NAMES[random.nextInt(FILE_NAMES.length)], BgmCommand.Type.START);
+        } else if (roll < 20) {
+            return BgmCommand.obtain(FILE_NAMES[random.nextInt(FILE_NAMES.length)], BgmCommand.Type.PRELOAD);
+        } else if (roll < 40) {
+            return BgmCommand.obtain(BgmCommand.Type.PAUSE);
+        } else if (roll < 60) {
+            return BgmCommand.obtain(BgmCommand.Type.RESUME);
+        } else if (roll < 72) {
+            return BgmCommand.obtain(BgmCommand.Type.STOP);
+        } else if (roll < 84) {
+            return BgmCommand.obtain(random.nextInt(60000), BgmCommand.Type.SEEK);
+        } else if (roll < 90) {
+            return BgmCommand.obtain(random.nextInt(4) / 3f, BgmCommand.Type.SET_VOLUME);
+        } else if (roll < 91) {
+            return BgmCommand.obtain(new BgmWorker.CrossfadeSettings(random.nextInt(3) * 20, FadeCurve.LINEAR),
+                    BgmCommand.Type.SET_CROSSFADE);
+        } else {
+            return BgmCommand.obtain(BgmCommand.Type.RELEASE);
+        }
+    }
+
+    /**
+     * Sends a command and waits until the worker reaches the state it asked for
+     */
+    private static void await(final BgmWorker worker, final BgmCommand command,
+                              final BgmWorker.PlaybackState state) throws InterruptedException {
+        final BgmFuture future = new BgmFuture(worker.getEventDispatcher().getExecutor());
+        while (!worker.addCommand(command.setFuture(future))) {
+            Thread.yield();
+        }
+        assertTrue("timed out waiting for " + state, future.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(future.toString(), future.isSuccess());
+        assertEquals(state, future.getState().getPlaybackState());
+    }
+
+    /**
+     * Records the state of the player around every call, and calls that threw
+     */
+    private final class CheckingEngine implements PlayerEngine {
+        private final FakePlayerEngine mEngine;
+
+        CheckingEngine(final FakePlayerEngine engine) {
+            mEngine = engine;
+        }
+
+        /**
+         * Checks the move from a state read before a call to the one after it.
+         * Preparing may finish on the callback thread in between.
+         */
+        private void check(final String call, final BgmWorker.PlaybackState before) {
+            final BgmWorker.PlaybackState after = mEngine.getState();
+            if (isLegal(before, after)
+                    || (after == BgmWorker.PlaybackState.PREPARED && isLegal(before, BgmWorker.PlaybackState.PREPARING))
+                    || (before == BgmWorker.PlaybackState.PREPARING && isLegal(BgmWorker.PlaybackState.PREPARED, after))) {
+                return;
+            }
+            mViolations.add(call + ": " + before + " -> " + after);
+        }
+
+        private boolean isLegal(final BgmWorker.PlaybackState before, final BgmWorker.PlaybackState after) {
+            return after == before || sTransitions.get(before).contains(after);
+        }
+
+        private IllegalStateException violated(final String call, final BgmWorker.PlaybackState before,
+                                               final IllegalStateException e) {
+            mViolations.add(call + " in " + before + ": " + e.getMessage());
+            return e;
+        }
+
+        @Override
+        public void setCallback(final Callback callback) {
+            /*
+            the worker tells its players apart by the engine it gets back
+             */
+            mEngine.setCallback(callback == null ? null : new Callback() {
+                @Override
+                public void onPrepared(final PlayerEngine engine) {
+                    callback.onPrepared(CheckingEngine.this);
+                }
+
+                @Override
+                public void onCompletion(final PlayerEngine engine) {
+                    callback.onCompletion(CheckingEngine.this);
+                }
+
+                @Override
+                public void onLoop(final PlayerEngine engine) {
+                    callback.onLoop(CheckingEngine.this);
+                }
+
+                @Override
+                public void onBufferingUpdate(final PlayerEngine engine, final int percent) {
+                    callback.onBufferingUpdate(CheckingEngine.this, percent);
+                }
+
+                @Override
+                public void onUnderrun(final PlayerEngine engine, final long stallNanos) {
+                    callback.onUnderrun(CheckingEngine.this, stallNanos);
+                }
+
+                @Override
+                public boolean onError(final PlayerEngine engine, final int what, final int extra) {
+                    return callback.onError(CheckingEngine.this, what, extra);
+                }
+            });
+        }
+
+        @Override
+        public void setDataSource(final String fileName) throws IOException {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                mEngine.setDataSource(fileName);
+            } catch (IllegalStateException e) {
+                throw violated("setDataSource", before, e);
+            }
+            check("setDataSource", before);
+        }
+
+        @Override
+        public void setLooping(final boolean looping) {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                mEngine.setLooping(looping);
+            } catch (IllegalStateException e) {
+                throw violated("setLooping", before, e);
+            }
+            check("setLooping", before);
+        }
+
+        @Override
+        public void setLoopPoints(final LoopPoints points) {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                mEngine.setLoopPoints(points);
+            } catch (IllegalStateException e) {
+                throw violated("setLoopPoints", before, e);
+            }
+            check("setLoopPoints", before);
+        }
+
+        @Override
+        public void setVolume(final float volume) {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                mEngine.setVolume(volume);
+            } catch (IllegalStateException e) {
+                throw violated("setVolume", before, e);
+            }
+            check("setVolume", before);
+        }
+
+        @Override
+        public void prepareAsync() {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                mEngine.prepareAsync();
+            } catch (IllegalStateException e) {
+                throw violated("prepareAsync", before, e);
+            }
+            check("prepareAsync", before);
+        }
+
+        @Override
+        public void start() {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                mEngine.start();
+            } catch (IllegalStateException e) {
+                throw violated("start", before, e);
+            }
+            check("start", before);
+        }
+
+        @Override
+        public void pause() {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                mEngine.pause();
+            } catch (IllegalStateException e) {
+                throw violated("pause", before, e);
+            }
+            check("pause", before);
+        }
+
+        @Override
+        public void stop() {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                mEngine.stop();
+            } catch (IllegalStateException e) {
+                throw violated("stop", before, e);
+            }
+            check("stop", before);
+        }
+
+        @Override
+        public void seekTo(final int positionMillis) {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                mEngine.seekTo(positionMillis);
+            } catch (IllegalStateException e) {
+                throw violated("seekTo", before, e);
+            }
+            check("seekTo", before);
+        }
+
+        @Override
+        public int getCurrentPosition() {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                return mEngine.getCurrentPosition();
+            } catch (IllegalStateException e) {
+                throw violated("getCurrentPosition", before, e);
+            }
+        }
+
+        @Override
+        public void reset() {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                mEngine.reset();
+            } catch (IllegalStateException e) {
+                throw violated("reset", before, e);
+            }
+            check("reset", before);
+        }
+
+        @Override
+        public void release() {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            mEngine.release();
+            check("release", before);
+        }
+
+        @Override
+        public boolean isPlaying() {
+            final BgmWorker.PlaybackState before = mEngine.getState();
+            try {
+                return mEngine.isPlaying();
+            } catch (IllegalStateException e) {
+                throw violated("isPlaying", before, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,1032 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests BgmWorker's command loop and state machine over FakePlayerEngine
+ */
+public class BgmWorkerTest {
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    private FakePlayerEngine.Factory mFactory;
+
+    private BgmWorker mWorker;
+
+    @Before
+    public void setUp() throws Exception {
+        startWorker(20, 0);
+    }
+
+    private void startWorker(final long prepareDelayMillis, final long startDelayMillis) throws Exception {
+        if (mWorker != null) {
+            tearDown();
+        }
+        mFactory = new FakePlayerEngine.Factory(prepareDelayMillis, startDelayMillis);
+        mWorker = new BgmWorker(mFactory);
+        mWorker.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.RELEASE));
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.DESTROY));
+        assertTrue(mWorker.awaitDestroyed(TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void start_preparesAndStartsMusic() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        assertEquals("bgm1.mp3", engine.getDataSource());
+        assertTrue(engine.isLooping());
+        assertEquals(1, engine.getPrepareCount());
+        assertEquals(1, engine.getStartCount());
+        assertTrue(mWorker.isPlaying());
+    }
+
+    @Test
+    public void pauseAndResume_togglePlayback() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.PAUSE));
+        awaitState(BgmWorker.PlaybackState.PAUSED);
+        assertFalse(mWorker.isPlaying());
+
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.RESUME));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        assertTrue(mWorker.isPlaying());
+    }
+
+    @Test
+    public void start_withAnotherFile_reusesPlayer() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitDataSource("bgm1.mp3");
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        assertEquals(1, mFactory.getEngines().size());
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        assertEquals(1, engine.getStopCount());
+        assertEquals(2, engine.getPrepareCount());
+    }
+
+    @Test
+    public void start_withCurrentFile_isIgnored() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.PAUSE));
+        awaitState(BgmWorker.PlaybackState.PAUSED);
+
+        assertEquals(1, mFactory.getEngines().get(0).getPrepareCount());
+    }
+
+    @Test
+    public void release_releasesPlayer() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.RELEASE));
+        awaitState(BgmWorker.PlaybackState.IDLED);
+
+        assertFalse(mWorker.isPlayable());
+        assertEquals(BgmWorker.PlaybackState.ENDED, mFactory.getEngines().get(0).getState());
+    }
+
+    @Test
+    public void burstWhileBusy_reconcilesToNetState() throws Exception {
+        startWorker(0, 100);
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitStartCount(1);
+
+        /*
+        the worker is blocked in start(), so the whole burst is handled at once
+         */
+        for (int i = 0; i < 10; i++) {
+            mWorker.addCommand(new BgmCommand(BgmCommand.Type.PAUSE));
+            mWorker.addCommand(new BgmCommand(BgmCommand.Type.RESUME));
+        }
+        mWorker.addCommand(new BgmCommand(0.5f, BgmCommand.Type.SET_VOLUME));
+        awaitVolume(0.5f);
+
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        assertEquals(BgmWorker.PlaybackState.STARTED, mWorker.getPlaybackState());
+        assertEquals(0, engine.getPauseCount());
+        assertEquals(1, engine.getStartCount());
+    }
+
+    @Test
+    public void pauseWhilePreparing_keepsMusicPaused() throws Exception {
+        startWorker(50, 0);
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.PAUSE));
+        awaitState(BgmWorker.PlaybackState.PREPARED);
+
+        Thread.sleep(50);
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        assertEquals(BgmWorker.PlaybackState.PREPARED, mWorker.getPlaybackState());
+        assertEquals(0, engine.getStartCount());
+
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.RESUME));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        assertEquals(1, engine.getStartCount());
+        assertEquals(1, engine.getPrepareCount());
+    }
+
+    @Test
+    public void switchingFilesInBurst_preparesOnlyLastFile() throws Exception {
+        startWorker(0, 100);
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitStartCount(1);
+
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitDataSource("bgm2.mp3");
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        assertEquals(2, mFactory.getEngines().get(0).getPrepareCount());
+    }
+
+    @Test
+    public void stop_stopsMusicAndResumePreparesAgain() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.STOP));
+        awaitState(BgmWorker.PlaybackState.STOPPED);
+        assertFalse(mWorker.isPlaying());
+
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.RESUME));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        assertEquals(2, engine.getPrepareCount());
+        assertEquals(0, engine.getResetCount());
+    }
+
+    @Test
+    public void setVolume_isAppliedToPlayer() throws Exception {
+        mWorker.addCommand(new BgmCommand(0.25f, BgmCommand.Type.SET_VOLUME));
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        awaitVolume(0.25f);
+
+        mWorker.addCommand(new BgmCommand(0.75f, BgmCommand.Type.SET_VOLUME));
+        awaitVolume(0.75f);
+    }
+
+    @Test
+    public void start_withPreloadedFile_swapsWithoutPreparing() throws Exception {
+        startWorker(100, 0);
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.PRELOAD));
+        awaitEngineState(1, BgmWorker.PlaybackState.PREPARED);
+
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(1);
+
+        TrackSwitchStats stats = mWorker.getTrackSwitchStats();
+        assertEquals(1, stats.getPreloadedSwitchCount());
+        assertTrue(stats.getLastLatencyNanos() < TimeUnit.MILLISECONDS.toNanos(100));
+
+        FakePlayerEngine previous = mFactory.getEngines().get(0);
+        FakePlayerEngine preloaded = mFactory.getEngines().get(1);
+        assertEquals(BgmWorker.PlaybackState.STARTED, preloaded.getState());
+        assertEquals(1, preloaded.getPrepareCount());
+        assertEquals(BgmWorker.PlaybackState.IDLED, previous.getState());
+
+        /*
+        switching back without preload prepares on the current player and reuses no new one
+         */
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(2);
+        assertEquals(1, stats.getPreloadedSwitchCount());
+        assertTrue(stats.getLastLatencyNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertEquals(2, mFactory.getEngines().size());
+        assertEquals("bgm2.mp3", preloaded.getDataSource());
+    }
+
+    @Test
+    public void start_whilePreloading_recordsPrepareTimeOfStandby() throws Exception {
+        startWorker(100, 0);
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        Thread.sleep(300);
+
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.PRELOAD));
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(1);
+
+        /*
+        measured from when the standby player started preparing, not from when bgm1.mp3 did
+         */
+        LatencyHistogram.Snapshot prepare = mWorker.getMetrics().snapshot().getPrepareDuration("bgm2.mp3");
+        assertEquals(1, prepare.getCount());
+        assertTrue(prepare.getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(prepare.getMaxNanos() < TimeUnit.MILLISECONDS.toNanos(300));
+    }
+
+    @Test
+    public void collectFileNames_includesStandbyMusic() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.PRELOAD));
+        awaitEngineState(1, BgmWorker.PlaybackState.PREPARED);
+
+        Set<String> fileNames = new HashSet<>();
+        mWorker.collectFileNames(fileNames);
+        assertEquals(new HashSet<>(Arrays.asList("bgm1.mp3", "bgm2.mp3")), fileNames);
+    }
+
+    @Test
+    public void trimMemory_releasesStandbyAndKeepsCurrent() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.PRELOAD));
+        awaitEngineState(1, BgmWorker.PlaybackState.PREPARED);
+
+        MemoryTrimStats stats = new MemoryTrimStats();
+        mWorker.addCommand(new BgmCommand(new BgmWorker.MemoryTrim(MemoryTrimStats.Tier.LIGHT, stats),
+                BgmCommand.Type.TRIM_MEMORY));
+        awaitEngineState(1, BgmWorker.PlaybackState.ENDED);
+        assertEquals(BgmWorker.PlaybackState.STARTED, mFactory.getEngines().get(0).getState());
+        assertEquals(1, stats.getReleasedPlayerCount(MemoryTrimStats.Tier.LIGHT));
+
+        /*
+        the released music is prepared again only when it is started, which counts as re-warming
+         */
+        Thread.sleep(50);
+        assertEquals(2, mFactory.getEngines().size());
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(1);
+        assertEquals(0, mWorker.getTrackSwitchStats().getPreloadedSwitchCount());
+        assertEquals(1, stats.getRewarmCount(MemoryTrimStats.Tier.LIGHT));
+        assertTrue(stats.getRewarmNanos(MemoryTrimStats.Tier.LIGHT) >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void start_whilePreloading_waitsForStandbyPlayer() throws Exception {
+        startWorker(100, 0);
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.PRELOAD));
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(1);
+
+        assertEquals(1, mWorker.getTrackSwitchStats().getPreloadedSwitchCount());
+        assertEquals(1, mFactory.getEngines().get(1).getPrepareCount());
+        assertEquals(1, mFactory.getEngines().get(0).getPrepareCount());
+    }
+
+    @Test
+    public void release_releasesStandbyPlayer() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.PRELOAD));
+        awaitEngineState(1, BgmWorker.PlaybackState.PREPARED);
+
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.RELEASE));
+        awaitEngineState(1, BgmWorker.PlaybackState.ENDED);
+        awaitEngineState(0, BgmWorker.PlaybackState.ENDED);
+    }
+
+    @Test
+    public void start_withCrossfade_fadesBothPlayers() throws Exception {
+        mWorker.addCommand(new BgmCommand(
+                new BgmWorker.CrossfadeSettings(200, FadeCurve.LINEAR), BgmCommand.Type.SET_CROSSFADE));
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(1);
+
+        /*
+        both players play while the crossfade is in progress
+         */
+        FakePlayerEngine outgoing = mFactory.getEngines().get(0);
+        FakePlayerEngine incoming = mFactory.getEngines().get(1);
+        assertEquals(BgmWorker.PlaybackState.STARTED, outgoing.getState());
+        assertEquals(BgmWorker.PlaybackState.STARTED, incoming.getState());
+        assertEquals(0f, incoming.getVolumeHistory().get(0), 0f);
+
+        awaitEngineState(0, BgmWorker.PlaybackState.IDLED);
+        awaitEngineVolume(1, 1f);
+
+        assertRamp(outgoing.getVolumeHistory(), false);
+        assertRamp(incoming.getVolumeHistory(), true);
+        assertEquals(0, outgoing.getStopCount());
+        assertEquals(2, mFactory.getEngines().size());
+    }
+
+    @Test
+    public void start_backToFadingMusic_retargetsCrossfade() throws Exception {
+        mWorker.addCommand(new BgmCommand(
+                new BgmWorker.CrossfadeSettings(400, FadeCurve.EQUAL_POWER), BgmCommand.Type.SET_CROSSFADE));
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(1);
+        Thread.sleep(100);
+
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(2);
+
+        FakePlayerEngine first = mFactory.getEngines().get(0);
+        FakePlayerEngine second = mFactory.getEngines().get(1);
+        awaitEngineState(1, BgmWorker.PlaybackState.IDLED);
+        awaitEngineVolume(0, 1f);
+
+        /*
+        the music fading out is taken back without preparing it again
+         */
+        assertEquals(BgmWorker.PlaybackState.STARTED, first.getState());
+        assertEquals(1, first.getPrepareCount());
+        assertEquals(1, second.getPrepareCount());
+        assertEquals(2, mFactory.getEngines().size());
+    }
+
+    @Test
+    public void start_duringCrossfade_retiresFadingPlayer() throws Exception {
+        mWorker.addCommand(new BgmCommand(
+                new BgmWorker.CrossfadeSettings(400, FadeCurve.S_CURVE), BgmCommand.Type.SET_CROSSFADE));
+        mWorker.addCommand(new BgmCommand("a.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        mWorker.addCommand(new BgmCommand("b.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(1);
+        mWorker.addCommand(new BgmCommand("c.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(2);
+
+        /*
+        a.mp3 is cut and its player is reused for c.mp3, while b.mp3 fades out
+         */
+        FakePlayerEngine first = mFactory.getEngines().get(0);
+        assertEquals("c.mp3", first.getDataSource());
+        awaitEngineState(1, BgmWorker.PlaybackState.IDLED);
+        awaitEngineVolume(0, 1f);
+        assertEquals(BgmWorker.PlaybackState.STARTED, first.getState());
+        assertEquals(2, mFactory.getEngines().size());
+    }
+
+    @Test
+    public void pause_duringCrossfade_cancelsIt() throws Exception {
+        mWorker.addCommand(new BgmCommand(
+                new BgmWorker.CrossfadeSettings(1000, FadeCurve.LINEAR), BgmCommand.Type.SET_CROSSFADE));
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(1);
+
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.PAUSE));
+        awaitState(BgmWorker.PlaybackState.PAUSED);
+
+        assertEquals(BgmWorker.PlaybackState.IDLED, mFactory.getEngines().get(0).getState());
+        assertEquals(1f, mFactory.getEngines().get(1).getVolume(), 0f);
+    }
+
+    @Test
+    public void seek_whileStarted_seeksPlayer() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        mWorker.addCommand(new BgmCommand(1500, BgmCommand.Type.SEEK));
+        awaitPosition(1500);
+
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        assertEquals(1, engine.getSeekCount());
+        assertEquals(1, engine.getPrepareCount());
+        assertEquals(BgmWorker.PlaybackState.STARTED, engine.getState());
+    }
+
+    @Test
+    public void seek_whileStopped_startsFromPositionOnResume() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.STOP));
+        awaitState(BgmWorker.PlaybackState.STOPPED);
+
+        /*
+        the seek waits for the resume, and is applied before preparing
+         */
+        mWorker.addCommand(new BgmCommand(3000, BgmCommand.Type.SEEK));
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.RESUME));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        assertEquals(3000, engine.getCurrentPosition());
+        assertEquals(1, engine.getSeekCount());
+        assertEquals(2, engine.getPrepareCount());
+    }
+
+    @Test
+    public void seek_beforeAnotherFile_isDropped() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        mWorker.addCommand(new BgmCommand(3000, BgmCommand.Type.SEEK));
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        assertEquals("bgm2.mp3", engine.getDataSource());
+        assertEquals(0, engine.getSeekCount());
+    }
+
+    @Test
+    public void loopPoints_wrapAtExactSampleOverThousandsOfLoops() throws Exception {
+        final int loopStart = 1000;
+        final int loopEnd = 1097;
+        mWorker.addCommand(new BgmCommand(new BgmWorker.LoopSettings("bgm1.mp3", new LoopPoints(loopStart, loopEnd)),
+                BgmCommand.Type.SET_LOOP_POINTS));
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        /*
+        every sample is its frame number, so the next one is always predictable
+         */
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        short[] chunk = new short[512];
+        int expected = 0;
+        int loops = 0;
+        for (int i = 0; loops < 5000; i++) {
+            final int frames = 1 + i * 37 % chunk.length;
+            assertEquals(frames, engine.render(chunk, frames));
+            for (int j = 0; j < frames; j++) {
+                assertEquals("frame " + j + " of chunk " + i, expected, chunk[j]);
+                if (++expected == loopEnd) {
+                    expected = loopStart;
+                    loops++;
+                }
+            }
+        }
+
+        assertEquals(1, engine.getPrepareCount());
+        assertEquals(0, engine.getSeekCount());
+        assertEquals(BgmWorker.PlaybackState.STARTED, engine.getState());
+    }
+
+    @Test
+    public void loopPoints_setWhilePlaying_applyToCurrentPlayer() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        LoopPoints points = new LoopPoints(100, 200);
+        mWorker.addCommand(new BgmCommand(new BgmWorker.LoopSettings("bgm1.mp3", points),
+                BgmCommand.Type.SET_LOOP_POINTS));
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (engine.getLoopPoints() != points) {
+            assertTrue("loop points not applied", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        mWorker.addCommand(new BgmCommand(new BgmWorker.LoopSettings("bgm1.mp3", null),
+                BgmCommand.Type.SET_LOOP_POINTS));
+        while (engine.getLoopPoints() != null) {
+            assertTrue("loop points not cleared", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(1, engine.getPrepareCount());
+    }
+
+    @Test
+    public void state_publishesSnapshotOfWorker() throws Exception {
+        assertEquals(BgmWorker.PlaybackState.IDLED, mWorker.getBgmState().getPlaybackState());
+        assertFalse(mWorker.getBgmState().isPlayable());
+
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        mWorker.addCommand(new BgmCommand(0.25f, BgmCommand.Type.SET_VOLUME));
+        mWorker.addCommand(new BgmCommand(1000, BgmCommand.Type.SEEK));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        BgmState state = mWorker.getBgmState();
+        assertTrue(state.isPlaying());
+        assertTrue(state.isPlayable());
+        assertEquals("bgm1.mp3", state.getFileName());
+        assertEquals(0.25f, state.getVolume(), 0f);
+        assertEquals(1000, state.getPositionMillis());
+
+        mWorker.addCommand(new BgmCommand(0.5f, BgmCommand.Type.SET_VOLUME));
+        awaitVolume(0.5f);
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mWorker.getBgmState().getVolume() != 0.5f) {
+            assertTrue("volume not published", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        /*
+        a command that changes nothing publishes no new snapshot
+         */
+        BgmState changed = mWorker.getBgmState();
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.RESUME));
+        Thread.sleep(50);
+        assertSame(changed, mWorker.getBgmState());
+    }
+
+    @Test
+    public void listener_receivesStartTrackChangeAndLoops() throws Exception {
+        final List<String> events = new ArrayList<>();
+        mWorker.getEventDispatcher().addListener(new BgmListener.Adapter() {
+            @Override
+            public void onStateChanged(BgmWorker.PlaybackState previous, BgmState state) {
+                synchronized (events) {
+                    events.add(String.valueOf(state.getPlaybackState()));
+                }
+            }
+
+            @Override
+            public void onTrackChanged(String previousFileName, String fileName) {
+                synchronized (events) {
+                    events.add(fileName);
+                }
+            }
+
+            @Override
+            public void onLoopWrapped(String fileName, int count) {
+                synchronized (events) {
+                    events.add("loop " + count);
+                }
+            }
+        });
+
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        engine.render(new short[FakePlayerEngine.TRACK_FRAMES + 1], FakePlayerEngine.TRACK_FRAMES + 1);
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            synchronized (events) {
+                if (events.contains("loop 1")) {
+                    assertEquals("bgm1.mp3", events.get(0));
+                    assertEquals("STARTED", events.get(events.indexOf("loop 1") - 1));
+                    break;
+                }
+            }
+            assertTrue("loop not reported: " + events, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private BgmFuture send(final BgmCommand command) {
+        final BgmFuture future = new BgmFuture(mWorker.getEventDispatcher().getExecutor());
+        assertTrue(mWorker.addCommand(command.setFuture(future)));
+        return future;
+    }
+
+    @Test
+    public void future_completesWhenMusicActuallyStarts() throws Exception {
+        startWorker(50, 0);
+        final List<BgmFuture> called = new ArrayList<>();
+        BgmFuture start = send(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        start.addCallback(new BgmFuture.Callback() {
+            @Override
+            public void onComplete(BgmFuture future) {
+                synchronized (called) {
+                    called.add(future);
+                }
+            }
+        });
+
+        assertTrue(start.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(start.isSuccess());
+        assertEquals(BgmWorker.PlaybackState.STARTED, start.getState().getPlaybackState());
+        assertEquals("bgm1.mp3", start.getState().getFileName());
+        assertEquals(1, mFactory.getEngines().get(0).getStartCount());
+
+        /*
+        callbacks run right after await() returns
+         */
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            synchronized (called) {
+                if (!called.isEmpty()) {
+                    assertSame(start, called.get(0));
+                    break;
+                }
+            }
+            assertTrue("callback not called", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        BgmFuture pause = send(new BgmCommand(BgmCommand.Type.PAUSE));
+        assertTrue(pause.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(pause.isSuccess());
+        assertEquals(BgmWorker.PlaybackState.PAUSED, pause.getState().getPlaybackState());
+    }
+
+    @Test
+    public void future_failsWhenSupersededBeforeStarting() throws Exception {
+        startWorker(50, 0);
+        BgmFuture first = send(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        BgmFuture second = send(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        BgmFuture stop = send(new BgmCommand(BgmCommand.Type.STOP));
+
+        assertTrue(first.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(second.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(stop.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(first.isSuccess());
+        assertFalse(second.isSuccess());
+        assertTrue(stop.isSuccess());
+        for (FakePlayerEngine engine : mFactory.getEngines()) {
+            assertEquals(0, engine.getStartCount());
+        }
+    }
+
+    @Test
+    public void future_failsWhenRecoveryGivesUpAndOnDestroy() throws Exception {
+        startWorker(200, 0);
+        BgmFuture start = send(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        FakePlayerEngine engine = awaitPreparing(1);
+        for (int i = 1; i <= BgmWorker.MAX_RECOVERY_ATTEMPTS; i++) {
+            engine.simulateError(1, 0);
+            awaitPreparing(i + 1);
+            assertFalse("waits while recovering", start.isDone());
+        }
+        engine.simulateError(1, 0);
+        assertTrue(start.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(start.isSuccess());
+        awaitState(BgmWorker.PlaybackState.ERROR);
+        assertEquals(1, mFactory.getEngines().size());
+        assertEquals(BgmWorker.MAX_RECOVERY_ATTEMPTS + 1, engine.getPrepareCount());
+        assertEquals(BgmWorker.MAX_RECOVERY_ATTEMPTS, mWorker.getMetrics().snapshot().getRecoveryCount());
+
+        /*
+        resuming prepares the music again, and waits until the worker is destroyed while it prepares
+         */
+        BgmFuture resume = send(new BgmCommand(BgmCommand.Type.RESUME));
+        Thread.sleep(50);
+        assertFalse(resume.isDone());
+        mWorker.addCommand(new BgmCommand(BgmCommand.Type.DESTROY));
+        assertTrue(resume.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(resume.isSuccess());
+    }
+
+    @Test
+    public void metrics_recordCommandsPreparesAndErrors() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.PRELOAD));
+        mFactory.getEngines().get(0).simulateError(1, -1004);
+
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        BgmMetrics.Snapshot snapshot;
+        while ((snapshot = mWorker.getMetrics().snapshot()).getPrepareDuration().getCount() < 3) {
+            assertTrue("preload not prepared", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertTrue(snapshot.getCommandLatency().getCount() >= 3);
+        assertTrue(snapshot.getQueueDepthHighWater() >= 1);
+        assertEquals(0, snapshot.getRejectedCommandCount());
+
+        /*
+        the fake engine prepares in 20ms, and bgm1.mp3 is prepared again after its error
+         */
+        LatencyHistogram.Snapshot prepare = snapshot.getPrepareDuration("bgm1.mp3");
+        assertEquals(2, prepare.getCount());
+        assertTrue(prepare.getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1, snapshot.getPrepareDuration("bgm2.mp3").getCount());
+        assertEquals(3, snapshot.getPrepareDuration().getCount());
+
+        assertEquals(1, snapshot.getRecoveryCount());
+        assertEquals(1, snapshot.getErrorCount());
+        assertEquals(1, snapshot.getLastErrorWhat());
+        assertEquals(-1004, snapshot.getLastErrorExtra());
+    }
+
+    @Test
+    public void error_preparesSamePlayerAgainWhereItWas() throws Exception {
+        final List<BgmWorker.PlaybackState> states = new ArrayList<>();
+        mWorker.getEventDispatcher().addListener(new BgmListener.Adapter() {
+            @Override
+            public void onStateChanged(BgmWorker.PlaybackState previous, BgmState state) {
+                synchronized (states) {
+                    states.add(state.getPlaybackState());
+                }
+            }
+        });
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        mWorker.addCommand(new BgmCommand(5000, BgmCommand.Type.SEEK));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        awaitPosition(5000);
+
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        engine.simulateError(100, 0);
+        awaitStartCount(2);
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        assertEquals(1, mFactory.getEngines().size());
+        assertEquals(2, engine.getPrepareCount());
+        assertEquals(5000, engine.getCurrentPosition());
+        assertEquals("bgm1.mp3", engine.getDataSource());
+        assertEquals(1, mWorker.getMetrics().snapshot().getRecoveryCount());
+        synchronized (states) {
+            assertTrue(states.toString(), states.contains(BgmWorker.PlaybackState.ERROR));
+        }
+    }
+
+    @Test
+    public void error_ofStandbyPlayerDropsPreload() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.PRELOAD));
+        awaitEngineState(1, BgmWorker.PlaybackState.PREPARED);
+        mFactory.getEngines().get(1).simulateError(1, 0);
+        Thread.sleep(100);
+
+        /*
+        the current music keeps playing, and the broken preload is prepared from scratch when it is started
+         */
+        assertEquals(BgmWorker.PlaybackState.STARTED, mWorker.getPlaybackState());
+        assertEquals(0, mWorker.getMetrics().snapshot().getRecoveryCount());
+        mWorker.addCommand(new BgmCommand("bgm2.mp3", BgmCommand.Type.START));
+        awaitSwitchCount(1);
+        awaitDataSource("bgm2.mp3");
+        assertEquals(0, mWorker.getTrackSwitchStats().getPreloadedSwitchCount());
+        assertEquals(2, mFactory.getEngines().size());
+    }
+
+    @Test
+    public void start_withMusicThatCannotBeOpened_failsAtOnce() throws Exception {
+        final List<Integer> errors = new ArrayList<>();
+        mWorker.getEventDispatcher().addListener(new BgmListener.Adapter() {
+            @Override
+            public void onError(String fileName, int what, int extra) {
+                synchronized (errors) {
+                    errors.add(extra);
+                }
+            }
+        });
+        BgmFuture start = send(new BgmCommand("missing.mp3", BgmCommand.Type.START));
+        assertTrue(start.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(start.isSuccess());
+        assertEquals(BgmWorker.PlaybackState.ERROR, start.getState().getPlaybackState());
+        synchronized (errors) {
+            assertEquals(1, errors.size());
+            assertEquals(BgmWorker.ERROR_IO, (int) errors.get(0));
+        }
+
+        /*
+        the music is not retried on its own, and the same player plays other music
+         */
+        Thread.sleep(100);
+        FakePlayerEngine engine = mFactory.getEngines().get(0);
+        assertEquals(0, engine.getPrepareCount());
+        BgmFuture other = send(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        assertTrue(other.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(other.isSuccess());
+        assertEquals(1, mFactory.getEngines().size());
+        assertEquals("bgm1.mp3", engine.getDataSource());
+    }
+
+    @Test
+    public void playerEvents_areNotDroppedWhenCommandQueueIsFull() throws Exception {
+        startWorker(50, 0);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        mWorker.getEventDispatcher().addListener(new BgmListener.Adapter() {
+            @Override
+            public void onStateChanged(BgmWorker.PlaybackState previous, BgmState state) {
+                if (state.getPlaybackState() != BgmWorker.PlaybackState.PREPARING) {
+                    return;
+                }
+                /*
+                holds the scheduler's thread while the player prepares
+                 */
+                blocked.countDown();
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        assertTrue(blocked.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        int added = 0;
+        while (mWorker.addCommand(BgmCommand.obtain(0.5f, BgmCommand.Type.SET_VOLUME))) {
+            added++;
+        }
+        assertTrue(added >= BgmWorker.COMMAND_QUEUE_CAPACITY);
+        awaitEngineState(0, BgmWorker.PlaybackState.PREPARED);
+        unblock.countDown();
+
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        assertEquals(1, mWorker.getMetrics().snapshot().getRejectedCommandCount());
+    }
+
+    @Test
+    public void destroy_isNotLostWhenCommandQueueIsFull() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        mWorker.getEventDispatcher().addListener(new BgmListener.Adapter() {
+            @Override
+            public void onStateChanged(BgmWorker.PlaybackState previous, BgmState state) {
+                if (state.getPlaybackState() != BgmWorker.PlaybackState.PREPARING) {
+                    return;
+                }
+                blocked.countDown();
+                try {
+                    unblock.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        assertTrue(blocked.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        while (mWorker.addCommand(BgmCommand.obtain(0.5f, BgmCommand.Type.SET_VOLUME))) {
+            /*
+            fills the queue
+             */
+        }
+
+        mWorker.destroy();
+        unblock.countDown();
+        assertTrue(mWorker.awaitDestroyed(TIMEOUT_MILLIS));
+        assertEquals(BgmWorker.PlaybackState.ENDED, mFactory.getEngines().get(0).getState());
+        assertFalse(mWorker.addCommand(new BgmCommand(BgmCommand.Type.RESUME)));
+    }
+
+    private FakePlayerEngine awaitPreparing(final int prepareCount) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mFactory.getEngines().isEmpty() ||
+                mFactory.getEngines().get(0).getPrepareCount() < prepareCount ||
+                mFactory.getEngines().get(0).getState() != BgmWorker.PlaybackState.PREPARING) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected prepare count " + prepareCount);
+            }
+            Thread.sleep(1);
+        }
+        return mFactory.getEngines().get(0);
+    }
+
+    private static void assertRamp(final List<Float> volumes, final boolean rising) {
+        assertTrue("too few volume steps: " + volumes, volumes.size() >= 4);
+        for (int i = 1; i < volumes.size(); i++) {
+            if (rising) {
+                assertTrue(volumes.toString(), volumes.get(i) >= volumes.get(i - 1));
+            } else {
+                assertTrue(volumes.toString(), volumes.get(i) <= volumes.get(i - 1));
+            }
+        }
+        assertEquals(rising ? 1f : 0f, volumes.get(volumes.size() - 1), 0f);
+    }
+
+    private void awaitEngineVolume(final int index, final float volume) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mFactory.getEngines().size() <= index || mFactory.getEngines().get(index).getVolume() != volume) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected engine " + index + " to have volume " + volume);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitEngineState(final int index, final BgmWorker.PlaybackState state)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mFactory.getEngines().size() <= index || mFactory.getEngines().get(index).getState() != state) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected engine " + index + " to be " + state);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitSwitchCount(final long count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mWorker.getTrackSwitchStats().getSwitchCount() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected switch count " + count);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void schedule_handlesCommandAfterDelay() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        final long scheduledAt = System.nanoTime();
+        BgmTimer timer = mWorker.schedule(150, new BgmCommand(BgmCommand.Type.PAUSE));
+        Thread.sleep(50);
+        assertEquals(BgmWorker.PlaybackState.STARTED, mWorker.getPlaybackState());
+        assertFalse(timer.isFired());
+
+        awaitState(BgmWorker.PlaybackState.PAUSED);
+        assertTrue(System.nanoTime() - scheduledAt >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(timer.isFired());
+        assertFalse(timer.cancel());
+    }
+
+    @Test
+    public void schedule_cancelledTimerNeverFires() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+
+        BgmTimer stop = mWorker.schedule(100, new BgmCommand(BgmCommand.Type.STOP));
+        BgmTimer volume = mWorker.schedule(100, new BgmCommand(0.5f, BgmCommand.Type.SET_VOLUME));
+        assertTrue(stop.cancel());
+        assertFalse(stop.cancel());
+
+        awaitVolume(0.5f);
+        assertTrue(volume.isFired());
+        assertTrue(stop.isCancelled());
+        assertEquals(BgmWorker.PlaybackState.STARTED, mWorker.getPlaybackState());
+    }
+
+    @Test
+    public void fadeVolume_rampsOverItsDuration() throws Exception {
+        mWorker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(BgmWorker.PlaybackState.STARTED);
+        awaitVolume(1f);
+
+        final long fadedAt = System.nanoTime();
+        mWorker.addCommand(new BgmCommand(new BgmWorker.VolumeFade(0.3f, 200), BgmCommand.Type.FADE_VOLUME));
+        awaitVolume(0.3f);
+        assertTrue(System.nanoTime() - fadedAt >= TimeUnit.MILLISECONDS.toNanos(180));
+
+        List<Float> history = mFactory.getEngines().get(0).getVolumeHistory();
+        int steps = 0;
+        for (float volume : history) {
+            if (volume > 0.3f && volume < 1f) {
+                steps++;
+            }
+        }
+        assertTrue("volume jumped instead of fading", steps >= 3);
+        assertEquals(0.3f, mWorker.getBgmState().getVolume(), 0f);
+    }
+
+    private void awaitStartCount(final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mFactory.getEngines().isEmpty() || mFactory.getEngines().get(0).getStartCount() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected start count " + count);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitVolume(final float volume) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mFactory.getEngines().isEmpty() || mFactory.getEngines().get(0).getVolume() != volume) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected volume " + volume);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitPosition(final int positionMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mFactory.getEngines().isEmpty() ||
+                mFactory.getEngines().get(0).getCurrentPosition() != positionMillis) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected position " + positionMillis);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitState(final BgmWorker.PlaybackState state) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mWorker.getPlaybackState() != state) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected " + state + " but was " + mWorker.getPlaybackState());
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitDataSource(final String fileName) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!fileName.equals(mFactory.getEngines().get(0).getDataSource())) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected data source " + fileName);
+            }
+            Thread.sleep(1);
+        }
+    }
+}
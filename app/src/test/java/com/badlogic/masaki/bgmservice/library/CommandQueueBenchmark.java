@@ -0,0 +1,152 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures enqueue-to-dispatch latency of BgmWorker's command queue
+ * against the previous lock + LinkedBlockingQueue implementation.
+ * Left out of the unit tests; run it with ./gradlew :app:testDebugUnitTest -Pbenchmarks --tests '*CommandQueueBenchmark'
+ */
+public class CommandQueueBenchmark {
+    private static final int WARMUP_COMMANDS = 10000;
+    private static final int MEASURED_COMMANDS = 20000;
+    private static final int BURST = 8;
+
+    @Test
+    public void enqueueToDispatchLatency() throws Exception {
+        /*
+        runs twice so that the second round is measured with warmed-up code
+         */
+        for (int round = 0; round < 2; round++) {
+            final boolean report = round == 1;
+            final long[] legacy = measure(new LockedQueue(), report ? MEASURED_COMMANDS : WARMUP_COMMANDS);
+            final long[] ring = measure(new RingQueue(), report ? MEASURED_COMMANDS : WARMUP_COMMANDS);
+            if (report) {
+                print("lock + LinkedBlockingQueue", legacy);
+                print("MpscRingQueue", ring);
+            }
+        }
+    }
+
+    private static long[] measure(final CommandChannel channel, final int count) throws Exception {
+        final Stamp[] stamps = new Stamp[count];
+        for (int i = 0; i < count; i++) {
+            stamps[i] = new Stamp();
+        }
+        final long[] latencies = new long[count];
+
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        Stamp stamp = channel.take();
+                        latencies[i] = System.nanoTime() - stamp.mEnqueuedAt;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+
+        /*
+        offers commands in bursts like PAUSE/RESUME storms during activity transitions,
+        letting the consumer go to sleep between bursts
+         */
+        for (int i = 0; i < count; i++) {
+            stamps[i].mEnqueuedAt = System.nanoTime();
+            while (!channel.offer(stamps[i])) {
+                Thread.yield();
+            }
+            if (i % BURST == BURST - 1) {
+                LockSupport.parkNanos(50000);
+            }
+        }
+
+        consumer.join(60000);
+        assertFalse(consumer.isAlive());
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static void print(final String name, final long[] sortedLatencies) {
+        System.out.println(String.format("%-28s p50=%6.1fus p99=%7.1fus p99.9=%7.1fus max=%8.1fus",
+                name,
+                percentile(sortedLatencies, 0.5),
+                percentile(sortedLatencies, 0.99),
+                percentile(sortedLatencies, 0.999),
+                sortedLatencies[sortedLatencies.length - 1] / 1000.0));
+    }
+
+    private static double percentile(final long[] sortedLatencies, final double p) {
+        return sortedLatencies[(int) (p * (sortedLatencies.length - 1))] / 1000.0;
+    }
+
+    private static final class Stamp {
+        long mEnqueuedAt;
+    }
+
+    private interface CommandChannel {
+        boolean offer(Stamp stamp);
+
+        Stamp take() throws InterruptedException;
+    }
+
+    /**
+     * Queue that BgmWorker used before MpscRingQueue
+     */
+    private static final class LockedQueue implements CommandChannel {
+        private final Queue<Stamp> mQueue = new LinkedBlockingQueue<>();
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mCondition = mLock.newCondition();
+
+        @Override
+        public boolean offer(Stamp stamp) {
+            mLock.lock();
+            try {
+                final boolean result = mQueue.offer(stamp);
+                mCondition.signal();
+                return result;
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public Stamp take() throws InterruptedException {
+            mLock.lock();
+            try {
+                while (mQueue.peek() == null) {
+                    mCondition.await();
+                }
+            } finally {
+                mLock.unlock();
+            }
+            return mQueue.poll();
+        }
+    }
+
+    private static final class RingQueue implements CommandChannel {
+        private final MpscRingQueue<Stamp> mQueue = new MpscRingQueue<>(BgmWorker.COMMAND_QUEUE_CAPACITY);
+
+        @Override
+        public boolean offer(Stamp stamp) {
+            return mQueue.offer(stamp);
+        }
+
+        @Override
+        public Stamp take() throws InterruptedException {
+            return mQueue.take();
+        }
+    }
+}
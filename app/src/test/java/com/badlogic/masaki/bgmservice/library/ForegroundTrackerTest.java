@@ -0,0 +1,222 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests ForegroundTracker with lifecycle sequences an application goes through
+ */
+public class ForegroundTrackerTest {
+    private static final long GRACE_MILLIS = 700;
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    private ManualExecutor mExecutor;
+    private CountingListener mListener;
+    private ForegroundTracker mTracker;
+
+    @Before
+    public void setUp() throws Exception {
+        mExecutor = new ManualExecutor();
+        mListener = new CountingListener();
+        mTracker = new ForegroundTracker(GRACE_MILLIS, mListener, mExecutor);
+    }
+
+    @Test
+    public void switchingActivities_reportsNothing() throws Exception {
+        mTracker.onStarted();
+        assertEquals(1, mListener.mForegrounds);
+
+        /*
+        A starts B: B starts before A stops
+         */
+        mTracker.onStarted();
+        mTracker.onStopped(false);
+
+        /*
+        back from B to A: A starts before B stops as well, but some devices stop B first
+         */
+        mTracker.onStopped(false);
+        mExecutor.advance(GRACE_MILLIS / 2);
+        mTracker.onStarted();
+        mExecutor.advance(GRACE_MILLIS * 2);
+
+        assertEquals(1, mListener.mForegrounds);
+        assertEquals(0, mListener.mBackgrounds);
+        assertTrue(mTracker.isForeground());
+    }
+
+    @Test
+    public void configurationChange_reportsNothing() throws Exception {
+        mTracker.onStarted();
+        mTracker.onStopped(true);
+        mExecutor.advance(GRACE_MILLIS * 2);
+        mTracker.onStarted();
+
+        assertEquals(1, mListener.mForegrounds);
+        assertEquals(0, mListener.mBackgrounds);
+    }
+
+    @Test
+    public void background_reportedOnceAfterGrace() throws Exception {
+        mTracker.onStarted();
+        mTracker.onStopped(false);
+        mExecutor.advance(GRACE_MILLIS - 1);
+        assertEquals(0, mListener.mBackgrounds);
+
+        mExecutor.advance(1);
+        assertEquals(1, mListener.mBackgrounds);
+        assertFalse(mTracker.isForeground());
+
+        mExecutor.advance(GRACE_MILLIS * 2);
+        mTracker.onStarted();
+        assertEquals(2, mListener.mForegrounds);
+        assertEquals(1, mListener.mBackgrounds);
+    }
+
+    @Test
+    public void lifecycleStorm_sendsOneCommandPerTransition() throws Exception {
+        final BgmWorker worker = new BgmWorker(new FakePlayerEngine.Factory(0, 0));
+        worker.start();
+        worker.addCommand(BgmCommand.obtain("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(worker, BgmWorker.PlaybackState.STARTED);
+        final long initial = worker.getMetrics().snapshot().getCommandLatency().getCount();
+
+        mTracker = new ForegroundTracker(GRACE_MILLIS, new ForegroundTracker.Listener() {
+            @Override
+            public void onForeground() {
+                mListener.onForeground();
+                worker.addCommand(BgmCommand.obtain(BgmCommand.Type.RESUME));
+            }
+
+            @Override
+            public void onBackground() {
+                mListener.onBackground();
+                worker.addCommand(BgmCommand.obtain(BgmCommand.Type.PAUSE));
+            }
+        }, mExecutor);
+
+        /*
+        bursts of activity switches and rotations, separated by real trips to background
+         */
+        final Random random = new Random(19);
+        int transitions = 0;
+        for (int trip = 0; trip < 50; trip++) {
+            mTracker.onStarted();
+            transitions++;
+            int started = 1;
+            for (int i = 0; i < 200; i++) {
+                if (started > 1 || (started == 1 && random.nextBoolean())) {
+                    mTracker.onStopped(random.nextInt(4) == 0);
+                    started--;
+                } else {
+                    mTracker.onStarted();
+                    started++;
+                }
+                mExecutor.advance(random.nextInt((int) GRACE_MILLIS));
+                if (started == 0) {
+                    mTracker.onStarted();
+                    started++;
+                }
+            }
+            while (started > 0) {
+                mTracker.onStopped(false);
+                started--;
+            }
+            mExecutor.advance(GRACE_MILLIS);
+            transitions++;
+        }
+
+        assertEquals(50, mListener.mForegrounds);
+        assertEquals(50, mListener.mBackgrounds);
+        assertEquals(initial + transitions, awaitHandled(worker, initial + transitions));
+        Thread.sleep(50);
+        assertEquals(initial + transitions, worker.getMetrics().snapshot().getCommandLatency().getCount());
+        assertEquals(BgmWorker.PlaybackState.PAUSED, worker.getPlaybackState());
+
+        worker.addCommand(BgmCommand.obtain(BgmCommand.Type.RELEASE));
+        worker.addCommand(BgmCommand.obtain(BgmCommand.Type.DESTROY));
+        assertTrue(worker.awaitDestroyed(TIMEOUT_MILLIS));
+    }
+
+    private static void awaitState(final BgmWorker worker, final BgmWorker.PlaybackState state)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (worker.getPlaybackState() != state) {
+            assertTrue("expected " + state, System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static long awaitHandled(final BgmWorker worker, final long count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        long handled;
+        while ((handled = worker.getMetrics().snapshot().getCommandLatency().getCount()) < count) {
+            assertTrue("commands not handled", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return handled;
+    }
+
+    /**
+     * Listener that counts transitions
+     */
+    private static class CountingListener implements ForegroundTracker.Listener {
+        int mForegrounds;
+        int mBackgrounds;
+
+        @Override
+        public void onForeground() {
+            mForegrounds++;
+        }
+
+        @Override
+        public void onBackground() {
+            mBackgrounds++;
+        }
+    }
+
+    /**
+     * Executor whose clock only moves when the test advances it
+     */
+    private static class ManualExecutor implements ForegroundTracker.DelayedExecutor {
+        private final List<Runnable> mTasks = new ArrayList<>();
+        private final List<Long> mDueTimes = new ArrayList<>();
+        private long mNow;
+
+        @Override
+        public void postDelayed(final Runnable task, final long delayMillis) {
+            mTasks.add(task);
+            mDueTimes.add(mNow + delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(final Runnable task) {
+            for (int i = mTasks.size() - 1; i >= 0; i--) {
+                if (mTasks.get(i) == task) {
+                    mTasks.remove(i);
+                    mDueTimes.remove(i);
+                }
+            }
+        }
+
+        void advance(final long millis) {
+            mNow += millis;
+            for (int i = 0; i < mTasks.size(); ) {
+                if (mDueTimes.get(i) <= mNow) {
+                    final Runnable task = mTasks.remove(i);
+                    mDueTimes.remove(i);
+                    task.run();
+                    i = 0;
+                } else {
+                    i++;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests LatencyHistogram
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_coverEveryValueInOrder() throws Exception {
+        for (int bucket = 1; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            final long lower = LatencyHistogram.upperBoundOf(bucket - 1) + 1;
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            assertEquals(bucket, LatencyHistogram.bucketOf(LatencyHistogram.upperBoundOf(bucket)));
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBoundOf(LatencyHistogram.BUCKET_COUNT - 1));
+    }
+
+    @Test
+    public void percentiles_areWithinBucketError() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000000, snapshot.getMaxNanos());
+        assertEquals(5000500, snapshot.getAverageNanos());
+        assertWithin(5000000, snapshot.getPercentileNanos(50));
+        assertWithin(9900000, snapshot.getPercentileNanos(99));
+        assertEquals(10000000, snapshot.getPercentileNanos(100));
+        assertEquals(0, new LatencyHistogram().snapshot().getPercentileNanos(99));
+    }
+
+    @Test
+    public void record_countsEveryValueFromManyThreads() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(random.nextInt(1000000));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(400000, histogram.snapshot().getCount());
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected * 1.25);
+    }
+}
@@ -0,0 +1,112 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests LoopingPcmReader over stereo music whose samples are their frame numbers
+ */
+public class LoopingPcmReaderTest {
+
+    private static final int FRAMES = 1000;
+
+    private static LoopingPcmReader reader() {
+        PcmBuffer buffer = PcmBuffer.allocate(FRAMES, 44100, 2);
+        ShortBuffer samples = buffer.samples();
+        for (int i = 0; i < FRAMES; i++) {
+            samples.put((short) i);
+            samples.put((short) -i);
+        }
+        return new LoopingPcmReader(buffer);
+    }
+
+    /**
+     * Reads frames and checks that they follow each other from a frame,
+     * wrapping from the loop end to the loop start
+     * @return frame expected next
+     */
+    private static int readAndCheck(final LoopingPcmReader reader, int expected, final int frames,
+                                    final int loopStart, final int loopEnd) {
+        short[] dst = new short[frames * 2];
+        assertEquals(frames, reader.read(dst, 0, frames));
+        for (int i = 0; i < frames; i++) {
+            assertEquals(expected, dst[i * 2]);
+            assertEquals(-expected, dst[i * 2 + 1]);
+            if (++expected == loopEnd) {
+                expected = loopStart;
+            }
+        }
+        return expected;
+    }
+
+    @Test
+    public void read_playsIntroOnceThenLoops() throws Exception {
+        LoopingPcmReader reader = reader();
+        reader.setLooping(true);
+        reader.setLoopPoints(new LoopPoints(300, 308));
+
+        int expected = 0;
+        for (int i = 0; i < 2000; i++) {
+            expected = readAndCheck(reader, expected, 1 + i % 13, 300, 308);
+        }
+    }
+
+    @Test
+    public void read_withoutLoopPoints_loopsWholeMusic() throws Exception {
+        LoopingPcmReader reader = reader();
+        reader.setLooping(true);
+
+        int expected = 0;
+        for (int i = 0; i < 100; i++) {
+            expected = readAndCheck(reader, expected, 97, 0, FRAMES);
+        }
+    }
+
+    @Test
+    public void read_withoutLooping_stopsAtEnd() throws Exception {
+        LoopingPcmReader reader = reader();
+        reader.setLoopPoints(new LoopPoints(100, 200));
+
+        short[] dst = new short[FRAMES * 4];
+        assertEquals(FRAMES, reader.read(dst, 0, FRAMES * 2));
+        assertEquals(FRAMES - 1, dst[(FRAMES - 1) * 2]);
+        assertEquals(0, reader.read(dst, 0, 1));
+    }
+
+    @Test
+    public void read_afterSeekPastLoopEnd_playsToEndThenLoops() throws Exception {
+        LoopingPcmReader reader = reader();
+        reader.setLooping(true);
+        reader.setLoopPoints(new LoopPoints(100, 200));
+        reader.setPosition(990);
+
+        short[] dst = new short[40];
+        assertEquals(20, reader.read(dst, 0, 20));
+        assertEquals(999, dst[9 * 2]);
+        assertEquals(100, dst[10 * 2]);
+    }
+
+    @Test
+    public void setLoopPoints_beyondMusic_isClamped() throws Exception {
+        LoopingPcmReader reader = reader();
+        reader.setLooping(true);
+        reader.setLoopPoints(new LoopPoints(900, 5000));
+        reader.setPosition(995);
+
+        short[] dst = new short[20];
+        reader.read(dst, 0, 10);
+        assertEquals(999, dst[4 * 2]);
+        assertEquals(900, dst[5 * 2]);
+
+        /*
+        a loop that starts after the end loops the whole music
+         */
+        reader.setLoopPoints(new LoopPoints(2000, 3000));
+        reader.setPosition(999);
+        reader.read(dst, 0, 2);
+        assertEquals(0, dst[2]);
+    }
+}
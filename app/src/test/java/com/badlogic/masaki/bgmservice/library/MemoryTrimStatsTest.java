@@ -0,0 +1,49 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests MemoryTrimStats and how BgmService maps trim levels to tiers
+ */
+public class MemoryTrimStatsTest {
+
+    @Test
+    public void tierOf_releasesMoreAsPressureRises() throws Exception {
+        assertNull(BgmService.tierOf(0));
+        assertEquals(MemoryTrimStats.Tier.LIGHT, BgmService.tierOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(MemoryTrimStats.Tier.MODERATE, BgmService.tierOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(MemoryTrimStats.Tier.MODERATE,
+                BgmService.tierOf(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        assertEquals(MemoryTrimStats.Tier.LIGHT, BgmService.tierOf(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(MemoryTrimStats.Tier.LIGHT, BgmService.tierOf(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        assertEquals(MemoryTrimStats.Tier.MODERATE, BgmService.tierOf(ComponentCallbacks2.TRIM_MEMORY_MODERATE));
+        assertEquals(MemoryTrimStats.Tier.CRITICAL, BgmService.tierOf(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    @Test
+    public void recordAcquired_countsOnlyWhatATrimDropped() throws Exception {
+        MemoryTrimStats stats = new MemoryTrimStats();
+        stats.recordTrim(MemoryTrimStats.Tier.MODERATE);
+        stats.recordFreed(MemoryTrimStats.Tier.MODERATE, 4096, Arrays.asList("bgm1.mp3", "bgm2.mp3"));
+        stats.recordReleasedPlayer(MemoryTrimStats.Tier.LIGHT, "bgm3.mp3");
+
+        stats.recordAcquired("bgm1.mp3", 30);
+        stats.recordAcquired("bgm1.mp3", 20);
+        stats.recordAcquired("bgm3.mp3", 10);
+        stats.recordAcquired("bgm4.mp3", 10);
+
+        assertEquals(1, stats.getTrimCount(MemoryTrimStats.Tier.MODERATE));
+        assertEquals(4096, stats.getFreedBytes(MemoryTrimStats.Tier.MODERATE));
+        assertEquals(1, stats.getRewarmCount(MemoryTrimStats.Tier.MODERATE));
+        assertEquals(30, stats.getRewarmNanos(MemoryTrimStats.Tier.MODERATE));
+        assertEquals(1, stats.getReleasedPlayerCount(MemoryTrimStats.Tier.LIGHT));
+        assertEquals(1, stats.getRewarmCount(MemoryTrimStats.Tier.LIGHT));
+        assertEquals(0, stats.getTrimCount(MemoryTrimStats.Tier.CRITICAL));
+    }
+}
@@ -0,0 +1,138 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests Mp3FrameIndex over synthetic MPEG-1 Layer III frames
+ */
+public class Mp3FrameIndexTest {
+
+    /**
+     * Bitrate indexes of 128, 192 and 320 kbps
+     */
+    private static final int[] BITRATE_INDEXES = {9, 11, 14};
+
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+
+    private final List<Integer> mOffsets = new ArrayList<>();
+
+    /**
+     * Writes an MPEG-1 Layer III frame at 44100 Hz
+     * @param bitrateIndex index of the bitrate
+     * @param padding true if the frame has a padding byte
+     * @param tag tag written after the side information, or null
+     */
+    private void writeFrame(final int bitrateIndex, final boolean padding, final String tag) {
+        final int bitrate = new int[] {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}[bitrateIndex];
+        final int length = 144 * bitrate * 1000 / 44100 + (padding ? 1 : 0);
+        final byte[] frame = new byte[length];
+        frame[0] = (byte) 0xff;
+        frame[1] = (byte) 0xfb;
+        frame[2] = (byte) (bitrateIndex << 4 | (padding ? 0x2 : 0));
+        if (tag != null) {
+            for (int i = 0; i < tag.length(); i++) {
+                frame[4 + 32 + i] = (byte) tag.charAt(i);
+            }
+        }
+        mOutput.write(frame, 0, frame.length);
+    }
+
+    private void writeAudioFrames(final int count) {
+        for (int i = 0; i < count; i++) {
+            mOffsets.add(mOutput.size());
+            writeFrame(BITRATE_INDEXES[i % BITRATE_INDEXES.length], i % 2 == 1, null);
+        }
+    }
+
+    private void writeId3v2(final int size) {
+        mOutput.write(new byte[] {'I', 'D', '3', 4, 0, 0, 0, 0, (byte) (size >> 7), (byte) (size & 0x7f)}, 0, 10);
+        mOutput.write(new byte[size], 0, size);
+    }
+
+    private Mp3FrameIndex scan() throws IOException {
+        return Mp3FrameIndex.scan(ByteBuffer.wrap(mOutput.toByteArray()));
+    }
+
+    @Test
+    public void scan_indexesVariableBitrateFrames() throws Exception {
+        writeId3v2(300);
+        writeFrame(9, false, "Xing");
+        writeAudioFrames(50);
+
+        Mp3FrameIndex index = scan();
+        assertEquals(50, index.getFrameCount());
+        assertEquals(44100, index.getSampleRate());
+        assertEquals(1152, index.getSamplesPerFrame());
+        for (int i = 0; i < mOffsets.size(); i++) {
+            assertEquals(mOffsets.get(i).intValue(), index.getFrameOffset(i));
+        }
+        assertEquals(mOutput.size(), index.getEndOffset());
+        assertEquals(50L * 1152 * 1000 / 44100, index.getDurationMillis());
+    }
+
+    @Test
+    public void frameAt_mapsPositionToFrame() throws Exception {
+        writeAudioFrames(100);
+        Mp3FrameIndex index = scan();
+
+        /*
+        a frame lasts 1152 / 44100 s, about 26.1 ms
+         */
+        assertEquals(0, index.frameAt(0));
+        assertEquals(0, index.frameAt(26));
+        assertEquals(1, index.frameAt(27));
+        assertEquals(38, index.frameAt(1000));
+        assertEquals(99, index.frameAt(60000));
+        assertEquals(0, index.frameAt(-5));
+
+        assertEquals(0, index.getFrameTimeMillis(0));
+        assertEquals(52, index.getFrameTimeMillis(2));
+        assertTrue(index.getFrameTimeMillis(index.frameAt(1000)) <= 1000);
+        assertTrue(index.getFrameTimeMillis(index.frameAt(1000) + 1) > 1000);
+    }
+
+    @Test
+    public void scan_resynchronizesAfterJunk() throws Exception {
+        mOutput.write(new byte[] {1, 2, (byte) 0xff, 3}, 0, 4);
+        writeAudioFrames(3);
+        mOutput.write(new byte[] {0, 0, 0, 0, 0}, 0, 5);
+        writeAudioFrames(3);
+        /*
+        an ID3v1 tag at the end is not a frame
+         */
+        mOutput.write(new byte[128], 0, 128);
+
+        Mp3FrameIndex index = scan();
+        assertEquals(6, index.getFrameCount());
+        for (int i = 0; i < mOffsets.size(); i++) {
+            assertEquals(mOffsets.get(i).intValue(), index.getFrameOffset(i));
+        }
+    }
+
+    @Test
+    public void scan_startsFromBufferPosition() throws Exception {
+        mOutput.write(new byte[64], 0, 64);
+        writeAudioFrames(4);
+
+        ByteBuffer data = ByteBuffer.wrap(mOutput.toByteArray());
+        data.position(64);
+        Mp3FrameIndex index = Mp3FrameIndex.scan(data);
+        assertEquals(4, index.getFrameCount());
+        assertEquals(0, index.getFrameOffset(0));
+        assertEquals(64, data.position());
+    }
+
+    @Test(expected = IOException.class)
+    public void scan_withoutFrames_throws() throws Exception {
+        mOutput.write(new byte[1000], 0, 1000);
+        scan();
+    }
+}
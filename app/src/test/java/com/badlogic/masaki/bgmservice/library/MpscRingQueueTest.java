@@ -0,0 +1,103 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests MpscRingQueue
+ */
+public class MpscRingQueueTest {
+
+    @Test
+    public void capacity_isRoundedUpToPowerOfTwo() throws Exception {
+        assertEquals(1, new MpscRingQueue<String>(1).capacity());
+        assertEquals(8, new MpscRingQueue<String>(5).capacity());
+        assertEquals(1024, new MpscRingQueue<String>(1024).capacity());
+    }
+
+    @Test
+    public void poll_returnsElementsInOrder() throws Exception {
+        MpscRingQueue<String> queue = new MpscRingQueue<>(4);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+
+        /*
+        wraps around the ring several times
+         */
+        for (int round = 0; round < 10; round++) {
+            assertTrue(queue.offer("a" + round));
+            assertTrue(queue.offer("b" + round));
+            assertFalse(queue.isEmpty());
+            assertEquals("a" + round, queue.poll());
+            assertEquals("b" + round, queue.poll());
+            assertNull(queue.poll());
+        }
+    }
+
+    @Test
+    public void offer_failsWhenFull() throws Exception {
+        MpscRingQueue<String> queue = new MpscRingQueue<>(2);
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertFalse(queue.offer("c"));
+
+        assertEquals("a", queue.poll());
+        assertTrue(queue.offer("c"));
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+    }
+
+    @Test
+    public void take_receivesEveryElementFromManyProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 50000;
+        final MpscRingQueue<int[]> queue = new MpscRingQueue<>(64);
+        final CountDownLatch startSignal = new CountDownLatch(1);
+
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startSignal.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        int[] element = new int[] {producer, i};
+                        while (!queue.offer(element)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        startSignal.countDown();
+        final int[] next = new int[producers];
+        for (int n = 0; n < producers * perProducer; n++) {
+            int[] element = queue.take();
+            /*
+            elements of each producer arrive in the order they were offered
+             */
+            assertEquals(next[element[0]]++, element[1]);
+        }
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer, next[p]);
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void take_throwsWhenInterrupted() throws Exception {
+        MpscRingQueue<String> queue = new MpscRingQueue<>(2);
+        Thread.currentThread().interrupt();
+        queue.take();
+    }
+}
@@ -0,0 +1,108 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests PcmCache
+ */
+public class PcmCacheTest {
+
+    /**
+     * Mono buffer of 100 frames, which is 200 bytes
+     */
+    private static PcmBuffer buffer() {
+        return PcmBuffer.allocate(100, 44100, 1);
+    }
+
+    @Test
+    public void get_countsHitsAndMisses() throws Exception {
+        PcmCache cache = new PcmCache(1000);
+        assertNull(cache.get("a.mp3"));
+
+        PcmBuffer a = buffer();
+        assertTrue(cache.put("a.mp3", a));
+        assertSame(a, cache.get("a.mp3"));
+        assertSame(a, cache.get("a.mp3"));
+
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(200, cache.getSizeBytes());
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsedOverBudget() throws Exception {
+        PcmCache cache = new PcmCache(500);
+        cache.put("a.mp3", buffer());
+        cache.put("b.mp3", buffer());
+
+        /*
+        touching a makes b the least recently used
+         */
+        cache.get("a.mp3");
+        cache.put("c.mp3", buffer());
+
+        assertNull(cache.get("b.mp3"));
+        assertNotNull(cache.get("a.mp3"));
+        assertNotNull(cache.get("c.mp3"));
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(400, cache.getSizeBytes());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(200, cache.getEvictedBytes());
+    }
+
+    @Test
+    public void put_replacesEntryWithoutDoubleCounting() throws Exception {
+        PcmCache cache = new PcmCache(1000);
+        cache.put("a.mp3", buffer());
+        cache.put("a.mp3", PcmBuffer.allocate(100, 44100, 2));
+
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(400, cache.getSizeBytes());
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    @Test
+    public void put_rejectsBufferLargerThanBudget() throws Exception {
+        PcmCache cache = new PcmCache(100);
+        assertFalse(cache.put("a.mp3", buffer()));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    @Test
+    public void trimToSize_evictsDownToSize() throws Exception {
+        PcmCache cache = new PcmCache(1000);
+        cache.put("a.mp3", buffer());
+        cache.put("b.mp3", buffer());
+        cache.put("c.mp3", buffer());
+
+        assertEquals(400, cache.trimToSize(200));
+        assertEquals(1, cache.getEntryCount());
+        assertNotNull(cache.get("c.mp3"));
+
+        assertEquals(200, cache.trimToSize(0));
+        assertEquals(0, cache.getSizeBytes());
+        assertEquals(3, cache.getEvictionCount());
+    }
+
+    @Test
+    public void trimToSize_keepsGivenKeys() throws Exception {
+        PcmCache cache = new PcmCache(1000);
+        cache.put("a.mp3", buffer());
+        cache.put("b.mp3", buffer());
+        cache.put("c.mp3", buffer());
+
+        List<String> evicted = new ArrayList<>();
+        assertEquals(400, cache.trimToSize(0, Collections.singleton("a.mp3"), evicted));
+        assertEquals(Arrays.asList("b.mp3", "c.mp3"), evicted);
+        assertEquals(200, cache.getSizeBytes());
+        assertNotNull(cache.get("a.mp3"));
+    }
+}
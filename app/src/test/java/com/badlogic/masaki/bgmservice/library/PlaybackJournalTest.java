@@ -0,0 +1,296 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests PlaybackJournal, and BgmWorker resuming music from it as after the process died
+ */
+public class PlaybackJournalTest {
+    private static final long TIMEOUT_MILLIS = 2000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("bgm_journal", null);
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void record_writesLastEntryOfBatchOnce() throws Exception {
+        PlaybackJournal journal = new PlaybackJournal(mFile, 100);
+        for (int i = 0; i <= 1000; i++) {
+            journal.record("bgm1.mp3", i, new LoopPoints(44100, 88200));
+        }
+        assertNull("nothing is written before the batch ends", new PlaybackJournal(mFile).read());
+
+        awaitWriteCount(journal, 1);
+        Thread.sleep(200);
+        assertEquals(1, journal.getWriteCount());
+
+        PlaybackJournal.Entry entry = new PlaybackJournal(mFile).read();
+        assertEquals("bgm1.mp3", entry.getFileName());
+        assertEquals(1000, entry.getPositionMillis());
+        assertEquals(44100, entry.getLoopPoints().getStartSample());
+        assertEquals(88200, entry.getLoopPoints().getEndSample());
+        journal.close();
+    }
+
+    @Test
+    public void recordNoMusic_deletesFile() throws Exception {
+        PlaybackJournal journal = new PlaybackJournal(mFile, 0);
+        journal.record("bgm1.mp3", 1500, null);
+        journal.flush();
+        assertNull(journal.read().getLoopPoints());
+        assertTrue(mFile.exists());
+
+        journal.record(null, 0, null);
+        journal.flush();
+        assertFalse(mFile.exists());
+        assertNull(journal.read());
+        journal.close();
+    }
+
+    @Test
+    public void brokenFile_readsNothing() throws Exception {
+        PlaybackJournal journal = new PlaybackJournal(mFile, 0);
+        journal.record("bgm1.mp3", 1500, null);
+        journal.flush();
+        journal.close();
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            flipBit(file, 7);
+            assertNull("corrupted", journal.read());
+
+            flipBit(file, 7);
+            assertNotNull(journal.read());
+
+            file.setLength(file.length() - 1);
+            assertNull("truncated", journal.read());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void worker_resumesWhereJournalRecorded() throws Exception {
+        FakePlayerEngine.Factory factory = new FakePlayerEngine.Factory(20, 0);
+        BgmWorker worker = new BgmWorker(factory);
+        worker.start();
+        PlaybackJournal journal = new PlaybackJournal(mFile, 0);
+        worker.addCommand(BgmCommand.obtain(journal, BgmCommand.Type.RESTORE));
+        worker.addCommand(new BgmCommand(new BgmWorker.LoopSettings("bgm1.mp3", new LoopPoints(100, 4000)),
+                BgmCommand.Type.SET_LOOP_POINTS));
+        worker.addCommand(BgmCommand.obtain("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(worker, BgmWorker.PlaybackState.STARTED);
+        worker.addCommand(BgmCommand.obtain(5000, BgmCommand.Type.SEEK));
+        worker.addCommand(BgmCommand.obtain(BgmCommand.Type.PAUSE));
+        awaitState(worker, BgmWorker.PlaybackState.PAUSED);
+        journal.flush();
+
+        /*
+        the process dies without releasing music
+         */
+        worker.addCommand(BgmCommand.obtain(BgmCommand.Type.DESTROY));
+        assertTrue(worker.awaitDestroyed(TIMEOUT_MILLIS));
+
+        factory = new FakePlayerEngine.Factory(20, 0);
+        worker = new BgmWorker(factory);
+        worker.start();
+        worker.addCommand(BgmCommand.obtain(new PlaybackJournal(mFile, 0), BgmCommand.Type.RESTORE));
+        awaitState(worker, BgmWorker.PlaybackState.PREPARED);
+        FakePlayerEngine engine = factory.getEngines().get(0);
+        assertEquals("bgm1.mp3", engine.getDataSource());
+        assertEquals(5000, engine.getCurrentPosition());
+        assertEquals(100, engine.getLoopPoints().getStartSample());
+        assertEquals(0, engine.getStartCount());
+
+        /*
+        starting the same music plays the prepared player from where it was
+         */
+        worker.addCommand(BgmCommand.obtain("bgm1.mp3", BgmCommand.Type.START));
+        awaitState(worker, BgmWorker.PlaybackState.STARTED);
+        assertEquals(1, factory.getEngines().size());
+        assertEquals(1, engine.getPrepareCount());
+        assertEquals(5000, engine.getCurrentPosition());
+
+        worker.addCommand(BgmCommand.obtain(BgmCommand.Type.RELEASE));
+        worker.addCommand(BgmCommand.obtain(BgmCommand.Type.DESTROY));
+        assertTrue(worker.awaitDestroyed(TIMEOUT_MILLIS));
+        awaitDeleted();
+    }
+
+    @Test
+    public void worker_startsOtherMusicFromItsStart() throws Exception {
+        PlaybackJournal journal = new PlaybackJournal(mFile, 0);
+        journal.record("bgm1.mp3", 5000, null);
+        journal.flush();
+
+        FakePlayerEngine.Factory factory = new FakePlayerEngine.Factory(20, 0);
+        BgmWorker worker = new BgmWorker(factory);
+        worker.start();
+        worker.addCommand(BgmCommand.obtain(journal, BgmCommand.Type.RESTORE));
+        worker.addCommand(BgmCommand.obtain("bgm2.mp3", BgmCommand.Type.START));
+        awaitState(worker, BgmWorker.PlaybackState.STARTED);
+
+        FakePlayerEngine engine = factory.getEngines().get(0);
+        assertEquals("bgm2.mp3", engine.getDataSource());
+        assertEquals(0, engine.getCurrentPosition());
+        assertEquals(0, engine.getSeekCount());
+
+        worker.addCommand(BgmCommand.obtain(BgmCommand.Type.DESTROY));
+        assertTrue(worker.awaitDestroyed(TIMEOUT_MILLIS));
+        awaitEntry("bgm2.mp3");
+    }
+
+    @Test
+    public void journal_locatesFileOnFirstUseAndClosesTwice() throws Exception {
+        final AtomicInteger located = new AtomicInteger();
+        PlaybackJournal journal = new PlaybackJournal(new PlaybackJournal.Location() {
+            @Override
+            public File getFile() {
+                located.incrementAndGet();
+                return mFile;
+            }
+        }, 0);
+        assertEquals(0, located.get());
+
+        journal.record("bgm1.mp3", 1500, null);
+        journal.flush();
+        assertEquals("bgm1.mp3", journal.read().getFileName());
+        assertEquals(1, located.get());
+
+        journal.close();
+        journal.close();
+    }
+
+    @Test
+    public void read_ignoresFileLargerThanMax() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(PlaybackJournal.MAX_FILE_BYTES + 1);
+        } finally {
+            file.close();
+        }
+        assertNull(new PlaybackJournal(mFile).read());
+    }
+
+    @Test
+    public void channel_restoresWithItsFirstCommand() throws Exception {
+        PlaybackJournal journal = new PlaybackJournal(mFile, 0);
+        journal.record("bgm1.mp3", 5000, null);
+        journal.flush();
+        journal.close();
+
+        final BgmScheduler scheduler = new BgmScheduler("journal-test");
+        final FakePlayerEngine.Factory factory = new FakePlayerEngine.Factory(20, 0);
+        final AtomicInteger located = new AtomicInteger();
+        final BgmChannel channel = new BgmChannel(new BgmChannel.Host() {
+            @Override
+            public PlayerEngine.Factory createEngineFactory() {
+                return factory;
+            }
+
+            @Override
+            public BgmScheduler getScheduler() {
+                return scheduler;
+            }
+        }, "journal-test", new BgmEventDispatcher(new Executor() {
+            @Override
+            public void execute(final Runnable runnable) {
+                runnable.run();
+            }
+        }));
+        channel.restore(new PlaybackJournal(new PlaybackJournal.Location() {
+            @Override
+            public File getFile() {
+                located.incrementAndGet();
+                return mFile;
+            }
+        }, 0));
+        Thread.sleep(50);
+        assertEquals("nothing is read before the first command", 0, located.get());
+        assertEquals(BgmWorker.PlaybackState.IDLED, channel.getState().getPlaybackState());
+
+        channel.resumeWithoutHandle();
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (channel.getState().getPlaybackState() != BgmWorker.PlaybackState.STARTED) {
+            assertTrue("not resumed", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(1, located.get());
+        assertEquals(1, factory.getEngines().size());
+        assertEquals("bgm1.mp3", factory.getEngines().get(0).getDataSource());
+        assertTrue(factory.getEngines().get(0).getCurrentPosition() >= 5000);
+
+        channel.destroy();
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(TIMEOUT_MILLIS));
+    }
+
+    private static void flipBit(final RandomAccessFile file, final long position) throws IOException {
+        file.seek(position);
+        final int value = file.read();
+        file.seek(position);
+        file.write(value ^ 1);
+    }
+
+    private void awaitWriteCount(final PlaybackJournal journal, final int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (journal.getWriteCount() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("written " + journal.getWriteCount() + " times");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitDeleted() throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (mFile.exists()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("journal is not deleted");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void awaitEntry(final String fileName) throws InterruptedException {
+        final PlaybackJournal journal = new PlaybackJournal(mFile);
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        PlaybackJournal.Entry entry;
+        while ((entry = journal.read()) == null || !fileName.equals(entry.getFileName())) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected " + fileName + " but was " + entry);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitState(final BgmWorker worker, final BgmWorker.PlaybackState state)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (worker.getPlaybackState() != state) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("expected " + state + " but was " + worker.getPlaybackState());
+            }
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests SfxMixer
+ */
+public class SfxMixerTest {
+
+    /**
+     * Creates an effect whose samples all have one value
+     */
+    private static PcmBuffer clip(final int frames, final int sampleRate, final int channels, final short value) {
+        PcmBuffer buffer = PcmBuffer.allocate(frames, sampleRate, channels);
+        ShortBuffer samples = buffer.samples();
+        for (int i = 0; i < frames * channels; i++) {
+            samples.put(value);
+        }
+        return buffer;
+    }
+
+    @Test
+    public void play_usesFreeVoicesFirst() throws Exception {
+        SfxMixer mixer = new SfxMixer(3, 44100, 64);
+        PcmBuffer clip = clip(1000, 44100, 1, (short) 1);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(mixer.play(clip, 1f, 0));
+        }
+        assertEquals(3, mixer.getActiveVoiceCount());
+        assertEquals(0, mixer.getStolenCount());
+    }
+
+    @Test
+    public void play_stealsOldestVoiceOfLowestPriority() throws Exception {
+        SfxMixer mixer = new SfxMixer(3, 44100, 64);
+        short[] out = new short[2];
+        mixer.play(clip(1000, 44100, 1, (short) 100), 1f, 1);
+        mixer.play(clip(1000, 44100, 1, (short) 10), 1f, 0);
+        mixer.play(clip(1000, 44100, 1, (short) 1), 1f, 0);
+
+        /*
+        the 10 is the oldest one of priority 0
+         */
+        assertTrue(mixer.play(clip(1000, 44100, 1, (short) 1000), 1f, 0));
+        mixer.mix(out, 1);
+        assertEquals(1101, out[0]);
+        assertEquals(1, mixer.getStolenCount());
+
+        /*
+        now the 1 is the oldest one of priority 0
+         */
+        assertTrue(mixer.play(clip(1000, 44100, 1, (short) 2000), 1f, 1));
+        mixer.mix(out, 1);
+        assertEquals(3100, out[0]);
+        assertEquals(2, mixer.getStolenCount());
+    }
+
+    @Test
+    public void play_dropsEffectIfEveryVoiceHasHigherPriority() throws Exception {
+        SfxMixer mixer = new SfxMixer(2, 44100, 64);
+        short[] out = new short[2];
+        mixer.play(clip(1000, 44100, 1, (short) 1), 1f, 5);
+        mixer.play(clip(1000, 44100, 1, (short) 2), 1f, 5);
+
+        assertFalse(mixer.play(clip(1000, 44100, 1, (short) 1000), 1f, 4));
+        mixer.mix(out, 1);
+        assertEquals(3, out[0]);
+        assertEquals(1, mixer.getDroppedCount());
+        assertEquals(0, mixer.getStolenCount());
+    }
+
+    @Test
+    public void mix_freesVoiceAtEndOfEffect() throws Exception {
+        SfxMixer mixer = new SfxMixer(1, 44100, 64);
+        short[] out = new short[128];
+        mixer.play(clip(100, 44100, 1, (short) 7), 1f, 0);
+
+        mixer.mix(out, 64);
+        assertEquals(1, mixer.getActiveVoiceCount());
+        mixer.mix(out, 64);
+        assertEquals(0, mixer.getActiveVoiceCount());
+        assertEquals(7, out[35 * 2]);
+        assertEquals(0, out[36 * 2]);
+    }
+
+    @Test
+    public void mix_upmixesMonoAndKeepsStereo() throws Exception {
+        SfxMixer mixer = new SfxMixer(2, 44100, 64);
+        short[] out = new short[2];
+        mixer.play(clip(100, 44100, 1, (short) 100), 0.5f, 0);
+
+        PcmBuffer stereo = PcmBuffer.allocate(100, 44100, 2);
+        ShortBuffer samples = stereo.samples();
+        for (int i = 0; i < 100; i++) {
+            samples.put((short) 1000).put((short) -1000);
+        }
+        mixer.play(stereo, 1f, 0);
+
+        mixer.mix(out, 1);
+        assertEquals(1050, out[0]);
+        assertEquals(-950, out[1]);
+    }
+
+    @Test
+    public void mix_resamplesToMixRate() throws Exception {
+        SfxMixer mixer = new SfxMixer(1, 44100, 256);
+        short[] out = new short[512];
+        PcmBuffer clip = PcmBuffer.allocate(100, 22050, 1);
+        ShortBuffer samples = clip.samples();
+        for (int i = 0; i < 100; i++) {
+            samples.put((short) (i * 100));
+        }
+        mixer.play(clip, 1f, 0);
+
+        /*
+        a 22050Hz effect lasts twice as many frames, interpolated in between
+         */
+        mixer.mix(out, 256);
+        assertEquals(0, out[0]);
+        assertEquals(50, out[2]);
+        assertEquals(100, out[4]);
+        assertEquals(9900, out[198 * 2]);
+        assertEquals(0, out[200 * 2]);
+        assertEquals(0, mixer.getActiveVoiceCount());
+    }
+
+    @Test
+    public void mix_clampsToShortRange() throws Exception {
+        SfxMixer mixer = new SfxMixer(2, 44100, 64);
+        short[] out = new short[2];
+        mixer.play(clip(10, 44100, 1, (short) 30000), 1f, 0);
+        mixer.play(clip(10, 44100, 1, (short) 30000), 1f, 0);
+        mixer.mix(out, 1);
+        assertEquals(Short.MAX_VALUE, out[0]);
+    }
+
+    @Test
+    public void forget_stopsVoicesOfEffect() throws Exception {
+        SfxMixer mixer = new SfxMixer(2, 44100, 64);
+        PcmBuffer forgotten = clip(100, 44100, 1, (short) 1);
+        mixer.play(forgotten, 1f, 0);
+        mixer.play(clip(100, 44100, 1, (short) 2), 1f, 0);
+
+        mixer.forget(forgotten);
+        assertEquals(1, mixer.getActiveVoiceCount());
+    }
+}
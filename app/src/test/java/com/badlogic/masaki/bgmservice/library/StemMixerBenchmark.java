@@ -0,0 +1,67 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how many frames StemMixer mixes per second for 2, 4 and 8 stereo layers
+ */
+public class StemMixerBenchmark {
+    private static final int CHUNK_FRAMES = 1024;
+    private static final int STEM_FRAMES = 44100 * 2;
+    private static final int WARMUP_CHUNKS = 5000;
+    private static final int MEASURED_CHUNKS = 10000;
+
+    @Test
+    public void mixedFramesPerSecond() throws Exception {
+        /*
+        runs twice so that the second round is measured with warmed-up code
+         */
+        for (int round = 0; round < 2; round++) {
+            for (int layers = 2; layers <= 8; layers *= 2) {
+                final boolean report = round == 1;
+                final double framesPerSecond = measure(layers, report ? MEASURED_CHUNKS : WARMUP_CHUNKS);
+                if (report) {
+                    System.out.println(String.format("StemMixer %d layers  %8.1f Mframes/s  (%6.0fx realtime at 44.1kHz)",
+                            layers, framesPerSecond / 1e6, framesPerSecond / 44100));
+                }
+            }
+        }
+    }
+
+    private static double measure(final int layerCount, final int chunks) {
+        final List<PcmBuffer> stems = new ArrayList<>();
+        for (int i = 0; i < layerCount; i++) {
+            PcmBuffer stem = PcmBuffer.allocate(STEM_FRAMES, 44100, 2);
+            ShortBuffer samples = stem.samples();
+            for (int j = 0; j < STEM_FRAMES * 2; j++) {
+                samples.put((short) ((j * 31 + i * 7919) % 4096 - 2048));
+            }
+            stems.add(stem);
+        }
+        final StemMixer mixer = new StemMixer(stems, CHUNK_FRAMES);
+        final short[] out = new short[CHUNK_FRAMES * 2];
+
+        long checksum = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < chunks; i++) {
+            /*
+            toggles a layer now and then, as scenes change
+             */
+            if (i % 64 == 0) {
+                mixer.setGain(i / 64 % layerCount, i / 64 % 2 == 0 ? 0f : 1f);
+            }
+            mixer.mix(out, CHUNK_FRAMES);
+            checksum += out[i % out.length];
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        assertNotEquals(Long.MIN_VALUE, checksum);
+        return (double) chunks * CHUNK_FRAMES * 1e9 / elapsed;
+    }
+}
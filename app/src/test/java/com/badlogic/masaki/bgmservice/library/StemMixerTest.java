@@ -0,0 +1,121 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests StemMixer
+ */
+public class StemMixerTest {
+
+    /**
+     * Creates a mono stem
+     * @param frames number of frames
+     * @param value sample value, or null to make each sample its frame number
+     */
+    static PcmBuffer stem(final int frames, final Short value) {
+        PcmBuffer buffer = PcmBuffer.allocate(frames, 44100, 1);
+        ShortBuffer samples = buffer.samples();
+        for (int i = 0; i < frames; i++) {
+            samples.put(value == null ? (short) i : value);
+        }
+        return buffer;
+    }
+
+    @Test
+    public void mix_sumsLayersWithGains() throws Exception {
+        StemMixer mixer = new StemMixer(Arrays.asList(stem(100, (short) 1000), stem(100, (short) 3000)), 64);
+        mixer.setGain(1, 0.5f);
+        short[] out = new short[64];
+
+        /*
+        the first mix ramps to the new gain, and the second one uses it throughout
+         */
+        mixer.mix(out, 64);
+        mixer.mix(out, 64);
+        for (short sample : out) {
+            assertEquals(2500, sample);
+        }
+    }
+
+    @Test
+    public void mix_clampsToShortRange() throws Exception {
+        StemMixer mixer = new StemMixer(Arrays.asList(stem(10, (short) 30000), stem(10, (short) 30000)), 10);
+        short[] out = new short[10];
+        mixer.mix(out, 10);
+        assertEquals(Short.MAX_VALUE, out[0]);
+
+        mixer = new StemMixer(Arrays.asList(stem(10, (short) -30000), stem(10, (short) -30000)), 10);
+        mixer.mix(out, 10);
+        assertEquals(Short.MIN_VALUE, out[0]);
+    }
+
+    @Test
+    public void mix_keepsMutedLayersSampleLocked() throws Exception {
+        StemMixer mixer = new StemMixer(Arrays.asList(stem(1000, null), stem(1000, (short) 0)), 128);
+        short[] out = new short[128];
+        int position = 0;
+
+        mixer.setGain(0, 0f);
+        for (int i = 0; i < 20; i++) {
+            position = (position + mixer.mix(out, 77)) % 1000;
+        }
+        mixer.setGain(0, 1f);
+        position = (position + mixer.mix(out, 77)) % 1000;
+
+        mixer.mix(out, 100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals((position + i) % 1000, out[i]);
+        }
+    }
+
+    @Test
+    public void mix_rampsGainWithoutJumps() throws Exception {
+        StemMixer mixer = new StemMixer(Arrays.asList(stem(1000, (short) 10000)), 100);
+        short[] out = new short[100];
+        mixer.mix(out, 100);
+
+        mixer.setGain(0, 0f);
+        mixer.mix(out, 100);
+        for (int i = 1; i < 100; i++) {
+            assertTrue(out[i] <= out[i - 1]);
+            assertTrue(out[i - 1] - out[i] <= 101);
+        }
+        assertEquals(0, out[99]);
+    }
+
+    @Test
+    public void mix_allocatesNothing() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        StemMixer mixer = new StemMixer(Arrays.asList(stem(44100, (short) 1), stem(44100, (short) 2),
+                stem(44100, (short) 3), stem(44100, (short) 4)), 1024);
+        short[] out = new short[1024];
+        for (int i = 0; i < 2000; i++) {
+            mixer.setGain(i % 4, i % 3 == 0 ? 0f : 1f);
+            mixer.mix(out, 1024);
+        }
+
+        final long id = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 2000; i++) {
+            mixer.setGain(i % 4, i % 3 == 0 ? 0f : 1f);
+            mixer.mix(out, 1024);
+        }
+        final long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+        /*
+        allocating even one buffer per mix would be megabytes
+         */
+        assertTrue("allocated " + allocated + " bytes", allocated < 16 * 1024);
+    }
+}
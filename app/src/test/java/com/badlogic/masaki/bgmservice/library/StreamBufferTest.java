@@ -0,0 +1,339 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests StreamBuffer streaming from a local stand-in HTTP server and from a file
+ */
+public class StreamBufferTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+    private static final int CAPACITY = 64 * 1024;
+    private static final int LENGTH = 300 * 1024;
+
+    private byte[] mContent;
+    private LocalServer mServer;
+    private StreamBuffer mBuffer;
+
+    @Before
+    public void setUp() throws Exception {
+        mContent = new byte[LENGTH];
+        new Random(20).nextBytes(mContent);
+        mServer = new LocalServer(mContent);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mBuffer != null) {
+            mBuffer.close();
+        }
+        mServer.close();
+    }
+
+    @Test
+    public void sequentialReads_returnTheWholeStream() throws Exception {
+        mBuffer = open(mServer.url(), null);
+        assertEquals(LENGTH, mBuffer.length());
+
+        byte[] read = readAll(mBuffer, 0, 3000);
+        assertArrayEquals(mContent, read);
+        assertEquals(-1, mBuffer.readAt(LENGTH, new byte[16], 0, 16));
+        assertEquals(LENGTH, mBuffer.getFetchedBytes());
+        assertEquals(0, mBuffer.getSeekCount());
+        assertEquals(1, mServer.mRequests.size());
+    }
+
+    @Test
+    public void readAhead_isBoundedByCapacity() throws Exception {
+        mBuffer = open(mServer.url(), null);
+        byte[] chunk = new byte[1000];
+        assertEquals(1000, mBuffer.readAt(0, chunk, 0, 1000));
+
+        /*
+        nothing more is read, so the fetch stops once the read-ahead limit is buffered
+         */
+        final int limit = CAPACITY - CAPACITY / 4;
+        awaitBuffered(mBuffer, limit);
+        Thread.sleep(100);
+        assertEquals(limit, mBuffer.getBufferedBytes());
+        assertEquals(1000 + limit, mBuffer.getFetchedBytes());
+        assertEquals(100, mBuffer.getFillPercent());
+
+        /*
+        reading frees space that the fetch fills again
+         */
+        assertEquals(1000, mBuffer.readAt(1000, chunk, 0, 1000));
+        awaitBuffered(mBuffer, limit);
+        assertEquals(2000 + limit, mBuffer.getFetchedBytes());
+    }
+
+    @Test
+    public void slowServer_countsUnderruns() throws Exception {
+        mServer.mDelayMillisPerChunk = 5;
+        final AtomicInteger underruns = new AtomicInteger();
+        final AtomicInteger lastPercent = new AtomicInteger(-1);
+        mBuffer = open(mServer.url(), new StreamBuffer.Listener() {
+            @Override
+            public void onFill(int percent) {
+                lastPercent.set(percent);
+            }
+
+            @Override
+            public void onUnderrun(long stallNanos) {
+                assertTrue(stallNanos > 0);
+                underruns.incrementAndGet();
+            }
+        });
+
+        byte[] read = readAll(mBuffer, 0, 16 * 1024);
+        assertArrayEquals(mContent, read);
+        assertTrue(mBuffer.getUnderrunCount() > 0);
+        assertEquals(mBuffer.getUnderrunCount(), underruns.get());
+        assertTrue(lastPercent.get() >= 0);
+    }
+
+    @Test
+    public void readsWithinReadAhead_doNotUnderrun() throws Exception {
+        mBuffer = open(mServer.url(), null);
+        byte[] chunk = new byte[1000];
+        assertEquals(1000, mBuffer.readAt(0, chunk, 0, 1000));
+        awaitBuffered(mBuffer, CAPACITY - CAPACITY / 4);
+
+        for (int position = 1000; position < 40 * 1000; position += 1000) {
+            assertEquals(1000, mBuffer.readAt(position, chunk, 0, 1000));
+            assertArrayEquals(Arrays.copyOfRange(mContent, position, position + 1000), chunk);
+        }
+        assertEquals(0, mBuffer.getUnderrunCount());
+    }
+
+    @Test
+    public void farReads_restartWithRange_nearReadsDoNot() throws Exception {
+        mBuffer = open(mServer.url(), null);
+        assertEquals(LENGTH, mBuffer.length());
+        byte[] chunk = new byte[128];
+
+        /*
+        the end of the file, as players read tags there, then back to the start
+         */
+        assertEquals(128, mBuffer.readAt(LENGTH - 128, chunk, 0, 128));
+        assertArrayEquals(Arrays.copyOfRange(mContent, LENGTH - 128, LENGTH), chunk);
+        assertEquals(128, mBuffer.readAt(0, chunk, 0, 128));
+        assertArrayEquals(Arrays.copyOfRange(mContent, 0, 128), chunk);
+        assertEquals(2, mBuffer.getSeekCount());
+
+        /*
+        a little backwards and a little forwards are served by the same request
+         */
+        readAll(mBuffer, 0, 1000, 20 * 1000);
+        assertEquals(128, mBuffer.readAt(15 * 1000, chunk, 0, 128));
+        assertArrayEquals(Arrays.copyOfRange(mContent, 15 * 1000, 15 * 1000 + 128), chunk);
+        assertEquals(128, mBuffer.readAt(30 * 1000, chunk, 0, 128));
+        assertArrayEquals(Arrays.copyOfRange(mContent, 30 * 1000, 30 * 1000 + 128), chunk);
+        assertEquals(2, mBuffer.getSeekCount());
+
+        assertEquals(3, mServer.mRequests.size());
+        assertEquals("bytes=" + (LENGTH - 128) + "-", mServer.mRequests.get(1));
+        assertEquals("", mServer.mRequests.get(2));
+    }
+
+    @Test
+    public void serverWithoutRanges_isSkippedToThePosition() throws Exception {
+        mServer.mIgnoresRanges = true;
+        mBuffer = open(mServer.url(), null);
+        byte[] chunk = new byte[128];
+        assertEquals(128, mBuffer.readAt(200 * 1024, chunk, 0, 128));
+        assertArrayEquals(Arrays.copyOfRange(mContent, 200 * 1024, 200 * 1024 + 128), chunk);
+        assertEquals(LENGTH, mBuffer.length());
+    }
+
+    @Test
+    public void missingFile_failsReads() throws Exception {
+        mBuffer = open(new URL(mServer.url() + "missing"), null);
+        try {
+            mBuffer.readAt(0, new byte[16], 0, 16);
+            fail();
+        } catch (IOException expected) {
+            /* 404 */
+        }
+        try {
+            mBuffer.length();
+            fail();
+        } catch (IOException expected) {
+            /* 404 */
+        }
+    }
+
+    @Test
+    public void fileSource_streamsFromDisk() throws Exception {
+        File file = File.createTempFile("stream", ".mp3");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(mContent);
+            out.close();
+
+            assertTrue(StreamSource.isStream(file.getAbsolutePath()));
+            assertTrue(StreamSource.isStream("file://" + file.getAbsolutePath()));
+            assertFalse(StreamSource.isStream("bgm1.mp3"));
+
+            mBuffer = new StreamBuffer(StreamSource.forName("file://" + file.getAbsolutePath()), CAPACITY, null);
+            mBuffer.start();
+            assertEquals(LENGTH, mBuffer.length());
+            byte[] chunk = new byte[128];
+            assertEquals(128, mBuffer.readAt(250 * 1024, chunk, 0, 128));
+            assertArrayEquals(Arrays.copyOfRange(mContent, 250 * 1024, 250 * 1024 + 128), chunk);
+            assertArrayEquals(mContent, readAll(mBuffer, 0, 4096));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private StreamBuffer open(final URL url, final StreamBuffer.Listener listener) throws IOException {
+        StreamBuffer buffer = new StreamBuffer(StreamSource.forName(url.toString()), CAPACITY, listener);
+        buffer.start();
+        return buffer;
+    }
+
+    private static byte[] readAll(final StreamBuffer buffer, final long from, final int chunkSize) throws IOException {
+        return readAll(buffer, from, chunkSize, LENGTH);
+    }
+
+    private static byte[] readAll(final StreamBuffer buffer, final long from, final int chunkSize, final int to)
+            throws IOException {
+        byte[] read = new byte[(int) (to - from)];
+        int total = 0;
+        while (total < read.length) {
+            int count = buffer.readAt(from + total, read, total, Math.min(chunkSize, read.length - total));
+            assertTrue(count > 0);
+            total += count;
+        }
+        return read;
+    }
+
+    private static void awaitBuffered(final StreamBuffer buffer, final long bytes) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (buffer.getBufferedBytes() < bytes) {
+            assertTrue("not buffered", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * HTTP server on the loopback interface that serves one file, with Range requests unless told otherwise
+     */
+    private static class LocalServer {
+        private final byte[] mContent;
+        private final ServerSocket mSocket;
+        private final List<String> mRequests = new CopyOnWriteArrayList<>();
+        private volatile int mDelayMillisPerChunk;
+        private volatile boolean mIgnoresRanges;
+
+        LocalServer(final byte[] content) throws IOException {
+            mContent = content;
+            mSocket = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            serve(mSocket.accept());
+                        }
+                    } catch (IOException e) {
+                        /* closed */
+                    }
+                }
+            }, "LocalServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        URL url() throws IOException {
+            return new URL("http://127.0.0.1:" + mSocket.getLocalPort() + "/");
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+
+        private void serve(final Socket socket) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        respond(socket);
+                    } catch (IOException e) {
+                        /* the client closed the connection to restart elsewhere */
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            /* nothing to do */
+                        }
+                    }
+                }
+            }, "LocalServer-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void respond(final Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String path = reader.readLine().split(" ")[1];
+            String range = "";
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase().startsWith("range:")) {
+                    range = line.substring("range:".length()).trim();
+                }
+            }
+            mRequests.add(range);
+
+            OutputStream out = socket.getOutputStream();
+            if (!path.equals("/")) {
+                out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+                out.flush();
+                return;
+            }
+            int from = 0;
+            if (range.startsWith("bytes=") && !mIgnoresRanges) {
+                from = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                out.write(("HTTP/1.1 206 Partial Content\r\nContent-Length: " + (mContent.length - from) +
+                        "\r\nContent-Range: bytes " + from + "-" + (mContent.length - 1) + "/" + mContent.length +
+                        "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+            } else {
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + mContent.length +
+                        "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+            }
+            for (int position = from; position < mContent.length; position += 4096) {
+                out.write(mContent, position, Math.min(4096, mContent.length - position));
+                out.flush();
+                if (mDelayMillisPerChunk > 0) {
+                    try {
+                        Thread.sleep(mDelayMillisPerChunk);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            out.flush();
+        }
+    }
+}
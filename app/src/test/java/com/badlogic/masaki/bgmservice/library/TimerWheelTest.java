@@ -0,0 +1,142 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests TimerWheel
+ */
+public class TimerWheelTest {
+
+    @Test
+    public void expire_firesAtExactDeadlinesInOrder() throws Exception {
+        TimerWheel wheel = new TimerWheel(8, 10, 0);
+        BgmTimer late = timer();
+        BgmTimer early = timer();
+        BgmTimer lateToo = timer();
+        wheel.add(late, 25);
+        wheel.add(early, 5);
+        wheel.add(lateToo, 25);
+        assertEquals(5, wheel.nextDeadlineNanos());
+
+        List<BgmTimer> expired = new ArrayList<>();
+        wheel.expire(4, expired);
+        assertTrue(expired.isEmpty());
+
+        wheel.expire(5, expired);
+        assertEquals(1, expired.size());
+        assertSame(early, expired.get(0));
+        assertEquals(25, wheel.nextDeadlineNanos());
+
+        /*
+        timers in the same tick wait for their own deadline
+         */
+        expired.clear();
+        wheel.expire(24, expired);
+        assertTrue(expired.isEmpty());
+
+        wheel.expire(30, expired);
+        assertEquals(2, expired.size());
+        assertSame(late, expired.get(0));
+        assertSame(lateToo, expired.get(1));
+        assertEquals(0, wheel.size());
+        assertEquals(TimerWheel.NO_DEADLINE, wheel.nextDeadlineNanos());
+    }
+
+    @Test
+    public void remove_unlinksTimer() throws Exception {
+        TimerWheel wheel = new TimerWheel(8, 10, 0);
+        BgmTimer first = timer();
+        BgmTimer second = timer();
+        wheel.add(first, 15);
+        wheel.add(second, 40);
+
+        assertTrue(wheel.remove(first));
+        assertFalse(wheel.remove(first));
+        assertEquals(1, wheel.size());
+        assertEquals(40, wheel.nextDeadlineNanos());
+
+        List<BgmTimer> expired = new ArrayList<>();
+        wheel.expire(100, expired);
+        assertEquals(1, expired.size());
+        assertSame(second, expired.get(0));
+    }
+
+    @Test
+    public void timersBeyondARevolution_fireAtTheirDeadline() throws Exception {
+        /*
+        the wheel spans 80ns, so these timers share slots with nearer ticks
+         */
+        TimerWheel wheel = new TimerWheel(8, 10, 0);
+        BgmTimer far = timer();
+        BgmTimer farther = timer();
+        wheel.add(farther, 1005);
+        wheel.add(far, 500);
+        assertEquals(500, wheel.nextDeadlineNanos());
+
+        List<BgmTimer> expired = new ArrayList<>();
+        for (long now = 0; now < 500; now += 7) {
+            wheel.expire(now, expired);
+        }
+        assertTrue(expired.isEmpty());
+
+        wheel.expire(500, expired);
+        assertEquals(1, expired.size());
+        assertSame(far, expired.get(0));
+        assertEquals(1005, wheel.nextDeadlineNanos());
+
+        /*
+        jumps more than a revolution at once
+         */
+        expired.clear();
+        wheel.expire(5000, expired);
+        assertEquals(1, expired.size());
+        assertSame(farther, expired.get(0));
+    }
+
+    @Test
+    public void manyTimers_fireInDeadlineOrderUnlessRemoved() throws Exception {
+        TimerWheel wheel = new TimerWheel(512, 10, 0);
+        Random random = new Random(17);
+        List<BgmTimer> removed = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            BgmTimer timer = timer();
+            wheel.add(timer, random.nextInt(20000));
+            if (i % 3 == 0) {
+                removed.add(timer);
+            }
+        }
+        for (BgmTimer timer : removed) {
+            assertTrue(wheel.remove(timer));
+        }
+
+        List<BgmTimer> expired = new ArrayList<>();
+        long previous = -1;
+        int count = 0;
+        for (long now = 0; now < 20000 + 13; now += 13) {
+            expired.clear();
+            wheel.expire(now, expired);
+            for (BgmTimer timer : expired) {
+                assertTrue(timer.mDeadlineNanos <= now);
+                assertTrue(timer.mDeadlineNanos >= previous);
+                assertFalse(removed.contains(timer));
+                previous = timer.mDeadlineNanos;
+            }
+            count += expired.size();
+            if (wheel.size() > 0) {
+                assertTrue(wheel.nextDeadlineNanos() > now);
+            }
+        }
+        assertEquals(10000 - removed.size(), count);
+        assertEquals(0, wheel.size());
+    }
+
+    private static BgmTimer timer() {
+        return new BgmTimer(null, new BgmCommand(BgmCommand.Type.PAUSE), 0);
+    }
+}
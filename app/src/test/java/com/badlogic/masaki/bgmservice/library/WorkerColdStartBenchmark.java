@@ -0,0 +1,65 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures a cold start of BgmWorker over FakePlayerEngine: how long the caller is blocked
+ * creating the worker and sending START, and how long until an audio thread pulls the first frame.
+ * See ColdStartBenchmark in androidTest for the same measure from bindService on a device.
+ * Left out of the unit tests; run it with ./gradlew :app:testDebugUnitTest -Pbenchmarks --tests '*WorkerColdStartBenchmark'
+ */
+public class WorkerColdStartBenchmark {
+    private static final int WARMUP_STARTS = 100;
+    private static final int MEASURED_STARTS = 300;
+    private static final int CHUNK_FRAMES = 256;
+
+    @Test
+    public void coldStartLatency() throws Exception {
+        measure(WARMUP_STARTS);
+        final long[][] results = measure(MEASURED_STARTS);
+        print("caller blocked", results[0]);
+        print("to first frame", results[1]);
+    }
+
+    private static long[][] measure(final int starts) throws Exception {
+        final long[] caller = new long[starts];
+        final long[] firstFrame = new long[starts];
+        final short[] chunk = new short[CHUNK_FRAMES];
+
+        for (int i = 0; i < starts; i++) {
+            final FakePlayerEngine.Factory factory = new FakePlayerEngine.Factory();
+
+            final long startAt = System.nanoTime();
+            final BgmWorker worker = new BgmWorker(factory);
+            worker.start();
+            worker.addCommand(new BgmCommand("bgm1.mp3", BgmCommand.Type.START));
+            caller[i] = System.nanoTime() - startAt;
+
+            /*
+            polls as an audio thread would, until the engine hands out frames
+             */
+            while (factory.getEngines().isEmpty() || factory.getEngines().get(0).render(chunk, CHUNK_FRAMES) == 0) {
+                assertTrue("no frame", System.nanoTime() - startAt < 2000000000L);
+                Thread.yield();
+            }
+            firstFrame[i] = System.nanoTime() - startAt;
+
+            worker.addCommand(new BgmCommand(BgmCommand.Type.RELEASE));
+            worker.addCommand(new BgmCommand(BgmCommand.Type.DESTROY));
+            assertTrue(worker.awaitDestroyed(2000));
+        }
+        Arrays.sort(caller);
+        Arrays.sort(firstFrame);
+        return new long[][] {caller, firstFrame};
+    }
+
+    private static void print(final String name, final long[] sorted) {
+        System.out.println(String.format("cold start %-15s p50=%8.1fus p99=%8.1fus max=%8.1fus", name,
+                sorted[sorted.length / 2] / 1e3, sorted[sorted.length * 99 / 100] / 1e3,
+                sorted[sorted.length - 1] / 1e3));
+    }
+}
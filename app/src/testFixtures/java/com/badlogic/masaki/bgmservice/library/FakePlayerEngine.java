@@ -0,0 +1,555 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory PlayerEngine that plays nothing.
+ * It follows MediaPlayer's state machine, throws IllegalStateException on illegal calls,
+ * and takes configurable time to prepare and start, so that BgmWorker can be tested
+ * and benchmarked on a plain JVM.
+ * Its music is TRACK_FRAMES mono frames whose samples are their own frame numbers,
+ * which render() reads as an audio thread would.
+ */
+class FakePlayerEngine implements PlayerEngine {
+
+    /**
+     * Number of frames of the music
+     */
+    static final int TRACK_FRAMES = 4096;
+
+    /**
+     * Prefix of file names that setDataSource() cannot open
+     */
+    static final String MISSING_FILE_PREFIX = "missing";
+
+    /**
+     * Thread that delivers asynchronous callbacks as MediaPlayer's looper thread does
+     */
+    private static final ScheduledExecutorService sCallbackExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "FakePlayerEngine-callback");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Time prepareAsync() takes until onPrepared is called
+     */
+    private final long mPrepareDelayMillis;
+
+    /**
+     * Time start() blocks the caller
+     */
+    private final long mStartDelayMillis;
+
+    /**
+     * Current state
+     */
+    private BgmWorker.PlaybackState mState = BgmWorker.PlaybackState.IDLED;
+
+    /**
+     * Music file set as data source
+     */
+    private String mDataSource;
+
+    /**
+     * Whether music loops
+     */
+    private boolean mLooping;
+
+    /**
+     * Region that loops, or null to loop the whole music
+     */
+    private LoopPoints mLoopPoints;
+
+    /**
+     * Reader of the music, created when music is rendered first
+     */
+    private LoopingPcmReader mReader;
+
+    /**
+     * Volume from 0 to 1
+     */
+    private float mVolume = 1.0f;
+
+    /**
+     * Playback position in milliseconds
+     */
+    private int mPosition;
+
+    /**
+     * Volumes set so far
+     */
+    private final List<Float> mVolumeHistory = new ArrayList<>();
+
+    /**
+     * Callback that listens for playback events
+     */
+    private volatile Callback mCallback;
+
+    /**
+     * Generation incremented whenever a pending prepare is started or cancelled
+     */
+    private int mGeneration;
+
+    /**
+     * Counts of calls
+     */
+    private int mPrepareCount;
+    private int mStartCount;
+    private int mPauseCount;
+    private int mStopCount;
+    private int mResetCount;
+    private int mVolumeCount;
+    private int mSeekCount;
+
+    /**
+     * Constructor
+     * @param prepareDelayMillis time prepareAsync() takes until onPrepared is called
+     * @param startDelayMillis time start() blocks the caller
+     */
+    FakePlayerEngine(final long prepareDelayMillis, final long startDelayMillis) {
+        mPrepareDelayMillis = prepareDelayMillis;
+        mStartDelayMillis = startDelayMillis;
+    }
+
+    /**
+     * Constructor for an engine that prepares and starts immediately
+     */
+    FakePlayerEngine() {
+        this(0, 0);
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public synchronized void setDataSource(String fileName) throws IOException {
+        checkState("setDataSource", BgmWorker.PlaybackState.IDLED);
+        if (fileName == null || fileName.startsWith(MISSING_FILE_PREFIX)) {
+            throw new IOException("no such file: " + fileName);
+        }
+        mDataSource = fileName;
+        mState = BgmWorker.PlaybackState.INITIALIZED;
+    }
+
+    @Override
+    public synchronized void setLooping(boolean looping) {
+        if (mState == BgmWorker.PlaybackState.ENDED || mState == BgmWorker.PlaybackState.ERROR) {
+            throw new IllegalStateException("setLooping called in state " + mState);
+        }
+        mLooping = looping;
+        if (mReader != null) {
+            mReader.setLooping(looping);
+        }
+    }
+
+    @Override
+    public synchronized void setLoopPoints(LoopPoints points) {
+        checkNotReleased("setLoopPoints");
+        mLoopPoints = points;
+        if (mReader != null) {
+            mReader.setLoopPoints(points);
+        }
+    }
+
+    @Override
+    public synchronized void setVolume(float volume) {
+        if (mState == BgmWorker.PlaybackState.ENDED || mState == BgmWorker.PlaybackState.ERROR) {
+            throw new IllegalStateException("setVolume called in state " + mState);
+        }
+        mVolume = volume;
+        mVolumeHistory.add(volume);
+        mVolumeCount++;
+    }
+
+    @Override
+    public synchronized void prepareAsync() {
+        checkState("prepareAsync", BgmWorker.PlaybackState.INITIALIZED, BgmWorker.PlaybackState.STOPPED);
+        mState = BgmWorker.PlaybackState.PREPARING;
+        mPrepareCount++;
+
+        final int generation = ++mGeneration;
+        sCallbackExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onPrepareFinished(generation);
+            }
+        }, mPrepareDelayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called on the callback thread when preparing finishes
+     * @param generation generation of the prepare call this completion belongs to
+     */
+    private void onPrepareFinished(final int generation) {
+        synchronized (this) {
+            /*
+            ignores stale completions of prepare calls cancelled by reset() or release()
+             */
+            if (generation != mGeneration || mState != BgmWorker.PlaybackState.PREPARING) {
+                return;
+            }
+            mState = BgmWorker.PlaybackState.PREPARED;
+        }
+
+        final Callback callback = mCallback;
+        if (callback != null) {
+            callback.onPrepared(this);
+        }
+    }
+
+    @Override
+    public void start() {
+        synchronized (this) {
+            checkState("start", BgmWorker.PlaybackState.PREPARED, BgmWorker.PlaybackState.STARTED,
+                    BgmWorker.PlaybackState.PAUSED, BgmWorker.PlaybackState.PLAYBACK_COMPLETED);
+            if (mState == BgmWorker.PlaybackState.PLAYBACK_COMPLETED && mReader != null) {
+                mReader.setPosition(0);
+            }
+            mState = BgmWorker.PlaybackState.STARTED;
+            mStartCount++;
+        }
+        sleep(mStartDelayMillis);
+    }
+
+    @Override
+    public synchronized void pause() {
+        checkState("pause", BgmWorker.PlaybackState.STARTED, BgmWorker.PlaybackState.PAUSED,
+                BgmWorker.PlaybackState.PLAYBACK_COMPLETED);
+        mState = BgmWorker.PlaybackState.PAUSED;
+        mPauseCount++;
+    }
+
+    @Override
+    public synchronized void stop() {
+        checkState("stop", BgmWorker.PlaybackState.PREPARED, BgmWorker.PlaybackState.STARTED,
+                BgmWorker.PlaybackState.PAUSED, BgmWorker.PlaybackState.STOPPED,
+                BgmWorker.PlaybackState.PLAYBACK_COMPLETED);
+        mState = BgmWorker.PlaybackState.STOPPED;
+        mPosition = 0;
+        if (mReader != null) {
+            mReader.setPosition(0);
+        }
+        mStopCount++;
+    }
+
+    @Override
+    public synchronized void seekTo(int positionMillis) {
+        checkState("seekTo", BgmWorker.PlaybackState.INITIALIZED, BgmWorker.PlaybackState.STOPPED,
+                BgmWorker.PlaybackState.PREPARED, BgmWorker.PlaybackState.STARTED,
+                BgmWorker.PlaybackState.PAUSED, BgmWorker.PlaybackState.PLAYBACK_COMPLETED);
+        mPosition = positionMillis;
+        if (mReader != null) {
+            mReader.setPosition((int) ((long) positionMillis * 44100 / 1000));
+        }
+        mSeekCount++;
+    }
+
+    @Override
+    public synchronized int getCurrentPosition() {
+        checkNotReleased("getCurrentPosition");
+        return mPosition;
+    }
+
+    @Override
+    public synchronized void reset() {
+        checkNotReleased("reset");
+        mState = BgmWorker.PlaybackState.IDLED;
+        mDataSource = null;
+        mLooping = false;
+        mLoopPoints = null;
+        mReader = null;
+        mPosition = 0;
+        mGeneration++;
+        mResetCount++;
+    }
+
+    @Override
+    public synchronized void release() {
+        mState = BgmWorker.PlaybackState.ENDED;
+        mGeneration++;
+    }
+
+    @Override
+    public synchronized boolean isPlaying() {
+        checkNotReleased("isPlaying");
+        return mState == BgmWorker.PlaybackState.STARTED;
+    }
+
+    /**
+     * Reads the next frames of the music while started, as an audio thread would.
+     * Calls Callback.onLoop if music wrapped, and Callback.onCompletion if music reached its end.
+     * @param dst array the frames are copied into
+     * @param frames number of frames to read
+     * @return number of frames read
+     */
+    int render(final short[] dst, final int frames) {
+        final int read;
+        final boolean looped;
+        synchronized (this) {
+            if (mState != BgmWorker.PlaybackState.STARTED) {
+                return 0;
+            }
+            if (mReader == null) {
+                mReader = new LoopingPcmReader(createTrack());
+                mReader.setLooping(mLooping);
+                mReader.setLoopPoints(mLoopPoints);
+            }
+            final int loopCount = mReader.getLoopCount();
+            read = mReader.read(dst, 0, frames);
+            looped = mReader.getLoopCount() != loopCount;
+            if (read < frames) {
+                mState = BgmWorker.PlaybackState.PLAYBACK_COMPLETED;
+            }
+        }
+
+        final Callback callback = mCallback;
+        if (callback != null) {
+            if (looped) {
+                callback.onLoop(this);
+            }
+            if (read < frames) {
+                callback.onCompletion(this);
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Reports an error, as a player would when its music cannot be played
+     * @param what type of the error
+     * @param extra code specific to the error
+     */
+    void simulateError(final int what, final int extra) {
+        synchronized (this) {
+            mState = BgmWorker.PlaybackState.ERROR;
+        }
+        final Callback callback = mCallback;
+        if (callback != null) {
+            callback.onError(this, what, extra);
+        }
+    }
+
+    /**
+     * Creates the music: each sample is its own frame number
+     * @return music
+     */
+    private static PcmBuffer createTrack() {
+        final PcmBuffer buffer = PcmBuffer.allocate(TRACK_FRAMES, 44100, 1);
+        final ShortBuffer samples = buffer.samples();
+        for (int i = 0; i < TRACK_FRAMES; i++) {
+            samples.put((short) i);
+        }
+        return buffer;
+    }
+
+    /**
+     * Throws IllegalStateException if the current state is not one of the given states
+     * @param method name of the called method
+     * @param legalStates states in which the method can be called
+     */
+    private void checkState(final String method, final BgmWorker.PlaybackState... legalStates) {
+        for (BgmWorker.PlaybackState state : legalStates) {
+            if (mState == state) {
+                return;
+            }
+        }
+        throw new IllegalStateException(method + " called in state " + mState);
+    }
+
+    /**
+     * Throws IllegalStateException if this engine is released
+     * @param method name of the called method
+     */
+    private void checkNotReleased(final String method) {
+        if (mState == BgmWorker.PlaybackState.ENDED) {
+            throw new IllegalStateException(method + " called after release");
+        }
+    }
+
+    /**
+     * Sleeps ignoring interrupts
+     * @param millis time to sleep
+     */
+    private static void sleep(final long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long remaining;
+        boolean interrupted = false;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return current state
+     */
+    synchronized BgmWorker.PlaybackState getState() {
+        return mState;
+    }
+
+    /**
+     * @return music file set as data source
+     */
+    synchronized String getDataSource() {
+        return mDataSource;
+    }
+
+    /**
+     * @return true if music loops
+     */
+    synchronized boolean isLooping() {
+        return mLooping;
+    }
+
+    /**
+     * @return region that loops, or null if the whole music loops
+     */
+    synchronized LoopPoints getLoopPoints() {
+        return mLoopPoints;
+    }
+
+    /**
+     * @return volume from 0 to 1
+     */
+    synchronized float getVolume() {
+        return mVolume;
+    }
+
+    /**
+     * @return volumes set so far
+     */
+    synchronized List<Float> getVolumeHistory() {
+        return new ArrayList<>(mVolumeHistory);
+    }
+
+    /**
+     * @return how many times prepareAsync() was called
+     */
+    synchronized int getPrepareCount() {
+        return mPrepareCount;
+    }
+
+    /**
+     * @return how many times start() was called
+     */
+    synchronized int getStartCount() {
+        return mStartCount;
+    }
+
+    /**
+     * @return how many times pause() was called
+     */
+    synchronized int getPauseCount() {
+        return mPauseCount;
+    }
+
+    /**
+     * @return how many times stop() was called
+     */
+    synchronized int getStopCount() {
+        return mStopCount;
+    }
+
+    /**
+     * @return how many times reset() was called
+     */
+    synchronized int getResetCount() {
+        return mResetCount;
+    }
+
+    /**
+     * @return how many times setVolume() was called
+     */
+    synchronized int getVolumeCount() {
+        return mVolumeCount;
+    }
+
+    /**
+     * @return how many times seekTo() was called
+     */
+    synchronized int getSeekCount() {
+        return mSeekCount;
+    }
+
+    /**
+     * @return how many times any method that changes the player was called
+     */
+    synchronized int getCallCount() {
+        return mPrepareCount + mStartCount + mPauseCount + mStopCount + mResetCount + mVolumeCount + mSeekCount;
+    }
+
+    /**
+     * Factory that creates FakePlayerEngine and remembers the created engines
+     */
+    static class Factory implements PlayerEngine.Factory {
+
+        /**
+         * Time prepareAsync() of created engines takes
+         */
+        private final long mPrepareDelayMillis;
+
+        /**
+         * Time start() of created engines blocks
+         */
+        private final long mStartDelayMillis;
+
+        /**
+         * Engines created by this factory
+         */
+        private final List<FakePlayerEngine> mEngines = new ArrayList<>();
+
+        /**
+         * Constructor
+         * @param prepareDelayMillis time prepareAsync() of created engines takes
+         * @param startDelayMillis time start() of created engines blocks
+         */
+        Factory(final long prepareDelayMillis, final long startDelayMillis) {
+            mPrepareDelayMillis = prepareDelayMillis;
+            mStartDelayMillis = startDelayMillis;
+        }
+
+        /**
+         * Constructor for engines that prepare and start immediately
+         */
+        Factory() {
+            this(0, 0);
+        }
+
+        @Override
+        public synchronized PlayerEngine create() {
+            FakePlayerEngine engine = new FakePlayerEngine(mPrepareDelayMillis, mStartDelayMillis);
+            mEngines.add(engine);
+            return engine;
+        }
+
+        /**
+         * @return engines created by this factory
+         */
+        synchronized List<FakePlayerEngine> getEngines() {
+            return new ArrayList<>(mEngines);
+        }
+    }
+}
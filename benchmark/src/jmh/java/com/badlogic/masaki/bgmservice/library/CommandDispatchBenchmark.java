@@ -0,0 +1,42 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Adding commands to BgmWorker and handling them, with the benchmark's thread standing in for the scheduler's.
+ * Commands change nothing, so this measures the queue, pooling, metrics and reconcile, not the player.
+ */
+@State(Scope.Thread)
+public class CommandDispatchBenchmark {
+
+    /**
+     * Number of commands handled by one process()
+     */
+    @Param({"1", "16"})
+    public int batch;
+
+    private BgmWorker mWorker;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        mWorker = StateTransitionBenchmark.startedWorker();
+    }
+
+    @TearDown
+    public void tearDown() {
+        StateTransitionBenchmark.destroy(mWorker);
+    }
+
+    @Benchmark
+    public boolean enqueueAndDispatch() {
+        for (int i = 0; i < batch; i++) {
+            mWorker.addCommand(BgmCommand.obtain(0.5f, BgmCommand.Type.SET_VOLUME));
+        }
+        return mWorker.process();
+    }
+}
@@ -0,0 +1,81 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mixing one chunk of audio, as StemPlayer and SfxPlayer do on their audio threads.
+ * A chunk of 1024 frames lasts about 23ms at 44.1kHz.
+ */
+@State(Scope.Thread)
+public class MixerBenchmark {
+    private static final int CHUNK_FRAMES = 1024;
+    private static final int SAMPLE_RATE = 44100;
+
+    /**
+     * Number of stems, and of sound effect voices
+     */
+    @Param({"2", "8"})
+    public int layers;
+
+    private final short[] mOut = new short[CHUNK_FRAMES * 2];
+    private StemMixer mStemMixer;
+    private SfxMixer mSfxMixer;
+    private PcmBuffer mClip;
+    private int mChunk;
+
+    @Setup
+    public void setUp() {
+        final List<PcmBuffer> stems = new ArrayList<>();
+        for (int i = 0; i < layers; i++) {
+            stems.add(createPcm(SAMPLE_RATE * 2, i));
+        }
+        mStemMixer = new StemMixer(stems, CHUNK_FRAMES);
+
+        mSfxMixer = new SfxMixer(layers, SAMPLE_RATE, CHUNK_FRAMES);
+        mClip = createPcm(SAMPLE_RATE / 4, 1);
+    }
+
+    @Benchmark
+    public short stems() {
+        /*
+        toggles a layer now and then, as scenes change
+         */
+        if (++mChunk % 64 == 0) {
+            mStemMixer.setGain(mChunk / 64 % layers, mChunk / 64 % 2 == 0 ? 0f : 1f);
+        }
+        mStemMixer.mix(mOut, CHUNK_FRAMES);
+        return mOut[mChunk % mOut.length];
+    }
+
+    @Benchmark
+    public short soundEffects() {
+        /*
+        keeps every voice busy, stealing the oldest now and then
+         */
+        if (++mChunk % 4 == 0 || mSfxMixer.getActiveVoiceCount() < layers) {
+            mSfxMixer.play(mClip, 0.8f, 0);
+        }
+        mSfxMixer.mix(mOut, CHUNK_FRAMES);
+        return mOut[mChunk % mOut.length];
+    }
+
+    /**
+     * Creates stereo PCM with a different waveform per seed
+     */
+    static PcmBuffer createPcm(final int frames, final int seed) {
+        final PcmBuffer pcm = PcmBuffer.allocate(frames, SAMPLE_RATE, 2);
+        final ShortBuffer samples = pcm.samples();
+        for (int i = 0; i < frames * 2; i++) {
+            samples.put((short) ((i * 31 + seed * 7919) % 4096 - 2048));
+        }
+        return pcm;
+    }
+}
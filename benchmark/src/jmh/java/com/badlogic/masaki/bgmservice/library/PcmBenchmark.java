@@ -0,0 +1,105 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Reading music once it is decoded or buffered: looping PCM, cache lookups and the stream read-ahead
+ */
+@State(Scope.Thread)
+public class PcmBenchmark {
+    private static final int CHUNK_FRAMES = 1024;
+    private static final int TRACK_FRAMES = 44100 * 4;
+    private static final int READ_BYTES = 4096;
+    private static final int STREAM_BYTES = 4 * 1024 * 1024;
+
+    private final short[] mOut = new short[CHUNK_FRAMES * 2];
+    private final byte[] mRead = new byte[READ_BYTES];
+    private LoopingPcmReader mReader;
+    private PcmCache mCache;
+    private String[] mKeys;
+    private int mNext;
+    private StreamBuffer mStream;
+    private long mPosition;
+
+    @Setup
+    public void setUp() {
+        /*
+        loops a region that is not a multiple of the chunk, so that reads wrap inside chunks
+         */
+        mReader = new LoopingPcmReader(MixerBenchmark.createPcm(TRACK_FRAMES, 0));
+        mReader.setLooping(true);
+        mReader.setLoopPoints(new LoopPoints(44100, TRACK_FRAMES - 1000));
+
+        mKeys = new String[8];
+        mCache = new PcmCache(64L * 1024 * 1024);
+        for (int i = 0; i < mKeys.length; i++) {
+            mKeys[i] = "bgm" + i + ".mp3";
+            mCache.put(mKeys[i], MixerBenchmark.createPcm(44100, i));
+        }
+
+        final byte[] content = new byte[STREAM_BYTES];
+        new Random(21).nextBytes(content);
+        mStream = new StreamBuffer(new MemorySource(content), StreamBuffer.DEFAULT_CAPACITY, null);
+        mStream.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mStream.close();
+    }
+
+    @Benchmark
+    public int loopingRead() {
+        return mReader.read(mOut, 0, CHUNK_FRAMES);
+    }
+
+    @Benchmark
+    public PcmBuffer cacheHit() {
+        mNext = (mNext + 1) & 7;
+        return mCache.get(mKeys[mNext]);
+    }
+
+    /**
+     * Reads the stream in order as a player does, restarting from its start at the end
+     */
+    @Benchmark
+    public int streamRead() throws IOException {
+        int read = mStream.readAt(mPosition, mRead, 0, READ_BYTES);
+        if (read < 0) {
+            mPosition = 0;
+            read = mStream.readAt(mPosition, mRead, 0, READ_BYTES);
+        }
+        mPosition += read;
+        return read;
+    }
+
+    /**
+     * Source of a stream in memory, so that the buffer rather than I/O is measured
+     */
+    private static final class MemorySource extends StreamSource {
+        private final byte[] mContent;
+
+        MemorySource(final byte[] content) {
+            mContent = content;
+        }
+
+        @Override
+        InputStream open(final long position) {
+            return new ByteArrayInputStream(mContent, (int) position, mContent.length - (int) position);
+        }
+
+        @Override
+        long length() {
+            return mContent.length;
+        }
+    }
+}
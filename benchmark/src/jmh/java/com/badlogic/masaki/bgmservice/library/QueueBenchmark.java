@@ -0,0 +1,91 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uncontended cost of the structures on the command path: MpscRingQueue, the command pool and TimerWheel
+ */
+@State(Scope.Thread)
+public class QueueBenchmark {
+    private static final int BURST = 16;
+    private static final int PENDING_TIMERS = 1000;
+    private static final long TICK_NANOS = 10000000L;
+
+    private final MpscRingQueue<BgmCommand> mQueue = new MpscRingQueue<>(256);
+    private final BgmCommand mCommand = new BgmCommand(BgmCommand.Type.PAUSE);
+    private final List<BgmTimer> mExpired = new ArrayList<>();
+    private TimerWheel mWheel;
+    private BgmTimer[] mTimers;
+    private long mNow;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mWheel = new TimerWheel(512, TICK_NANOS, 0);
+        mTimers = new BgmTimer[PENDING_TIMERS];
+        for (int i = 0; i < PENDING_TIMERS; i++) {
+            mTimers[i] = new BgmTimer(null, mCommand, 0);
+            mWheel.add(mTimers[i], deadline(i));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public int offerPoll() {
+        for (int i = 0; i < BURST; i++) {
+            mQueue.offer(mCommand);
+        }
+        int polled = 0;
+        while (mQueue.poll() != null) {
+            polled++;
+        }
+        return polled;
+    }
+
+    @Benchmark
+    public BgmCommand obtainRecycle() {
+        final BgmCommand command = BgmCommand.obtain(0.5f, BgmCommand.Type.SET_VOLUME);
+        command.recycle();
+        return command;
+    }
+
+    /**
+     * Cancels a pending timer and schedules it again, among PENDING_TIMERS others
+     */
+    @Benchmark
+    public boolean timerRescheduled() {
+        final BgmTimer timer = mTimers[mNext];
+        mNext = (mNext + 1) % PENDING_TIMERS;
+        final boolean removed = mWheel.remove(timer);
+        mWheel.add(timer, mNow + deadline(mNext));
+        return removed;
+    }
+
+    /**
+     * Moves time by a millisecond, firing the timers that are due and scheduling them again
+     */
+    @Benchmark
+    public int timersExpired() {
+        mNow += 1000000L;
+        mExpired.clear();
+        mWheel.expire(mNow, mExpired);
+        for (int i = 0; i < mExpired.size(); i++) {
+            mWheel.add(mExpired.get(i), mNow + deadline(i));
+        }
+        return mExpired.size();
+    }
+
+    /**
+     * Spreads deadlines over 20 seconds, past a revolution of the wheel
+     */
+    private static long deadline(final int i) {
+        return (i * 7919L % 2000) * TICK_NANOS + i;
+    }
+}
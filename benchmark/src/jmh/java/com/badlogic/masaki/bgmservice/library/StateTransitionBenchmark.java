@@ -0,0 +1,78 @@
+package com.badlogic.masaki.bgmservice.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Playback state transitions of BgmWorker over FakePlayerEngine: each one drives the player,
+ * publishes a new BgmState and completes the command.
+ */
+@State(Scope.Thread)
+public class StateTransitionBenchmark {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private BgmWorker mWorker;
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        mWorker = startedWorker();
+    }
+
+    @TearDown
+    public void tearDown() {
+        destroy(mWorker);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public boolean pauseResume() {
+        mWorker.addCommand(BgmCommand.obtain(BgmCommand.Type.PAUSE));
+        mWorker.process();
+        mWorker.addCommand(BgmCommand.obtain(BgmCommand.Type.RESUME));
+        return mWorker.process();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public boolean seekWhilePlaying() {
+        mWorker.addCommand(BgmCommand.obtain(1000, BgmCommand.Type.SEEK));
+        mWorker.process();
+        mWorker.addCommand(BgmCommand.obtain(0, BgmCommand.Type.SEEK));
+        return mWorker.process();
+    }
+
+    /**
+     * Creates a worker without a scheduler and runs it on the calling thread until music started
+     * @return worker playing music
+     */
+    static BgmWorker startedWorker() throws InterruptedException {
+        final BgmWorker worker = new BgmWorker(new FakePlayerEngine.Factory(0, 0));
+        worker.addCommand(BgmCommand.obtain("bgm1.mp3", BgmCommand.Type.START));
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (worker.getPlaybackState() != BgmWorker.PlaybackState.STARTED) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("music did not start: " + worker.getPlaybackState());
+            }
+            /*
+            the fake player reports prepared on its own thread
+             */
+            worker.process();
+            Thread.sleep(1);
+        }
+        return worker;
+    }
+
+    /**
+     * Releases the player and destroys a worker created by startedWorker()
+     * @param worker worker
+     */
+    static void destroy(final BgmWorker worker) {
+        worker.addCommand(BgmCommand.obtain(BgmCommand.Type.RELEASE));
+        worker.addCommand(BgmCommand.obtain(BgmCommand.Type.DESTROY));
+        worker.process();
+    }
+}
@@ -0,0 +1,13 @@
+package android.os;
+
+/**
+ * Stand-in for android.os.Handler on a plain JVM. Benchmarks never post to the main thread.
+ */
+public class Handler {
+
+    public Handler(Looper looper) {}
+
+    public final boolean post(Runnable r) {
+        throw new UnsupportedOperationException("no main thread in benchmarks");
+    }
+}
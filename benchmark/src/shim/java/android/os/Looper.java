@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * Stand-in for android.os.Looper on a plain JVM. Benchmarks never post to the main thread.
+ */
+public final class Looper {
+    private static final Looper sMainLooper = new Looper();
+
+    private Looper() {}
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * Stand-in for android.os.Process on a plain JVM, where thread priorities are left as they are
+ */
+public final class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+    public static final int THREAD_PRIORITY_AUDIO = -16;
+
+    private Process() {}
+
+    public static void setThreadPriority(int priority) {}
+}
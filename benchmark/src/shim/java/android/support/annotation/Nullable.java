@@ -0,0 +1,6 @@
+package android.support.annotation;
+
+/**
+ * Stand-in for the support annotation on a plain JVM
+ */
+public @interface Nullable {}